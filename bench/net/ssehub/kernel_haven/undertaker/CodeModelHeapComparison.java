@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.ssehub.kernel_haven.code_model.CodeBlock;
+import net.ssehub.kernel_haven.code_model.SourceFile;
+import net.ssehub.kernel_haven.undertaker.CsvToAstConverter.PresenceConditionMode;
+import net.ssehub.kernel_haven.util.FormatException;
+
+/**
+ * Compares the retained heap of the normal code model ({@link CodeBlock} trees with materialized presence
+ * conditions, either parsed or built structurally) and the {@link CompactSourceFile}s. Not a JMH benchmark, since
+ * JMH measures time and allocation rates, not retained memory. Run with a fixed heap size, e.g.:
+ * <pre>
+ * java -Xms2g -Xmx2g -cp ... net.ssehub.kernel_haven.undertaker.CodeModelHeapComparison [files] [blocks per file]
+ * </pre>
+ *
+ * @author agent
+ */
+public class CodeModelHeapComparison {
+
+    /**
+     * Don't allow any instances.
+     */
+    private CodeModelHeapComparison() {
+    }
+
+    /**
+     * Converts the same synthetic files into both representations and prints the retained heap of each.
+     *
+     * @param args Optional: the number of files (default 2000) and the number of blocks per file (default 200).
+     *
+     * @throws FormatException If the synthetic CSV is invalid.
+     */
+    public static void main(String[] args) throws FormatException {
+        int numFiles = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int blocksPerFile = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        List<String> csvs = new ArrayList<>();
+        for (int i = 0; i < numFiles; i++) {
+            csvs.add(SyntheticCsv.randomNesting(blocksPerFile, 8, i));
+        }
+        File file = new File(SyntheticCsv.FILENAME);
+
+        CsvToAstConverter parsed = new CsvToAstConverter(false, new FormulaCache(100000),
+                PresenceConditionMode.PARSE);
+        CsvToAstConverter structural = new CsvToAstConverter(false, new FormulaCache(100000),
+                PresenceConditionMode.STRUCTURAL);
+        CsvToAstConverter compact = new CsvToAstConverter(false, new FormulaCache(100000),
+                PresenceConditionMode.STRUCTURAL);
+        compact.setCompactOutput(new FormulaTable());
+
+        System.out.printf("%d files with %d blocks each%n", numFiles, blocksPerFile);
+        print("parsed", measure(parsed, file, csvs), numFiles * blocksPerFile);
+        print("structural", measure(structural, file, csvs), numFiles * blocksPerFile);
+        print("compact", measure(compact, file, csvs), numFiles * blocksPerFile);
+    }
+
+    /**
+     * Prints a measurement.
+     *
+     * @param name The name of the representation.
+     * @param bytes The retained heap.
+     * @param numBlocks The total number of blocks.
+     */
+    private static void print(String name, long bytes, int numBlocks) {
+        System.out.printf("%-11s %,12d bytes (%.1f bytes per block)%n", name + ":", bytes, (double) bytes / numBlocks);
+    }
+
+    /**
+     * Converts all CSVs with the given converter and measures the heap retained by the results.
+     *
+     * @param converter The converter to use.
+     * @param file The path of the source file in the CSVs.
+     * @param csvs The CSVs to convert.
+     * @return The retained heap in bytes.
+     *
+     * @throws FormatException If a CSV is invalid.
+     */
+    private static long measure(CsvToAstConverter converter, File file, List<String> csvs) throws FormatException {
+        long before = usedHeap();
+
+        List<SourceFile<CodeBlock>> result = new ArrayList<>(csvs.size());
+        for (String csv : csvs) {
+            SourceFile<CodeBlock> sourceFile = converter.convert(file, csv);
+            // materialize the presence conditions, like an analysis would; this must not be retained by compact files
+            for (CodeBlock block : sourceFile) {
+                block.getPresenceCondition();
+            }
+            result.add(sourceFile);
+        }
+
+        long after = usedHeap();
+        if (result.isEmpty()) {
+            // keep the result reachable until after the measurement
+            System.out.println();
+        }
+        return after - before;
+    }
+
+    /**
+     * Returns the used heap after a garbage collection.
+     *
+     * @return The used heap in bytes.
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // several collections, since a single System.gc() is only a hint
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.ssehub.kernel_haven.code_model.CodeBlock;
+import net.ssehub.kernel_haven.code_model.SourceFile;
+import net.ssehub.kernel_haven.undertaker.CsvToAstConverter.PresenceConditionMode;
+import net.ssehub.kernel_haven.util.FormatException;
+
+/**
+ * Measures {@link CsvToAstConverter#convert(File, String)} on synthetic CSV with different structures. The formula
+ * cache is disabled, so that each condition is parsed.
+ *
+ * @author agent
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-XX:+UseParallelGC")
+public class CsvToAstConverterBenchmark {
+
+    private static final File FILE = new File(SyntheticCsv.FILENAME);
+
+    private static final int NUM_BLOCKS = 5000;
+
+    /**
+     * The structure of the CSV:
+     * <ul>
+     *     <li><code>flat</code>: only top-level blocks</li>
+     *     <li><code>nested-N</code>: chains of blocks nested down to depth <code>N</code></li>
+     *     <li><code>elseif-N</code>: chains of <code>N</code> blocks: <code>#if</code>, <code>#elif</code>s
+     *         and <code>#else</code></li>
+     * </ul>
+     */
+    @Param({"flat", "nested-1", "nested-10", "nested-30", "elseif-10"})
+    public String shape;
+
+    @Param({"PARSE", "STRUCTURAL"})
+    public PresenceConditionMode pcMode;
+
+    private String csv;
+
+    /**
+     * The converter that is shared by all invocations, like the one converter of an extraction.
+     */
+    private CsvToAstConverter converter;
+
+    /**
+     * Creates the CSV and the shared converter.
+     */
+    @Setup
+    public void setup() {
+        converter = new CsvToAstConverter(false, null, pcMode);
+        if (shape.equals("flat")) {
+            csv = SyntheticCsv.flat(NUM_BLOCKS, 42);
+        } else if (shape.startsWith("nested-")) {
+            csv = SyntheticCsv.deepNesting(NUM_BLOCKS, Integer.parseInt(shape.substring("nested-".length())), 42);
+        } else if (shape.startsWith("elseif-")) {
+            csv = SyntheticCsv.elseIfChains(NUM_BLOCKS, Integer.parseInt(shape.substring("elseif-".length())), 42);
+        } else {
+            throw new IllegalArgumentException("Unknown shape: " + shape);
+        }
+    }
+
+    /**
+     * Converts the CSV with the shared converter, as the extractor does for each file. In
+     * {@link PresenceConditionMode#PARSE}, the formulas are interned across the invocations, like across the files
+     * of an extraction.
+     *
+     * @return The result, to avoid dead code elimination.
+     * @throws FormatException unwanted.
+     */
+    @Benchmark
+    public SourceFile<CodeBlock> convert() throws FormatException {
+        return converter.convert(FILE, csv);
+    }
+
+    /**
+     * Converts the CSV with a new converter. This is the baseline from before the extractor shared one converter for
+     * all files, when each file paid for a new parser and variable cache.
+     *
+     * @return The result, to avoid dead code elimination.
+     * @throws FormatException unwanted.
+     */
+    @Benchmark
+    public SourceFile<CodeBlock> convertWithNewConverter() throws FormatException {
+        return new CsvToAstConverter(false, null, pcMode).convert(FILE, csv);
+    }
+
+}
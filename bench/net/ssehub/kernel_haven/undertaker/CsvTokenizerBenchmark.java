@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the split-based tokenization of the pilztaker CSV with the {@link CsvRecordTokenizer}. Only the
+ * tokenization is measured; the formulas are not parsed.
+ *
+ * @author agent
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-XX:+UseParallelGC")
+public class CsvTokenizerBenchmark {
+
+    private static final File FILE = new File(SyntheticCsv.FILENAME);
+
+    /**
+     * The number of CSV lines. The largest headers in the Linux kernel create a few ten thousand lines.
+     */
+    @Param({"1000", "50000"})
+    public int lines;
+
+    private String csv;
+
+    /**
+     * Creates the CSV.
+     */
+    @Setup
+    public void setup() {
+        csv = SyntheticCsv.randomNesting(lines, 8, 42);
+    }
+
+    /**
+     * The tokenization as it was done before the {@link CsvRecordTokenizer}.
+     *
+     * @param blackhole The blackhole to consume the values.
+     */
+    @Benchmark
+    public void split(Blackhole blackhole) {
+        for (String line : csv.split("\n")) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            String[] parts = line.split(";");
+            blackhole.consume(parts.length == 8);
+            blackhole.consume(new File(parts[0]).equals(FILE));
+            blackhole.consume(Integer.parseInt(parts[1]));
+            blackhole.consume(Integer.parseInt(parts[2]));
+            blackhole.consume(parts[3].equals("if"));
+            blackhole.consume(Integer.parseInt(parts[4]));
+            blackhole.consume(parts[6]);
+            blackhole.consume(parts[7]);
+        }
+    }
+
+    /**
+     * The tokenization with the {@link LineBuffer} and {@link CsvRecordTokenizer}.
+     *
+     * @param blackhole The blackhole to consume the values.
+     * @throws IOException unwanted.
+     */
+    @Benchmark
+    public void tokenizer(Blackhole blackhole) throws IOException {
+        LineBuffer buffer = new LineBuffer(new StringReader(csv));
+        CsvRecordTokenizer record = new CsvRecordTokenizer();
+        String expected = FILE.getPath();
+
+        while (buffer.nextLine()) {
+            if (buffer.isBlank()) {
+                continue;
+            }
+            blackhole.consume(record.tokenize(buffer));
+            blackhole.consume(record.columnEquals(CsvRecordTokenizer.FILENAME, expected));
+            blackhole.consume(record.getInt(CsvRecordTokenizer.LINE_START));
+            blackhole.consume(record.getInt(CsvRecordTokenizer.LINE_END));
+            blackhole.consume(record.columnEquals(CsvRecordTokenizer.TYPE, "if"));
+            blackhole.consume(record.getInt(CsvRecordTokenizer.NESTING_DEPTH));
+            blackhole.consume(record.getString(CsvRecordTokenizer.CONDITION));
+            blackhole.consume(record.getString(CsvRecordTokenizer.PRESENCE_CONDITION));
+        }
+    }
+
+}
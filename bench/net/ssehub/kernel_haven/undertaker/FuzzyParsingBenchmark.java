@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.ssehub.kernel_haven.code_model.CodeBlock;
+import net.ssehub.kernel_haven.code_model.SourceFile;
+import net.ssehub.kernel_haven.undertaker.CsvToAstConverter.PresenceConditionMode;
+import net.ssehub.kernel_haven.util.FormatException;
+
+/**
+ * Compares strict and fuzzy parsing in the {@link CsvToAstConverter}, and measures the string normalizations that
+ * fuzzy parsing applies to conditions that can't be parsed strictly.
+ *
+ * @author agent
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-XX:+UseParallelGC")
+public class FuzzyParsingBenchmark {
+
+    private static final File FILE = new File(SyntheticCsv.FILENAME);
+
+    private static final int NUM_BLOCKS = 2000;
+
+    private String plainCsv;
+
+    private String comparisonsCsv;
+
+    /**
+     * A long condition for the normalization benchmarks. A separate state, so that its parameter only applies to
+     * these benchmarks.
+     */
+    @State(Scope.Benchmark)
+    public static class LongCondition {
+
+        /**
+         * The number of terms in the condition; 1000 terms are about 30 KB.
+         */
+        @Param({"10", "100", "1000", "10000"})
+        public int terms;
+
+        private String condition;
+
+        /**
+         * Creates the condition.
+         */
+        @Setup
+        public void setup() {
+            condition = SyntheticCsv.longCondition(terms, 42);
+        }
+
+    }
+
+    /**
+     * Creates the CSV.
+     */
+    @Setup
+    public void setup() {
+        plainCsv = SyntheticCsv.flat(NUM_BLOCKS, 42);
+        comparisonsCsv = SyntheticCsv.comparisons(NUM_BLOCKS, 42);
+    }
+
+    /**
+     * Converts CSV without comparisons with strict parsing.
+     *
+     * @return The result, to avoid dead code elimination.
+     * @throws FormatException unwanted.
+     */
+    @Benchmark
+    public SourceFile<CodeBlock> plainStrict() throws FormatException {
+        return new CsvToAstConverter(false, null, PresenceConditionMode.STRUCTURAL).convert(FILE, plainCsv);
+    }
+
+    /**
+     * Converts CSV without comparisons with fuzzy parsing. Should be equal to {@link #plainStrict()}, since fuzzy
+     * parsing is only used if strict parsing fails.
+     *
+     * @return The result, to avoid dead code elimination.
+     * @throws FormatException unwanted.
+     */
+    @Benchmark
+    public SourceFile<CodeBlock> plainFuzzy() throws FormatException {
+        return new CsvToAstConverter(true, null, PresenceConditionMode.STRUCTURAL).convert(FILE, plainCsv);
+    }
+
+    /**
+     * Converts CSV where each condition contains a comparison, so each condition needs fuzzy parsing.
+     *
+     * @return The result, to avoid dead code elimination.
+     * @throws FormatException unwanted.
+     */
+    @Benchmark
+    public SourceFile<CodeBlock> comparisonsFuzzy() throws FormatException {
+        return new CsvToAstConverter(true, null, PresenceConditionMode.STRUCTURAL).convert(FILE, comparisonsCsv);
+    }
+
+    /**
+     * Normalizes a long condition for fuzzy parsing: removes the unnecessary brackets and replaces the comparison
+     * operators.
+     *
+     * @param state The long condition.
+     * @return The result, to avoid dead code elimination.
+     */
+    @Benchmark
+    public String normalize(LongCondition state) {
+        return FuzzyNormalizer.normalize(state.condition);
+    }
+
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.util.Random;
+
+/**
+ * Creates synthetic pilztaker CSV output for benchmarks. The output has the same structure as pilztaker creates it:
+ * the presence condition of nested blocks contains the presence condition of the parent block.
+ *
+ * @author agent
+ */
+final class SyntheticCsv {
+
+    public static final String FILENAME = "drivers/gpu/drm/synthetic/synthetic_regs.h";
+
+    /**
+     * Don't allow any instances.
+     */
+    private SyntheticCsv() {
+    }
+
+    /**
+     * Creates CSV with randomly nested blocks.
+     *
+     * @param numBlocks The number of blocks (lines) to create.
+     * @param maxDepth The maximum nesting depth of the blocks. 0 creates only top-level blocks.
+     * @param seed The seed for the random generator; the same seed creates the same CSV.
+     * @return The CSV.
+     */
+    public static String randomNesting(int numBlocks, int maxDepth, long seed) {
+        Random random = new Random(seed);
+        StringBuilder result = new StringBuilder();
+
+        String[] parentPcs = new String[maxDepth + 1];
+        int depth = 0;
+        for (int i = 0; i < numBlocks; i++) {
+            String condition = "CONFIG_SYNTHETIC_" + random.nextInt(2000);
+            if (random.nextInt(4) == 0) {
+                condition += " && !CONFIG_SYNTHETIC_" + random.nextInt(2000);
+            }
+
+            appendLine(result, i * 3 + 1, i * 3 + 2, "if", depth, condition, depth > 0 ? parentPcs[depth - 1] : null);
+            parentPcs[depth] = pc(condition, depth > 0 ? parentPcs[depth - 1] : null);
+
+            // randomly go deeper, stay or go up
+            int next = random.nextInt(3);
+            if (next == 0 && depth < maxDepth) {
+                depth++;
+            } else if (next == 1 && depth > 0) {
+                depth = random.nextInt(depth);
+            }
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Creates CSV with only top-level blocks.
+     *
+     * @param numBlocks The number of blocks (lines) to create.
+     * @param seed The seed for the random generator; the same seed creates the same CSV.
+     * @return The CSV.
+     */
+    public static String flat(int numBlocks, long seed) {
+        return randomNesting(numBlocks, 0, seed);
+    }
+
+    /**
+     * Creates CSV with deeply nested blocks: the blocks form chains that go down to the given depth, with one block
+     * per level, and then start at the top again.
+     *
+     * @param numBlocks The number of blocks (lines) to create.
+     * @param depth The nesting depth of the deepest block of each chain; at least 1.
+     * @param seed The seed for the random generator; the same seed creates the same CSV.
+     * @return The CSV.
+     */
+    public static String deepNesting(int numBlocks, int depth, long seed) {
+        Random random = new Random(seed);
+        StringBuilder result = new StringBuilder();
+
+        String[] parentPcs = new String[depth];
+        for (int i = 0; i < numBlocks; i++) {
+            int level = i % depth;
+            String condition = "CONFIG_SYNTHETIC_" + random.nextInt(2000);
+            String parentPc = level > 0 ? parentPcs[level - 1] : null;
+
+            appendLine(result, i * 3 + 1, i * 3 + 2, "if", level, condition, parentPc);
+            parentPcs[level] = pc(condition, parentPc);
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Creates CSV with top-level <code>#if</code>, <code>#elif</code> ... <code>#else</code> chains. Like pilztaker,
+     * the condition of each <code>#elif</code> and <code>#else</code> contains the negated conditions of all
+     * previous blocks of the chain.
+     *
+     * @param numBlocks The number of blocks (lines) to create.
+     * @param chainLength The number of blocks per chain, including the <code>#if</code> and the <code>#else</code>;
+     *      at least 2.
+     * @param seed The seed for the random generator; the same seed creates the same CSV.
+     * @return The CSV.
+     */
+    public static String elseIfChains(int numBlocks, int chainLength, long seed) {
+        Random random = new Random(seed);
+        StringBuilder result = new StringBuilder();
+
+        String[] conditions = new String[chainLength];
+        int ifLine = 0;
+        for (int i = 0; i < numBlocks; i++) {
+            int position = i % chainLength;
+            int line = i * 3 + 1;
+
+            String type;
+            String condition;
+            if (position == 0) {
+                type = "if";
+                ifLine = line;
+                conditions[0] = "CONFIG_SYNTHETIC_" + random.nextInt(2000);
+                condition = conditions[0];
+
+            } else {
+                String expression;
+                if (position < chainLength - 1) {
+                    type = "elseif";
+                    conditions[position] = "CONFIG_SYNTHETIC_" + random.nextInt(2000);
+                    expression = conditions[position];
+                } else {
+                    type = "else";
+                    expression = "";
+                }
+
+                // same as pilztaker: prepend the negated previous conditions, starting with the nearest one
+                for (int prev = position - 1; prev >= 0; prev--) {
+                    if (expression.isEmpty()) {
+                        expression = "!(" + conditions[prev] + ")";
+                    } else {
+                        expression = "!(" + conditions[prev] + ") && (" + expression + ")";
+                    }
+                }
+                condition = expression;
+            }
+
+            result.append(FILENAME).append(';').append(line).append(';').append(line + 2).append(';').append(type)
+                    .append(";0;").append(ifLine).append(';').append(condition).append(';').append(condition)
+                    .append('\n');
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Creates CSV with top-level blocks, whose conditions contain integer comparisons. These can only be parsed
+     * with fuzzy parsing.
+     *
+     * @param numBlocks The number of blocks (lines) to create.
+     * @param seed The seed for the random generator; the same seed creates the same CSV.
+     * @return The CSV.
+     */
+    public static String comparisons(int numBlocks, long seed) {
+        Random random = new Random(seed);
+        StringBuilder result = new StringBuilder();
+
+        for (int i = 0; i < numBlocks; i++) {
+            String condition = "(CONFIG_SYNTHETIC_" + random.nextInt(2000) + " >= " + random.nextInt(100)
+                    + ") && (CONFIG_SYNTHETIC_" + random.nextInt(2000) + ")";
+            appendLine(result, i * 3 + 1, i * 3 + 2, "if", 0, condition, null);
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Creates a long condition, as it appears in the conditions of deeply nested blocks. It contains comparisons
+     * (<code>==</code>, <code>!=</code>, <code>&gt;=</code>, <code>&lt;</code>, ...) and unnecessary brackets
+     * around single variables, so that all steps of the fuzzy parsing are necessary.
+     *
+     * @param numTerms The number of terms in the condition.
+     * @param seed The seed for the random generator; the same seed creates the same condition.
+     * @return The condition.
+     */
+    public static String longCondition(int numTerms, long seed) {
+        String[] operators = {" == ", " != ", " >= ", " <= ", " > ", " < "};
+        Random random = new Random(seed);
+        StringBuilder result = new StringBuilder();
+
+        for (int i = 0; i < numTerms; i++) {
+            if (i > 0) {
+                result.append(random.nextBoolean() ? " && " : " || ");
+            }
+
+            String variable = "CONFIG_SYNTHETIC_" + random.nextInt(2000);
+            switch (random.nextInt(3)) {
+            case 0:
+                result.append('(').append(variable).append(operators[random.nextInt(operators.length)])
+                        .append(random.nextInt(100)).append(')');
+                break;
+            case 1:
+                result.append("!((").append(variable).append("))");
+                break;
+            default:
+                result.append('(').append(variable).append(')');
+                break;
+            }
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Appends a single CSV line.
+     *
+     * @param result The buffer to append to.
+     * @param lineStart The start line of the block.
+     * @param lineEnd The end line of the block.
+     * @param type The type of the block.
+     * @param depth The nesting depth of the block.
+     * @param condition The condition of the block.
+     * @param parentPc The presence condition of the parent block. <code>null</code> for top-level blocks.
+     */
+    private static void appendLine(StringBuilder result, int lineStart, int lineEnd, String type, int depth,
+            String condition, String parentPc) {
+
+        result.append(FILENAME).append(';').append(lineStart).append(';').append(lineEnd).append(';').append(type)
+                .append(';').append(depth).append(';').append(lineStart).append(';').append(condition).append(';')
+                .append(pc(condition, parentPc)).append('\n');
+    }
+
+    /**
+     * Creates the presence condition, like pilztaker does.
+     *
+     * @param condition The condition of the block.
+     * @param parentPc The presence condition of the parent block. <code>null</code> for top-level blocks.
+     * @return The presence condition.
+     */
+    private static String pc(String condition, String parentPc) {
+        return parentPc == null ? condition : "(" + condition + ") && (" + parentPc + ")";
+    }
+
+}
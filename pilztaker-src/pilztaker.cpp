@@ -23,8 +23,8 @@
 
 #define NO_POINTS
 
-#include <boost/regex.hpp>
-
+#include <algorithm>
+#include <map>
 #include <string>
 #include <iostream>
 #include <fstream>
@@ -67,9 +67,7 @@ static std::string removeDots(std::string str) {
     while (str[str.size() - 1] == '.') {
         str = str.substr(0, str.size() - 1);
     }*/
-    boost::regex expr{"\\."};
-    std::string fmt{""};
-    str = boost::regex_replace(str, expr, fmt);
+    str.erase(std::remove(str.begin(), str.end(), '.'), str.end());
 #endif
     return str;
 }
@@ -78,15 +76,14 @@ static const char delim = ';';
 static std::string base = "/data/src/Linux-Releases/linux-4.2/";
 static ConditionalBlock *topBlock;
 
-static void printToCSV(std::ostream &out, ConditionalBlock *block, std::string parent = "", int indentation = 0) {
-    
-    if (indentation == 0 && block->getParent() != topBlock) {
-        return;
-    }
-    
+/*
+ * Returns the condition of the given block. For else and elseif blocks, the negated conditions of the previous
+ * if and elseif blocks are considered; ifStart is set to the line of the corresponding if block (otherwise -1).
+ */
+static std::string getCondition(ConditionalBlock *block, int &ifStart) {
     std::string expression = removeDots(block->ifdefExpression());
     
-    int ifStart = -1;
+    ifStart = -1;
     
     if (block->isElseBlock() || block->isElseIfBlock()) {
         ConditionalBlock const *prev = block->getPrev();
@@ -105,6 +102,18 @@ static void printToCSV(std::ostream &out, ConditionalBlock *block, std::string p
         }
     }
     
+    return expression;
+}
+
+static void printToCSV(std::ostream &out, ConditionalBlock *block, std::string parent = "", int indentation = 0) {
+    
+    if (indentation == 0 && block->getParent() != topBlock) {
+        return;
+    }
+    
+    int ifStart;
+    std::string expression = getCondition(block, ifStart);
+    
 	std::string pc = expression;
 	
     if (parent != "") {
@@ -135,14 +144,171 @@ static void printToCSV(std::ostream &out, ConditionalBlock *block, std::string p
     }
 }
 
+/*
+ * Binary output format: a stream of records. Each record consists of a one byte tag, the length of the payload as
+ * a 4 byte integer, and the payload. All integers are signed and big-endian. Per file, the records are:
+ * - RECORD_FILE_START: payload is the filename, relative to the base directory
+ * - RECORD_STRING and RECORD_BLOCK, in the order of the blocks in the file (parents before their children):
+ *   - RECORD_STRING: adds a condition to the string table of the file; payload is the condition text. The first
+ *     string has index 0, the next index 1, etc. Each distinct condition is only sent once per file.
+ *   - RECORD_BLOCK: payload is line start, line end, kind (1 byte, see KIND_*), index of the parent block (blocks
+ *     are numbered in the order of their records, starting with 0; -1 for top-level blocks), line of the
+ *     corresponding if, index of the condition in the string table (-1 for no condition).
+ * - RECORD_FILE_END: no payload
+ * Presence conditions are not sent; they follow from the conditions of the parent blocks.
+ */
+static const char RECORD_FILE_START = 1;
+static const char RECORD_STRING = 2;
+static const char RECORD_BLOCK = 3;
+static const char RECORD_FILE_END = 4;
+
+static const char KIND_IF = 0;
+static const char KIND_IFNDEF = 1;
+static const char KIND_ELSEIF = 2;
+static const char KIND_ELSE = 3;
+
+static bool binaryOutput = false;
+
+static void appendInt(std::string &buffer, int value) {
+    buffer += (char) ((value >> 24) & 0xFF);
+    buffer += (char) ((value >> 16) & 0xFF);
+    buffer += (char) ((value >> 8) & 0xFF);
+    buffer += (char) (value & 0xFF);
+}
+
+static void writeRecord(std::ostream &out, char tag, const std::string &payload) {
+    std::string header;
+    header += tag;
+    appendInt(header, (int) payload.size());
+    out << header << payload;
+}
+
+static char getBinaryKind(ConditionalBlock *block) {
+    if (block->isIfndefine()) {
+        return KIND_IFNDEF;
+    } else if (block->isElseIfBlock()) {
+        return KIND_ELSEIF;
+    } else if (block->isElseBlock()) {
+        return KIND_ELSE;
+    } else {
+        return KIND_IF;
+    }
+}
+
+struct BinaryFileState {
+    std::map<std::string, int> strings;
+    int numBlocks = 0;
+};
+
+static void printToBinary(std::ostream &out, BinaryFileState &state, ConditionalBlock *block, int parent = -1) {
+    
+    if (parent == -1 && block->getParent() != topBlock) {
+        return;
+    }
+    
+    int ifStart;
+    std::string expression = getCondition(block, ifStart);
+    
+    int conditionIndex = -1;
+    if (expression != "") {
+        std::map<std::string, int>::iterator it = state.strings.find(expression);
+        if (it != state.strings.end()) {
+            conditionIndex = it->second;
+        } else {
+            conditionIndex = (int) state.strings.size();
+            state.strings[expression] = conditionIndex;
+            writeRecord(out, RECORD_STRING, expression);
+        }
+    }
+    
+    int index = state.numBlocks++;
+    
+    std::string payload;
+    appendInt(payload, block->lineStart());
+    appendInt(payload, block->lineEnd());
+    payload += getBinaryKind(block);
+    appendInt(payload, parent);
+    appendInt(payload, ifStart != -1 ? ifStart : block->lineStart());
+    appendInt(payload, conditionIndex);
+    writeRecord(out, RECORD_BLOCK, payload);
+    
+    for (ConditionalBlock::iterator it = block->begin(); it != block->end(); it++) {
+        printToBinary(out, state, *it, index);
+    }
+}
+
+static const std::string END_OF_FILE_MARKER = "#EOF";
+
+static void parseFile(const std::string &relativePath) {
+    std::cerr << "Parsing " << relativePath << "..." << std::endl;
+    std::string filename = base + relativePath;
+    
+    if (binaryOutput) {
+        writeRecord(std::cout, RECORD_FILE_START, relativePath);
+    }
+    
+    CppFile file(filename);
+    if (!file.good()) {
+        std::cerr << "Error: Can't parse file" << std::endl;
+    } else {
+        topBlock = file.topBlock();
+        
+        BinaryFileState state;
+        for (CppFile::iterator it = file.begin(); it != file.end(); it++) {
+            if (binaryOutput) {
+                printToBinary(std::cout, state, *it);
+            } else {
+                printToCSV(std::cout, *it);
+            }
+            //print(*it);
+        }
+    }
+    
+    if (binaryOutput) {
+        writeRecord(std::cout, RECORD_FILE_END, "");
+    }
+}
+
+/*
+ * Server mode: reads relative file paths (one per line) from stdin. After the CSV of each file, a line containing
+ * only END_OF_FILE_MARKER is written and stdout is flushed; in binary mode, the RECORD_FILE_END record marks the end
+ * of each file instead. Terminates when stdin is closed.
+ */
+static void runServer() {
+    std::string line;
+    while (std::getline(std::cin, line)) {
+        if (line.empty()) {
+            continue;
+        }
+        parseFile(line);
+        if (!binaryOutput) {
+            std::cout << END_OF_FILE_MARKER << '\n';
+        }
+        std::cout << std::flush;
+    }
+}
+
 int main(int argc, char **argv) {
 
-    if (argc < 3) {
-        std::cerr << "Usage: " << argv[0] <<" base_path file1.c file2.c" << std::endl;
+    int firstArg = 1;
+    if (argc > 1 && std::string(argv[1]) == "--binary") {
+        binaryOutput = true;
+        firstArg++;
+    }
+
+    if (argc - firstArg < 2) {
+        std::cerr << "Usage: " << argv[0] <<" [--binary] base_path file1.c file2.c" << std::endl;
+        std::cerr << "       " << argv[0] <<" [--binary] --server base_path" << std::endl;
         return EXIT_SUCCESS;
     }
 
-    base = argv[1];
+    if (std::string(argv[firstArg]) == "--server") {
+        base = argv[firstArg + 1];
+        runServer();
+        return EXIT_SUCCESS;
+    }
+
+    base = argv[firstArg];
     
     //std::ofstream csvFile("test.csv");
     //csvFile << "filename" << delim
@@ -151,21 +317,8 @@ int main(int argc, char **argv) {
     //        << "condition" << delim
     //        << "expanded condition" << '\n';
     
-    for (int i = 2; i < argc; i++) {
-        std::cerr << "Parsing " << argv[i] << "..." << std::endl;
-        std::string filename = base + argv[i];
-        
-        CppFile file(filename);
-        if (!file.good()) {
-            std::cerr << "Error: Can't parse file" << std::endl;
-            continue;
-        }
-        topBlock = file.topBlock();
-        
-        for (CppFile::iterator it = file.begin(); it != file.end(); it++) {
-            printToCSV(std::cout, *it);
-            //print(*it);
-        }
+    for (int i = firstArg + 1; i < argc; i++) {
+        parseFile(argv[i]);
         //csvFile.flush();
     }
     
@@ -173,4 +326,3 @@ int main(int argc, char **argv) {
 
     return EXIT_SUCCESS;
 }
-
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.ssehub.kernel_haven.util.Logger;
+
+/**
+ * Groups the files of the extraction into batches, so that a single pilztaker process handles several files.
+ * <p>
+ * The first request for a file that is not yet part of a batch creates a new batch. The batch contains the
+ * requested file and the following unclaimed files of the work list. The files are taken with a distance of
+ * <code>stride</code> to each other; if the stride is equal to the number of extractor threads, then the threads
+ * (which request consecutive files) each work on their own batches instead of waiting for each other.
+ * <p>
+ * If the pilztaker execution for a batch fails, each file of that batch is executed again on its own. Thus, a failing
+ * file only costs its own batch a retry. If the batch was killed because it hung on a file, that file is not retried,
+ * since it already had its full timeout; it is reported as unsuccessful.
+ *
+ * @author agent
+ */
+class BatchScheduler implements IUndertakerRunner {
+
+    private static final Logger LOGGER = Logger.get();
+
+    private UndertakerWrapper wrapper;
+
+    private int batchSize;
+
+    private int stride;
+
+    private List<File> workList;
+
+    private Map<File, Integer> positions;
+
+    private boolean[] claimed;
+
+    /**
+     * The batches that contain files, for which the result has not yet been requested.
+     */
+    private Map<File, Batch> pending;
+
+    /**
+     * A group of files that is executed by a single pilztaker process.
+     */
+    private class Batch {
+
+        private List<File> files;
+
+        private boolean executed;
+
+        private Map<File, String> results;
+
+        /**
+         * The file that the execution of this batch hung on; not retried.
+         */
+        private List<File> hanging = new ArrayList<>(1);
+
+        /**
+         * Creates a batch.
+         *
+         * @param files The files of this batch.
+         */
+        public Batch(List<File> files) {
+            this.files = files;
+        }
+
+        /**
+         * Returns the CSV for the given file. Executes pilztaker for this batch, if this didn't happen yet.
+         *
+         * @param file The file to get the result for. Must be part of this batch.
+         * @return The resulting CSV. <code>null</code> if not successful.
+         *
+         * @throws IOException If executing undertaker throws an IOException.
+         */
+        public String getResult(File file) throws IOException {
+            boolean failed;
+            synchronized (this) {
+                if (!executed) {
+                    executed = true;
+                    try {
+                        results = wrapper.runOnFiles(files, hanging);
+                    } catch (IOException e) {
+                        LOGGER.logException("Exception while running undertaker on batch", e);
+                    }
+                    if (results == null) {
+                        LOGGER.logWarning("Undertaker execution failed for batch of " + files.size()
+                            + " files; retrying each file on its own");
+                    }
+                }
+
+                failed = results == null;
+            }
+
+            String result;
+            if (failed && hanging.contains(file)) {
+                result = null;
+            } else if (failed) {
+                result = wrapper.runOnFile(file);
+            } else {
+                synchronized (this) {
+                    result = results.remove(file);
+                }
+            }
+            return result;
+        }
+
+    }
+
+    /**
+     * Creates a batch scheduler.
+     *
+     * @param wrapper The wrapper to execute pilztaker with.
+     * @param workList All files that will (probably) be requested during this extraction; relative to the source
+     *      tree.
+     * @param batchSize The maximum number of files per pilztaker execution.
+     * @param stride The distance of files inside the work list that are grouped together. Should be the number of
+     *      threads that request files in parallel.
+     */
+    public BatchScheduler(UndertakerWrapper wrapper, List<File> workList, int batchSize, int stride) {
+        this.wrapper = wrapper;
+        this.workList = workList;
+        this.batchSize = batchSize;
+        this.stride = Math.max(stride, 1);
+
+        this.positions = new HashMap<>();
+        for (int i = 0; i < workList.size(); i++) {
+            positions.put(workList.get(i), i);
+        }
+        this.claimed = new boolean[workList.size()];
+        this.pending = new HashMap<>();
+    }
+
+    /**
+     * Returns the pilztaker result for the given file. This either executes a new batch containing this file, or
+     * waits for the batch that already contains this file.
+     *
+     * @param file The file in the source tree to run on; relative to the source tree. Must not be
+     *      <code>null</code>.
+     * @return The resulting CSV. <code>null</code> if not successful.
+     *
+     * @throws IOException If executing undertaker throws an IOException.
+     */
+    @Override
+    public String runOnFile(File file) throws IOException {
+        Batch batch;
+        synchronized (this) {
+            batch = pending.remove(file);
+
+            if (batch == null) {
+                Integer position = positions.get(file);
+                if (position != null && !claimed[position]) {
+                    batch = createBatch(position);
+                }
+            }
+        }
+
+        String result;
+        if (batch != null) {
+            result = batch.getResult(file);
+        } else {
+            // not part of the work list, or requested a second time
+            result = wrapper.runOnFile(file);
+        }
+        return result;
+    }
+
+    /**
+     * Creates a new batch, starting at the given position of the work list. Must be called while holding the lock
+     * on this object.
+     *
+     * @param start The position of the requested file in the work list. Must not be claimed yet.
+     * @return The new batch.
+     */
+    private Batch createBatch(int start) {
+        List<File> files = new ArrayList<>(batchSize);
+
+        for (int i = start; i < workList.size() && files.size() < batchSize; i += stride) {
+            if (!claimed[i]) {
+                claimed[i] = true;
+                files.add(workList.get(i));
+            }
+        }
+
+        Batch batch = new Batch(files);
+        // the first file is the one that is requested right now
+        for (int i = 1; i < files.size(); i++) {
+            pending.put(files.get(i), batch);
+        }
+
+        return batch;
+    }
+
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.ssehub.kernel_haven.code_model.CodeBlock;
+import net.ssehub.kernel_haven.code_model.SourceFile;
+import net.ssehub.kernel_haven.util.FormatException;
+import net.ssehub.kernel_haven.util.logic.Formula;
+import net.ssehub.kernel_haven.util.logic.parser.ExpressionFormatException;
+
+/**
+ * Converts the binary output of pilztaker (<code>pilztaker --binary</code>) to AST. The binary output is a stream
+ * of records; each record consists of a one byte tag, the length of the payload as a 4 byte integer and the payload.
+ * All integers are signed and big-endian. The records of a file are:
+ * <ol>
+ *     <li>{@link #RECORD_FILE_START}: the payload is the filename, relative to the source tree.</li>
+ *     <li>{@link #RECORD_STRING} and {@link #RECORD_BLOCK}, with parents before their children:
+ *         <ul>
+ *             <li>{@link #RECORD_STRING} adds a condition to the string table of the file. The first string has index
+ *                 0, the next index 1, etc. Each distinct condition is only sent once per file.</li>
+ *             <li>{@link #RECORD_BLOCK}: the payload is the start line, the end line, the kind (one byte, see
+ *                 <code>KIND_*</code>), the index of the parent block (blocks are numbered in the order of their
+ *                 records; -1 for top-level blocks), the line of the corresponding <code>#if</code> and the index of
+ *                 the condition in the string table (-1 for no condition).</li>
+ *         </ul>
+ *     </li>
+ *     <li>{@link #RECORD_FILE_END}: no payload.</li>
+ * </ol>
+ * Records with unknown tags are skipped. Presence conditions are not part of the output; they are always built
+ * structurally from the conditions of the enclosing blocks (like
+ * {@link CsvToAstConverter.PresenceConditionMode#STRUCTURAL}). Each distinct condition is only parsed once per file.
+ *
+ * @author agent
+ */
+public class BinaryToAstConverter {
+
+    static final int RECORD_FILE_START = 1;
+
+    static final int RECORD_STRING = 2;
+
+    static final int RECORD_BLOCK = 3;
+
+    static final int RECORD_FILE_END = 4;
+
+    static final int KIND_IF = 0;
+
+    static final int KIND_IFNDEF = 1;
+
+    static final int KIND_ELSEIF = 2;
+
+    static final int KIND_ELSE = 3;
+
+    /**
+     * The size of the payload of {@link #RECORD_BLOCK}.
+     */
+    static final int BLOCK_PAYLOAD_SIZE = 4 + 4 + 1 + 4 + 4 + 4;
+
+    private CsvToAstConverter conditionParser;
+
+    /**
+     * Creates a converter, that reads binary output from pilztaker and converts it into {@link SourceFile}s.
+     *
+     * @param conditionParser The converter that is used to parse the conditions. Its fuzzy parsing setting and
+     *      formula cache are used; its presence condition mode is ignored.
+     */
+    public BinaryToAstConverter(CsvToAstConverter conditionParser) {
+        this.conditionParser = conditionParser;
+    }
+
+    /**
+     * Converts the records of a single file, read from the given stream, into a {@link SourceFile}. Reads until the
+     * {@link #RECORD_FILE_END} record of that file, so the stream may be directly connected to the output of a
+     * running pilztaker process. If the stream is not a {@link BufferedInputStream}, it is wrapped into one, which
+     * may read ahead beyond the end of the file.
+     *
+     * @param filePath The path of the source file that was parsed. Relative to source tree.
+     * @param in The stream to read the binary output of pilztaker from. Not closed by this method.
+     * @return The {@link SourceFile} representing the output. Never <code>null</code>.
+     *
+     * @throws FormatException If the format of the output is not valid.
+     * @throws IOException If reading from the stream fails.
+     */
+    public SourceFile<CodeBlock> convert(File filePath, InputStream in) throws FormatException, IOException {
+        DataInputStream data = new DataInputStream(in instanceof BufferedInputStream ? in
+                : new BufferedInputStream(in));
+
+        SourceFile<CodeBlock> result = new SourceFile<>(filePath);
+        long start = conditionParser.startConversion();
+
+        List<Formula> strings = new ArrayList<>();
+        List<CodeBlock> blocks = new ArrayList<>();
+
+        try {
+            int tag = data.read();
+            if (tag == -1) {
+                throw new FormatException("Empty output for file " + filePath.getPath());
+            }
+            if (tag != RECORD_FILE_START) {
+                throw new FormatException("Expected file start record, got " + tag);
+            }
+            int length = data.readInt();
+            if (length < 0) {
+                throw new FormatException("Invalid record length " + length + " in file " + filePath.getPath());
+            }
+            String filename = readString(data, length);
+            if (!filename.equals(filePath.getPath())) {
+                throw new FormatException("Found invalid file in output: " + filename + "; expected "
+                        + filePath.getPath());
+            }
+
+            boolean end = false;
+            while (!end) {
+                tag = data.readUnsignedByte();
+                length = data.readInt();
+                if (length < 0) {
+                    throw new FormatException("Invalid record length " + length + " in file " + filePath.getPath());
+                }
+
+                switch (tag) {
+                case RECORD_STRING:
+                    strings.add(conditionParser.tryParse(readString(data, length)));
+                    break;
+
+                case RECORD_BLOCK:
+                    if (length != BLOCK_PAYLOAD_SIZE) {
+                        throw new FormatException("Invalid block record length " + length + " in file "
+                                + filePath.getPath());
+                    }
+                    readBlock(data, filePath, strings, blocks, result);
+                    break;
+
+                case RECORD_FILE_END:
+                    skipFully(data, length);
+                    end = true;
+                    break;
+
+                default:
+                    // unknown record; skip it
+                    skipFully(data, length);
+                    break;
+                }
+            }
+
+        } catch (EOFException e) {
+            throw new FormatException("Unexpected end of output for file " + filePath.getPath());
+        } catch (ExpressionFormatException e) {
+            throw new FormatException(e);
+        }
+
+        // the binary output has no nesting depths
+        conditionParser.finishConversion(filePath, start, ExtractionMetrics.UNKNOWN, blocks.size(),
+                ExtractionMetrics.UNKNOWN);
+        return result;
+    }
+
+    /**
+     * Reads the payload of a {@link #RECORD_BLOCK} and adds the block to its parent.
+     *
+     * @param data The stream to read from.
+     * @param filePath The path of the source file.
+     * @param strings The parsed string table of the file so far.
+     * @param blocks All blocks of the file so far, in the order of their records.
+     * @param result The source file to add top-level blocks to.
+     *
+     * @throws IOException If reading fails.
+     * @throws FormatException If the record contains invalid values.
+     */
+    private void readBlock(DataInputStream data, File filePath, List<Formula> strings,
+            List<CodeBlock> blocks, SourceFile<CodeBlock> result) throws IOException, FormatException {
+
+        int lineStart = data.readInt();
+        int lineEnd = data.readInt();
+        int kind = data.readUnsignedByte();
+        int parentIndex = data.readInt();
+        data.readInt(); // line of the corresponding #if; not used in the AST
+        int conditionIndex = data.readInt();
+
+        if (kind > KIND_ELSE) {
+            throw new FormatException("Unexpected block kind found: " + kind);
+        }
+        if (parentIndex < -1 || parentIndex >= blocks.size()) {
+            throw new FormatException("Invalid parent index " + parentIndex + " in file " + filePath.getPath()
+                    + " line " + lineStart);
+        }
+        if (conditionIndex < -1 || conditionIndex >= strings.size()) {
+            throw new FormatException("Invalid condition index " + conditionIndex + " in file "
+                    + filePath.getPath() + " line " + lineStart);
+        }
+
+        Formula condition = conditionIndex != -1 ? strings.get(conditionIndex) : null;
+        CodeBlock parent = parentIndex != -1 ? blocks.get(parentIndex) : null;
+
+        CodeBlock block = new CodeBlock(lineStart, lineEnd, filePath, condition,
+                conditionParser.buildPresenceCondition(condition, parent));
+        if (parent == null) {
+            result.addElement(block);
+        } else {
+            parent.addNestedElement(block);
+        }
+        blocks.add(block);
+    }
+
+    /**
+     * Reads a string of the given length.
+     *
+     * @param data The stream to read from.
+     * @param length The length of the string in bytes.
+     * @return The read string.
+     *
+     * @throws IOException If reading fails.
+     */
+    private static String readString(DataInputStream data, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        data.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Skips exactly the given number of bytes.
+     *
+     * @param data The stream to skip in.
+     * @param length The number of bytes to skip.
+     *
+     * @throws IOException If reading fails or the stream ends before.
+     */
+    private static void skipFully(DataInputStream data, int length) throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            int skipped = data.skipBytes(remaining);
+            if (skipped <= 0) {
+                if (data.read() == -1) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
+}
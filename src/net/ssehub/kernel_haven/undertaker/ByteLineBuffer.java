@@ -0,0 +1,224 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads lines from an {@link InputStream} directly into a byte buffer, without decoding them into chars first. The
+ * current line is accessible as a {@link CharSequence} view of the bytes: each byte is one char, which is correct for
+ * the ASCII output of pilztaker (other bytes are seen as ISO-8859-1 chars by {@link #charAt(int)}). Only
+ * {@link #subSequence(int, int)} and {@link #toString()} create {@link String}s; they decode UTF-8.
+ * <p>
+ * The buffers are taken from a pool that is shared by all instances, so reading a file allocates no buffer at all.
+ * Must be closed to return the buffer to the pool.
+ *
+ * @author agent
+ */
+class ByteLineBuffer implements LineSource, Closeable {
+
+    /**
+     * The size of the pooled buffers. Large enough for the lines of nearly all files; larger buffers are not pooled.
+     */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The maximum number of buffers that are kept in the pool; about one per thread.
+     */
+    private static final int MAX_POOLED = 64;
+
+    private static final Queue<byte[]> POOL = new ConcurrentLinkedQueue<>();
+
+    private static final AtomicInteger POOL_SIZE = new AtomicInteger();
+
+    private InputStream in;
+
+    private byte[] buffer;
+
+    /**
+     * The start of the current line in {@link #buffer}.
+     */
+    private int lineStart;
+
+    /**
+     * The end (exclusive, without line terminator) of the current line in {@link #buffer}.
+     */
+    private int lineEnd;
+
+    /**
+     * The start of the data in {@link #buffer} that has not been returned as a line yet.
+     */
+    private int dataStart;
+
+    /**
+     * The end of the valid data in {@link #buffer}.
+     */
+    private int dataEnd;
+
+    private boolean endOfStream;
+
+    /**
+     * Creates a line buffer for the given stream.
+     *
+     * @param in The stream to read the lines from. Not closed by this class.
+     */
+    public ByteLineBuffer(InputStream in) {
+        this.in = in;
+        this.buffer = POOL.poll();
+        if (buffer != null) {
+            POOL_SIZE.decrementAndGet();
+        } else {
+            buffer = new byte[BUFFER_SIZE];
+        }
+    }
+
+    @Override
+    public boolean nextLine() throws IOException {
+        int searchStart = dataStart;
+        while (true) {
+            for (int i = searchStart; i < dataEnd; i++) {
+                if (buffer[i] == '\n') {
+                    setLine(dataStart, i);
+                    dataStart = i + 1;
+                    return true;
+                }
+            }
+
+            if (endOfStream) {
+                if (dataStart < dataEnd) {
+                    // last line without line terminator
+                    setLine(dataStart, dataEnd);
+                    dataStart = dataEnd;
+                    return true;
+                }
+                return false;
+            }
+
+            searchStart = dataEnd - dataStart;
+            fill();
+            searchStart += dataStart;
+        }
+    }
+
+    /**
+     * Sets the current line, excluding a trailing <code>\r</code>.
+     *
+     * @param start The start of the line in {@link #buffer}.
+     * @param end The end of the line (exclusive) in {@link #buffer}.
+     */
+    private void setLine(int start, int end) {
+        if (end > start && buffer[end - 1] == '\r') {
+            end--;
+        }
+        lineStart = start;
+        lineEnd = end;
+    }
+
+    /**
+     * Moves the unread data to the start of the buffer (growing it, if necessary) and reads more data from the
+     * stream. The stream reads directly into the buffer, since it is larger than the buffer of a
+     * {@link java.io.BufferedInputStream}.
+     *
+     * @throws IOException If reading from the stream fails.
+     */
+    private void fill() throws IOException {
+        int remaining = dataEnd - dataStart;
+        if (remaining == buffer.length) {
+            byte[] newBuffer = new byte[buffer.length * 2];
+            System.arraycopy(buffer, dataStart, newBuffer, 0, remaining);
+            release(buffer);
+            buffer = newBuffer;
+        } else if (dataStart > 0) {
+            System.arraycopy(buffer, dataStart, buffer, 0, remaining);
+        }
+        dataStart = 0;
+        dataEnd = remaining;
+
+        int read = in.read(buffer, dataEnd, buffer.length - dataEnd);
+        if (read == -1) {
+            endOfStream = true;
+        } else {
+            dataEnd += read;
+        }
+    }
+
+    @Override
+    public boolean isBlank() {
+        for (int i = lineStart; i < lineEnd; i++) {
+            if (!Character.isWhitespace(buffer[i] & 0xFF)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int length() {
+        return lineEnd - lineStart;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char) (buffer[lineStart + index] & 0xFF);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The result is a new {@link String}, so it stays valid after the next call to {@link #nextLine()}.
+     */
+    @Override
+    public String subSequence(int start, int end) {
+        return new String(buffer, lineStart + start, end - start, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the buffer to the pool. This line buffer must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        if (buffer != null) {
+            release(buffer);
+            buffer = null;
+        }
+    }
+
+    /**
+     * Returns a buffer to the pool, if it has the pooled size and the pool is not full.
+     *
+     * @param buffer The buffer that is not used anymore.
+     */
+    private static void release(byte[] buffer) {
+        if (buffer.length == BUFFER_SIZE && POOL_SIZE.incrementAndGet() <= MAX_POOLED) {
+            POOL.add(buffer);
+        } else if (buffer.length == BUFFER_SIZE) {
+            POOL_SIZE.decrementAndGet();
+        }
+    }
+
+}
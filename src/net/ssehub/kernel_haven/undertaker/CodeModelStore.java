@@ -0,0 +1,427 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.ssehub.kernel_haven.code_model.CodeBlock;
+import net.ssehub.kernel_haven.code_model.SourceFile;
+import net.ssehub.kernel_haven.util.FormatException;
+import net.ssehub.kernel_haven.util.logic.Formula;
+import net.ssehub.kernel_haven.util.logic.Variable;
+
+/**
+ * Random access to a code model written by a {@link CodeModelStoreWriter}. The file is memory-mapped, and opening it
+ * only checks the header, the trailer and the sizes of the tables; nothing is read into the heap. The
+ * {@link SourceFile} of a single source file is only created when it is requested with {@link #read(File)}: its
+ * path is found by a binary search in the path index, and its blocks are created from its block array. The formulas
+ * are created from the shared formula table when they are first needed, and then shared by all source files read
+ * from this store. Thus, an analysis that only needs a few files of a large extraction neither waits for nor holds
+ * the rest of the code model. Thread-safe.
+ *
+ * @author agent
+ */
+public class CodeModelStore implements Closeable {
+
+    private File file;
+
+    private FileChannel channel;
+
+    /**
+     * The mapped file. Only accessed with absolute reads, so it may be shared by all threads.
+     */
+    private ByteBuffer data;
+
+    private String configuration;
+
+    /**
+     * The position of the first block array, after the header.
+     */
+    private int blockArraysStart;
+
+    private int blockArraysEnd;
+
+    private int numVariables;
+
+    /**
+     * The position of the string offsets of the variable table.
+     */
+    private int variableStrings;
+
+    private int numFormulas;
+
+    /**
+     * The position of the first formula in the formula table.
+     */
+    private int formulaEntries;
+
+    private int numFiles;
+
+    /**
+     * The position of the block array offsets of the path index. The sizes and modification times follow.
+     */
+    private int indexEntries;
+
+    /**
+     * The position of the string offsets of the paths.
+     */
+    private int pathStrings;
+
+    private AtomicReferenceArray<Variable> variables;
+
+    private AtomicReferenceArray<Formula> formulas;
+
+    /**
+     * Resolves the operands of the formulas from the lazily created {@link #formulas} and {@link #variables}.
+     */
+    private FormulaCodec.Resolver resolver = new FormulaCodec.Resolver() {
+
+        @Override
+        public Formula getFormula(int id) throws FormatException {
+            return CodeModelStore.this.getFormula(id);
+        }
+
+        @Override
+        public Variable getVariable(int index) throws FormatException {
+            return CodeModelStore.this.getVariable(index);
+        }
+
+    };
+
+    /**
+     * Opens a store by mapping it into memory.
+     *
+     * @param file The store to open.
+     *
+     * @throws IOException If opening or mapping the file fails.
+     * @throws FormatException If the file is not a complete code model store.
+     */
+    public CodeModelStore(File file) throws IOException, FormatException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long length = channel.size();
+            if (length > Integer.MAX_VALUE) {
+                throw new FormatException("Code model store " + file + " is too large");
+            }
+            data = channel.map(MapMode.READ_ONLY, 0, length);
+            readTables();
+        } catch (IOException | FormatException e) {
+            channel.close();
+            throw e;
+        }
+
+        variables = new AtomicReferenceArray<>(numVariables);
+        formulas = new AtomicReferenceArray<>(numFormulas);
+    }
+
+    /**
+     * Checks the header and the trailer, and locates the tables.
+     *
+     * @throws FormatException If the file is not a complete code model store.
+     */
+    private void readTables() throws FormatException {
+        int length = data.capacity();
+        if (length < CodeModelStoreWriter.HEADER_SIZE + CodeModelStoreWriter.TRAILER_SIZE
+                || data.getInt(0) != CodeModelStoreWriter.MAGIC) {
+            throw new FormatException(file + " is not a code model store");
+        }
+        if (data.getInt(4) != CodeModelStoreWriter.VERSION) {
+            throw new FormatException("Unsupported version " + data.getInt(4) + " of code model store " + file);
+        }
+        int trailer = length - CodeModelStoreWriter.TRAILER_SIZE;
+        if (data.getInt(trailer + 12) != CodeModelStoreWriter.MAGIC) {
+            throw new FormatException("Code model store " + file + " is incomplete");
+        }
+
+        int header = CodeModelStoreWriter.HEADER_SIZE;
+        checkStringTable(header, 1, trailer);
+        configuration = getString(header, 1, 0);
+        int configurationLength = data.getInt(header + 4);
+        blockArraysStart = header + 2 * 4 + configurationLength + (4 - configurationLength % 4) % 4;
+
+        int variableTable = data.getInt(trailer);
+        int formulaTable = data.getInt(trailer + 4);
+        int index = data.getInt(trailer + 8);
+        if (variableTable < blockArraysStart || formulaTable < variableTable || index < formulaTable
+                || index > trailer - 4) {
+            throw new FormatException("Invalid table offsets in code model store " + file);
+        }
+        blockArraysEnd = variableTable;
+
+        numVariables = data.getInt(variableTable);
+        variableStrings = variableTable + 4;
+        checkStringTable(variableStrings, numVariables, formulaTable);
+
+        numFormulas = data.getInt(formulaTable);
+        formulaEntries = formulaTable + 4;
+        if (numFormulas < 0
+                || formulaEntries + (long) numFormulas * FormulaCodec.ENTRY_INTS * 4 > index) {
+            throw new FormatException("Invalid formula table in code model store " + file);
+        }
+
+        numFiles = data.getInt(index);
+        indexEntries = index + 4;
+        if (numFiles < 0 || indexEntries + numFiles * 20L > trailer) {
+            throw new FormatException("Invalid path index in code model store " + file);
+        }
+        pathStrings = indexEntries + numFiles * 20;
+        checkStringTable(pathStrings, numFiles, trailer);
+    }
+
+    /**
+     * Checks that a string table fits before the given end.
+     *
+     * @param strings The position of the string offsets.
+     * @param count The number of strings.
+     * @param end The position where the next section starts.
+     *
+     * @throws FormatException If the string table does not fit.
+     */
+    private void checkStringTable(int strings, int count, int end) throws FormatException {
+        long stringData = strings + (count + 1L) * 4;
+        if (count < 0 || stringData > end || stringData + data.getInt(strings + count * 4) > end) {
+            throw new FormatException("Invalid string table in code model store " + file);
+        }
+    }
+
+    /**
+     * Decodes a string of a string table.
+     *
+     * @param strings The position of the string offsets.
+     * @param count The number of strings.
+     * @param index The index of the string.
+     * @return The string.
+     */
+    private String getString(int strings, int count, int index) {
+        int stringData = strings + (count + 1) * 4;
+        int start = data.getInt(strings + index * 4);
+        int end = data.getInt(strings + index * 4 + 4);
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = data.get(stringData + start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Finds a source file in the path index.
+     *
+     * @param path The path of the source file, relative to the source tree.
+     * @return The index of the source file in the path index; -1 if it is not contained.
+     */
+    private int find(File path) {
+        String searched = path.getPath();
+        int low = 0;
+        int high = numFiles - 1;
+        int result = -1;
+        while (low <= high && result == -1) {
+            int middle = (low + high) >>> 1;
+            int comparison = getString(pathStrings, numFiles, middle).compareTo(searched);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                result = middle;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the configuration of the extraction that wrote this store, as passed to
+     * {@link CodeModelStoreWriter#CodeModelStoreWriter(File, String)}.
+     *
+     * @return The configuration.
+     */
+    public String getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * Returns the number of source files in this store.
+     *
+     * @return The number of source files.
+     */
+    public int size() {
+        return numFiles;
+    }
+
+    /**
+     * Returns the paths of all source files in this store.
+     *
+     * @return The paths, relative to the source tree, sorted by path.
+     */
+    public List<File> getFiles() {
+        List<File> result = new ArrayList<>(numFiles);
+        for (int i = 0; i < numFiles; i++) {
+            result.add(new File(getString(pathStrings, numFiles, i)));
+        }
+        return result;
+    }
+
+    /**
+     * Checks whether this store contains the given source file.
+     *
+     * @param path The path of the source file, relative to the source tree.
+     * @return Whether the source file is contained.
+     */
+    public boolean contains(File path) {
+        return find(path) != -1;
+    }
+
+    /**
+     * Checks whether this store contains the given source file, and whether it was extracted from a file with the
+     * given size and modification time, i.e. whether it is still up to date.
+     *
+     * @param path The path of the source file, relative to the source tree.
+     * @param size The current size of the source file in bytes.
+     * @param lastModified The current modification time of the source file in milliseconds since the epoch.
+     * @return Whether the stored source file is up to date; <code>false</code> if it is not contained or its size or
+     *      modification time was not known when it was stored.
+     */
+    public boolean isCurrent(File path, long size, long lastModified) {
+        int index = find(path);
+        boolean result = false;
+        if (index != -1) {
+            long storedSize = data.getLong(indexEntries + numFiles * 4 + index * 8);
+            long storedLastModified = data.getLong(indexEntries + numFiles * 12 + index * 8);
+            result = storedSize != -1 && storedSize == size && storedLastModified == lastModified;
+        }
+        return result;
+    }
+
+    /**
+     * Creates the {@link SourceFile} of a source file from its block array.
+     *
+     * @param path The path of the source file, relative to the source tree.
+     * @return The source file; <code>null</code> if it is not contained.
+     *
+     * @throws FormatException If the stored blocks are invalid.
+     */
+    public SourceFile<CodeBlock> read(File path) throws FormatException {
+        int index = find(path);
+        SourceFile<CodeBlock> result = null;
+        if (index != -1) {
+            int blockArray = data.getInt(indexEntries + index * 4);
+            int numBlocks = blockArray >= blockArraysStart && blockArray <= blockArraysEnd - 4
+                    ? data.getInt(blockArray) : -1;
+            if (numBlocks < 0
+                    || blockArray + 4 + (long) numBlocks * CodeModelStoreWriter.BLOCK_INTS * 4 > blockArraysEnd) {
+                throw new FormatException("Invalid block array of " + path.getPath() + " in code model store "
+                        + file);
+            }
+
+            result = new SourceFile<>(path);
+            CodeBlock[] blocks = new CodeBlock[numBlocks];
+            for (int i = 0; i < numBlocks; i++) {
+                int position = blockArray + 4 + i * CodeModelStoreWriter.BLOCK_INTS * 4;
+                int parent = data.getInt(position + 8);
+                int condition = data.getInt(position + 12);
+                if (parent < -1 || parent >= i) {
+                    throw new FormatException("Invalid parent of block " + i + " of " + path.getPath());
+                }
+
+                blocks[i] = new CodeBlock(data.getInt(position), data.getInt(position + 4), path,
+                        condition != -1 ? getFormula(condition) : null, getFormula(data.getInt(position + 16)));
+                if (parent == -1) {
+                    result.addElement(blocks[i]);
+                } else {
+                    blocks[parent].addNestedElement(blocks[i]);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns a formula of the shared formula table, creating it (and its operands) if it was not needed before.
+     *
+     * @param id The id of the formula.
+     * @return The formula; the same instance for all source files.
+     *
+     * @throws FormatException If the formula is invalid.
+     */
+    Formula getFormula(int id) throws FormatException {
+        if (id < 0 || id >= numFormulas) {
+            throw new FormatException("Invalid formula id " + id + " in code model store " + file);
+        }
+        Formula result = formulas.get(id);
+        if (result == null) {
+            int position = formulaEntries + id * FormulaCodec.ENTRY_INTS * 4;
+            result = FormulaCodec.decode(id, data.getInt(position), data.getInt(position + 4),
+                    data.getInt(position + 8), resolver);
+
+            // if another thread was faster, use its instance, so that all source files share the same one
+            if (!formulas.compareAndSet(id, null, result)) {
+                result = formulas.get(id);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns a variable of the variable table, creating it if it was not needed before.
+     *
+     * @param index The index of the variable.
+     * @return The variable; the same instance for all source files.
+     *
+     * @throws FormatException If the index is invalid.
+     */
+    private Variable getVariable(int index) throws FormatException {
+        if (index < 0 || index >= numVariables) {
+            throw new FormatException("Invalid variable " + index + " in code model store " + file);
+        }
+        Variable result = variables.get(index);
+        if (result == null) {
+            result = new Variable(getString(variableStrings, numVariables, index));
+            if (!variables.compareAndSet(index, null, result)) {
+                result = variables.get(index);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Closes the file. The mapping itself is released by the garbage collector. The store must not be used
+     * afterwards.
+     *
+     * @throws IOException If closing the file fails.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return "CodeModelStore[" + file + ", " + numFiles + " files, " + numFormulas + " formulas, " + numVariables
+                + " variables]";
+    }
+
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.ssehub.kernel_haven.code_model.CodeBlock;
+import net.ssehub.kernel_haven.code_model.SourceFile;
+
+/**
+ * Writes the code model of an extraction into a file that is read by memory-mapping it (see {@link CodeModelStore}).
+ * All integers are signed and big-endian, and all sections start at a multiple of 4 bytes. The file consists of:
+ * <ol>
+ *     <li>The header: {@link #MAGIC} and {@link #VERSION} (4 byte integers), and the configuration of the
+ *         extraction as a string table with a single string, like the names of the variable table.</li>
+ *     <li>The block array of each source file, in the order in which they were written: the number of blocks,
+ *         followed by {@link #BLOCK_INTS} integers per block, in pre-order: the start line, the end line, the index of
+ *         the parent block (-1 for top-level blocks), the id of the condition in the formula table (-1 for no
+ *         condition) and the id of the presence condition.</li>
+ *     <li>The variable table: the number of variables, the offset of each name in the string data (plus the end
+ *         offset of the last name), and the string data (the UTF-8 encoded names), padded to 4 bytes.</li>
+ *     <li>The formula table, shared by all source files: the number of formulas, followed by
+ *         {@link FormulaCodec#ENTRY_INTS} integers per formula, like the formula table of a shard file (see
+ *         {@link FormulaCodec}).</li>
+ *     <li>The path index, sorted by path: the number of files, the offset of the block array of each file, the size
+ *         and the modification time of each source file (8 byte integers; -1 if unknown), and the paths as a string
+ *         table like the names of the variable table.</li>
+ *     <li>The trailer: the offsets of the variable table, the formula table and the path index, and
+ *         {@link #MAGIC} again.</li>
+ * </ol>
+ * The file is written with a temporary name and only renamed to its final name by {@link #close()}, so a store with
+ * the final name is always complete. As it is mapped into a single buffer, the file can't be larger than 2 GB.
+ * Thread-safe.
+ *
+ * @author agent
+ */
+class CodeModelStoreWriter implements Closeable {
+
+    /**
+     * The magic number at the start and the end of each store: <code>KHCM</code> in ASCII.
+     */
+    static final int MAGIC = 0x4B48434D;
+
+    static final int VERSION = 2;
+
+    static final int HEADER_SIZE = 2 * 4;
+
+    static final int TRAILER_SIZE = 4 * 4;
+
+    /**
+     * The number of integers per block in the block arrays.
+     */
+    static final int BLOCK_INTS = 5;
+
+    private File file;
+
+    private File tmpFile;
+
+    private DataOutputStream out;
+
+    /**
+     * The current position in the file, i.e. the offset of the next block array.
+     */
+    private long position;
+
+    /**
+     * The offset of the block array, the size and the modification time of each written source file, by its path.
+     */
+    private Map<String, long[]> index = new TreeMap<>();
+
+    /**
+     * The formula table, shared by all source files.
+     */
+    private FormulaCodec formulas = new FormulaCodec();
+
+    /**
+     * Creates a store with an empty configuration. It is written with a temporary name until it is closed.
+     *
+     * @param file The store to create. Overwritten, if it exists.
+     *
+     * @throws IOException If creating the file fails.
+     */
+    public CodeModelStoreWriter(File file) throws IOException {
+        this(file, "");
+    }
+
+    /**
+     * Creates a store. It is written with a temporary name until it is closed.
+     *
+     * @param file The store to create. Overwritten, if it exists.
+     * @param configuration Describes everything that the stored code model depends on besides the source files,
+     *      e.g. the pilztaker binary and the conversion settings. A store is only reused by an extraction with the
+     *      same configuration (see {@link CodeModelStore#getConfiguration()}).
+     *
+     * @throws IOException If creating the file fails.
+     */
+    public CodeModelStoreWriter(File file, String configuration) throws IOException {
+        this.file = file;
+        this.tmpFile = new File(file.getPath() + ".tmp");
+        this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile.toPath())));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        position = HEADER_SIZE;
+        writeStrings(Arrays.asList(configuration));
+    }
+
+    /**
+     * Writes the blocks of a source file. Their conditions are added to the shared formula table.
+     *
+     * @param sourceFile The source file to write.
+     * @param size The size of the source file in bytes; -1 if unknown.
+     * @param lastModified The modification time of the source file in milliseconds since the epoch; -1 if unknown.
+     *
+     * @throws IOException If writing fails, the file gets too large or this writer is already closed.
+     * @throws IllegalArgumentException If a source file with the same path was already written.
+     */
+    public synchronized void write(SourceFile<CodeBlock> sourceFile, long size, long lastModified)
+            throws IOException {
+        if (out == null) {
+            throw new IOException("Code model store " + file + " is already closed");
+        }
+        String path = sourceFile.getPath().getPath();
+        if (index.containsKey(path)) {
+            throw new IllegalArgumentException("Source file " + path + " was already written to " + file);
+        }
+
+        List<CodeBlock> blocks = new ArrayList<>();
+        List<Integer> parents = new ArrayList<>();
+        for (CodeBlock block : sourceFile) {
+            ShardWriter.collectBlocks(block, -1, blocks, parents);
+        }
+        checkSize(position + 4 + blocks.size() * BLOCK_INTS * 4L);
+
+        index.put(path, new long[] {position, size, lastModified});
+        out.writeInt(blocks.size());
+        for (int i = 0; i < blocks.size(); i++) {
+            CodeBlock block = blocks.get(i);
+            out.writeInt(block.getLineStart());
+            out.writeInt(block.getLineEnd());
+            out.writeInt(parents.get(i));
+            out.writeInt(block.getCondition() != null ? formulas.add(block.getCondition()) : -1);
+            out.writeInt(formulas.add(block.getPresenceCondition()));
+        }
+        position += 4 + blocks.size() * BLOCK_INTS * 4L;
+        // later files find equal formulas by their entries; only keep the instances of one file
+        formulas.clearInstances();
+    }
+
+    /**
+     * Checks that the file does not get too large to be mapped into a single buffer.
+     *
+     * @param newPosition The position after the next write.
+     *
+     * @throws IOException If the position exceeds 2 GB.
+     */
+    private void checkSize(long newPosition) throws IOException {
+        if (newPosition > Integer.MAX_VALUE - TRAILER_SIZE) {
+            throw new IOException("Code model store " + file + " gets larger than 2 GB");
+        }
+    }
+
+    /**
+     * Writes a string table: the offset of each string in the string data, the end offset of the last string and
+     * the string data, padded to 4 bytes.
+     *
+     * @param strings The strings to write.
+     *
+     * @throws IOException If writing fails or the file gets too large.
+     */
+    private void writeStrings(List<String> strings) throws IOException {
+        List<byte[]> encoded = new ArrayList<>(strings.size());
+        long dataLength = 0;
+        for (String string : strings) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            encoded.add(bytes);
+            dataLength += bytes.length;
+        }
+        long padding = (4 - dataLength % 4) % 4;
+        checkSize(position + (strings.size() + 1) * 4L + dataLength + padding);
+
+        int offset = 0;
+        for (byte[] bytes : encoded) {
+            out.writeInt(offset);
+            offset += bytes.length;
+        }
+        out.writeInt(offset);
+        for (byte[] bytes : encoded) {
+            out.write(bytes);
+        }
+        for (int i = 0; i < padding; i++) {
+            out.writeByte(0);
+        }
+        position += (strings.size() + 1) * 4L + dataLength + padding;
+    }
+
+    /**
+     * Returns the number of source files written so far.
+     *
+     * @return The number of source files.
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Writes the variable table, the formula table, the path index and the trailer, and renames the file to its
+     * final name. Does nothing if this writer is already closed.
+     *
+     * @throws IOException If writing or renaming fails, or the file gets too large.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (out == null) {
+            return;
+        }
+
+        try {
+            long variableTableOffset = position;
+            List<String> variableNames = formulas.getVariableNames();
+            out.writeInt(variableNames.size());
+            position += 4;
+            writeStrings(variableNames);
+
+            long formulaTableOffset = position;
+            checkSize(position + 4 + formulas.size() * FormulaCodec.ENTRY_INTS * 4L);
+            formulas.writeTo(out);
+            position += 4 + formulas.size() * FormulaCodec.ENTRY_INTS * 4L;
+
+            long indexOffset = position;
+            checkSize(position + 4 + index.size() * (4 + 8 + 8));
+            out.writeInt(index.size());
+            position += 4;
+            for (long[] entry : index.values()) {
+                out.writeInt((int) entry[0]);
+            }
+            for (long[] entry : index.values()) {
+                out.writeLong(entry[1]);
+            }
+            for (long[] entry : index.values()) {
+                out.writeLong(entry[2]);
+            }
+            position += index.size() * (4 + 8 + 8);
+            writeStrings(new ArrayList<>(index.keySet()));
+
+            out.writeInt((int) variableTableOffset);
+            out.writeInt((int) formulaTableOffset);
+            out.writeInt((int) indexOffset);
+            out.writeInt(MAGIC);
+            out.flush();
+        } finally {
+            out.close();
+            out = null;
+        }
+
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Closes this writer without completing the store: the temporary file is deleted, so no file with the final name
+     * is created and an existing store is kept. Does nothing if this writer is already closed.
+     */
+    public synchronized void discard() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // the file is deleted anyway
+            }
+            out = null;
+            tmpFile.delete();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CodeModelStoreWriter[" + file + "]";
+    }
+
+}
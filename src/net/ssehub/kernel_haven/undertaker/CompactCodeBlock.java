@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.util.Iterator;
+import java.util.Objects;
+
+import net.ssehub.kernel_haven.code_model.CodeBlock;
+import net.ssehub.kernel_haven.util.logic.Formula;
+
+/**
+ * A view of a single block of a {@link CompactSourceFile}. Nested blocks are created on access; they are not stored
+ * in the list inherited from {@link CodeBlock}, so {@link #equals(Object)} and {@link #hashCode()} are based on the
+ * getters. The condition values are passed to {@link CodeBlock}, so the inherited fields are correct. Read-only.
+ *
+ * @author agent
+ */
+class CompactCodeBlock extends CodeBlock {
+
+    private CompactSourceFile file;
+
+    private int index;
+
+    /**
+     * Creates a view of a block.
+     *
+     * @param file The file that contains the block.
+     * @param index The index of the block in the file.
+     */
+    CompactCodeBlock(CompactSourceFile file, int index) {
+        super(file.getLineStart(index), file.getLineEnd(index), file.getPath(), file.getCondition(index),
+                file.getPresenceCondition(index));
+        this.file = file;
+        this.index = index;
+    }
+
+    /**
+     * Returns the index of this block in its {@link CompactSourceFile}.
+     *
+     * @return The index of the block.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    @Override
+    public int getNestedElementCount() {
+        return file.getChildCount(index);
+    }
+
+    @Override
+    public CodeBlock getNestedElement(int index) {
+        return new CompactCodeBlock(file, file.getChild(this.index, index));
+    }
+
+    @Override
+    public Iterator<CodeBlock> iterator() {
+        return file.childIterator(index);
+    }
+
+    /**
+     * Not supported; the view is read-only.
+     *
+     * @param element Ignored.
+     */
+    @Override
+    public void addNestedElement(CodeBlock element) {
+        throw new UnsupportedOperationException("CompactCodeBlock can't be modified");
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        boolean equal = false;
+        if (obj instanceof CodeBlock) {
+            CodeBlock other = (CodeBlock) obj;
+            equal = getLineStart() == other.getLineStart() && getLineEnd() == other.getLineEnd()
+                    && Objects.equals(getSourceFile(), other.getSourceFile())
+                    && Objects.equals(getCondition(), other.getCondition())
+                    && Objects.equals(getPresenceCondition(), other.getPresenceCondition())
+                    && getNestedElementCount() == other.getNestedElementCount();
+
+            Iterator<CodeBlock> nested = iterator();
+            Iterator<CodeBlock> otherNested = other.iterator();
+            while (equal && nested.hasNext()) {
+                equal = nested.next().equals(otherNested.next());
+            }
+        }
+        return equal;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Objects.hash(getLineStart(), getLineEnd(), getSourceFile(), getCondition(),
+                getPresenceCondition());
+        for (CodeBlock nested : this) {
+            result = 31 * result + nested.hashCode();
+        }
+        return result;
+    }
+
+}
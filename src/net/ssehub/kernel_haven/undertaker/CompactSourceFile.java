@@ -0,0 +1,314 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import net.ssehub.kernel_haven.code_model.CodeBlock;
+import net.ssehub.kernel_haven.code_model.SourceFile;
+import net.ssehub.kernel_haven.util.logic.Conjunction;
+import net.ssehub.kernel_haven.util.logic.Formula;
+import net.ssehub.kernel_haven.util.logic.True;
+
+/**
+ * A memory-lean {@link SourceFile}: the blocks are stored in primitive arrays (in the order of the pilztaker output,
+ * i.e. parents before their children), and the conditions are ids in a {@link FormulaTable} that is shared by all
+ * files. Presence conditions are not stored; they are built from the conditions of the enclosing blocks on each
+ * access (like {@link CsvToAstConverter.PresenceConditionMode#STRUCTURAL}).
+ * <p>
+ * The usual {@link CodeBlock} API is available through {@link #getElement(int)} and {@link #iterator()}: these
+ * return lightweight {@link CompactCodeBlock} views, which are created on each access. Code that holds on to the
+ * views keeps their (small) objects alive, but never the full tree. The file can't be modified through the views.
+ *
+ * @author agent
+ */
+public class CompactSourceFile extends SourceFile<CodeBlock> {
+
+    private FormulaTable formulas;
+
+    private int numBlocks;
+
+    private int[] lineStart;
+
+    private int[] lineEnd;
+
+    /**
+     * The kind of each block: one of the <code>KIND_*</code> constants of {@link BinaryToAstConverter}.
+     */
+    private byte[] kind;
+
+    /**
+     * The index of the parent of each block; -1 for top-level blocks.
+     */
+    private int[] parent;
+
+    /**
+     * The id of the condition of each block in {@link #formulas}; -1 for no condition.
+     */
+    private int[] condition;
+
+    /**
+     * The children of block <code>i</code> are stored in {@link #children} from <code>childOffset[i]</code> to
+     * <code>childOffset[i + 1]</code> (exclusive). The top-level blocks are stored at index {@link #numBlocks}.
+     * Built by {@link #finish()}.
+     */
+    private int[] childOffset;
+
+    private int[] children;
+
+    /**
+     * Creates an empty file. Blocks are added with {@link #addBlock(int, int, int, int, Formula)}; afterwards,
+     * {@link #finish()} must be called.
+     *
+     * @param path The path of the source file, relative to the source tree.
+     * @param formulas The table to store the conditions in; shared by all files.
+     */
+    CompactSourceFile(File path, FormulaTable formulas) {
+        super(path);
+        this.formulas = formulas;
+        this.lineStart = new int[16];
+        this.lineEnd = new int[16];
+        this.kind = new byte[16];
+        this.parent = new int[16];
+        this.condition = new int[16];
+    }
+
+    /**
+     * Adds a block. Parents must be added before their children.
+     *
+     * @param lineStart The start line of the block.
+     * @param lineEnd The end line of the block.
+     * @param kind The kind of the block; one of the <code>KIND_*</code> constants of {@link BinaryToAstConverter}.
+     * @param parent The index of the parent block; -1 for top-level blocks.
+     * @param condition The condition of the block; <code>null</code> for no condition.
+     * @return The index of the added block.
+     */
+    int addBlock(int lineStart, int lineEnd, int kind, int parent, Formula condition) {
+        if (numBlocks == this.lineStart.length) {
+            int capacity = numBlocks * 2;
+            this.lineStart = Arrays.copyOf(this.lineStart, capacity);
+            this.lineEnd = Arrays.copyOf(this.lineEnd, capacity);
+            this.kind = Arrays.copyOf(this.kind, capacity);
+            this.parent = Arrays.copyOf(this.parent, capacity);
+            this.condition = Arrays.copyOf(this.condition, capacity);
+        }
+
+        this.lineStart[numBlocks] = lineStart;
+        this.lineEnd[numBlocks] = lineEnd;
+        this.kind[numBlocks] = (byte) kind;
+        this.parent[numBlocks] = parent;
+        this.condition[numBlocks] = condition != null ? formulas.add(condition) : -1;
+        return numBlocks++;
+    }
+
+    /**
+     * Trims the arrays and builds the children index. Must be called once after all blocks are added.
+     */
+    void finish() {
+        lineStart = Arrays.copyOf(lineStart, numBlocks);
+        lineEnd = Arrays.copyOf(lineEnd, numBlocks);
+        kind = Arrays.copyOf(kind, numBlocks);
+        parent = Arrays.copyOf(parent, numBlocks);
+        condition = Arrays.copyOf(condition, numBlocks);
+
+        // count the children of each block, then place them; the order of the blocks is kept
+        childOffset = new int[numBlocks + 2];
+        for (int i = 0; i < numBlocks; i++) {
+            childOffset[slot(parent[i]) + 1]++;
+        }
+        for (int i = 1; i < childOffset.length; i++) {
+            childOffset[i] += childOffset[i - 1];
+        }
+        children = new int[numBlocks];
+        int[] next = Arrays.copyOf(childOffset, numBlocks + 1);
+        for (int i = 0; i < numBlocks; i++) {
+            children[next[slot(parent[i])]++] = i;
+        }
+    }
+
+    /**
+     * Returns the index in {@link #childOffset} for the children of the given block.
+     *
+     * @param block The index of the block; -1 for the top-level blocks.
+     * @return The index in {@link #childOffset}.
+     */
+    private int slot(int block) {
+        return block == -1 ? numBlocks : block;
+    }
+
+    /**
+     * Returns the total number of blocks in this file, including nested blocks.
+     *
+     * @return The number of blocks.
+     */
+    public int getBlockCount() {
+        return numBlocks;
+    }
+
+    /**
+     * Returns the start line of a block.
+     *
+     * @param block The index of the block.
+     * @return The start line.
+     */
+    public int getLineStart(int block) {
+        return lineStart[block];
+    }
+
+    /**
+     * Returns the end line of a block.
+     *
+     * @param block The index of the block.
+     * @return The end line.
+     */
+    public int getLineEnd(int block) {
+        return lineEnd[block];
+    }
+
+    /**
+     * Returns the kind of a block.
+     *
+     * @param block The index of the block.
+     * @return One of the <code>KIND_*</code> constants of {@link BinaryToAstConverter}.
+     */
+    public int getKind(int block) {
+        return kind[block];
+    }
+
+    /**
+     * Returns the parent of a block.
+     *
+     * @param block The index of the block.
+     * @return The index of the parent block; -1 for top-level blocks.
+     */
+    public int getParent(int block) {
+        return parent[block];
+    }
+
+    /**
+     * Returns the condition of a block.
+     *
+     * @param block The index of the block.
+     * @return The condition; <code>null</code> if the block has no condition.
+     */
+    public Formula getCondition(int block) {
+        int id = condition[block];
+        return id != -1 ? formulas.get(id) : null;
+    }
+
+    /**
+     * Builds the presence condition of a block from the conditions of the block and its enclosing blocks. Not
+     * cached; each call creates the conjunctions again.
+     *
+     * @param block The index of the block.
+     * @return The presence condition.
+     */
+    public Formula getPresenceCondition(int block) {
+        Formula blockCondition = getCondition(block);
+        int parentIndex = parent[block];
+
+        Formula result;
+        if (parentIndex == -1) {
+            result = blockCondition != null ? blockCondition : True.INSTANCE;
+        } else if (blockCondition == null) {
+            result = getPresenceCondition(parentIndex);
+        } else {
+            result = new Conjunction(blockCondition, getPresenceCondition(parentIndex));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of children of a block.
+     *
+     * @param block The index of the block; -1 for the top-level blocks.
+     * @return The number of children.
+     */
+    public int getChildCount(int block) {
+        int slot = slot(block);
+        return childOffset[slot + 1] - childOffset[slot];
+    }
+
+    /**
+     * Returns a child of a block.
+     *
+     * @param block The index of the block; -1 for the top-level blocks.
+     * @param index The index of the child, between 0 and {@link #getChildCount(int)} (exclusive).
+     * @return The index of the child block.
+     */
+    public int getChild(int block, int index) {
+        if (index < 0 || index >= getChildCount(block)) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + getChildCount(block));
+        }
+        return children[childOffset[slot(block)] + index];
+    }
+
+    /**
+     * Creates an iterator over views of the children of a block.
+     *
+     * @param block The index of the block; -1 for the top-level blocks.
+     * @return An iterator over the children.
+     */
+    Iterator<CodeBlock> childIterator(int block) {
+        return new Iterator<CodeBlock>() {
+
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < getChildCount(block);
+            }
+
+            @Override
+            public CodeBlock next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return new CompactCodeBlock(CompactSourceFile.this, getChild(block, next++));
+            }
+        };
+    }
+
+    @Override
+    public int getTopElementCount() {
+        return getChildCount(-1);
+    }
+
+    @Override
+    public CodeBlock getElement(int index) {
+        return new CompactCodeBlock(this, getChild(-1, index));
+    }
+
+    @Override
+    public Iterator<CodeBlock> iterator() {
+        return childIterator(-1);
+    }
+
+    /**
+     * Not supported; blocks are added while converting.
+     *
+     * @param element Ignored.
+     */
+    @Override
+    public void addElement(CodeBlock element) {
+        throw new UnsupportedOperationException("CompactSourceFile can't be modified");
+    }
+
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Predicts the pilztaker runtime of files. Files with a recorded runtime in the {@link RuntimeHistory} get that
+ * runtime. For all other files, the runtime is predicted from a cheap pre-scan: the file size and the number of
+ * <code>#if</code> (and <code>#elif</code>) directives. The linear model for this is fitted to the files that have both
+ * a pre-scan and a recorded runtime; without enough such files, rough default coefficients are used, which are good
+ * enough to order the files.
+ *
+ * @author agent
+ */
+class CostEstimator {
+
+    /**
+     * The minimum number of files with a recorded runtime, before the model is fitted to them.
+     */
+    private static final int MIN_SAMPLES = 20;
+
+    private static final double DEFAULT_MS_PER_KB = 1.0;
+
+    private static final double DEFAULT_MS_PER_DIRECTIVE = 1.0;
+
+    private File sourceDir;
+
+    private RuntimeHistory history;
+
+    /**
+     * The index to take the file sizes from. <code>null</code> if the sizes are read from the file system.
+     */
+    private SourceTreeIndex index;
+
+    private double msPerKb = DEFAULT_MS_PER_KB;
+
+    private double msPerDirective = DEFAULT_MS_PER_DIRECTIVE;
+
+    private int numSamples;
+
+    /**
+     * Creates an estimator.
+     *
+     * @param sourceDir The path to the source tree.
+     * @param history The recorded runtimes. <code>null</code> to predict all runtimes from the pre-scan.
+     */
+    public CostEstimator(File sourceDir, RuntimeHistory history) {
+        this(sourceDir, history, null);
+    }
+
+    /**
+     * Creates an estimator that takes the file sizes from the given index of the source tree.
+     *
+     * @param sourceDir The path to the source tree.
+     * @param history The recorded runtimes. <code>null</code> to predict all runtimes from the pre-scan.
+     * @param index The index of the source tree. <code>null</code> to read the file sizes from the file system.
+     */
+    public CostEstimator(File sourceDir, RuntimeHistory history, SourceTreeIndex index) {
+        this.sourceDir = sourceDir;
+        this.history = history;
+        this.index = index;
+    }
+
+    /**
+     * Predicts the runtime of each of the given files. The pre-scan runs in parallel.
+     *
+     * @param files The files to predict the runtime for; relative to the source tree.
+     * @return The predicted runtime in milliseconds of each file, in the order of the given list.
+     */
+    public long[] estimate(List<File> files) {
+        long[] sizes = new long[files.size()];
+        int[] directives = new int[files.size()];
+        IntStream.range(0, files.size()).parallel().forEach((i) -> {
+            File file = new File(sourceDir, files.get(i).getPath());
+            sizes[i] = index != null && index.contains(files.get(i)) ? index.getSize(files.get(i)) : file.length();
+            directives[i] = countConditionalDirectives(file);
+        });
+
+        long[] recorded = new long[files.size()];
+        for (int i = 0; i < files.size(); i++) {
+            recorded[i] = history != null ? history.getRuntime(files.get(i)) : -1;
+        }
+
+        fit(sizes, directives, recorded);
+
+        long[] result = new long[files.size()];
+        for (int i = 0; i < files.size(); i++) {
+            result[i] = recorded[i] >= 0 ? recorded[i] : predict(sizes[i], directives[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Predicts the runtime of a file from its pre-scan.
+     *
+     * @param size The size of the file in bytes.
+     * @param directives The number of conditional directives in the file.
+     * @return The predicted runtime in milliseconds.
+     */
+    long predict(long size, int directives) {
+        return Math.round(size / 1024.0 * msPerKb + directives * msPerDirective);
+    }
+
+    /**
+     * Fits the coefficients of the model to the files with recorded runtimes (least squares without intercept, with
+     * non-negative coefficients). If there are too few of them, the default coefficients are kept.
+     *
+     * @param sizes The file sizes in bytes.
+     * @param directives The numbers of conditional directives.
+     * @param recorded The recorded runtimes in milliseconds; -1 for unknown.
+     */
+    private void fit(long[] sizes, int[] directives, long[] recorded) {
+        double sxx = 0;
+        double sxy = 0;
+        double syy = 0;
+        double sxt = 0;
+        double syt = 0;
+        int n = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            if (recorded[i] >= 0) {
+                double x = sizes[i] / 1024.0;
+                double y = directives[i];
+                sxx += x * x;
+                sxy += x * y;
+                syy += y * y;
+                sxt += x * recorded[i];
+                syt += y * recorded[i];
+                n++;
+            }
+        }
+        numSamples = n;
+        if (n < MIN_SAMPLES) {
+            return;
+        }
+
+        // solve the normal equations [sxx sxy; sxy syy] * [a; b] = [sxt; syt]
+        double det = sxx * syy - sxy * sxy;
+        double a = det > 0 ? (sxt * syy - syt * sxy) / det : -1;
+        double b = det > 0 ? (syt * sxx - sxt * sxy) / det : -1;
+        if (a >= 0 && b >= 0) {
+            msPerKb = a;
+            msPerDirective = b;
+
+        } else {
+            // a negative (or undetermined) coefficient; use the single feature that explains more of the runtimes
+            double explainedBySize = sxx > 0 ? sxt * sxt / sxx : 0;
+            double explainedByDirectives = syy > 0 ? syt * syt / syy : 0;
+            if (explainedBySize >= explainedByDirectives && sxx > 0) {
+                msPerKb = sxt / sxx;
+                msPerDirective = 0;
+            } else if (syy > 0) {
+                msPerKb = 0;
+                msPerDirective = syt / syy;
+            }
+        }
+    }
+
+    /**
+     * Counts the conditional directives (<code>#if</code>, <code>#ifdef</code>, <code>#ifndef</code> and
+     * <code>#elif</code>) in the given file. Only looks at the first non-blank characters of each line, so
+     * directives in comments may be counted too.
+     *
+     * @param file The file to scan.
+     * @return The number of conditional directives; 0 if the file can't be read.
+     */
+    static int countConditionalDirectives(File file) {
+        byte[] content;
+        try {
+            content = Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            return 0;
+        }
+
+        int result = 0;
+        boolean lineStart = true;
+        for (int i = 0; i < content.length; i++) {
+            byte c = content[i];
+            if (c == '\n') {
+                lineStart = true;
+            } else if (lineStart && c == '#') {
+                int j = i + 1;
+                while (j < content.length && (content[j] == ' ' || content[j] == '\t')) {
+                    j++;
+                }
+                if (startsWith(content, j, "if") || startsWith(content, j, "elif")) {
+                    result++;
+                }
+                lineStart = false;
+            } else if (c != ' ' && c != '\t') {
+                lineStart = false;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks whether the given bytes contain the given ASCII string at the given position.
+     *
+     * @param content The bytes.
+     * @param position The position to check.
+     * @param prefix The ASCII string.
+     * @return Whether the string is at the position.
+     */
+    private static boolean startsWith(byte[] content, int position, String prefix) {
+        boolean result = position + prefix.length() <= content.length;
+        for (int i = 0; result && i < prefix.length(); i++) {
+            result = content[position + i] == prefix.charAt(i);
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CostEstimator[%.3f ms/KB, %.3f ms/directive, fitted to %d files]", msPerKb,
+                msPerDirective, numSamples >= MIN_SAMPLES ? numSamples : 0);
+    }
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+/**
+ * Splits a single line of the pilztaker CSV into its columns. The columns are only stored as positions inside the
+ * line; integer columns are parsed in place and other columns can be compared without creating {@link String}s.
+ * A single instance can be reused for all lines. Not thread-safe.
+ *
+ * @author agent
+ */
+class CsvRecordTokenizer {
+
+    /**
+     * The number of columns of each pilztaker CSV line.
+     */
+    public static final int NUM_COLUMNS = 8;
+
+    public static final int FILENAME = 0;
+
+    public static final int LINE_START = 1;
+
+    public static final int LINE_END = 2;
+
+    public static final int TYPE = 3;
+
+    public static final int NESTING_DEPTH = 4;
+
+    public static final int CORRESPONDING_IF = 5;
+
+    public static final int CONDITION = 6;
+
+    public static final int PRESENCE_CONDITION = 7;
+
+    private static final char DELIMITER = ';';
+
+    private CharSequence line;
+
+    private int[] columnStart = new int[NUM_COLUMNS];
+
+    private int[] columnEnd = new int[NUM_COLUMNS];
+
+    /**
+     * Splits the given line into its columns. The line must not be modified while the columns are accessed.
+     * <p>
+     * Like {@link String#split(String)}, trailing empty columns are not counted. Thus, a line is only valid if
+     * it contains exactly {@value #NUM_COLUMNS} columns and the last column is not empty.
+     *
+     * @param line The line to split.
+     * @return Whether the line has exactly {@value #NUM_COLUMNS} columns.
+     */
+    public boolean tokenize(CharSequence line) {
+        this.line = line;
+
+        int column = 0;
+        int start = 0;
+        int length = line.length();
+        for (int i = 0; i < length && column < NUM_COLUMNS; i++) {
+            if (line.charAt(i) == DELIMITER) {
+                columnStart[column] = start;
+                columnEnd[column] = i;
+                column++;
+                start = i + 1;
+            }
+        }
+
+        boolean valid;
+        if (column == NUM_COLUMNS) {
+            // the line ended with delimiters; only valid if there is no further non-empty column
+            valid = onlyDelimiters(start, length);
+        } else {
+            columnStart[column] = start;
+            columnEnd[column] = length;
+            column++;
+            valid = column == NUM_COLUMNS;
+        }
+
+        return valid && !isEmpty(NUM_COLUMNS - 1);
+    }
+
+    /**
+     * Checks whether the given range of the line contains only delimiters.
+     *
+     * @param start The start of the range.
+     * @param end The end of the range (exclusive).
+     * @return Whether the range contains only delimiters.
+     */
+    private boolean onlyDelimiters(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (line.charAt(i) != DELIMITER) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether the given column is empty.
+     *
+     * @param column The index of the column.
+     * @return Whether the column is empty.
+     */
+    public boolean isEmpty(int column) {
+        return columnStart[column] == columnEnd[column];
+    }
+
+    /**
+     * Checks whether the given column is equal to the given string.
+     *
+     * @param column The index of the column.
+     * @param value The string to compare the column to.
+     * @return Whether the column has exactly the content of the given string.
+     */
+    public boolean columnEquals(int column, String value) {
+        int start = columnStart[column];
+        int length = columnEnd[column] - start;
+        if (length != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (line.charAt(start + i) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses the given column as a decimal integer, with the same rules as {@link Integer#parseInt(String)}.
+     *
+     * @param column The index of the column.
+     * @return The integer value of the column.
+     *
+     * @throws NumberFormatException If the column does not contain a valid integer.
+     */
+    public int getInt(int column) throws NumberFormatException {
+        int i = columnStart[column];
+        int end = columnEnd[column];
+
+        boolean negative = false;
+        if (i < end && (line.charAt(i) == '-' || line.charAt(i) == '+')) {
+            negative = line.charAt(i) == '-';
+            i++;
+        }
+        if (i == end) {
+            throw new NumberFormatException("For input string: \"" + getString(column) + "\"");
+        }
+
+        // accumulate negatively, so that Integer.MIN_VALUE can be represented
+        long limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+        long result = 0;
+        for (; i < end; i++) {
+            int digit = line.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("For input string: \"" + getString(column) + "\"");
+            }
+            result = result * 10 - digit;
+            if (result < limit) {
+                throw new NumberFormatException("For input string: \"" + getString(column) + "\"");
+            }
+        }
+        return (int) (negative ? result : -result);
+    }
+
+    /**
+     * Returns the content of the given column as a new {@link String}.
+     *
+     * @param column The index of the column.
+     * @return The content of the column.
+     */
+    public String getString(int column) {
+        return line.subSequence(columnStart[column], columnEnd[column]).toString();
+    }
+
+}
@@ -17,100 +17,295 @@
 package net.ssehub.kernel_haven.undertaker;
 
 import java.io.File;
-import java.util.Stack;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import net.ssehub.kernel_haven.code_model.CodeBlock;
 import net.ssehub.kernel_haven.code_model.CodeElement;
 import net.ssehub.kernel_haven.code_model.SourceFile;
 import net.ssehub.kernel_haven.util.FormatException;
+import net.ssehub.kernel_haven.util.Logger;
+import net.ssehub.kernel_haven.util.logic.Conjunction;
 import net.ssehub.kernel_haven.util.logic.Formula;
+import net.ssehub.kernel_haven.util.logic.True;
 import net.ssehub.kernel_haven.util.logic.parser.CStyleBooleanGrammar;
 import net.ssehub.kernel_haven.util.logic.parser.ExpressionFormatException;
 import net.ssehub.kernel_haven.util.logic.parser.Parser;
-import net.ssehub.kernel_haven.util.logic.parser.VariableCache;
 
 /**
  * Converts the pilztaker output to AST ({@link CodeElement}s).
+ * <p>
+ * Thread-safe, so a single converter can be used for the whole extraction: each thread gets its own parser, and equal
+ * variables are represented by the same {@link Formula} instance in all converted files. In
+ * {@link PresenceConditionMode#PARSE} and {@link PresenceConditionMode#CROSS_CHECK}, equal formulas (conditions,
+ * presence conditions and all of their sub-formulas) are interned across all converted files, too. In
+ * {@link PresenceConditionMode#STRUCTURAL}, formulas are not interned; only the presence condition of a parent block
+ * is shared by the presence conditions of its nested blocks.
  * 
  * @author Adam
  * @author Johannes
  */
 public class CsvToAstConverter {
 
-    private static final Pattern UNECESSARY_BRACKET_PATTERN = Pattern.compile("\\(([ \\w]+)\\)");
-
-    private static final String DELIMITER = ";";
-
-    private VariableCache cache = new VariableCache();
+    /**
+     * Defines how the presence conditions of the blocks are created.
+     */
+    public enum PresenceConditionMode {
+        
+        /**
+         * Parses the presence condition column of the pilztaker output. This column contains the text of the
+         * conditions of all enclosing blocks, so the parsing effort grows quadratically with the nesting depth.
+         */
+        PARSE,
+        
+        /**
+         * Builds the presence condition from the parsed condition column and the presence condition of the
+         * enclosing block: <code>condition &amp;&amp; parentPc</code>. The presence condition column is not parsed.
+         * For <code>#else</code> and <code>#elif</code> blocks, pilztaker already includes the negated conditions
+         * of the preceding sibling blocks in the condition column.
+         * <p>
+         * Formulas are not interned in this mode: the only shared instances are the presence conditions of parent
+         * blocks, which are part of the presence conditions of their nested blocks.
+         */
+        STRUCTURAL,
+        
+        /**
+         * Builds the presence condition like {@link #STRUCTURAL}, and also parses the presence condition column
+         * like {@link #PARSE}. If both differ, a warning is logged and the parsed presence condition is used.
+         */
+        CROSS_CHECK;
+        
+    }
+    
+    private static final Logger LOGGER = Logger.get();
+    
+    private static final int PARSED_STRICT = 0;
+    
+    private static final int PARSED_FUZZY = 1;
+    
+    private static final int PARSED_CACHED = 2;
+    
+    /**
+     * The variables of all parsed formulas, shared by the parsers of all threads.
+     */
+    private InterningVariableCache variables = new InterningVariableCache();
     
-    private Parser<Formula> parser = new Parser<>(new CStyleBooleanGrammar(cache));
+    /**
+     * Shares equal formulas across all converted files; all conditions and presence conditions are interned.
+     * <code>null</code> in {@link PresenceConditionMode#STRUCTURAL}: there, each presence condition already shares
+     * the presence condition of its parent, so the table costs more heap than interning saves.
+     */
+    private FormulaInterner interner;
+    
+    /**
+     * The parser of each thread that uses this converter, since parsers are not thread-safe.
+     */
+    private ThreadLocal<Parser<Formula>> parser = ThreadLocal.withInitial(
+        () -> new Parser<>(new CStyleBooleanGrammar(variables)));
     
     private boolean fuzzyParsing;
     
+    /**
+     * The cache for parsed formulas. <code>null</code> if every condition is parsed.
+     */
+    private FormulaCache formulaCache;
+    
+    private PresenceConditionMode pcMode;
+    
+    private ParsingStatistics statistics;
+    
+    /**
+     * The table for the conditions of {@link CompactSourceFile}s. <code>null</code> if normal {@link SourceFile}s
+     * are created.
+     */
+    private FormulaTable formulaTable;
+    
+    /**
+     * The metrics to record the conversion of each file in. <code>null</code> if no metrics are recorded.
+     */
+    private ExtractionMetrics metrics;
+    
+    /**
+     * How the conditions of the file that is currently converted by each thread were parsed: the number of strictly
+     * parsed, fuzzy parsed and cached conditions. Only counted if {@link #metrics} are recorded.
+     */
+    private ThreadLocal<int[]> fileParseCounts = ThreadLocal.withInitial(() -> new int[3]);
+    
     /**
      * Creates a converter, that reads CSV output from pilztaker and converts it into {@link SourceFile}s.
+     * Presence conditions are parsed from the pilztaker output ({@link PresenceConditionMode#PARSE}).
      * 
      * @param fuzzyParsing Whether parsing of boolean formulas should be strict or fuzzy.
      */
     public CsvToAstConverter(boolean fuzzyParsing) {
+        this(fuzzyParsing, null);
+    }
+    
+    /**
+     * Creates a converter, that reads CSV output from pilztaker and converts it into {@link SourceFile}s.
+     * 
+     * @param fuzzyParsing Whether parsing of boolean formulas should be strict or fuzzy.
+     * @param formulaCache The cache for parsed formulas. May be shared with other converters, as long as they use
+     *      the same fuzzy parsing setting. <code>null</code> if every condition should be parsed.
+     */
+    public CsvToAstConverter(boolean fuzzyParsing, FormulaCache formulaCache) {
+        this(fuzzyParsing, formulaCache, PresenceConditionMode.PARSE);
+    }
+    
+    /**
+     * Creates a converter, that reads CSV output from pilztaker and converts it into {@link SourceFile}s.
+     * 
+     * @param fuzzyParsing Whether parsing of boolean formulas should be strict or fuzzy.
+     * @param formulaCache The cache for parsed formulas. May be shared with other converters, as long as they use
+     *      the same fuzzy parsing setting. <code>null</code> if every condition should be parsed.
+     * @param pcMode How the presence conditions of the blocks are created.
+     */
+    public CsvToAstConverter(boolean fuzzyParsing, FormulaCache formulaCache, PresenceConditionMode pcMode) {
+        this(fuzzyParsing, formulaCache, pcMode, null);
+    }
+    
+    /**
+     * Creates a converter, that reads CSV output from pilztaker and converts it into {@link SourceFile}s.
+     * 
+     * @param fuzzyParsing Whether parsing of boolean formulas should be strict or fuzzy.
+     * @param formulaCache The cache for parsed formulas. May be shared with other converters, as long as they use
+     *      the same fuzzy parsing setting. <code>null</code> if every condition should be parsed.
+     * @param pcMode How the presence conditions of the blocks are created.
+     * @param statistics The statistics to count the parsed conditions in. May be shared with other converters.
+     *      <code>null</code> to create new statistics for this converter.
+     */
+    public CsvToAstConverter(boolean fuzzyParsing, FormulaCache formulaCache, PresenceConditionMode pcMode,
+            ParsingStatistics statistics) {
         this.fuzzyParsing = fuzzyParsing;
+        this.formulaCache = formulaCache;
+        this.pcMode = pcMode;
+        this.statistics = statistics != null ? statistics : new ParsingStatistics();
+        if (pcMode != PresenceConditionMode.STRUCTURAL) {
+            this.interner = new FormulaInterner(variables);
+        }
+    }
+    
+    /**
+     * Makes this converter create {@link CompactSourceFile}s instead of normal {@link SourceFile}s. Their presence
+     * conditions are always built like {@link PresenceConditionMode#STRUCTURAL}, independent of the presence
+     * condition mode of this converter. Must be called before this converter is used.
+     * 
+     * @param formulaTable The table to store the conditions in; shared by all created files. <code>null</code> to
+     *      create normal {@link SourceFile}s again.
+     */
+    public void setCompactOutput(FormulaTable formulaTable) {
+        this.formulaTable = formulaTable;
+    }
+    
+    /**
+     * Makes this converter record the conversion of each file in the given metrics. Must be called before this
+     * converter is used.
+     * 
+     * @param metrics The metrics to record in. <code>null</code> to not record any metrics.
+     */
+    void setMetrics(ExtractionMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    /**
+     * Starts the metrics for the conversion of a file on the current thread.
+     * 
+     * @return The start time of the conversion, to pass to
+     *      {@link #finishConversion(File, long, long, long, long)}.
+     */
+    long startConversion() {
+        if (metrics != null) {
+            Arrays.fill(fileParseCounts.get(), 0);
+        }
+        return System.nanoTime();
+    }
+    
+    /**
+     * Records the finished conversion of a file on the current thread in the metrics, if there are any.
+     * 
+     * @param filePath The converted file.
+     * @param start The start time, as returned by {@link #startConversion()}.
+     * @param csvLines The number of CSV lines read; {@link ExtractionMetrics#UNKNOWN} for binary output.
+     * @param numBlocks The number of blocks of the file.
+     * @param maxDepth The maximum nesting depth of the blocks; {@link ExtractionMetrics#UNKNOWN} if not known.
+     */
+    void finishConversion(File filePath, long start, long csvLines, long numBlocks, long maxDepth) {
+        if (metrics != null) {
+            int[] counts = fileParseCounts.get();
+            metrics.recordConversion(filePath, System.nanoTime() - start, csvLines, numBlocks, maxDepth,
+                    counts[PARSED_STRICT], counts[PARSED_FUZZY], counts[PARSED_CACHED]);
+        }
+    }
+    
+    /**
+     * Counts a condition of the file that is currently converted by this thread, if metrics are recorded.
+     * 
+     * @param how How the condition was parsed; one of {@link #PARSED_STRICT}, {@link #PARSED_FUZZY} or
+     *      {@link #PARSED_CACHED}.
+     */
+    private void countForFile(int how) {
+        if (metrics != null) {
+            fileParseCounts.get()[how]++;
+        }
+    }
+    
+    /**
+     * Returns the statistics about how the conditions were parsed by this converter.
+     * 
+     * @return The parsing statistics; shared with other converters if passed to the constructor.
+     */
+    public ParsingStatistics getParsingStatistics() {
+        return statistics;
+    }
+    
+    /**
+     * Returns the number of distinct formula nodes (negations, conjunctions and disjunctions) that are shared by
+     * the files converted so far.
+     * 
+     * @return The number of shared formula nodes; variables are not counted. -1 if formulas are not shared, in
+     *      {@link PresenceConditionMode#STRUCTURAL}.
+     */
+    public int getSharedFormulaCount() {
+        return interner != null ? interner.size() : -1;
     }
 
     /**
-     * Replaces each occurrence of <code>from</code> in <code>str</code> with <code>to</code>.
-     * Spaces found around the occurrences of <code>from</code> are removed.
-     * Example: with <code>str="a =    3"</code>, <code>from="="</code> and <code>to="_eq_"</code> the
-     * result would be <code>"a_eq_3"</code>.
+     * Checks whether the given condition contains comparison operators (<code>&lt;</code>, <code>&gt;</code>,
+     * <code>==</code>, etc.). These can't be parsed strictly, so there is no need to try it.
      * 
-     * @param str The string to replace stuff in.
-     * @param from The substring to replace.
-     * @param to The string to replaces found occurrences with.
-     * @return A copy of <code>str</code> with the stuff replaced.
+     * @param formula The unparsed condition.
+     * @return Whether the condition contains <code>&lt;</code>, <code>&gt;</code> or <code>=</code>.
      */
-    private String replace(String str, String from, String to) {
-        StringBuilder buffer = new StringBuilder(str);
-        
-        int index;
-        
-        while ((index = buffer.indexOf(from)) != -1) {
-            
-            int length = from.length();
-            
-            while (index > 0 && Character.isWhitespace(buffer.charAt(index - 1))) {
-                index--;
-                length++;
-            }
-            
-            while (index + length < buffer.length() && Character.isWhitespace(buffer.charAt(index + length))) {
-                length++;
+    static boolean containsComparison(String formula) {
+        for (int i = 0; i < formula.length(); i++) {
+            char c = formula.charAt(i);
+            if (c == '<' || c == '>' || c == '=') {
+                return true;
             }
-            
-            buffer.replace(index, index + length, to);
         }
-        
-        return buffer.toString();
+        return false;
     }
     
     /**
-     * Removes unnecessary brackets from the given formula.
-     * @param condition The unparsed condition from which the unnecessary brackets shall be detected and removed from.
-     * @return An equivalent condition with removed unnecessary brackets, maybe the same instance if the condition does
-     *     not contain any unnecessary brackets.
+     * Parses the boolean formula strictly.
+     * 
+     * @param formula The string to parse.
+     * @return The resulting parsed formula. Never <code>null</code>.
+     * 
+     * @throws ExpressionFormatException If the string cannot be parsed.
      */
-    private static String removeUnnecessaryBrackets(String condition) {
-        Matcher matcher = UNECESSARY_BRACKET_PATTERN.matcher(condition);
-        while (matcher.find()) {
-            condition = condition.replace(matcher.group(), matcher.group(1));
-            matcher = UNECESSARY_BRACKET_PATTERN.matcher(condition);
-        }
-        return condition;
+    private Formula strictParse(String formula) throws ExpressionFormatException {
+        return parser.get().parse(formula);
     }
     
     /**
      * Tries to fuzzy parse the boolean formula. This should be used only if normal parsing was
-     * not successful.
+     * not successful, or would not be successful (see {@link #containsComparison(String)}).
      * 
      * @param formula The string to parse.
      * @return The resulting parsed formula. Never <code>null</code>.
@@ -118,22 +313,7 @@ public class CsvToAstConverter {
      * @throws ExpressionFormatException If the string still cannot be parsed.
      */
     private Formula fuzzyParse(String formula) throws ExpressionFormatException {
-        formula = removeUnnecessaryBrackets(formula);
-        formula = replace(formula, ">=", "_ge_");
-        formula = replace(formula, "<=", "_le_");
-        formula = replace(formula, "==", "_eq_");
-        formula = replace(formula, "!=", "_ne_");
-        formula = replace(formula, ">", "_gt_");
-        formula = replace(formula, "<", "_lt_");
-        
-        Formula result = null;
-        try {
-            result = parser.parse(formula);
-        } finally {
-            cache.clear();
-        }
-        
-        return result;
+        return parser.get().parse(FuzzyNormalizer.normalize(formula));
     }
     
     /**
@@ -141,27 +321,89 @@ public class CsvToAstConverter {
      * tries some heuristics to parse strings that otherwise wouldn't be parseable. 
      * 
      * @param formula The string to parse.
-     * @return The parsed formula. Never <code>null</code>.
+     * @return The parsed formula; the shared instance for all equal formulas. Never <code>null</code>.
      * 
      * @throws ExpressionFormatException If the string cannot be parsed.
      */
-    private Formula tryParse(String formula) throws ExpressionFormatException {
+    Formula tryParse(String formula) throws ExpressionFormatException {
         Formula result = null;
-        try {
-            result = parser.parse(formula);
-            cache.clear();
-            
-        } catch (ExpressionFormatException e) {
-            cache.clear();
-            if (!fuzzyParsing) {
-                throw e;
+        if (formulaCache != null) {
+            result = formulaCache.get(formula);
+            if (result != null) {
+                countForFile(PARSED_CACHED);
+                return result;
             }
+        }
+        
+        if (fuzzyParsing && containsComparison(formula)) {
+            // strict parsing would fail anyway; don't create an exception for it
             try {
                 result = fuzzyParse(formula);
-            } catch (ExpressionFormatException e2) {
-                throw e;
+                statistics.countFuzzy();
+                countForFile(PARSED_FUZZY);
+                
+            } catch (ExpressionFormatException e) {
+                // report the same error as if strict parsing was tried first
+                try {
+                    result = strictParse(formula);
+                } catch (ExpressionFormatException e2) {
+                    statistics.countFailed();
+                    throw e2;
+                }
+                statistics.countStrict();
+                countForFile(PARSED_STRICT);
+            }
+            
+        } else {
+            try {
+                result = strictParse(formula);
+                statistics.countStrict();
+                countForFile(PARSED_STRICT);
+                
+            } catch (ExpressionFormatException e) {
+                if (!fuzzyParsing) {
+                    statistics.countFailed();
+                    throw e;
+                }
+                try {
+                    result = fuzzyParse(formula);
+                } catch (ExpressionFormatException e2) {
+                    statistics.countFailed();
+                    throw e;
+                }
+                statistics.countFuzzyAfterStrict();
+                countForFile(PARSED_FUZZY);
             }
         }
+        
+        if (interner != null) {
+            result = interner.intern(result);
+        }
+        if (formulaCache != null) {
+            formulaCache.put(formula, result);
+        }
+        return result;
+    }
+    
+    /**
+     * Builds the presence condition of a block from its condition and its parent block. The conjunction is shared
+     * with all equal presence conditions, unless this converter is in {@link PresenceConditionMode#STRUCTURAL}.
+     * 
+     * @param condition The condition of the block, as returned by {@link #tryParse(String)}. May be
+     *      <code>null</code>.
+     * @param parent The enclosing block, created by this converter. <code>null</code> for top-level blocks.
+     * @return The presence condition of the block.
+     */
+    Formula buildPresenceCondition(Formula condition, CodeBlock parent) {
+        Formula result;
+        if (parent == null) {
+            result = condition != null ? condition : True.INSTANCE;
+        } else if (condition == null) {
+            result = parent.getPresenceCondition();
+        } else {
+            result = interner != null ? interner.conjunction(condition, parent.getPresenceCondition())
+                    : new Conjunction(condition, parent.getPresenceCondition());
+        }
         return result;
     }
     
@@ -175,57 +417,378 @@ public class CsvToAstConverter {
      * @throws FormatException If the format of the CSV is not valid.
      */
     public SourceFile<CodeBlock> convert(File filePath, String csv) throws FormatException {
+        try {
+            return convert(filePath, new StringReader(csv));
+        } catch (IOException e) {
+            // can't happen, since we read from a string
+            throw new FormatException(e);
+        }
+    }
+    
+    /**
+     * Converts the CSV read from the given reader into a {@link SourceFile}. The CSV is processed line by line, so
+     * the reader may be directly connected to the output of a running pilztaker process.
+     * 
+     * @param filePath The path of the source file that was parsed. Relative to source tree.
+     * @param csv The reader to read the CSV output of pilztaker from. Read until the end of the stream; not closed
+     *      by this method.
+     * @return The {@link SourceFile} representing the CSV content; a {@link CompactSourceFile} if
+     *      {@link #setCompactOutput(FormulaTable)} was called. Never <code>null</code>.
+     * 
+     * @throws FormatException If the format of the CSV is not valid.
+     * @throws IOException If reading from the reader fails.
+     */
+    public SourceFile<CodeBlock> convert(File filePath, Reader csv) throws FormatException, IOException {
+        return convert(filePath, new LineBuffer(csv));
+    }
+    
+    /**
+     * Converts the CSV read from the given stream into a {@link SourceFile}. The bytes are tokenized directly, without
+     * decoding them into a {@link String} or chars first (only the conditions are decoded, as UTF-8), and the buffer
+     * is taken from a pool. This is the cheapest way to convert the output of a running pilztaker process.
+     * 
+     * @param filePath The path of the source file that was parsed. Relative to source tree.
+     * @param csv The stream to read the CSV output of pilztaker from. Read until the end of the stream; not closed
+     *      by this method.
+     * @return The {@link SourceFile} representing the CSV content; a {@link CompactSourceFile} if
+     *      {@link #setCompactOutput(FormulaTable)} was called. Never <code>null</code>.
+     * 
+     * @throws FormatException If the format of the CSV is not valid.
+     * @throws IOException If reading from the stream fails.
+     */
+    public SourceFile<CodeBlock> convert(File filePath, InputStream csv) throws FormatException, IOException {
+        try (ByteLineBuffer lines = new ByteLineBuffer(csv)) {
+            return convert(filePath, lines);
+        }
+    }
+    
+    /**
+     * Converts the CSV lines of the given source into a {@link SourceFile}.
+     * 
+     * @param filePath The path of the source file that was parsed. Relative to source tree.
+     * @param csv The lines of the CSV output of pilztaker. Read until the end.
+     * @return The {@link SourceFile} representing the CSV content; a {@link CompactSourceFile} if
+     *      {@link #setCompactOutput(FormulaTable)} was called. Never <code>null</code>.
+     * 
+     * @throws FormatException If the format of the CSV is not valid.
+     * @throws IOException If reading the lines fails.
+     */
+    private SourceFile<CodeBlock> convert(File filePath, LineSource csv) throws FormatException, IOException {
+        if (formulaTable != null) {
+            CompactSourceFile result = new CompactSourceFile(filePath, formulaTable);
+            readCsv(filePath, csv, (lineStart, lineEnd, kind, parentIndex, condition, record) ->
+                    result.addBlock(lineStart, lineEnd, kind, parentIndex, condition));
+            result.finish();
+            return result;
+        }
+        
         SourceFile<CodeBlock> result = new SourceFile<>(filePath);
+        TopLevelPublisher publisher = new TopLevelPublisher(filePath, result::addElement);
+        readCsv(filePath, csv, publisher);
+        publisher.finish();
+        return result;
+    }
+    
+    /**
+     * Receives the top-level blocks of a file from
+     * {@link CsvToAstConverter#convert(File, InputStream, TopLevelBlockConsumer)}, as soon as each of them is
+     * complete.
+     */
+    public interface TopLevelBlockConsumer {
         
-        Stack<CodeBlock> stack = new Stack<>();
+        /**
+         * Called for each top-level block of the file, in the order of the file. The block is complete, i.e. all
+         * of its nested blocks have been added. Called on the thread that converts the file.
+         * 
+         * @param block The finished top-level block.
+         */
+        public void blockFinished(CodeBlock block);
+        
+    }
+    
+    /**
+     * Converts the CSV read from the given reader, and passes each top-level block to the given consumer as soon as
+     * it is complete. See {@link #convert(File, InputStream, TopLevelBlockConsumer)}.
+     * 
+     * @param filePath The path of the source file that was parsed. Relative to source tree.
+     * @param csv The reader to read the CSV output of pilztaker from. Read until the end of the stream; not closed
+     *      by this method.
+     * @param consumer The consumer to pass the top-level blocks to.
+     * @return The number of top-level blocks passed to the consumer.
+     * 
+     * @throws FormatException If the format of the CSV is not valid.
+     * @throws IOException If reading from the reader fails.
+     */
+    public int convert(File filePath, Reader csv, TopLevelBlockConsumer consumer)
+            throws FormatException, IOException {
+        return convert(filePath, new LineBuffer(csv), consumer);
+    }
+    
+    /**
+     * Converts the CSV read from the given stream, and passes each top-level block to the given consumer as soon as
+     * it is complete. Pilztaker writes the blocks in pre-order, so a top-level block is complete when the next
+     * top-level block (nesting depth 0) is read, or at the end of the stream. Thus, the consumer may already
+     * process a block while the rest of the file is still converted (or even still parsed by pilztaker), and
+     * this converter only holds the blocks of the current top-level block in memory, instead of the whole file.
+     * <p>
+     * The blocks are always normal {@link CodeBlock}s; {@link #setCompactOutput(FormulaTable)} has no effect here.
+     * If the format of the CSV is invalid, the blocks before the invalid line have already been passed to the
+     * consumer.
+     * 
+     * @param filePath The path of the source file that was parsed. Relative to source tree.
+     * @param csv The stream to read the CSV output of pilztaker from. Read until the end of the stream; not closed
+     *      by this method.
+     * @param consumer The consumer to pass the top-level blocks to.
+     * @return The number of top-level blocks passed to the consumer.
+     * 
+     * @throws FormatException If the format of the CSV is not valid.
+     * @throws IOException If reading from the stream fails.
+     */
+    public int convert(File filePath, InputStream csv, TopLevelBlockConsumer consumer)
+            throws FormatException, IOException {
+        try (ByteLineBuffer lines = new ByteLineBuffer(csv)) {
+            return convert(filePath, lines, consumer);
+        }
+    }
+    
+    /**
+     * Converts the CSV lines of the given source, and passes each top-level block to the given consumer as soon as
+     * it is complete.
+     * 
+     * @param filePath The path of the source file that was parsed. Relative to source tree.
+     * @param csv The lines of the CSV output of pilztaker. Read until the end.
+     * @param consumer The consumer to pass the top-level blocks to.
+     * @return The number of top-level blocks passed to the consumer.
+     * 
+     * @throws FormatException If the format of the CSV is not valid.
+     * @throws IOException If reading the lines fails.
+     */
+    private int convert(File filePath, LineSource csv, TopLevelBlockConsumer consumer)
+            throws FormatException, IOException {
+        TopLevelPublisher publisher = new TopLevelPublisher(filePath, consumer);
+        readCsv(filePath, csv, publisher);
+        publisher.finish();
+        return publisher.numPublished;
+    }
+    
+    /**
+     * Creates the {@link CodeBlock} for a CSV record, with the presence condition according to the
+     * {@link PresenceConditionMode} of this converter.
+     * 
+     * @param filePath The path of the source file that was parsed. Relative to source tree.
+     * @param lineStart The start line of the block.
+     * @param lineEnd The end line of the block.
+     * @param condition The parsed condition of the block; <code>null</code> if the block has no condition.
+     * @param parent The enclosing block; <code>null</code> for top-level blocks. The new block is not added to it.
+     * @param record The CSV record of the block.
+     * @return The new block.
+     * 
+     * @throws ExpressionFormatException If the presence condition of the record can't be parsed.
+     */
+    private CodeBlock createBlock(File filePath, int lineStart, int lineEnd, Formula condition, CodeBlock parent,
+            CsvRecordTokenizer record) throws ExpressionFormatException {
+        
+        Formula pc;
+        switch (pcMode) {
+        case STRUCTURAL:
+            pc = buildPresenceCondition(condition, parent);
+            break;
+            
+        case CROSS_CHECK:
+            pc = tryParse(record.getString(CsvRecordTokenizer.PRESENCE_CONDITION));
+            Formula structural = buildPresenceCondition(condition, parent);
+            // both are interned, so equal formulas are identical
+            if (pc != structural) {
+                LOGGER.logWarning("Presence condition mismatch in " + filePath.getPath() + " line "
+                        + lineStart + ":", "parsed:     " + pc, "structural: " + structural);
+            }
+            break;
+            
+        case PARSE:
+        default:
+            pc = tryParse(record.getString(CsvRecordTokenizer.PRESENCE_CONDITION));
+            break;
+        }
+        
+        return new CodeBlock(lineStart, lineEnd, filePath, condition, pc);
+    }
+    
+    /**
+     * Builds the {@link CodeBlock} trees from the blocks read by
+     * {@link CsvToAstConverter#readCsv(File, LineSource, BlockHandler)}, and passes each top-level block to a
+     * consumer once the next top-level block starts. Only the blocks of the current top-level block are kept for
+     * the parent lookup.
+     */
+    private class TopLevelPublisher implements BlockHandler {
+        
+        private File filePath;
+        
+        private TopLevelBlockConsumer consumer;
+        
+        /**
+         * The blocks of the current top-level block, in the order of the CSV. The first one is the top-level block.
+         */
+        private List<CodeBlock> blocks = new ArrayList<>();
+        
+        /**
+         * The index (as numbered by {@link BlockHandler}) of the first element of {@link #blocks}.
+         */
+        private int firstIndex;
+        
+        private int numPublished;
+        
+        /**
+         * Creates a publisher for a single file.
+         * 
+         * @param filePath The path of the source file that was parsed. Relative to source tree.
+         * @param consumer The consumer to pass the top-level blocks to.
+         */
+        public TopLevelPublisher(File filePath, TopLevelBlockConsumer consumer) {
+            this.filePath = filePath;
+            this.consumer = consumer;
+        }
+        
+        @Override
+        public void block(int lineStart, int lineEnd, int kind, int parentIndex, Formula condition,
+                CsvRecordTokenizer record) throws ExpressionFormatException {
+            
+            if (parentIndex == -1) {
+                firstIndex += blocks.size();
+                finish();
+            }
+            
+            // the parent always belongs to the current top-level block, since the blocks are in pre-order
+            CodeBlock parent = parentIndex != -1 ? blocks.get(parentIndex - firstIndex) : null;
+            CodeBlock block = createBlock(filePath, lineStart, lineEnd, condition, parent, record);
+            if (parent != null) {
+                parent.addNestedElement(block);
+            }
+            blocks.add(block);
+        }
+        
+        /**
+         * Passes the current top-level block, if there is one, to the consumer and forgets its blocks.
+         */
+        public void finish() {
+            if (!blocks.isEmpty()) {
+                consumer.blockFinished(blocks.get(0));
+                numPublished++;
+                blocks.clear();
+            }
+        }
+        
+    }
+    
+    /**
+     * Receives the blocks read by {@link CsvToAstConverter#readCsv(File, LineSource, BlockHandler)}.
+     */
+    private interface BlockHandler {
+        
+        /**
+         * Called for each block, in the order of the CSV; parents come before their children.
+         * 
+         * @param lineStart The start line of the block.
+         * @param lineEnd The end line of the block.
+         * @param kind The kind of the block; one of the <code>KIND_*</code> constants of
+         *      {@link BinaryToAstConverter}.
+         * @param parentIndex The index of the parent block (blocks are numbered in the order of this method's calls,
+         *      starting at 0); -1 for top-level blocks.
+         * @param condition The parsed condition of the block; <code>null</code> if the block has no condition.
+         * @param record The CSV record of the block.
+         * 
+         * @throws FormatException If the record is not valid.
+         * @throws ExpressionFormatException If a formula of the record can't be parsed.
+         */
+        public void block(int lineStart, int lineEnd, int kind, int parentIndex, Formula condition,
+                CsvRecordTokenizer record) throws FormatException, ExpressionFormatException;
+        
+    }
+    
+    /**
+     * Reads the CSV from the given lines, and passes each block to the given handler.
+     * 
+     * @param filePath The path of the source file that was parsed. Relative to source tree.
+     * @param lines The lines of the CSV output of pilztaker. Read until the end.
+     * @param handler The handler to pass the blocks to.
+     * 
+     * @throws FormatException If the format of the CSV is not valid.
+     * @throws IOException If reading the lines fails.
+     */
+    private void readCsv(File filePath, LineSource lines, BlockHandler handler) throws FormatException, IOException {
+        // the index of the last block at each nesting depth
+        int[] stack = new int[16];
+        int stackSize = 0;
+        int numBlocks = 0;
+        int numLines = 0;
+        int maxDepth = 0;
+        long start = startConversion();
+        
+        CsvRecordTokenizer record = new CsvRecordTokenizer();
+        String expectedFilename = filePath.getPath();
+        // non-ASCII filenames can't be compared to the (undecoded) bytes of a ByteLineBuffer
+        boolean asciiFilename = expectedFilename.chars().allMatch((c) -> c < 0x80);
         
         try {
-            for (String line : csv.split("\n")) {
-                if (line.trim().isEmpty()) {
+            while (lines.nextLine()) {
+                numLines++;
+                if (lines.isBlank()) {
                     continue;
                 }
-                String[] parts = line.split(DELIMITER);
                 
-                if (parts.length != 8) {
-                    throw new FormatException("Invalid CSV line in file " + filePath.getPath() + ": " + line );
+                if (!record.tokenize(lines)) {
+                    throw new FormatException("Invalid CSV line in file " + filePath.getPath() + ": " + lines);
                 }
                 
-                File filename = new File(parts[0]);
-                if (!filename.equals(filePath)) {
-                    throw new FormatException("Found invalid file in CSV: " + parts[0] + "; expected "
-                            + filePath.getPath());
+                boolean filenameMatches = asciiFilename ? record.columnEquals(CsvRecordTokenizer.FILENAME,
+                        expectedFilename) : record.getString(CsvRecordTokenizer.FILENAME).equals(expectedFilename);
+                if (!filenameMatches) {
+                    throw new FormatException("Found invalid file in CSV: "
+                            + record.getString(CsvRecordTokenizer.FILENAME) + "; expected " + filePath.getPath());
                 }
                 
-                int lineStart = Integer.parseInt(parts[1]);
-                int lineEnd = Integer.parseInt(parts[2]);
-                String type = parts[3];
+                int lineStart = record.getInt(CsvRecordTokenizer.LINE_START);
+                int lineEnd = record.getInt(CsvRecordTokenizer.LINE_END);
                 
-                if (!type.equals("if") && !type.equals("elseif") && !type.equals("else") && !type.equals("ifndef")) {
-                    throw new FormatException("Unexpected type found: " + type);
+                int kind;
+                if (record.columnEquals(CsvRecordTokenizer.TYPE, "if")) {
+                    kind = BinaryToAstConverter.KIND_IF;
+                } else if (record.columnEquals(CsvRecordTokenizer.TYPE, "elseif")) {
+                    kind = BinaryToAstConverter.KIND_ELSEIF;
+                } else if (record.columnEquals(CsvRecordTokenizer.TYPE, "else")) {
+                    kind = BinaryToAstConverter.KIND_ELSE;
+                } else if (record.columnEquals(CsvRecordTokenizer.TYPE, "ifndef")) {
+                    kind = BinaryToAstConverter.KIND_IFNDEF;
+                } else {
+                    throw new FormatException("Unexpected type found: " + record.getString(CsvRecordTokenizer.TYPE));
                 }
                 
-                int nestingDepth = Integer.parseInt(parts[4]);
-//                int corespondingIf = Integer.parseInt(parts[5]);
+                int nestingDepth = record.getInt(CsvRecordTokenizer.NESTING_DEPTH);
                 
                 Formula condition = null;
-                if (!parts[6].isEmpty()) {
-                    condition = tryParse(parts[6]);
+                if (!record.isEmpty(CsvRecordTokenizer.CONDITION)) {
+                    condition = tryParse(record.getString(CsvRecordTokenizer.CONDITION));
                 }
                 
-                Formula pc = tryParse(parts[7]);
-
-                while (stack.size() > nestingDepth) {
-                    stack.pop();
+                if (stackSize > nestingDepth) {
+                    stackSize = nestingDepth;
                 }
                 
-                CodeBlock block = new CodeBlock(lineStart, lineEnd, filePath, condition, pc);
-                if (nestingDepth == 0) {
-                    result.addElement(block);
-                } else {
-                    stack.peek().addNestedElement(block);
+                int parentIndex = -1;
+                if (nestingDepth > 0) {
+                    if (stackSize == 0) {
+                        throw new FormatException("Invalid nesting depth in file " + filePath.getPath() + ": "
+                                + lines);
+                    }
+                    parentIndex = stack[stackSize - 1];
                 }
                 
-                stack.push(block);
+                handler.block(lineStart, lineEnd, kind, parentIndex, condition, record);
+                
+                if (stackSize == stack.length) {
+                    stack = Arrays.copyOf(stack, stackSize * 2);
+                }
+                stack[stackSize++] = numBlocks++;
+                maxDepth = Math.max(maxDepth, stackSize);
             }
         
         } catch (NumberFormatException e) {
@@ -233,7 +796,8 @@ public class CsvToAstConverter {
         } catch (ExpressionFormatException e) {
             throw new FormatException(e);
         }
-        return result;
+        
+        finishConversion(filePath, start, numLines, numBlocks, maxDepth);
     }
     
 }
@@ -0,0 +1,606 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.ssehub.kernel_haven.util.Logger;
+
+/**
+ * Collects metrics about the execution and conversion of each file: the time to spawn the pilztaker process, the
+ * wall time of pilztaker, the size of its output, the number of CSV lines and blocks, the maximum nesting depth,
+ * how the conditions were parsed, the conversion time and whether pilztaker hit its timeout. The values are
+ * aggregated into histograms with power-of-two buckets; optionally, the values of each single file are kept for
+ * the report.
+ * <p>
+ * Periodically logs a progress line with the throughput (files and blocks per second), and writes a report with the
+ * aggregated metrics (<code>metrics.json</code>) and the metrics of each file (<code>metrics.csv</code>) into the
+ * report directory. Thread-safe.
+ * <p>
+ * Note that the conversion of streamed output runs while pilztaker is still running, so the conversion time is part
+ * of the wall time in that case.
+ *
+ * @author agent
+ */
+class ExtractionMetrics {
+
+    private static final Logger LOGGER = Logger.get();
+
+    /**
+     * The value of metrics that were not measured for a file.
+     */
+    static final long UNKNOWN = -1;
+
+    /**
+     * The directory to write the report to. <code>null</code> if no report is written (and no per-file metrics are
+     * kept).
+     */
+    private File reportDir;
+
+    /**
+     * The metrics of each file. <code>null</code> if no report is written.
+     */
+    private Map<File, FileMetrics> files;
+
+    private Histogram spawnTime = new Histogram("microseconds");
+
+    private Histogram wallTime = new Histogram("milliseconds");
+
+    private Histogram stdoutBytes = new Histogram("bytes");
+
+    private Histogram csvLines = new Histogram("lines");
+
+    private Histogram blocks = new Histogram("blocks");
+
+    private Histogram nestingDepth = new Histogram("levels");
+
+    private Histogram conversionTime = new Histogram("microseconds");
+
+    private LongAdder timeouts = new LongAdder();
+
+    private LongAdder strict = new LongAdder();
+
+    private LongAdder fuzzy = new LongAdder();
+
+    private LongAdder cached = new LongAdder();
+
+    private LongAdder finishedFiles = new LongAdder();
+
+    private LongAdder failedFiles = new LongAdder();
+
+    private long startTime = System.nanoTime();
+
+    private long progressInterval;
+
+    /**
+     * The time (as returned by {@link System#nanoTime()}) when the next progress line is due.
+     */
+    private volatile long nextProgress;
+
+    private long lastProgressTime = startTime;
+
+    private long lastProgressFiles;
+
+    private long lastProgressBlocks;
+
+    /**
+     * The metrics of a single file. All times are in nanoseconds; {@link ExtractionMetrics#UNKNOWN} for values that
+     * were not measured, e.g. for files that were answered from a cache without executing pilztaker.
+     */
+    static final class FileMetrics {
+
+        private long spawnTime = UNKNOWN;
+
+        private long wallTime = UNKNOWN;
+
+        private long stdoutBytes = UNKNOWN;
+
+        private boolean timedOut;
+
+        private long csvLines = UNKNOWN;
+
+        private long blocks = UNKNOWN;
+
+        private long nestingDepth = UNKNOWN;
+
+        private int strict;
+
+        private int fuzzy;
+
+        private int cached;
+
+        private long conversionTime = UNKNOWN;
+
+        /**
+         * Returns the wall time of pilztaker.
+         *
+         * @return The wall time in nanoseconds; {@link ExtractionMetrics#UNKNOWN} if not measured.
+         */
+        public synchronized long getWallTime() {
+            return wallTime;
+        }
+
+        /**
+         * Returns the number of blocks of the converted file.
+         *
+         * @return The number of blocks; {@link ExtractionMetrics#UNKNOWN} if not converted.
+         */
+        public synchronized long getBlocks() {
+            return blocks;
+        }
+
+        /**
+         * Returns the maximum nesting depth of the blocks of the converted file.
+         *
+         * @return The maximum nesting depth; {@link ExtractionMetrics#UNKNOWN} if not measured.
+         */
+        public synchronized long getNestingDepth() {
+            return nestingDepth;
+        }
+
+        /**
+         * Returns the number of conditions that were parsed strictly.
+         *
+         * @return The number of strictly parsed conditions.
+         */
+        public synchronized int getStrict() {
+            return strict;
+        }
+
+        /**
+         * Returns whether pilztaker hit its timeout on this file.
+         *
+         * @return Whether the execution timed out.
+         */
+        public synchronized boolean isTimedOut() {
+            return timedOut;
+        }
+
+        /**
+         * Converts these metrics into a line of the CSV report.
+         *
+         * @param file The file that these metrics belong to.
+         * @return The CSV line, without line separator.
+         */
+        private synchronized String toCsv(File file) {
+            return quote(file.getPath()) + ';' + millis(spawnTime) + ';' + millis(wallTime) + ';'
+                    + count(stdoutBytes) + ';' + count(csvLines) + ';' + count(blocks) + ';' + count(nestingDepth)
+                    + ';' + strict + ';' + fuzzy + ';' + cached + ';' + millis(conversionTime) + ';' + timedOut;
+        }
+
+    }
+
+    /**
+     * A histogram of non-negative values with power-of-two buckets: bucket 0 counts the value 0, bucket
+     * <code>i</code> counts the values from <code>2^(i-1)</code> to <code>2^i - 1</code>. Thread-safe.
+     */
+    static final class Histogram {
+
+        private String unit;
+
+        private AtomicLongArray buckets = new AtomicLongArray(64);
+
+        private LongAdder count = new LongAdder();
+
+        private LongAdder sum = new LongAdder();
+
+        private AtomicLong max = new AtomicLong();
+
+        /**
+         * Creates an empty histogram.
+         *
+         * @param unit The unit of the values, for the report.
+         */
+        Histogram(String unit) {
+            this.unit = unit;
+        }
+
+        /**
+         * Adds a value. Negative values (i.e. {@link ExtractionMetrics#UNKNOWN}) are ignored.
+         *
+         * @param value The value to add.
+         */
+        public void add(long value) {
+            if (value >= 0) {
+                buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+                count.increment();
+                sum.add(value);
+                long current = max.get();
+                while (value > current && !max.compareAndSet(current, value)) {
+                    current = max.get();
+                }
+            }
+        }
+
+        /**
+         * Returns the number of added values.
+         *
+         * @return The number of values.
+         */
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * Returns the sum of all added values.
+         *
+         * @return The sum.
+         */
+        public long getSum() {
+            return sum.sum();
+        }
+
+        /**
+         * Returns the largest added value.
+         *
+         * @return The maximum; 0 if no value was added.
+         */
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * Estimates a percentile: returns the upper bound of the bucket that contains it (but at most the maximum).
+         *
+         * @param percentile The percentile, between 0 and 1.
+         * @return The estimated value of the percentile; 0 if no value was added.
+         */
+        public long getPercentile(double percentile) {
+            long rank = Math.max((long) Math.ceil(percentile * getCount()), 1);
+            long result = 0;
+            long seen = 0;
+            for (int i = 0; i < buckets.length() && seen < rank; i++) {
+                seen += buckets.get(i);
+                result = upperBound(i);
+            }
+            return Math.min(result, getMax());
+        }
+
+        /**
+         * Returns the largest value that is counted in the given bucket.
+         *
+         * @param bucket The index of the bucket.
+         * @return The upper bound (inclusive) of the bucket.
+         */
+        private static long upperBound(int bucket) {
+            // (1L << 63) - 1 overflows to Long.MAX_VALUE, which is the correct bound of the last bucket
+            return bucket == 0 ? 0 : (1L << bucket) - 1;
+        }
+
+        /**
+         * Converts this histogram into a JSON object.
+         *
+         * @param indent The indentation of the lines of the object.
+         * @return The JSON object.
+         */
+        private String toJson(String indent) {
+            long numValues = getCount();
+            StringBuilder result = new StringBuilder("{\n");
+            result.append(indent).append("  \"unit\": \"").append(unit).append("\",\n");
+            result.append(indent).append("  \"count\": ").append(numValues).append(",\n");
+            result.append(indent).append("  \"sum\": ").append(getSum()).append(",\n");
+            result.append(indent).append("  \"mean\": ").append(format(numValues > 0
+                    ? (double) getSum() / numValues : 0)).append(",\n");
+            result.append(indent).append("  \"p50\": ").append(getPercentile(0.5)).append(",\n");
+            result.append(indent).append("  \"p90\": ").append(getPercentile(0.9)).append(",\n");
+            result.append(indent).append("  \"p99\": ").append(getPercentile(0.99)).append(",\n");
+            result.append(indent).append("  \"max\": ").append(getMax()).append(",\n");
+            result.append(indent).append("  \"buckets\": [");
+            boolean first = true;
+            for (int i = 0; i < buckets.length(); i++) {
+                long bucketCount = buckets.get(i);
+                if (bucketCount > 0) {
+                    result.append(first ? "\n" : ",\n").append(indent).append("    {\"upTo\": ")
+                            .append(upperBound(i)).append(", \"count\": ").append(bucketCount).append('}');
+                    first = false;
+                }
+            }
+            result.append(first ? "]\n" : "\n" + indent + "  ]\n").append(indent).append('}');
+            return result.toString();
+        }
+
+    }
+
+    /**
+     * Creates empty metrics.
+     *
+     * @param reportDir The directory to write the report to. <code>null</code> to only log progress lines; then no
+     *      per-file metrics are kept.
+     * @param progressInterval The interval between two progress lines in seconds. 0 to not log progress lines.
+     */
+    ExtractionMetrics(File reportDir, int progressInterval) {
+        this.reportDir = reportDir;
+        if (reportDir != null) {
+            files = new ConcurrentHashMap<>();
+        }
+        this.progressInterval = progressInterval * 1000000000L;
+        this.nextProgress = progressInterval > 0 ? startTime + this.progressInterval : Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns the per-file metrics of the given file, creating them if necessary.
+     *
+     * @param file The file; relative to the source tree.
+     * @return The metrics of the file; <code>null</code> if no per-file metrics are kept.
+     */
+    private FileMetrics getOrCreate(File file) {
+        return files != null ? files.computeIfAbsent(file, (key) -> new FileMetrics()) : null;
+    }
+
+    /**
+     * Returns the per-file metrics of the given file.
+     *
+     * @param file The file; relative to the source tree.
+     * @return The metrics of the file; <code>null</code> if there are none.
+     */
+    FileMetrics getFileMetrics(File file) {
+        return files != null ? files.get(file) : null;
+    }
+
+    /**
+     * Records an execution of pilztaker on a single file.
+     *
+     * @param file The file; relative to the source tree.
+     * @param spawnTime The time to start the process in nanoseconds; {@link #UNKNOWN} if not measured.
+     * @param wallTime The time from starting the execution until its end in nanoseconds.
+     * @param stdoutBytes The size of the output; {@link #UNKNOWN} if not measured.
+     * @param timedOut Whether the execution was killed because it hit its timeout.
+     */
+    public void recordExecution(File file, long spawnTime, long wallTime, long stdoutBytes, boolean timedOut) {
+        this.spawnTime.add(spawnTime < 0 ? UNKNOWN : spawnTime / 1000);
+        this.wallTime.add(wallTime / 1000000);
+        this.stdoutBytes.add(stdoutBytes);
+        if (timedOut) {
+            timeouts.increment();
+        }
+
+        FileMetrics metrics = getOrCreate(file);
+        if (metrics != null) {
+            synchronized (metrics) {
+                metrics.spawnTime = spawnTime;
+                metrics.wallTime = wallTime;
+                metrics.stdoutBytes = stdoutBytes;
+                metrics.timedOut = timedOut;
+            }
+        }
+    }
+
+    /**
+     * Records the conversion of the output of a single file.
+     *
+     * @param file The file; relative to the source tree.
+     * @param conversionTime The time of the conversion in nanoseconds.
+     * @param csvLines The number of CSV lines that were read; {@link #UNKNOWN} for binary output.
+     * @param numBlocks The number of blocks of the file.
+     * @param maxDepth The maximum nesting depth of the blocks (1 if all blocks are top-level, 0 for files without
+     *      blocks); {@link #UNKNOWN} if not measured.
+     * @param numStrict The number of conditions that were parsed strictly.
+     * @param numFuzzy The number of conditions that were parsed fuzzy.
+     * @param numCached The number of conditions that were found in the formula cache.
+     */
+    public void recordConversion(File file, long conversionTime, long csvLines, long numBlocks, long maxDepth,
+            int numStrict, int numFuzzy, int numCached) {
+
+        this.conversionTime.add(conversionTime / 1000);
+        this.csvLines.add(csvLines);
+        this.blocks.add(numBlocks);
+        this.nestingDepth.add(maxDepth);
+        strict.add(numStrict);
+        fuzzy.add(numFuzzy);
+        cached.add(numCached);
+
+        FileMetrics metrics = getOrCreate(file);
+        if (metrics != null) {
+            synchronized (metrics) {
+                metrics.conversionTime = conversionTime;
+                metrics.csvLines = csvLines;
+                metrics.blocks = numBlocks;
+                metrics.nestingDepth = maxDepth;
+                metrics.strict = numStrict;
+                metrics.fuzzy = numFuzzy;
+                metrics.cached = numCached;
+            }
+        }
+    }
+
+    /**
+     * Counts a file that the extractor finished, and logs a progress line (and updates the report) if it's due.
+     *
+     * @param success Whether a code model was created for the file.
+     */
+    public void fileFinished(boolean success) {
+        finishedFiles.increment();
+        if (!success) {
+            failedFiles.increment();
+        }
+
+        if (System.nanoTime() >= nextProgress) {
+            boolean due;
+            synchronized (this) {
+                due = System.nanoTime() >= nextProgress;
+                if (due) {
+                    nextProgress = System.nanoTime() + progressInterval;
+                }
+            }
+            if (due) {
+                LOGGER.logInfo(getProgressLine());
+                writeReportSafely();
+            }
+        }
+    }
+
+    /**
+     * Creates a progress line with the throughput since the last progress line and since the start.
+     *
+     * @return The progress line.
+     */
+    synchronized String getProgressLine() {
+        long now = System.nanoTime();
+        long numFiles = finishedFiles.sum();
+        long numBlocks = blocks.getSum();
+
+        double interval = Math.max(now - lastProgressTime, 1) / 1e9;
+        double total = Math.max(now - startTime, 1) / 1e9;
+        String result = String.format(Locale.ROOT, "Progress: %d files (%d failed, %d timeouts), %d blocks in %.0f s; "
+                + "current: %.1f files/s, %.1f blocks/s; overall: %.1f files/s, %.1f blocks/s", numFiles,
+                failedFiles.sum(), timeouts.sum(), numBlocks, total, (numFiles - lastProgressFiles) / interval,
+                (numBlocks - lastProgressBlocks) / interval, numFiles / total, numBlocks / total);
+
+        lastProgressTime = now;
+        lastProgressFiles = numFiles;
+        lastProgressBlocks = numBlocks;
+        return result;
+    }
+
+    /**
+     * Writes the report, and logs an exception if that fails. Does nothing if there is no report directory.
+     */
+    void writeReportSafely() {
+        if (reportDir != null) {
+            try {
+                writeReport();
+            } catch (IOException e) {
+                LOGGER.logException("Can't write metrics report to " + reportDir, e);
+            }
+        }
+    }
+
+    /**
+     * Writes the aggregated metrics to <code>metrics.json</code> and the metrics of each file to
+     * <code>metrics.csv</code> in the report directory. Existing reports are replaced.
+     *
+     * @throws IOException If writing the report fails.
+     */
+    synchronized void writeReport() throws IOException {
+        reportDir.mkdirs();
+
+        long numFiles = finishedFiles.sum();
+        double elapsed = Math.max(System.nanoTime() - startTime, 1) / 1e9;
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"files\": ").append(numFiles).append(",\n");
+        json.append("  \"failedFiles\": ").append(failedFiles.sum()).append(",\n");
+        json.append("  \"timeouts\": ").append(timeouts.sum()).append(",\n");
+        json.append("  \"blocks\": ").append(blocks.getSum()).append(",\n");
+        json.append("  \"elapsedSeconds\": ").append(format(elapsed)).append(",\n");
+        json.append("  \"filesPerSecond\": ").append(format(numFiles / elapsed)).append(",\n");
+        json.append("  \"blocksPerSecond\": ").append(format(blocks.getSum() / elapsed)).append(",\n");
+        json.append("  \"conditions\": {\"strict\": ").append(strict.sum()).append(", \"fuzzy\": ")
+                .append(fuzzy.sum()).append(", \"cached\": ").append(cached.sum()).append("},\n");
+        json.append("  \"histograms\": {\n");
+        json.append("    \"spawnTime\": ").append(spawnTime.toJson("    ")).append(",\n");
+        json.append("    \"wallTime\": ").append(wallTime.toJson("    ")).append(",\n");
+        json.append("    \"stdoutBytes\": ").append(stdoutBytes.toJson("    ")).append(",\n");
+        json.append("    \"csvLines\": ").append(csvLines.toJson("    ")).append(",\n");
+        json.append("    \"blocks\": ").append(blocks.toJson("    ")).append(",\n");
+        json.append("    \"nestingDepth\": ").append(nestingDepth.toJson("    ")).append(",\n");
+        json.append("    \"conversionTime\": ").append(conversionTime.toJson("    ")).append('\n');
+        json.append("  }\n");
+        json.append("}\n");
+        write(new File(reportDir, "metrics.json"), json.toString(), null);
+
+        List<String> lines = new ArrayList<>(files.size() + 1);
+        lines.add("file;spawn_ms;wall_ms;stdout_bytes;csv_lines;blocks;max_depth;strict;fuzzy;cached;conversion_ms;"
+                + "timeout");
+        for (Map.Entry<File, FileMetrics> entry : new TreeMap<>(files).entrySet()) {
+            lines.add(entry.getValue().toCsv(entry.getKey()));
+        }
+        write(new File(reportDir, "metrics.csv"), null, lines);
+    }
+
+    /**
+     * Replaces the given file: writes to a temporary file first, which is then moved to the target.
+     *
+     * @param target The file to write.
+     * @param content The content to write; <code>null</code> if lines are given.
+     * @param lines The lines to write; <code>null</code> if the content is given.
+     *
+     * @throws IOException If writing fails.
+     */
+    private static void write(File target, String content, List<String> lines) throws IOException {
+        File tmp = new File(target.getPath() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+            if (content != null) {
+                out.write(content);
+            } else {
+                for (String line : lines) {
+                    out.write(line);
+                    out.write('\n');
+                }
+            }
+        }
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Formats a time in nanoseconds as milliseconds.
+     *
+     * @param nanos The time in nanoseconds; {@link #UNKNOWN} if not measured.
+     * @return The time in milliseconds with 3 decimals; empty if not measured.
+     */
+    private static String millis(long nanos) {
+        return nanos < 0 ? "" : format(nanos / 1e6);
+    }
+
+    /**
+     * Formats a count.
+     *
+     * @param count The count; {@link #UNKNOWN} if not measured.
+     * @return The count; empty if not measured.
+     */
+    private static String count(long count) {
+        return count < 0 ? "" : Long.toString(count);
+    }
+
+    /**
+     * Formats a number with 3 decimals, independent of the locale.
+     *
+     * @param value The number to format.
+     * @return The formatted number.
+     */
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    /**
+     * Quotes a CSV field, if it contains the separator or quotes.
+     *
+     * @param value The value of the field.
+     * @return The value, quoted if necessary.
+     */
+    private static String quote(String value) {
+        String result = value;
+        if (value.indexOf(';') != -1 || value.indexOf('"') != -1) {
+            result = '"' + value.replace("\"", "\"\"") + '"';
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,522 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.ssehub.kernel_haven.code_model.CodeBlock;
+import net.ssehub.kernel_haven.code_model.SourceFile;
+import net.ssehub.kernel_haven.util.FormatException;
+import net.ssehub.kernel_haven.util.Logger;
+
+/**
+ * A two-stage pipeline for the extraction: the first stage executes pilztaker, the second stage converts the CSV
+ * output into {@link SourceFile}s. Each stage has its own thread pool. A bounded queue between both stages decouples
+ * them: slow conversions do not block process executions (until the queue is full), and slow processes do not
+ * block the conversion of already finished output. The threads of both stages run until the pipeline is closed.
+ * Thread-safe.
+ *
+ * @author agent
+ */
+class ExtractionPipeline implements Closeable {
+
+    private static final Logger LOGGER = Logger.get();
+
+    /**
+     * The number of conversions after which the statistics are logged.
+     */
+    private static final int STATISTICS_INTERVAL = 1000;
+
+    /**
+     * The time in milliseconds that {@link #close()} waits for each stage to finish its current work.
+     */
+    private static final long CLOSE_TIMEOUT = 5000;
+
+    private IUndertakerRunner runner;
+
+    private CsvToAstConverter converter;
+
+    private ThreadPoolExecutor executionPool;
+
+    private BlockingQueue<ConversionTask> conversionQueue;
+
+    private List<Thread> conversionThreads;
+
+    private volatile boolean closed;
+
+    private Statistics statistics = new Statistics();
+
+    /**
+     * A file waiting for a free execution thread.
+     */
+    private class ExecutionTask implements Runnable {
+
+        private File file;
+
+        private CompletableFuture<SourceFile<CodeBlock>> result;
+
+        /**
+         * Creates an execution task.
+         *
+         * @param file The file to run on.
+         * @param result The future to complete with the result of the file.
+         */
+        public ExecutionTask(File file, CompletableFuture<SourceFile<CodeBlock>> result) {
+            this.file = file;
+            this.result = result;
+        }
+
+        @Override
+        public void run() {
+            execute(file, result);
+        }
+
+    }
+
+    /**
+     * The CSV output of a single file, waiting for conversion.
+     */
+    private static class ConversionTask {
+
+        private File file;
+
+        private String csv;
+
+        private CompletableFuture<SourceFile<CodeBlock>> result;
+
+        private long enqueueTime;
+
+        /**
+         * Creates a conversion task.
+         *
+         * @param file The file that the CSV belongs to.
+         * @param csv The CSV output of pilztaker.
+         * @param result The future to complete with the conversion result.
+         */
+        public ConversionTask(File file, String csv, CompletableFuture<SourceFile<CodeBlock>> result) {
+            this.file = file;
+            this.csv = csv;
+            this.result = result;
+            this.enqueueTime = System.nanoTime();
+        }
+
+    }
+
+    /**
+     * Statistics about the stages of the pipeline. All times are in nanoseconds.
+     */
+    static class Statistics {
+
+        private LongAdder executions = new LongAdder();
+
+        private LongAdder executionTime = new LongAdder();
+
+        private AtomicLong maxExecutionTime = new AtomicLong();
+
+        private LongAdder conversions = new LongAdder();
+
+        private LongAdder conversionTime = new LongAdder();
+
+        private AtomicLong maxConversionTime = new AtomicLong();
+
+        private LongAdder queueWaitTime = new LongAdder();
+
+        private AtomicLong maxQueueWaitTime = new AtomicLong();
+
+        private AtomicInteger maxExecutionQueueDepth = new AtomicInteger();
+
+        private AtomicInteger maxConversionQueueDepth = new AtomicInteger();
+
+        /**
+         * Updates the given maximum.
+         *
+         * @param max The maximum to update.
+         * @param value The new value.
+         */
+        private static void updateMax(AtomicLong max, long value) {
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+                // retry
+            }
+        }
+
+        /**
+         * Updates the given maximum.
+         *
+         * @param max The maximum to update.
+         * @param value The new value.
+         */
+        private static void updateMax(AtomicInteger max, int value) {
+            int current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+                // retry
+            }
+        }
+
+        /**
+         * Returns the average of the given total.
+         *
+         * @param total The total time in nanoseconds.
+         * @param count The number of measurements.
+         * @return The average in milliseconds.
+         */
+        private static double averageMs(LongAdder total, LongAdder count) {
+            long n = count.sum();
+            return n == 0 ? 0 : total.sum() / 1000000.0 / n;
+        }
+
+        /**
+         * Returns the number of pilztaker executions.
+         *
+         * @return The number of executions.
+         */
+        public long getExecutions() {
+            return executions.sum();
+        }
+
+        /**
+         * Returns the number of conversions.
+         *
+         * @return The number of conversions.
+         */
+        public long getConversions() {
+            return conversions.sum();
+        }
+
+        /**
+         * Returns the average time of a pilztaker execution.
+         *
+         * @return The average execution time in milliseconds.
+         */
+        public double getAverageExecutionTimeMs() {
+            return averageMs(executionTime, executions);
+        }
+
+        /**
+         * Returns the average time of a conversion.
+         *
+         * @return The average conversion time in milliseconds.
+         */
+        public double getAverageConversionTimeMs() {
+            return averageMs(conversionTime, conversions);
+        }
+
+        /**
+         * Returns the average time that the output of pilztaker waited in the queue for its conversion.
+         *
+         * @return The average queue wait time in milliseconds.
+         */
+        public double getAverageQueueWaitTimeMs() {
+            return averageMs(queueWaitTime, conversions);
+        }
+
+        /**
+         * Returns the maximum number of files that waited for a free execution thread at the same time.
+         *
+         * @return The maximum execution queue depth.
+         */
+        public int getMaxExecutionQueueDepth() {
+            return maxExecutionQueueDepth.get();
+        }
+
+        /**
+         * Returns the maximum number of outputs that waited for a free conversion thread at the same time.
+         *
+         * @return The maximum conversion queue depth.
+         */
+        public int getMaxConversionQueueDepth() {
+            return maxConversionQueueDepth.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("executions=%d (avg %.1f ms, max %d ms), conversions=%d (avg %.1f ms, max %d ms), "
+                    + "queue wait avg %.1f ms (max %d ms), max queue depths: execution=%d, conversion=%d",
+                    getExecutions(), getAverageExecutionTimeMs(), maxExecutionTime.get() / 1000000,
+                    getConversions(), getAverageConversionTimeMs(), maxConversionTime.get() / 1000000,
+                    getAverageQueueWaitTimeMs(), maxQueueWaitTime.get() / 1000000,
+                    getMaxExecutionQueueDepth(), getMaxConversionQueueDepth());
+        }
+
+    }
+
+    /**
+     * Creates and starts a pipeline.
+     *
+     * @param runner The runner that executes pilztaker.
+     * @param converter The converter for the pilztaker output; shared by all conversion threads.
+     * @param executionThreads The number of threads that execute pilztaker.
+     * @param conversionThreads The number of threads that convert the pilztaker output.
+     * @param queueSize The maximum number of pilztaker outputs that wait for their conversion.
+     */
+    public ExtractionPipeline(IUndertakerRunner runner, CsvToAstConverter converter,
+            int executionThreads, int conversionThreads, int queueSize) {
+
+        this.runner = runner;
+        this.converter = converter;
+
+        this.executionPool = new ThreadPoolExecutor(executionThreads, executionThreads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), new NamedDaemonThreadFactory("UndertakerPipeline-execution"));
+
+        this.conversionQueue = new ArrayBlockingQueue<>(queueSize);
+        this.conversionThreads = new ArrayList<>(conversionThreads);
+        ThreadFactory conversionThreadFactory = new NamedDaemonThreadFactory("UndertakerPipeline-conversion");
+        for (int i = 0; i < conversionThreads; i++) {
+            Thread thread = conversionThreadFactory.newThread(this::convertLoop);
+            this.conversionThreads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * A thread factory that creates daemon threads with a common name prefix.
+     */
+    private static class NamedDaemonThreadFactory implements ThreadFactory {
+
+        private String prefix;
+
+        private AtomicInteger count = new AtomicInteger();
+
+        /**
+         * Creates a thread factory.
+         *
+         * @param prefix The prefix for the names of the threads.
+         */
+        public NamedDaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+            thread.setName(prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
+    /**
+     * Runs the pipeline for a single file. Blocks until the file is executed and converted.
+     *
+     * @param file The file in the source tree to run on; relative to the source tree. Must not be
+     *      <code>null</code>.
+     * @return The resulting {@link SourceFile}. <code>null</code> if the pilztaker execution was not successful.
+     *
+     * @throws IOException If executing pilztaker fails, or the pipeline is closed before the file is finished.
+     * @throws FormatException If converting the output of pilztaker fails.
+     */
+    public SourceFile<CodeBlock> runOnFile(File file) throws IOException, FormatException {
+        CompletableFuture<SourceFile<CodeBlock>> result = new CompletableFuture<>();
+
+        try {
+            executionPool.execute(new ExecutionTask(file, result));
+        } catch (RejectedExecutionException e) {
+            throw new IOException("Undertaker pipeline is closed", e);
+        }
+        Statistics.updateMax(statistics.maxExecutionQueueDepth, executionPool.getQueue().size());
+
+        try {
+            return result.get();
+
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof FormatException) {
+                throw (FormatException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    /**
+     * The first stage: executes pilztaker and passes the output to the conversion queue. Runs in the execution
+     * pool.
+     *
+     * @param file The file to run on.
+     * @param result The future for the result of the file.
+     */
+    private void execute(File file, CompletableFuture<SourceFile<CodeBlock>> result) {
+        long start = System.nanoTime();
+        String csv;
+        try {
+            csv = runner.runOnFile(file);
+        } catch (IOException | RuntimeException e) {
+            result.completeExceptionally(e);
+            return;
+        }
+        long duration = System.nanoTime() - start;
+        statistics.executions.increment();
+        statistics.executionTime.add(duration);
+        Statistics.updateMax(statistics.maxExecutionTime, duration);
+
+        if (csv == null) {
+            result.complete(null);
+            return;
+        }
+
+        try {
+            if (closed) {
+                throw new InterruptedException("Undertaker pipeline is closed");
+            }
+            // blocks if the conversion stage can't keep up
+            conversionQueue.put(new ConversionTask(file, csv, result));
+            Statistics.updateMax(statistics.maxConversionQueueDepth, conversionQueue.size());
+        } catch (InterruptedException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * The second stage: converts the pilztaker output from the conversion queue. Runs in each conversion thread.
+     */
+    private void convertLoop() {
+        while (true) {
+            ConversionTask task;
+            try {
+                task = conversionQueue.take();
+            } catch (InterruptedException e) {
+                if (!closed) {
+                    LOGGER.logException("Conversion thread interrupted", e);
+                }
+                return;
+            }
+
+            long start = System.nanoTime();
+            long waited = start - task.enqueueTime;
+            statistics.queueWaitTime.add(waited);
+            Statistics.updateMax(statistics.maxQueueWaitTime, waited);
+
+            SourceFile<CodeBlock> result = null;
+            Exception error = null;
+            try {
+                result = converter.convert(task.file, task.csv);
+            } catch (FormatException | RuntimeException e) {
+                error = e;
+            }
+
+            // update the statistics before the caller continues, so that they include its file
+            long duration = System.nanoTime() - start;
+            statistics.conversions.increment();
+            statistics.conversionTime.add(duration);
+            Statistics.updateMax(statistics.maxConversionTime, duration);
+
+            if (error != null) {
+                task.result.completeExceptionally(error);
+            } else {
+                task.result.complete(result);
+            }
+
+            if (statistics.getConversions() % STATISTICS_INTERVAL == 0) {
+                logStatistics();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of files currently waiting for a free execution thread.
+     *
+     * @return The current execution queue depth.
+     */
+    public int getExecutionQueueDepth() {
+        return executionPool.getQueue().size();
+    }
+
+    /**
+     * Returns the number of pilztaker outputs currently waiting for a free conversion thread.
+     *
+     * @return The current conversion queue depth.
+     */
+    public int getConversionQueueDepth() {
+        return conversionQueue.size();
+    }
+
+    /**
+     * Logs the current queue depths and the statistics of this pipeline.
+     */
+    public void logStatistics() {
+        LOGGER.logInfo("Undertaker pipeline: queue depths: execution=" + getExecutionQueueDepth() + ", conversion="
+                + getConversionQueueDepth() + "; " + statistics);
+    }
+
+    /**
+     * Stops the threads of both stages. Files that are still waiting for a stage fail with an {@link IOException};
+     * files that are currently executed or converted are given a few seconds to finish.
+     */
+    @Override
+    public void close() {
+        closed = true;
+
+        IOException closedException = new IOException("Undertaker pipeline is closed");
+        for (Runnable waiting : executionPool.shutdownNow()) {
+            ((ExecutionTask) waiting).result.completeExceptionally(closedException);
+        }
+        try {
+            if (!executionPool.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                LOGGER.logWarning("Undertaker pipeline: execution threads did not terminate");
+            }
+            for (Thread thread : conversionThreads) {
+                thread.interrupt();
+            }
+            for (Thread thread : conversionThreads) {
+                thread.join(CLOSE_TIMEOUT);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // no more outputs are added, since the execution stage is terminated
+        for (ConversionTask waiting : conversionQueue) {
+            waiting.result.completeExceptionally(closedException);
+        }
+        conversionQueue.clear();
+    }
+
+    /**
+     * Returns the statistics of this pipeline.
+     *
+     * @return The statistics.
+     */
+    public Statistics getStatistics() {
+        return statistics;
+    }
+
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.ssehub.kernel_haven.util.logic.Formula;
+
+/**
+ * A bounded cache from unparsed condition strings to parsed {@link Formula}s. The same conditions appear very often
+ * in the pilztaker output (across all files of the source tree), so this saves a lot of parsing.
+ * <p>
+ * The cache is split into segments, each with its own lock and least-recently-used eviction. Thread-safe.
+ * Since the cached result depends on whether fuzzy parsing is used, a cache must only be shared between converters
+ * with the same fuzzy parsing setting.
+ *
+ * @author agent
+ */
+public class FormulaCache {
+
+    private static final int NUM_SEGMENTS = 16;
+
+    private Segment[] segments;
+
+    private LongAdder hits = new LongAdder();
+
+    private LongAdder misses = new LongAdder();
+
+    /**
+     * A part of the cache with its own lock.
+     */
+    private static class Segment extends LinkedHashMap<String, Formula> {
+
+        private static final long serialVersionUID = 5463170867235372591L;
+
+        private int maxSize;
+
+        /**
+         * Creates a segment.
+         *
+         * @param maxSize The maximum number of entries in this segment.
+         */
+        public Segment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Formula> eldest) {
+            return size() > maxSize;
+        }
+
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxSize The maximum number of cached formulas. Must be positive.
+     */
+    public FormulaCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive, got " + maxSize);
+        }
+
+        int numSegments = Math.min(NUM_SEGMENTS, maxSize);
+        int segmentSize = (maxSize + numSegments - 1) / numSegments;
+
+        segments = new Segment[numSegments];
+        for (int i = 0; i < numSegments; i++) {
+            segments[i] = new Segment(segmentSize);
+        }
+    }
+
+    /**
+     * Returns the segment responsible for the given key.
+     *
+     * @param key The key.
+     * @return The segment for the key.
+     */
+    private Segment getSegment(String key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return segments[(hash & Integer.MAX_VALUE) % segments.length];
+    }
+
+    /**
+     * Returns the cached formula for the given condition string.
+     *
+     * @param condition The unparsed condition.
+     * @return The cached formula, or <code>null</code> if the condition is not cached.
+     */
+    public Formula get(String condition) {
+        Segment segment = getSegment(condition);
+        Formula result;
+        synchronized (segment) {
+            result = segment.get(condition);
+        }
+
+        if (result != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return result;
+    }
+
+    /**
+     * Adds the parsed formula for the given condition string to this cache. This may evict the least recently used
+     * entry.
+     *
+     * @param condition The unparsed condition.
+     * @param formula The parsed formula.
+     */
+    public void put(String condition, Formula formula) {
+        Segment segment = getSegment(condition);
+        synchronized (segment) {
+            segment.put(condition, formula);
+        }
+    }
+
+    /**
+     * Returns the number of currently cached formulas.
+     *
+     * @return The number of cached formulas.
+     */
+    public int size() {
+        int result = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                result += segment.size();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns how often {@link #get(String)} found a cached formula.
+     *
+     * @return The number of cache hits.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns how often {@link #get(String)} did not find a cached formula.
+     *
+     * @return The number of cache misses.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public String toString() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return "FormulaCache[size=" + size() + ", hits=" + hits + ", misses=" + getMisses() + ", hitRate="
+                + (total > 0 ? 100 * hits / total : 0) + "%]";
+    }
+
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.ssehub.kernel_haven.util.FormatException;
+import net.ssehub.kernel_haven.util.logic.Conjunction;
+import net.ssehub.kernel_haven.util.logic.Disjunction;
+import net.ssehub.kernel_haven.util.logic.False;
+import net.ssehub.kernel_haven.util.logic.Formula;
+import net.ssehub.kernel_haven.util.logic.Negation;
+import net.ssehub.kernel_haven.util.logic.True;
+import net.ssehub.kernel_haven.util.logic.Variable;
+
+/**
+ * The formula table of the shard files (see {@link ShardWriter}) and the code model store (see
+ * {@link CodeModelStoreWriter}), and the variable table that it refers to. Each formula is stored as
+ * {@link #ENTRY_INTS} integers: its tag (see the <code>FORMULA_*</code> constants), and the index of the variable or
+ * the ids of its operands (unused ones are 0). Operands always have a lower id than the formulas that use them.
+ * <p>
+ * Equal formulas get the same id. The table is keyed on the entries themselves, i.e. on the tag and the ids of the
+ * operands, so a formula is never hashed or compared as a whole. Not thread-safe.
+ *
+ * @author agent
+ */
+class FormulaCodec {
+
+    static final int FORMULA_FALSE = 0;
+
+    static final int FORMULA_TRUE = 1;
+
+    static final int FORMULA_VARIABLE = 2;
+
+    static final int FORMULA_NEGATION = 3;
+
+    static final int FORMULA_CONJUNCTION = 4;
+
+    static final int FORMULA_DISJUNCTION = 5;
+
+    /**
+     * The number of integers per formula.
+     */
+    static final int ENTRY_INTS = 3;
+
+    /**
+     * Resolves the operands of a formula that is decoded by {@link FormulaCodec#decode(int, int, int, int, Resolver)}.
+     */
+    interface Resolver {
+
+        /**
+         * Returns a formula of the table.
+         *
+         * @param id The id of the formula; lower than the id of the decoded formula.
+         * @return The formula.
+         *
+         * @throws FormatException If the formula is invalid.
+         */
+        public Formula getFormula(int id) throws FormatException;
+
+        /**
+         * Returns a variable of the variable table.
+         *
+         * @param index The index of the variable; not checked yet.
+         * @return The variable.
+         *
+         * @throws FormatException If the index is invalid.
+         */
+        public Variable getVariable(int index) throws FormatException;
+
+    }
+
+    private Map<String, Integer> variables = new HashMap<>();
+
+    private List<String> variableNames = new ArrayList<>();
+
+    /**
+     * The entries of the formulas; {@link #ENTRY_INTS} integers per formula.
+     */
+    private int[] entries = new int[64 * ENTRY_INTS];
+
+    private int size;
+
+    /**
+     * An open addressing hash table over the {@link #entries}: the id of a formula plus 1 in the slot of the hash
+     * of its entry, 0 for empty slots. Its length is a power of 2, and it is at most half full.
+     */
+    private int[] slots = new int[128];
+
+    /**
+     * The ids of the formula instances that were added since the last call of {@link #clearInstances()}. Avoids
+     * walking the operands of a formula that was just added (e.g. the presence condition of a parent block, which
+     * its nested blocks share) again. Keyed by identity, so it doesn't hash whole formulas either.
+     */
+    private Map<Formula, Integer> instances = new IdentityHashMap<>();
+
+    /**
+     * Adds the given formula and its operands to the table, if not contained yet.
+     *
+     * @param formula The formula to add.
+     * @return The id of the formula.
+     *
+     * @throws IllegalArgumentException If the formula contains an unknown type of formula.
+     */
+    public int add(Formula formula) {
+        Integer result = instances.get(formula);
+        if (result == null) {
+            int tag;
+            int first = 0;
+            int second = 0;
+            if (formula instanceof Variable) {
+                String name = ((Variable) formula).getName();
+                Integer variable = variables.get(name);
+                if (variable == null) {
+                    variable = variableNames.size();
+                    variables.put(name, variable);
+                    variableNames.add(name);
+                }
+                tag = FORMULA_VARIABLE;
+                first = variable;
+
+            } else if (formula instanceof Negation) {
+                tag = FORMULA_NEGATION;
+                first = add(((Negation) formula).getFormula());
+
+            } else if (formula instanceof Conjunction) {
+                tag = FORMULA_CONJUNCTION;
+                first = add(((Conjunction) formula).getLeft());
+                second = add(((Conjunction) formula).getRight());
+
+            } else if (formula instanceof Disjunction) {
+                tag = FORMULA_DISJUNCTION;
+                first = add(((Disjunction) formula).getLeft());
+                second = add(((Disjunction) formula).getRight());
+
+            } else if (formula instanceof True) {
+                tag = FORMULA_TRUE;
+
+            } else if (formula instanceof False) {
+                tag = FORMULA_FALSE;
+
+            } else {
+                throw new IllegalArgumentException("Unknown formula type: " + formula.getClass().getName());
+            }
+
+            result = getId(tag, first, second);
+            instances.put(formula, result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the id of the formula with the given entry, adding the entry if it is not contained yet.
+     *
+     * @param tag The tag of the formula.
+     * @param first The index of the variable or the id of the first operand; 0 if unused.
+     * @param second The id of the second operand; 0 if unused.
+     * @return The id of the formula.
+     */
+    private int getId(int tag, int first, int second) {
+        int mask = slots.length - 1;
+        int slot = hash(tag, first, second) & mask;
+        while (slots[slot] != 0) {
+            int entry = (slots[slot] - 1) * ENTRY_INTS;
+            if (entries[entry] == tag && entries[entry + 1] == first && entries[entry + 2] == second) {
+                return slots[slot] - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int result = size++;
+        int entry = result * ENTRY_INTS;
+        if (entry == entries.length) {
+            entries = Arrays.copyOf(entries, entries.length * 2);
+        }
+        entries[entry] = tag;
+        entries[entry + 1] = first;
+        entries[entry + 2] = second;
+        slots[slot] = result + 1;
+
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return result;
+    }
+
+    /**
+     * Doubles the size of the {@link #slots}.
+     */
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int entry = id * ENTRY_INTS;
+            int slot = hash(entries[entry], entries[entry + 1], entries[entry + 2]) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id + 1;
+        }
+    }
+
+    /**
+     * Computes the hash of an entry.
+     *
+     * @param tag The tag of the formula.
+     * @param first The first integer after the tag.
+     * @param second The second integer after the tag.
+     * @return The hash.
+     */
+    private static int hash(int tag, int first, int second) {
+        int result = ((tag * 0x9E3779B9 + first) * 0x9E3779B9 + second) * 0x9E3779B9;
+        return result ^ (result >>> 16);
+    }
+
+    /**
+     * Forgets which formula instances were added, e.g. after all formulas of a source file were added. Formulas that
+     * are added again still get their previous id, but their operands are walked again.
+     */
+    public void clearInstances() {
+        instances.clear();
+    }
+
+    /**
+     * Returns the number of formulas in this table.
+     *
+     * @return The number of formulas.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the variable table, i.e. the names of the variables by their index.
+     *
+     * @return The names of the variables.
+     */
+    public List<String> getVariableNames() {
+        return Collections.unmodifiableList(variableNames);
+    }
+
+    /**
+     * Writes the number of formulas and their entries.
+     *
+     * @param out The output to write to.
+     *
+     * @throws IOException If writing fails.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(size);
+        for (int i = 0; i < size * ENTRY_INTS; i++) {
+            out.writeInt(entries[i]);
+        }
+    }
+
+    /**
+     * Creates the formula of an entry of a formula table.
+     *
+     * @param id The id of the formula.
+     * @param tag The tag of the formula.
+     * @param first The index of the variable or the id of the first operand.
+     * @param second The id of the second operand.
+     * @param resolver Resolves the variable and the operands.
+     * @return The formula.
+     *
+     * @throws FormatException If the tag is unknown or the formula refers to an invalid variable or operand.
+     */
+    static Formula decode(int id, int tag, int first, int second, Resolver resolver) throws FormatException {
+        Formula result;
+        switch (tag) {
+        case FORMULA_FALSE:
+            result = False.INSTANCE;
+            break;
+
+        case FORMULA_TRUE:
+            result = True.INSTANCE;
+            break;
+
+        case FORMULA_VARIABLE:
+            result = resolver.getVariable(first);
+            break;
+
+        case FORMULA_NEGATION:
+            result = new Negation(operand(first, id, resolver));
+            break;
+
+        case FORMULA_CONJUNCTION:
+            result = new Conjunction(operand(first, id, resolver), operand(second, id, resolver));
+            break;
+
+        case FORMULA_DISJUNCTION:
+            result = new Disjunction(operand(first, id, resolver), operand(second, id, resolver));
+            break;
+
+        default:
+            throw new FormatException("Unknown formula tag " + tag + " of formula " + id);
+        }
+        return result;
+    }
+
+    /**
+     * Returns an operand of a formula. Operands always have a lower id than the formulas that use them, so the
+     * formula table can't contain cycles.
+     *
+     * @param operand The id of the operand.
+     * @param id The id of the formula that uses the operand.
+     * @param resolver Resolves the operand.
+     * @return The operand.
+     *
+     * @throws FormatException If the operand is not a formula before the given id.
+     */
+    private static Formula operand(int operand, int id, Resolver resolver) throws FormatException {
+        if (operand < 0 || operand >= id) {
+            throw new FormatException("Invalid operand " + operand + " of formula " + id);
+        }
+        return resolver.getFormula(operand);
+    }
+
+}
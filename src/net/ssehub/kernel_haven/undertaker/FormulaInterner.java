@@ -0,0 +1,301 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import net.ssehub.kernel_haven.util.logic.Conjunction;
+import net.ssehub.kernel_haven.util.logic.Disjunction;
+import net.ssehub.kernel_haven.util.logic.False;
+import net.ssehub.kernel_haven.util.logic.Formula;
+import net.ssehub.kernel_haven.util.logic.Negation;
+import net.ssehub.kernel_haven.util.logic.True;
+import net.ssehub.kernel_haven.util.logic.Variable;
+
+/**
+ * Hash-conses {@link Formula}s: equal formulas (and equal sub-formulas) are represented by a single shared instance.
+ * For interned formulas, equality is identity, so a node is looked up by its operator and the <i>identities</i> of its
+ * already interned operands; looking up a node never walks its sub-formulas.
+ * <p>
+ * The nodes are stored in open-addressing hash tables that only hold the references to the formulas, so an interned
+ * node costs a few bytes on top of the formula itself. The tables are split into segments, each with its own lock.
+ * Variables are interned through the given {@link InterningVariableCache}, and the constants are replaced by
+ * {@link True#INSTANCE} and {@link False#INSTANCE}. Formulas are never removed. Thread-safe.
+ *
+ * @author agent
+ */
+class FormulaInterner {
+
+    private static final int NEGATION = 0;
+
+    private static final int CONJUNCTION = 1;
+
+    private static final int DISJUNCTION = 2;
+
+    /**
+     * The number of segments; must be a power of 2.
+     */
+    private static final int NUM_SEGMENTS = 64;
+
+    private InterningVariableCache variables;
+
+    private Segment[] segments;
+
+    /**
+     * A part of the nodes with its own lock. An open-addressing hash table with linear probing, that is kept at
+     * most half full.
+     */
+    private static final class Segment {
+
+        private Formula[] table = new Formula[64];
+
+        private int size;
+
+    }
+
+    /**
+     * Creates an empty interner.
+     *
+     * @param variables The cache to intern the variables with. Should be the cache used by the parsers, so that the
+     *      variables of parsed formulas are already interned.
+     */
+    FormulaInterner(InterningVariableCache variables) {
+        this.variables = variables;
+        this.segments = new Segment[NUM_SEGMENTS];
+        for (int i = 0; i < NUM_SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Returns the shared instance that is equal to the given formula. The returned formula may be the given one, if
+     * it (and all of its sub-formulas) are not yet contained.
+     *
+     * @param formula The formula to intern.
+     * @return The shared instance equal to the formula.
+     */
+    public Formula intern(Formula formula) {
+        Formula result;
+        if (formula instanceof Variable) {
+            result = variables.getVariable(((Variable) formula).getName());
+
+        } else if (formula instanceof Negation) {
+            Negation negation = (Negation) formula;
+            Formula operand = intern(negation.getFormula());
+            result = lookup(NEGATION, operand, null, operand == negation.getFormula() ? negation : null);
+
+        } else if (formula instanceof Conjunction) {
+            Conjunction conjunction = (Conjunction) formula;
+            Formula left = intern(conjunction.getLeft());
+            Formula right = intern(conjunction.getRight());
+            result = lookup(CONJUNCTION, left, right,
+                    left == conjunction.getLeft() && right == conjunction.getRight() ? conjunction : null);
+
+        } else if (formula instanceof Disjunction) {
+            Disjunction disjunction = (Disjunction) formula;
+            Formula left = intern(disjunction.getLeft());
+            Formula right = intern(disjunction.getRight());
+            result = lookup(DISJUNCTION, left, right,
+                    left == disjunction.getLeft() && right == disjunction.getRight() ? disjunction : null);
+
+        } else if (formula instanceof True) {
+            result = True.INSTANCE;
+
+        } else if (formula instanceof False) {
+            result = False.INSTANCE;
+
+        } else {
+            // unknown formula type; can't be shared
+            result = formula;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the shared conjunction of the two formulas. Only looks up a single node, since the operands are
+     * already interned.
+     *
+     * @param left The left operand. Must be interned.
+     * @param right The right operand. Must be interned.
+     * @return The shared instance of <code>left &amp;&amp; right</code>.
+     */
+    public Formula conjunction(Formula left, Formula right) {
+        return lookup(CONJUNCTION, left, right, null);
+    }
+
+    /**
+     * Returns the interned node with the given operator and operands, adding it if it's not contained yet.
+     *
+     * @param operator The operator; one of {@link #NEGATION}, {@link #CONJUNCTION} or {@link #DISJUNCTION}.
+     * @param left The left (or only) operand. Must be interned.
+     * @param right The right operand. Must be interned; <code>null</code> for negations.
+     * @param candidate An existing formula with exactly these operands, that is added if no such node is contained
+     *      yet. <code>null</code> to create a new formula in that case.
+     * @return The interned node.
+     */
+    private Formula lookup(int operator, Formula left, Formula right, Formula candidate) {
+        int hash = hash(operator, left, right);
+        Segment segment = segments[hash >>> 26 & (NUM_SEGMENTS - 1)];
+
+        Formula result = null;
+        synchronized (segment) {
+            Formula[] table = segment.table;
+            int mask = table.length - 1;
+            int i = hash & mask;
+            while (result == null) {
+                Formula existing = table[i];
+                if (existing == null) {
+                    result = candidate != null ? candidate : create(operator, left, right);
+                    table[i] = result;
+                    segment.size++;
+                    if (segment.size * 2 > table.length) {
+                        segment.table = grow(table);
+                    }
+
+                } else if (matches(existing, operator, left, right)) {
+                    result = existing;
+
+                } else {
+                    i = (i + 1) & mask;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Creates a new node.
+     *
+     * @param operator The operator; one of {@link #NEGATION}, {@link #CONJUNCTION} or {@link #DISJUNCTION}.
+     * @param left The left (or only) operand.
+     * @param right The right operand; <code>null</code> for negations.
+     * @return The new node.
+     */
+    private static Formula create(int operator, Formula left, Formula right) {
+        Formula result;
+        switch (operator) {
+        case NEGATION:
+            result = new Negation(left);
+            break;
+        case CONJUNCTION:
+            result = new Conjunction(left, right);
+            break;
+        case DISJUNCTION:
+        default:
+            result = new Disjunction(left, right);
+            break;
+        }
+        return result;
+    }
+
+    /**
+     * Checks whether the given node has the given operator and (identical) operands.
+     *
+     * @param node An interned node.
+     * @param operator The operator; one of {@link #NEGATION}, {@link #CONJUNCTION} or {@link #DISJUNCTION}.
+     * @param left The left (or only) operand.
+     * @param right The right operand; <code>null</code> for negations.
+     * @return Whether the node matches.
+     */
+    private static boolean matches(Formula node, int operator, Formula left, Formula right) {
+        boolean result;
+        switch (operator) {
+        case NEGATION:
+            result = node instanceof Negation && ((Negation) node).getFormula() == left;
+            break;
+        case CONJUNCTION:
+            result = node instanceof Conjunction && ((Conjunction) node).getLeft() == left
+                    && ((Conjunction) node).getRight() == right;
+            break;
+        case DISJUNCTION:
+        default:
+            result = node instanceof Disjunction && ((Disjunction) node).getLeft() == left
+                    && ((Disjunction) node).getRight() == right;
+            break;
+        }
+        return result;
+    }
+
+    /**
+     * Computes the hash of a node from its operator and the identities of its operands.
+     *
+     * @param operator The operator; one of {@link #NEGATION}, {@link #CONJUNCTION} or {@link #DISJUNCTION}.
+     * @param left The left (or only) operand.
+     * @param right The right operand; <code>null</code> for negations.
+     * @return The hash; the upper bits select the segment, the lower bits the slot.
+     */
+    private static int hash(int operator, Formula left, Formula right) {
+        int hash = (operator * 31 + System.identityHashCode(left)) * 31 + System.identityHashCode(right);
+        // spread the bits, since identity hashes may be small
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Computes the hash of an interned node, as {@link #hash(int, Formula, Formula)} does for its operator and
+     * operands.
+     *
+     * @param node The interned node.
+     * @return The hash of the node.
+     */
+    private static int hash(Formula node) {
+        int result;
+        if (node instanceof Negation) {
+            result = hash(NEGATION, ((Negation) node).getFormula(), null);
+        } else if (node instanceof Conjunction) {
+            result = hash(CONJUNCTION, ((Conjunction) node).getLeft(), ((Conjunction) node).getRight());
+        } else {
+            result = hash(DISJUNCTION, ((Disjunction) node).getLeft(), ((Disjunction) node).getRight());
+        }
+        return result;
+    }
+
+    /**
+     * Creates a table of twice the size, with all nodes of the given table.
+     *
+     * @param table The full table.
+     * @return The new table.
+     */
+    private static Formula[] grow(Formula[] table) {
+        Formula[] result = new Formula[table.length * 2];
+        int mask = result.length - 1;
+        for (Formula node : table) {
+            if (node != null) {
+                int i = hash(node) & mask;
+                while (result[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                result[i] = node;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of distinct operator nodes (negations, conjunctions and disjunctions) in this interner.
+     *
+     * @return The number of interned nodes; variables and constants are not counted.
+     */
+    public int size() {
+        int result = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                result += segment.size;
+            }
+        }
+        return result;
+    }
+
+}
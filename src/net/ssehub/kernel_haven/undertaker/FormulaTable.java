@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.ssehub.kernel_haven.util.logic.Formula;
+
+/**
+ * A table of distinct {@link Formula}s, shared by all {@link CompactSourceFile}s of an extraction. Each distinct
+ * formula is stored once and referenced by its integer id; equal formulas always get the same id. Formulas are never
+ * removed. Thread-safe.
+ *
+ * @author agent
+ */
+public class FormulaTable {
+
+    private ConcurrentMap<Formula, Integer> ids = new ConcurrentHashMap<>();
+
+    /**
+     * The formulas by their id. Replaced by a larger copy when full; only modified while holding the lock on this.
+     */
+    private volatile Formula[] formulas = new Formula[1024];
+
+    private int size;
+
+    /**
+     * Returns the id of the given formula, adding it to this table if no equal formula is contained yet.
+     *
+     * @param formula The formula to add. Not <code>null</code>.
+     * @return The id of the formula.
+     */
+    public int add(Formula formula) {
+        Integer id = ids.get(formula);
+        if (id == null) {
+            synchronized (this) {
+                id = ids.get(formula);
+                if (id == null) {
+                    id = size;
+                    if (size == formulas.length) {
+                        formulas = Arrays.copyOf(formulas, size * 2);
+                    }
+                    formulas[size] = formula;
+                    size++;
+                    // only publish the id after the formula is stored
+                    ids.put(formula, id);
+                }
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Returns the formula with the given id.
+     *
+     * @param id The id, as returned by {@link #add(Formula)}.
+     * @return The formula with this id.
+     */
+    public Formula get(int id) {
+        return formulas[id];
+    }
+
+    /**
+     * Returns the number of distinct formulas in this table.
+     *
+     * @return The number of formulas.
+     */
+    public int size() {
+        return ids.size();
+    }
+
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.util.Arrays;
+
+/**
+ * Normalizes conditions for fuzzy parsing in a single scan over the condition:
+ * <ul>
+ *     <li>Unnecessary brackets are removed: brackets that only contain letters, digits, underscores and spaces (e.g.
+ *         <code>(CONFIG_A)</code>). This is repeated for the enclosing brackets, e.g. <code>((A) B)</code> becomes
+ *         <code>A B</code>.</li>
+ *     <li>Comparison operators are replaced by identifier characters: <code>&gt;=</code> by <code>_ge_</code>,
+ *         <code>&lt;=</code> by <code>_le_</code>, <code>==</code> by <code>_eq_</code>, <code>!=</code> by
+ *         <code>_ne_</code>, <code>&gt;</code> by <code>_gt_</code> and <code>&lt;</code> by <code>_lt_</code>.
+ *         Whitespace around the operators is removed, so that e.g. <code>A &gt;= 3</code> becomes the single
+ *         variable <code>A_ge_3</code>.</li>
+ * </ul>
+ * The result is the same as first removing the brackets until none are left, and then replacing each operator in
+ * the order given above (in particular, <code>!==</code> becomes <code>!_eq_</code>). Whether brackets are removed
+ * is decided on the original condition, so brackets around a comparison are kept.
+ * <p>
+ * Runs in linear time. An opening bracket is written to the output and only marked as removed once its closing
+ * bracket is found. Whitespace after an operator is dropped; if it directly follows an opening bracket after the
+ * operator, it is only marked as removed, and marked as kept again if that bracket turns out to be necessary.
+ *
+ * @author agent
+ */
+final class FuzzyNormalizer {
+
+    /**
+     * The state of a currently open bracket.
+     */
+    private static final class Frame {
+
+        /**
+         * The position of the opening bracket in the output.
+         */
+        private int position;
+
+        /**
+         * The start of the trailing whitespace of the output before the opening bracket.
+         */
+        private int whitespaceStartBefore;
+
+        /**
+         * Whether the content only consists of letters, digits, underscores, spaces and removed brackets.
+         */
+        private boolean removable = true;
+
+        /**
+         * Whether the content contains at least one character that is kept.
+         */
+        private boolean nonEmpty;
+
+        /**
+         * Whether the content only consists of spaces and removed brackets.
+         */
+        private boolean onlySpaces = true;
+
+        /**
+         * The number of the operator, that this bracket directly follows (ignoring whitespace and other opening
+         * brackets); -1 if it doesn't directly follow an operator.
+         */
+        private int afterOperator = -1;
+
+        /**
+         * If this is the outermost bracket that directly follows an operator: the first entry in
+         * {@link FuzzyNormalizer#droppedWhitespace} that belongs to this bracket. Otherwise -1.
+         */
+        private int droppedWhitespaceStart = -1;
+
+        /**
+         * The enclosing bracket; <code>null</code> for top-level brackets.
+         */
+        private Frame parent;
+
+    }
+
+    private String condition;
+
+    private char[] output;
+
+    /**
+     * Characters in {@link #output} that are not part of the result.
+     */
+    private boolean[] removed;
+
+    private int length;
+
+    /**
+     * The start of the trailing whitespace (including removed characters) in {@link #output}; equal to
+     * {@link #length} if the output doesn't end with whitespace.
+     */
+    private int whitespaceStart;
+
+    /**
+     * The number of operators replaced so far.
+     */
+    private int numOperators;
+
+    /**
+     * Whether the output since the last replaced operator only consists of whitespace and opening brackets.
+     */
+    private boolean afterOperator;
+
+    /**
+     * Positions of whitespace that is marked as removed, because it follows an operator and opening brackets.
+     */
+    private int[] droppedWhitespace = new int[16];
+
+    private int numDroppedWhitespace;
+
+    /**
+     * The innermost open bracket; <code>null</code> if there is none.
+     */
+    private Frame top;
+
+    /**
+     * Creates a normalizer for the given condition.
+     *
+     * @param condition The condition to normalize.
+     */
+    private FuzzyNormalizer(String condition) {
+        this.condition = condition;
+        this.output = new char[condition.length() + 16];
+        this.removed = new boolean[output.length];
+    }
+
+    /**
+     * Normalizes the given condition for fuzzy parsing.
+     *
+     * @param condition The condition to normalize.
+     * @return The normalized condition.
+     */
+    public static String normalize(String condition) {
+        return new FuzzyNormalizer(condition).run();
+    }
+
+    /**
+     * Normalizes the condition.
+     *
+     * @return The normalized condition.
+     */
+    private String run() {
+        int inputLength = condition.length();
+        for (int i = 0; i < inputLength; i++) {
+            char c = condition.charAt(i);
+            char next = i + 1 < inputLength ? condition.charAt(i + 1) : 0;
+
+            String replacement = null;
+            switch (c) {
+            case '>':
+                replacement = next == '=' ? "_ge_" : "_gt_";
+                break;
+            case '<':
+                replacement = next == '=' ? "_le_" : "_lt_";
+                break;
+            case '=':
+                replacement = next == '=' ? "_eq_" : null;
+                break;
+            case '!':
+                // in "!==", the == is replaced first, so the ! stays
+                if (next == '=' && (i + 2 >= inputLength || condition.charAt(i + 2) != '=')) {
+                    replacement = "_ne_";
+                }
+                break;
+            default:
+                break;
+            }
+
+            if (replacement != null) {
+                replaceOperator(replacement);
+                if (next == '=') {
+                    i++; // two character operator
+                }
+            } else if (c == '(') {
+                openBracket();
+            } else if (c == ')' && top != null) {
+                closeBracket();
+            } else if (Character.isWhitespace(c)) {
+                appendWhitespace(c);
+            } else {
+                append(c);
+                whitespaceStart = length;
+                afterOperator = false;
+                markContent(isBracketContent(c), false);
+            }
+        }
+
+        // brackets that are not closed are kept
+        restoreDroppedWhitespace(0);
+
+        StringBuilder result = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            if (!removed[i]) {
+                result.append(output[i]);
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Replaces an operator: drops the whitespace before it and appends the replacement.
+     *
+     * @param replacement The replacement for the operator.
+     */
+    private void replaceOperator(String replacement) {
+        length = whitespaceStart;
+        while (numDroppedWhitespace > 0 && droppedWhitespace[numDroppedWhitespace - 1] >= length) {
+            numDroppedWhitespace--;
+        }
+
+        for (int i = 0; i < replacement.length(); i++) {
+            append(replacement.charAt(i));
+        }
+        whitespaceStart = length;
+        numOperators++;
+        afterOperator = true;
+        markContent(false, false);
+    }
+
+    /**
+     * Appends an opening bracket.
+     */
+    private void openBracket() {
+        Frame frame = new Frame();
+        frame.parent = top;
+        frame.position = length;
+        frame.whitespaceStartBefore = whitespaceStart;
+        if (afterOperator) {
+            frame.afterOperator = numOperators;
+            if (top == null || top.afterOperator != numOperators) {
+                frame.droppedWhitespaceStart = numDroppedWhitespace;
+            }
+        }
+        top = frame;
+
+        append('(');
+        whitespaceStart = length;
+    }
+
+    /**
+     * Handles a closing bracket for the innermost open bracket.
+     */
+    private void closeBracket() {
+        Frame frame = top;
+        top = frame.parent;
+
+        if (frame.removable && frame.nonEmpty) {
+            removed[frame.position] = true;
+            if (frame.onlySpaces) {
+                // the bracket and its content are now part of the whitespace before the bracket
+                whitespaceStart = frame.whitespaceStartBefore;
+            }
+            if (frame.droppedWhitespaceStart != -1) {
+                // the whitespace after the operator stays removed
+                numDroppedWhitespace = frame.droppedWhitespaceStart;
+            }
+            if (top != null) {
+                top.nonEmpty = true;
+                top.onlySpaces &= frame.onlySpaces;
+            }
+
+        } else {
+            if (frame.droppedWhitespaceStart != -1) {
+                restoreDroppedWhitespace(frame.droppedWhitespaceStart);
+            }
+            append(')');
+            whitespaceStart = length;
+            afterOperator = false;
+            markContent(false, false);
+        }
+    }
+
+    /**
+     * Appends a whitespace character. Whitespace after an operator is dropped.
+     *
+     * @param c The whitespace character.
+     */
+    private void appendWhitespace(char c) {
+        if (afterOperator) {
+            if (top != null && top.afterOperator == numOperators) {
+                // only removed if all opening brackets since the operator are removed
+                if (numDroppedWhitespace == droppedWhitespace.length) {
+                    droppedWhitespace = Arrays.copyOf(droppedWhitespace, numDroppedWhitespace * 2);
+                }
+                droppedWhitespace[numDroppedWhitespace++] = length;
+                append(c);
+                removed[length - 1] = true;
+            }
+        } else {
+            append(c);
+        }
+        markContent(c == ' ', true);
+    }
+
+    /**
+     * Marks whitespace that was dropped after an operator as kept again.
+     *
+     * @param start The first entry in {@link #droppedWhitespace} to restore.
+     */
+    private void restoreDroppedWhitespace(int start) {
+        for (int i = start; i < numDroppedWhitespace; i++) {
+            removed[droppedWhitespace[i]] = false;
+        }
+        numDroppedWhitespace = start;
+    }
+
+    /**
+     * Appends a character to the output.
+     *
+     * @param c The character to append.
+     */
+    private void append(char c) {
+        if (length == output.length) {
+            output = Arrays.copyOf(output, length * 2);
+            removed = Arrays.copyOf(removed, length * 2);
+        }
+        output[length] = c;
+        removed[length] = false;
+        length++;
+    }
+
+    /**
+     * Updates the state of the innermost open bracket for a character of its content.
+     *
+     * @param bracketContent Whether the character may appear inside unnecessary brackets.
+     * @param space Whether the character is a space.
+     */
+    private void markContent(boolean bracketContent, boolean space) {
+        if (top != null) {
+            top.nonEmpty = true;
+            if (!bracketContent) {
+                top.removable = false;
+            }
+            if (!space) {
+                top.onlySpaces = false;
+            }
+        }
+    }
+
+    /**
+     * Checks whether the given character may appear inside unnecessary brackets, i.e. matches <code>[ \w]</code>.
+     *
+     * @param c The character to check.
+     * @return Whether the character is a letter, digit, underscore or space.
+     */
+    private static boolean isBracketContent(char c) {
+        return c == ' ' || c == '_' || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+
+}
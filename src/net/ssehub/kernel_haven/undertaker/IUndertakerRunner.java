@@ -0,0 +1,40 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Executes pilztaker on source files and returns the CSV output.
+ *
+ * @author agent
+ */
+interface IUndertakerRunner {
+
+    /**
+     * Runs pilztaker on a single file.
+     *
+     * @param file The file in the source tree to run on; relative to the source tree. Must not be
+     *      <code>null</code>.
+     * @return The resulting CSV. <code>null</code> if not successful.
+     *
+     * @throws IOException If executing undertaker throws an IOException.
+     */
+    public String runOnFile(File file) throws IOException;
+
+}
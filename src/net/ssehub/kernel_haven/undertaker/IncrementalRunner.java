@@ -0,0 +1,303 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.ssehub.kernel_haven.util.Logger;
+import net.ssehub.kernel_haven.util.Util;
+
+/**
+ * Reuses the results of a previous extraction for all files that did not change since a given git revision.
+ * <p>
+ * The results of each extraction are stored as one CSV file per source file in a result directory. The next
+ * extraction passes the revision that these results belong to; then <code>git diff --name-only</code> determines
+ * the files that changed since this revision (including uncommitted changes and untracked files in the working
+ * tree). Only these files (and files without a stored result) are executed again; for all other files, the stored
+ * result is returned without reading the source file at all.
+ * <p>
+ * The pilztaker output of a file only depends on the content of that file and on pilztaker itself, since pilztaker
+ * does not resolve <code>#include</code>s. Thus, no include closure has to be considered. The result directory
+ * contains a configuration stamp that describes the pilztaker binary (and its settings); if it differs from the
+ * current one, the stored results are deleted and all files are executed. Thread-safe.
+ *
+ * @author agent
+ */
+class IncrementalRunner implements IUndertakerRunner {
+
+    private static final Logger LOGGER = Logger.get();
+
+    private static final String RESULT_SUFFIX = ".csv";
+
+    /**
+     * The name of the configuration stamp in the result directory. Can't clash with a result, since it has no
+     * {@link #RESULT_SUFFIX}.
+     */
+    private static final String CONFIGURATION_FILE = ".configuration";
+
+    private static final long GIT_TIMEOUT = 10 * 60 * 1000;
+
+    private IUndertakerRunner runner;
+
+    private File resultDir;
+
+    private Set<File> changedFiles;
+
+    private LongAdder reused = new LongAdder();
+
+    private LongAdder executed = new LongAdder();
+
+    /**
+     * Creates an incremental runner.
+     *
+     * @param runner The runner to execute pilztaker with, for changed files.
+     * @param sourceDir The path to the source tree. Must be inside a git working tree.
+     * @param resultDir The directory containing the results of the previous extraction. The results of this
+     *      extraction are stored here, too. Created if it doesn't exist.
+     * @param baseRevision The git revision of the source tree that the results in the result directory belong to.
+     *      <code>null</code> if there are no usable previous results; then all files are executed.
+     * @param configuration Describes everything that the results depend on besides the source files, e.g. the hash
+     *      of the pilztaker binary. If the result directory was written with a different configuration, its results
+     *      are deleted and all files are executed.
+     *
+     * @throws IOException If running git, or creating or clearing the result directory fails.
+     */
+    public IncrementalRunner(IUndertakerRunner runner, File sourceDir, File resultDir, String baseRevision,
+            String configuration) throws IOException {
+
+        this.runner = runner;
+        this.resultDir = resultDir;
+
+        File configurationFile = new File(resultDir, CONFIGURATION_FILE);
+        boolean sameConfiguration = configurationFile.isFile() && configuration.equals(
+                new String(Files.readAllBytes(configurationFile.toPath()), StandardCharsets.UTF_8));
+        if (!sameConfiguration && resultDir.isDirectory()) {
+            LOGGER.logInfo("Results in " + resultDir + " were created with a different configuration; deleting "
+                    + "them and executing all files");
+            deleteResults(resultDir);
+        }
+
+        if (!resultDir.isDirectory() && !resultDir.mkdirs()) {
+            throw new IOException("Can't create result directory " + resultDir);
+        }
+        if (!sameConfiguration) {
+            Files.write(configurationFile.toPath(), configuration.getBytes(StandardCharsets.UTF_8));
+        }
+
+        if (baseRevision != null && sameConfiguration) {
+            this.changedFiles = getChangedFiles(sourceDir, baseRevision);
+            LOGGER.logInfo(changedFiles.size() + " files changed since revision " + baseRevision);
+        }
+    }
+
+    /**
+     * Deletes the stored results in the given directory and its sub-directories. Other files are kept, in case the
+     * result directory was configured to a directory that contains more than results.
+     *
+     * @param dir The directory to delete the results in.
+     */
+    private static void deleteResults(File dir) {
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    deleteResults(child);
+                    // only succeeds if the directory is empty now
+                    child.delete();
+                } else if (child.getName().endsWith(RESULT_SUFFIX)) {
+                    child.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the runner to execute pilztaker with, for changed files.
+     *
+     * @param runner The runner to use.
+     */
+    public void setRunner(IUndertakerRunner runner) {
+        this.runner = runner;
+    }
+
+    /**
+     * Determines the files that changed between the given revision and the current working tree. Untracked files
+     * are considered as changed, too, since git has no history for them.
+     *
+     * @param sourceDir The directory to run git in. Must be inside a git working tree.
+     * @param baseRevision The git revision to compare the working tree with.
+     * @return The paths of the changed files, relative to the source directory. Contains both the old and the
+     *      new path of renamed files, and also deleted files.
+     *
+     * @throws IOException If running git fails.
+     */
+    static Set<File> getChangedFiles(File sourceDir, String baseRevision) throws IOException {
+        Set<File> result = new HashSet<>();
+        runGit(sourceDir, result, "diff", "--name-only", "-z", "--no-renames", "--relative", baseRevision, "--");
+        runGit(sourceDir, result, "ls-files", "-z", "--others", "--exclude-standard");
+        return result;
+    }
+
+    /**
+     * Runs git and collects the file paths that it prints. The arguments must include <code>-z</code>, so that the
+     * paths are separated by NUL characters and printed verbatim; otherwise, git quotes and escapes paths with
+     * special characters (see <code>core.quotePath</code>), and these would never match a source file.
+     *
+     * @param sourceDir The directory to run git in.
+     * @param result The set to add the printed paths to.
+     * @param arguments The arguments for git.
+     *
+     * @throws IOException If running git fails.
+     */
+    private static void runGit(File sourceDir, Set<File> result, String... arguments) throws IOException {
+        String[] command = new String[arguments.length + 1];
+        command[0] = "git";
+        System.arraycopy(arguments, 0, command, 1, arguments.length);
+
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.directory(sourceDir);
+
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+
+        boolean success = Util.executeProcess(processBuilder, "git", stdout, stderr, GIT_TIMEOUT);
+        if (!success) {
+            throw new IOException("git " + arguments[0] + " failed in " + sourceDir + ": "
+                    + stderr.toString().trim());
+        }
+
+        for (String path : stdout.toString(StandardCharsets.UTF_8.name()).split("\0")) {
+            if (!path.isEmpty()) {
+                result.add(new File(path));
+            }
+        }
+    }
+
+    /**
+     * Returns whether the stored result for the given file can be reused.
+     *
+     * @param file The file in the source tree; relative to the source tree. Must not be <code>null</code>.
+     * @return Whether the file did not change and has a stored result.
+     */
+    public boolean canReuse(File file) {
+        return changedFiles != null && !changedFiles.contains(file) && getResultFile(file).isFile();
+    }
+
+    /**
+     * Returns the CSV for the given file. Uses the stored result, if the file did not change since the base
+     * revision. Otherwise, executes pilztaker and stores the result.
+     *
+     * @param file The file in the source tree to run on; relative to the source tree. Must not be
+     *      <code>null</code>.
+     * @return The resulting CSV. <code>null</code> if not successful.
+     *
+     * @throws IOException If executing undertaker throws an IOException.
+     */
+    @Override
+    public String runOnFile(File file) throws IOException {
+        File resultFile = getResultFile(file);
+
+        String result = null;
+        if (canReuse(file)) {
+            try {
+                result = new String(Files.readAllBytes(resultFile.toPath()), StandardCharsets.UTF_8);
+                reused.increment();
+            } catch (IOException e) {
+                LOGGER.logException("Can't read previous result " + resultFile + "; executing again", e);
+            }
+        }
+
+        if (result == null) {
+            executed.increment();
+            result = runner.runOnFile(file);
+
+            if (result != null) {
+                store(resultFile, result);
+            } else {
+                // don't keep an outdated result for the next extraction
+                resultFile.delete();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the file that the result for the given source file is stored in.
+     *
+     * @param file The file in the source tree; relative to the source tree.
+     * @return The result file; may not exist.
+     */
+    private File getResultFile(File file) {
+        return new File(resultDir, file.getPath() + RESULT_SUFFIX);
+    }
+
+    /**
+     * Stores the result for a file. Failing to store the result is only logged, since it is only needed for the
+     * next extraction.
+     *
+     * @param resultFile The file to store the result in.
+     * @param csv The CSV to store.
+     */
+    private void store(File resultFile, String csv) {
+        try {
+            File dir = resultFile.getParentFile();
+            dir.mkdirs();
+
+            File tmp = File.createTempFile("result", ".tmp", dir);
+            Files.write(tmp.toPath(), csv.getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), resultFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+
+        } catch (IOException e) {
+            LOGGER.logException("Can't store result " + resultFile, e);
+        }
+    }
+
+    /**
+     * Returns the number of files for which the stored result was reused.
+     *
+     * @return The number of reused results.
+     */
+    public long getReused() {
+        return reused.sum();
+    }
+
+    /**
+     * Returns the number of files that were executed.
+     *
+     * @return The number of executed files.
+     */
+    public long getExecuted() {
+        return executed.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "IncrementalRunner[resultDir=" + resultDir + ", reused=" + getReused() + ", executed="
+                + getExecuted() + "]";
+    }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.ssehub.kernel_haven.util.logic.Variable;
+import net.ssehub.kernel_haven.util.logic.parser.VariableCache;
+
+/**
+ * A {@link VariableCache} that may be shared by the parsers of several threads. Equal variables are represented by
+ * the same {@link Variable} instance across all formulas parsed with this cache. Variables are never removed, so the
+ * cache grows with the number of distinct variable names (a few ten thousands for the Linux kernel). Thread-safe.
+ *
+ * @author agent
+ */
+class InterningVariableCache extends VariableCache {
+
+    private ConcurrentMap<String, Variable> variables = new ConcurrentHashMap<>();
+
+    @Override
+    public Variable getVariable(String name) {
+        Variable result = variables.get(name);
+        if (result == null) {
+            result = variables.computeIfAbsent(name, Variable::new);
+        }
+        return result;
+    }
+
+    /**
+     * Does nothing; the variables are kept, so that later formulas share them.
+     */
+    @Override
+    public void clear() {
+    }
+
+    /**
+     * Returns the number of distinct variables in this cache.
+     *
+     * @return The number of variables.
+     */
+    public int size() {
+        return variables.size();
+    }
+
+}
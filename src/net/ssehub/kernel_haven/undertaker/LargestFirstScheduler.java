@@ -0,0 +1,337 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import net.ssehub.kernel_haven.util.Logger;
+
+/**
+ * Executes the files of the work list in the order of their predicted cost, largest first, on its own threads. The
+ * extractor requests the files in its own order; the results of files that were executed ahead of their request are
+ * kept until they are requested. Thus, the few huge files start first instead of forming a tail at the end of the
+ * extraction, and the threads finish close together (longest processing time first scheduling).
+ * <p>
+ * A requested file that has not started yet is executed next, before the remaining files of the work list, so that
+ * the extractor threads don't wait for the whole schedule. To bound the memory, the threads only execute files ahead
+ * of their request while fewer than a maximum number of results are waiting to be requested. Files that are not part
+ * of the work list are executed directly on the requesting thread.
+ * <p>
+ * When all files of the work list are finished, the expected (from the predicted costs) and the actual makespan are
+ * logged. Thread-safe.
+ *
+ * @author agent
+ */
+class LargestFirstScheduler implements IUndertakerRunner {
+
+    private static final Logger LOGGER = Logger.get();
+
+    private IUndertakerRunner runner;
+
+    private int numThreads;
+
+    private int maxWaitingResults;
+
+    /**
+     * The tasks of the work list that were not requested yet.
+     */
+    private Map<File, Task> unrequested;
+
+    /**
+     * All tasks, ordered by their predicted cost (largest first).
+     */
+    private Task[] order;
+
+    /**
+     * The position in {@link #order} of the next task that may not be started yet.
+     */
+    private int next;
+
+    /**
+     * Requested tasks that were not started yet; executed before the tasks in {@link #order}.
+     */
+    private Deque<Task> requested = new ArrayDeque<>();
+
+    /**
+     * The number of finished tasks, whose result was not requested yet.
+     */
+    private int waitingResults;
+
+    private int remaining;
+
+    private long expectedMakespan;
+
+    private long predictedTotal;
+
+    private long actualTotal;
+
+    private long startTime;
+
+    private long actualMakespan = -1;
+
+    /**
+     * The execution of a single file of the work list.
+     */
+    private static class Task {
+
+        private File file;
+
+        private long predictedCost;
+
+        private boolean started;
+
+        private boolean finished;
+
+        private boolean requested;
+
+        private CompletableFuture<String> result = new CompletableFuture<>();
+
+        /**
+         * Creates a task.
+         *
+         * @param file The file to execute.
+         * @param predictedCost The predicted runtime in milliseconds.
+         */
+        public Task(File file, long predictedCost) {
+            this.file = file;
+            this.predictedCost = predictedCost;
+        }
+
+    }
+
+    /**
+     * Creates a scheduler and starts executing the work list.
+     *
+     * @param runner The runner to execute pilztaker with.
+     * @param workList The files that will be requested during this extraction; relative to the source tree.
+     * @param predictedCosts The predicted runtime in milliseconds of each file of the work list.
+     * @param numThreads The number of threads that execute the files.
+     * @param maxWaitingResults The maximum number of results of files that were executed ahead of their request.
+     */
+    public LargestFirstScheduler(IUndertakerRunner runner, List<File> workList, long[] predictedCosts,
+            int numThreads, int maxWaitingResults) {
+
+        this.runner = runner;
+        this.numThreads = Math.max(numThreads, 1);
+        this.maxWaitingResults = Math.max(maxWaitingResults, 1);
+
+        this.order = new Task[workList.size()];
+        this.unrequested = new HashMap<>();
+        for (int i = 0; i < workList.size(); i++) {
+            order[i] = new Task(workList.get(i), predictedCosts[i]);
+            unrequested.put(order[i].file, order[i]);
+            predictedTotal += predictedCosts[i];
+        }
+        Arrays.sort(order, Comparator.comparingLong((Task task) -> task.predictedCost).reversed());
+        this.remaining = order.length;
+        this.expectedMakespan = simulateMakespan(order, this.numThreads);
+
+        if (order.length > 0) {
+            LOGGER.logInfo(String.format("Largest-first schedule: %d files on %d threads; predicted total runtime "
+                    + "%.1f s, expected makespan %.1f s; largest file: %s (%.1f s)", order.length, this.numThreads,
+                    predictedTotal / 1000.0, expectedMakespan / 1000.0, order[0].file.getPath(),
+                    order[0].predictedCost / 1000.0));
+        }
+
+        startTime = System.currentTimeMillis();
+        for (int i = 0; i < this.numThreads && i < order.length; i++) {
+            Thread thread = new Thread(this::workerLoop, "LargestFirstScheduler-" + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Computes the makespan of a greedy schedule of the given tasks, in their order, on the given number of threads:
+     * each task is assigned to the thread that becomes idle first.
+     *
+     * @param tasks The tasks in the order that they are started.
+     * @param numThreads The number of threads.
+     * @return The makespan in milliseconds, based on the predicted costs.
+     */
+    static long simulateMakespan(Task[] tasks, int numThreads) {
+        PriorityQueue<Long> threadEnds = new PriorityQueue<>();
+        for (int i = 0; i < numThreads; i++) {
+            threadEnds.add(0L);
+        }
+        long result = 0;
+        for (Task task : tasks) {
+            long end = threadEnds.poll() + task.predictedCost;
+            threadEnds.add(end);
+            result = Math.max(result, end);
+        }
+        return result;
+    }
+
+    /**
+     * Executes tasks until all tasks are started.
+     */
+    private void workerLoop() {
+        Task task;
+        while ((task = takeTask()) != null) {
+            long start = System.currentTimeMillis();
+            try {
+                task.result.complete(runner.runOnFile(task.file));
+            } catch (IOException | RuntimeException e) {
+                task.result.completeExceptionally(e);
+            }
+            finish(task, System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Takes the next task to execute: the oldest requested task, otherwise the largest task that is not started
+     * yet. Waits while too many results are waiting to be requested.
+     *
+     * @return The task to execute; <code>null</code> if all tasks are started.
+     */
+    private synchronized Task takeTask() {
+        Task result = null;
+        while (result == null) {
+            while (!requested.isEmpty() && result == null) {
+                Task task = requested.poll();
+                if (!task.started) {
+                    result = task;
+                }
+            }
+
+            while (next < order.length && order[next].started) {
+                next++;
+            }
+
+            if (result == null) {
+                if (next >= order.length) {
+                    break;
+                }
+                if (waitingResults < maxWaitingResults) {
+                    result = order[next++];
+                } else {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        if (result != null) {
+            result.started = true;
+        }
+        return result;
+    }
+
+    /**
+     * Marks the given task as finished. Logs the makespan report after the last task.
+     *
+     * @param task The finished task.
+     * @param runtime The runtime of the task in milliseconds.
+     */
+    private synchronized void finish(Task task, long runtime) {
+        task.finished = true;
+        if (!task.requested) {
+            waitingResults++;
+        }
+        actualTotal += runtime;
+        remaining--;
+
+        if (remaining == 0) {
+            actualMakespan = System.currentTimeMillis() - startTime;
+            LOGGER.logInfo(String.format("Largest-first schedule finished: %d files on %d threads; total runtime "
+                    + "predicted %.1f s, actual %.1f s; makespan expected %.1f s, actual %.1f s (%.0f%%)",
+                    order.length, numThreads, predictedTotal / 1000.0, actualTotal / 1000.0,
+                    expectedMakespan / 1000.0, actualMakespan / 1000.0,
+                    expectedMakespan > 0 ? 100.0 * actualMakespan / expectedMakespan : 100.0));
+        }
+    }
+
+    /**
+     * Returns the pilztaker result for the given file. Waits for the execution of the file, if it's part of the
+     * work list.
+     *
+     * @param file The file in the source tree to run on; relative to the source tree. Must not be
+     *      <code>null</code>.
+     * @return The resulting CSV. <code>null</code> if not successful.
+     *
+     * @throws IOException If executing undertaker throws an IOException.
+     */
+    @Override
+    public String runOnFile(File file) throws IOException {
+        Task task;
+        synchronized (this) {
+            task = unrequested.remove(file);
+            if (task != null) {
+                task.requested = true;
+                if (task.finished) {
+                    waitingResults--;
+                } else if (!task.started) {
+                    requested.add(task);
+                }
+                notifyAll();
+            }
+        }
+
+        String result;
+        if (task == null) {
+            // not part of the work list, or requested a second time
+            result = runner.runOnFile(file);
+        } else {
+            try {
+                result = task.result.get();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the makespan that is expected from the predicted costs.
+     *
+     * @return The expected makespan in milliseconds.
+     */
+    public long getExpectedMakespan() {
+        return expectedMakespan;
+    }
+
+    /**
+     * Returns the actual makespan, i.e. the time from the creation of this scheduler until all files of the work
+     * list were finished.
+     *
+     * @return The actual makespan in milliseconds; -1 if not all files are finished yet.
+     */
+    public synchronized long getActualMakespan() {
+        return actualMakespan;
+    }
+
+}
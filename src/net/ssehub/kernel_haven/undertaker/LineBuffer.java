@@ -0,0 +1,171 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads lines from a {@link Reader} into a single, reusable char buffer. The current line is accessible as a
+ * {@link CharSequence} view into that buffer; no {@link String} is created per line.
+ *
+ * @author agent
+ */
+class LineBuffer implements LineSource {
+
+    private static final int INITIAL_SIZE = 8192;
+
+    private Reader reader;
+
+    private char[] buffer;
+
+    /**
+     * The start of the current line in {@link #buffer}.
+     */
+    private int lineStart;
+
+    /**
+     * The end (exclusive, without line terminator) of the current line in {@link #buffer}.
+     */
+    private int lineEnd;
+
+    /**
+     * The start of the data in {@link #buffer} that has not been returned as a line yet.
+     */
+    private int dataStart;
+
+    /**
+     * The end of the valid data in {@link #buffer}.
+     */
+    private int dataEnd;
+
+    private boolean endOfStream;
+
+    /**
+     * Creates a line buffer for the given reader.
+     *
+     * @param reader The reader to read the lines from. Not closed by this class.
+     */
+    public LineBuffer(Reader reader) {
+        this.reader = reader;
+        this.buffer = new char[INITIAL_SIZE];
+    }
+
+    @Override
+    public boolean nextLine() throws IOException {
+        int searchStart = dataStart;
+        while (true) {
+            for (int i = searchStart; i < dataEnd; i++) {
+                if (buffer[i] == '\n') {
+                    setLine(dataStart, i);
+                    dataStart = i + 1;
+                    return true;
+                }
+            }
+
+            if (endOfStream) {
+                if (dataStart < dataEnd) {
+                    // last line without line terminator
+                    setLine(dataStart, dataEnd);
+                    dataStart = dataEnd;
+                    return true;
+                }
+                return false;
+            }
+
+            searchStart = dataEnd - dataStart;
+            fill();
+            searchStart += dataStart;
+        }
+    }
+
+    /**
+     * Sets the current line, excluding a trailing <code>\r</code>.
+     *
+     * @param start The start of the line in {@link #buffer}.
+     * @param end The end of the line (exclusive) in {@link #buffer}.
+     */
+    private void setLine(int start, int end) {
+        if (end > start && buffer[end - 1] == '\r') {
+            end--;
+        }
+        lineStart = start;
+        lineEnd = end;
+    }
+
+    /**
+     * Moves the unread data to the start of the buffer (growing it, if necessary) and reads more data from the
+     * reader.
+     *
+     * @throws IOException If reading from the reader fails.
+     */
+    private void fill() throws IOException {
+        int remaining = dataEnd - dataStart;
+        if (remaining == buffer.length) {
+            char[] newBuffer = new char[buffer.length * 2];
+            System.arraycopy(buffer, dataStart, newBuffer, 0, remaining);
+            buffer = newBuffer;
+        } else if (dataStart > 0) {
+            System.arraycopy(buffer, dataStart, buffer, 0, remaining);
+        }
+        dataStart = 0;
+        dataEnd = remaining;
+
+        int read = reader.read(buffer, dataEnd, buffer.length - dataEnd);
+        if (read == -1) {
+            endOfStream = true;
+        } else {
+            dataEnd += read;
+        }
+    }
+
+    @Override
+    public boolean isBlank() {
+        for (int i = lineStart; i < lineEnd; i++) {
+            if (!Character.isWhitespace(buffer[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int length() {
+        return lineEnd - lineStart;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return buffer[lineStart + index];
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The result is a new {@link String}, so it stays valid after the next call to {@link #nextLine()}.
+     */
+    @Override
+    public String subSequence(int start, int end) {
+        return new String(buffer, lineStart + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, lineStart, lineEnd - lineStart);
+    }
+
+}
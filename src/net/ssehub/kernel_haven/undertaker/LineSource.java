@@ -0,0 +1,46 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.io.IOException;
+
+/**
+ * A source of lines, that exposes the current line as a {@link CharSequence} view into a reusable buffer. The view
+ * is only valid until the next call to {@link #nextLine()}.
+ *
+ * @author agent
+ */
+interface LineSource extends CharSequence {
+
+    /**
+     * Advances to the next line. Lines are terminated by <code>\n</code>; a <code>\r</code> directly before the
+     * <code>\n</code> is not part of the line.
+     *
+     * @return Whether a next line was read; <code>false</code> if the end of the input is reached.
+     *
+     * @throws IOException If reading the input fails.
+     */
+    public boolean nextLine() throws IOException;
+
+    /**
+     * Checks whether the current line consists only of whitespace characters.
+     *
+     * @return Whether the current line is blank.
+     */
+    public boolean isBlank();
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts how the conditions were parsed by {@link CsvToAstConverter}s. Conditions that are found in the
+ * {@link FormulaCache} are not counted. May be shared between converters. Thread-safe.
+ *
+ * @author agent
+ */
+public class ParsingStatistics {
+
+    private LongAdder strict = new LongAdder();
+
+    private LongAdder fuzzy = new LongAdder();
+
+    private LongAdder fuzzyAfterStrict = new LongAdder();
+
+    private LongAdder failed = new LongAdder();
+
+    /**
+     * Counts a condition that was parsed strictly.
+     */
+    void countStrict() {
+        strict.increment();
+    }
+
+    /**
+     * Counts a condition that was directly parsed fuzzy, since it contains comparison operators.
+     */
+    void countFuzzy() {
+        fuzzy.increment();
+    }
+
+    /**
+     * Counts a condition that was parsed fuzzy after strict parsing failed.
+     */
+    void countFuzzyAfterStrict() {
+        fuzzyAfterStrict.increment();
+    }
+
+    /**
+     * Counts a condition that could not be parsed.
+     */
+    void countFailed() {
+        failed.increment();
+    }
+
+    /**
+     * Returns the number of conditions that were parsed strictly.
+     *
+     * @return The number of strictly parsed conditions.
+     */
+    public long getStrict() {
+        return strict.sum();
+    }
+
+    /**
+     * Returns the number of conditions that were directly parsed fuzzy, without trying strict parsing first.
+     *
+     * @return The number of directly fuzzy parsed conditions.
+     */
+    public long getFuzzy() {
+        return fuzzy.sum();
+    }
+
+    /**
+     * Returns the number of conditions that were parsed fuzzy after strict parsing failed. Each of these created
+     * an exception in the strict parser.
+     *
+     * @return The number of conditions parsed fuzzy after strict parsing.
+     */
+    public long getFuzzyAfterStrict() {
+        return fuzzyAfterStrict.sum();
+    }
+
+    /**
+     * Returns the number of conditions that could not be parsed.
+     *
+     * @return The number of failed conditions.
+     */
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ParsingStatistics[strict=" + getStrict() + ", fuzzy=" + getFuzzy() + ", fuzzyAfterStrict="
+                + getFuzzyAfterStrict() + ", failed=" + getFailed() + "]";
+    }
+
+}
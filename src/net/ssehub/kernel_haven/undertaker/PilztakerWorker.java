@@ -0,0 +1,211 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.ssehub.kernel_haven.util.Logger;
+import net.ssehub.kernel_haven.util.Logger.Level;
+
+/**
+ * A long-running pilztaker process in server mode. The paths of the files to parse are written to stdin of the
+ * process; the CSV for each file is terminated by {@link #END_OF_FILE_MARKER}. Not thread-safe; each worker
+ * handles one file at a time.
+ *
+ * @author agent
+ */
+class PilztakerWorker {
+
+    /**
+     * The line that pilztaker prints after the CSV output of each file.
+     */
+    static final String END_OF_FILE_MARKER = "#EOF";
+
+    private static final Logger LOGGER = Logger.get();
+
+    private File pilztakerExe;
+
+    private File sourceDir;
+
+    private ScheduledExecutorService watchdog;
+
+    private Process process;
+
+    private Writer stdin;
+
+    private BufferedReader stdout;
+
+    /**
+     * Set by the watchdog, if the process was killed because it didn't finish a file in time.
+     */
+    private volatile boolean killed;
+
+    /**
+     * Creates and starts a worker.
+     *
+     * @param pilztakerExe The pilztaker executable.
+     * @param sourceDir The path to the source tree.
+     * @param watchdog The executor used to schedule the termination of hanging processes.
+     *
+     * @throws IOException If starting the process fails.
+     */
+    public PilztakerWorker(File pilztakerExe, File sourceDir, ScheduledExecutorService watchdog)
+            throws IOException {
+        this.pilztakerExe = pilztakerExe;
+        this.sourceDir = sourceDir;
+        this.watchdog = watchdog;
+
+        start();
+    }
+
+    /**
+     * Starts a new pilztaker process in server mode.
+     *
+     * @throws IOException If starting the process fails.
+     */
+    private void start() throws IOException {
+        ProcessBuilder processBuilder = new ProcessBuilder(
+                pilztakerExe.getAbsolutePath(),
+                "--server",
+                sourceDir.getAbsolutePath() + "/");
+
+        killed = false;
+        process = processBuilder.start();
+        stdin = new BufferedWriter(new OutputStreamWriter(process.getOutputStream()));
+        stdout = new BufferedReader(new InputStreamReader(process.getInputStream()));
+
+        // stderr has to be consumed, otherwise the process blocks once the pipe buffer is full
+        InputStream stderr = process.getErrorStream();
+        Thread stderrReader = new Thread(() -> {
+            try {
+                if (LOGGER.getLevel().shouldLog(Level.DEBUG)) {
+                    BufferedReader lines = new BufferedReader(new InputStreamReader(stderr));
+                    String line;
+                    while ((line = lines.readLine()) != null) {
+                        LOGGER.logDebug("Undertaker stderr: " + line);
+                    }
+                } else {
+                    // not logged anyway; discard the bytes without decoding them
+                    byte[] buffer = new byte[512];
+                    while (stderr.read(buffer) != -1) {
+                        // discard
+                    }
+                }
+            } catch (IOException e) {
+                // process terminated; nothing to do
+            }
+        }, "PilztakerWorker-stderr");
+        stderrReader.setDaemon(true);
+        stderrReader.start();
+    }
+
+    /**
+     * Runs pilztaker on the given file. If the process does not finish the file within the given timeout, it is
+     * killed and a new process is started.
+     *
+     * @param file The file in the source tree to run on; relative to the source tree. Must not be
+     *      <code>null</code>.
+     * @param timeout The timeout in milliseconds until the process is killed.
+     * @return The resulting CSV. <code>null</code> if not successful.
+     *
+     * @throws IOException If the communication with the process fails, or restarting it fails.
+     */
+    public String runOnFile(File file, long timeout) throws IOException {
+        if (!process.isAlive()) {
+            LOGGER.logWarning("Undertaker worker terminated unexpectedly; restarting it");
+            restart();
+        }
+
+        String result = null;
+
+        ScheduledFuture<?> killer = watchdog.schedule(() -> {
+            killed = true;
+            process.destroyForcibly();
+        }, timeout, TimeUnit.MILLISECONDS);
+
+        try {
+            stdin.write(file.getPath());
+            stdin.write('\n');
+            stdin.flush();
+
+            StringBuilder csv = new StringBuilder();
+            String line;
+            while ((line = stdout.readLine()) != null && !line.equals(END_OF_FILE_MARKER)) {
+                csv.append(line).append('\n');
+            }
+
+            if (line != null) {
+                result = csv.toString();
+            }
+
+        } catch (IOException e) {
+            if (!killed) {
+                throw e;
+            }
+
+        } finally {
+            killer.cancel(false);
+        }
+
+        if (killed) {
+            if (result == null) {
+                LOGGER.logWarning("Undertaker worker did not finish " + file.getPath() + " within " + timeout
+                        + " ms; restarting it");
+            }
+            restart();
+
+        } else if (result == null) {
+            LOGGER.logWarning("Undertaker worker terminated unexpectedly on " + file.getPath() + "; restarting it");
+            restart();
+        }
+
+        return result;
+    }
+
+    /**
+     * Terminates the current process and starts a new one.
+     *
+     * @throws IOException If starting the new process fails.
+     */
+    private void restart() throws IOException {
+        stop();
+        start();
+    }
+
+    /**
+     * Terminates the process of this worker.
+     */
+    public void stop() {
+        try {
+            stdin.close();
+        } catch (IOException e) {
+            // ignore, process is terminated anyway
+        }
+        process.destroyForcibly();
+    }
+
+}
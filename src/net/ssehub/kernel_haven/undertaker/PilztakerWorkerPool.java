@@ -0,0 +1,174 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+
+import net.ssehub.kernel_haven.util.Logger;
+
+/**
+ * A pool of long-running pilztaker processes ({@link PilztakerWorker}s). Files are handed to idle workers, so that
+ * no process needs to be started per file. Thread-safe.
+ *
+ * @author agent
+ */
+class PilztakerWorkerPool implements IUndertakerRunner {
+
+    private static final Logger LOGGER = Logger.get();
+
+    private File sourceDir;
+
+    /**
+     * The files of the source tree, to check the files against instead of the file system. <code>null</code> if the
+     * file system is checked for each file.
+     */
+    private SourceTreeIndex index;
+
+    private long timeout;
+
+    /**
+     * Chooses the timeout per file and quarantines files that hang. <code>null</code> if {@link #timeout} is used for
+     * all files.
+     */
+    private RuntimeHistory history;
+
+    /**
+     * The metrics to record each execution in. <code>null</code> if no metrics are recorded.
+     */
+    private ExtractionMetrics metrics;
+
+    private List<PilztakerWorker> workers;
+
+    private BlockingQueue<PilztakerWorker> idleWorkers;
+
+    /**
+     * Creates a pool and starts all worker processes.
+     *
+     * @param pilztakerExe The pilztaker executable.
+     * @param sourceDir The path to the source tree.
+     * @param timeout The timeout in milliseconds until a worker that hangs on a file is killed and restarted.
+     * @param history The runtime history that chooses the timeout of each file instead, and quarantines files that
+     *      hang. <code>null</code> to use the given timeout for all files.
+     * @param size The number of worker processes.
+     * @param watchdog The executor used to schedule the termination of hanging processes.
+     *
+     * @throws IOException If starting the workers fails.
+     */
+    public PilztakerWorkerPool(File pilztakerExe, File sourceDir, long timeout, RuntimeHistory history, int size,
+            ScheduledExecutorService watchdog) throws IOException {
+        this.sourceDir = sourceDir;
+        this.timeout = timeout;
+        this.history = history;
+
+        this.workers = new ArrayList<>(size);
+        this.idleWorkers = new LinkedBlockingQueue<>();
+        try {
+            for (int i = 0; i < size; i++) {
+                PilztakerWorker worker = new PilztakerWorker(pilztakerExe, sourceDir, watchdog);
+                workers.add(worker);
+                idleWorkers.add(worker);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sets the metrics to record each execution in. Must be called before this pool is used.
+     *
+     * @param metrics The metrics. <code>null</code> to not record any metrics.
+     */
+    void setMetrics(ExtractionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets the index of the source tree to check the files against, instead of checking the file system for each
+     * file. Must be called before this pool is used.
+     *
+     * @param index The index of the source tree. <code>null</code> to check the file system for each file.
+     */
+    void setSourceTreeIndex(SourceTreeIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * Runs pilztaker on the given file. Blocks until a worker is idle.
+     *
+     * @param file The file in the source tree to run on; relative to the source tree. Must not be
+     *      <code>null</code>.
+     * @return The resulting CSV. <code>null</code> if not successful.
+     *
+     * @throws IOException If the communication with the worker fails.
+     */
+    @Override
+    public String runOnFile(File file) throws IOException {
+        boolean exists = index != null && index.contains(file) || new File(sourceDir, file.getPath()).isFile();
+        if (!exists) {
+            return null;
+        }
+        if (history != null && history.isQuarantined(file)) {
+            LOGGER.logWarning("Skipping quarantined file " + file.getPath());
+            return null;
+        }
+
+        PilztakerWorker worker;
+        try {
+            worker = idleWorkers.take();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+
+        long fileTimeout = history != null ? history.getTimeout(file) : timeout;
+        long start = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        String result;
+        try {
+            result = worker.runOnFile(file, fileTimeout);
+        } finally {
+            idleWorkers.add(worker);
+        }
+
+        long runtime = System.currentTimeMillis() - start;
+        if (history != null) {
+            history.record(file, result != null, runtime, fileTimeout);
+        }
+        if (metrics != null) {
+            // the worker processes are already running, so there is no spawn time per file
+            metrics.recordExecution(file, ExtractionMetrics.UNKNOWN, System.nanoTime() - startNanos,
+                    result != null ? result.length() : 0, result == null && runtime >= fileTimeout);
+        }
+        return result;
+    }
+
+    /**
+     * Terminates all worker processes.
+     */
+    public void close() {
+        for (PilztakerWorker worker : workers) {
+            worker.stop();
+        }
+    }
+
+}
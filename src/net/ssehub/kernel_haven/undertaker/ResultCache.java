@@ -0,0 +1,464 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.ssehub.kernel_haven.util.Logger;
+
+/**
+ * A persistent cache for the pilztaker output, stored in a directory on disk. When the same source tree is
+ * extracted again, files that did not change are not executed again.
+ * <p>
+ * The key of an entry is the hash of the relative path of the file, the hash of the file content and the hash of
+ * the pilztaker executable. Thus, entries of changed files or of an old pilztaker executable are never used;
+ * additionally, the whole cache is cleared when the pilztaker executable changes. The cache stores the raw CSV, so
+ * the result does not depend on how it is converted afterwards (e.g. fuzzy parsing).
+ * <p>
+ * The total size of the cache is bounded; if it is exceeded, the least recently used entries are deleted. Thread-safe.
+ *
+ * @author agent
+ */
+class ResultCache implements IUndertakerRunner {
+
+    private static final Logger LOGGER = Logger.get();
+
+    private static final String BINARY_HASH_FILE = "pilztaker.sha256";
+
+    private static final String ENTRY_SUFFIX = ".csv";
+
+    /**
+     * If the maximum size is exceeded, entries are evicted until this fraction of the maximum size is reached.
+     * Evicting more than necessary avoids evicting on each new entry.
+     */
+    private static final double EVICTION_TARGET = 0.8;
+
+    private IUndertakerRunner runner;
+
+    private File sourceDir;
+
+    private File cacheDir;
+
+    private String binaryHash;
+
+    private long maxSize;
+
+    private AtomicLong size = new AtomicLong();
+
+    private LongAdder hits = new LongAdder();
+
+    private LongAdder misses = new LongAdder();
+
+    /**
+     * The entries computed by {@link #isCached(File)}, so that {@link #runOnFile(File)} does not hash the same
+     * file again. Each is used once.
+     */
+    private Map<File, KnownEntry> knownEntries = new ConcurrentHashMap<>();
+
+    /**
+     * The cache entry of a file, as computed from its content at a given size and modification time.
+     */
+    private static class KnownEntry {
+
+        private File entry;
+
+        private long size;
+
+        private long lastModified;
+
+        /**
+         * Creates a known entry.
+         *
+         * @param entry The cache entry of the file.
+         * @param size The size of the file when it was hashed.
+         * @param lastModified The modification time of the file when it was hashed.
+         */
+        public KnownEntry(File entry, long size, long lastModified) {
+            this.entry = entry;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param runner The runner to execute pilztaker with, for files that are not cached.
+     * @param sourceDir The path to the source tree.
+     * @param cacheDir The directory to store the cache in. Created if it doesn't exist.
+     * @param pilztakerExe The pilztaker executable that the runner uses.
+     * @param maxSize The maximum size of the cache in bytes.
+     *
+     * @throws IOException If reading the pilztaker executable or setting up the cache directory fails.
+     */
+    public ResultCache(IUndertakerRunner runner, File sourceDir, File cacheDir, File pilztakerExe, long maxSize)
+            throws IOException {
+
+        this.runner = runner;
+        this.sourceDir = sourceDir;
+        this.cacheDir = cacheDir;
+        this.maxSize = maxSize;
+        this.binaryHash = hash(pilztakerExe);
+
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            throw new IOException("Can't create cache directory " + cacheDir);
+        }
+
+        File binaryHashFile = new File(cacheDir, BINARY_HASH_FILE);
+        String oldBinaryHash = binaryHashFile.isFile()
+                ? new String(Files.readAllBytes(binaryHashFile.toPath()), StandardCharsets.US_ASCII) : null;
+
+        if (!binaryHash.equals(oldBinaryHash)) {
+            if (oldBinaryHash != null) {
+                LOGGER.logInfo("Pilztaker executable changed; clearing result cache in " + cacheDir);
+            }
+            for (File entry : listEntries()) {
+                entry.delete();
+            }
+            Files.write(binaryHashFile.toPath(), binaryHash.getBytes(StandardCharsets.US_ASCII));
+
+        } else {
+            long totalSize = 0;
+            for (File entry : listEntries()) {
+                totalSize += entry.length();
+            }
+            size.set(totalSize);
+        }
+    }
+
+    /**
+     * Sets the runner to execute pilztaker with, for files that are not cached.
+     *
+     * @param runner The runner to use.
+     */
+    public void setRunner(IUndertakerRunner runner) {
+        this.runner = runner;
+    }
+
+    /**
+     * Returns the CSV for the given file. Uses the cached result, if the file did not change since it was cached.
+     * Otherwise, executes pilztaker and caches the result.
+     *
+     * @param file The file in the source tree to run on; relative to the source tree. Must not be
+     *      <code>null</code>.
+     * @return The resulting CSV. <code>null</code> if not successful.
+     *
+     * @throws IOException If executing undertaker throws an IOException.
+     */
+    @Override
+    public String runOnFile(File file) throws IOException {
+        File absolute = new File(sourceDir, file.getPath());
+        if (!absolute.isFile()) {
+            return runner.runOnFile(file);
+        }
+
+        File entry = getEntry(file, false);
+        String result = read(entry);
+
+        if (result != null) {
+            hits.increment();
+            // the modification time marks the last use for the eviction
+            entry.setLastModified(System.currentTimeMillis());
+
+        } else {
+            misses.increment();
+            result = runner.runOnFile(file);
+            if (result != null) {
+                write(entry, result);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Checks whether there is a cached result for the current content of the given file.
+     *
+     * @param file The file in the source tree; relative to the source tree. Must not be <code>null</code>.
+     * @return Whether the result for the file is cached.
+     */
+    public boolean isCached(File file) {
+        File absolute = new File(sourceDir, file.getPath());
+        boolean result = false;
+        if (absolute.isFile()) {
+            try {
+                result = getEntry(file, true).isFile();
+            } catch (IOException e) {
+                // not readable; so not cached
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the file that the result for the current content of the given file is stored in. If the entry was
+     * already computed by {@link #isCached(File)} and the file did not change since (i.e. it has the same size and
+     * modification time), the file is not hashed again.
+     *
+     * @param file The file in the source tree; relative to the source tree. Must exist.
+     * @param remember Whether to remember the entry for the next call for this file; otherwise, a remembered entry
+     *      is forgotten.
+     * @return The cache entry for the file; may not exist.
+     *
+     * @throws IOException If reading the file fails.
+     */
+    private File getEntry(File file, boolean remember) throws IOException {
+        File absolute = new File(sourceDir, file.getPath());
+        long fileSize = absolute.length();
+        long lastModified = absolute.lastModified();
+
+        KnownEntry known = remember ? knownEntries.get(file) : knownEntries.remove(file);
+        File result;
+        if (known != null && known.size == fileSize && known.lastModified == lastModified) {
+            result = known.entry;
+        } else {
+            result = computeEntry(file);
+            if (remember) {
+                knownEntries.put(file, new KnownEntry(result, fileSize, lastModified));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Computes the file that the result for the current content of the given file is stored in.
+     *
+     * @param file The file in the source tree; relative to the source tree. Must exist.
+     * @return The cache entry for the file; may not exist.
+     *
+     * @throws IOException If reading the file fails.
+     */
+    private File computeEntry(File file) throws IOException {
+        String contentHash = hash(new File(sourceDir, file.getPath()));
+
+        MessageDigest digest = createDigest();
+        digest.update(file.getPath().getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(contentHash.getBytes(StandardCharsets.US_ASCII));
+        digest.update((byte) 0);
+        digest.update(binaryHash.getBytes(StandardCharsets.US_ASCII));
+        String key = toHex(digest.digest());
+
+        // split into sub-directories, to keep the directory sizes manageable
+        return new File(new File(cacheDir, key.substring(0, 2)), key + ENTRY_SUFFIX);
+    }
+
+    /**
+     * Reads a cache entry.
+     *
+     * @param entry The entry to read.
+     * @return The content of the entry, or <code>null</code> if the entry does not exist.
+     */
+    private String read(File entry) {
+        String result = null;
+        if (entry.isFile()) {
+            try {
+                result = new String(Files.readAllBytes(entry.toPath()), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                // may have been evicted concurrently; treat as not cached
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes a cache entry. Evicts old entries, if the maximum size is exceeded. Failing to write the entry is only
+     * logged, since the cache is not required for the extraction.
+     *
+     * @param entry The entry to write.
+     * @param csv The CSV to store.
+     */
+    private void write(File entry, String csv) {
+        byte[] content = csv.getBytes(StandardCharsets.UTF_8);
+        long oldLength;
+        try {
+            File dir = entry.getParentFile();
+            dir.mkdirs();
+
+            // write to a temporary file first, so that concurrent readers never see a partial entry
+            File tmp = File.createTempFile("entry", ".tmp", dir);
+            Files.write(tmp.toPath(), content);
+            synchronized (this) {
+                // an entry that is replaced (e.g. by two threads missing the same file) must not be counted twice
+                oldLength = entry.length();
+                Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            }
+
+        } catch (IOException e) {
+            LOGGER.logException("Can't write result cache entry " + entry, e);
+            return;
+        }
+
+        if (size.addAndGet(content.length - oldLength) > maxSize) {
+            evict();
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries, until the size of the cache is below the eviction target.
+     */
+    private synchronized void evict() {
+        if (size.get() <= maxSize) {
+            // another thread evicted already
+            return;
+        }
+
+        List<File> entries = listEntries();
+        long[] lastUsed = new long[entries.size()];
+        Integer[] order = new Integer[entries.size()];
+        long totalSize = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            lastUsed[i] = entries.get(i).lastModified();
+            order[i] = i;
+            totalSize += entries.get(i).length();
+        }
+        Arrays.sort(order, (i1, i2) -> Long.compare(lastUsed[i1], lastUsed[i2]));
+
+        long target = (long) (maxSize * EVICTION_TARGET);
+        int evicted = 0;
+        for (int i = 0; i < order.length && totalSize > target; i++) {
+            File entry = entries.get(order[i]);
+            long length = entry.length();
+            if (entry.delete()) {
+                totalSize -= length;
+                evicted++;
+            }
+        }
+
+        size.set(totalSize);
+        LOGGER.logDebug("Evicted " + evicted + " entries from result cache; size is now " + totalSize + " bytes");
+    }
+
+    /**
+     * Lists all entries of the cache.
+     *
+     * @return All entry files in the cache directory.
+     */
+    private List<File> listEntries() {
+        List<File> result = new ArrayList<>();
+        File[] dirs = cacheDir.listFiles(File::isDirectory);
+        if (dirs != null) {
+            for (File dir : dirs) {
+                File[] entries = dir.listFiles((file) -> file.getName().endsWith(ENTRY_SUFFIX));
+                if (entries != null) {
+                    for (File entry : entries) {
+                        result.add(entry);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of files that were answered from the cache.
+     *
+     * @return The number of cache hits.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of files that had to be executed.
+     *
+     * @return The number of cache misses.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the current size of all entries.
+     *
+     * @return The size of the cache in bytes.
+     */
+    public long getSize() {
+        return size.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ResultCache[dir=" + cacheDir + ", size=" + getSize() + ", hits=" + getHits() + ", misses="
+                + getMisses() + "]";
+    }
+
+    /**
+     * Calculates the SHA-256 hash of the content of the given file.
+     *
+     * @param file The file to hash.
+     * @return The hash as a hex string.
+     *
+     * @throws IOException If reading the file fails.
+     */
+    static String hash(File file) throws IOException {
+        MessageDigest digest = createDigest();
+        byte[] buffer = new byte[8192];
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Creates a SHA-256 message digest.
+     *
+     * @return A new message digest.
+     */
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Converts the given bytes into a lower-case hex string.
+     *
+     * @param bytes The bytes to convert.
+     * @return The hex string.
+     */
+    private static String toHex(byte[] bytes) {
+        StringBuilder result = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return result.toString();
+    }
+
+}
@@ -0,0 +1,451 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.ssehub.kernel_haven.util.Logger;
+
+/**
+ * A persistent history of the pilztaker runtimes of each file, used to choose the hang timeout per file and to
+ * quarantine files that hang.
+ * <p>
+ * The timeout of a file is derived from its slowest recent successful run, multiplied by a factor. Files that only
+ * timed out so far get twice their last timeout, so that large files eventually succeed. Files without history get
+ * the 99th percentile of all files in the history multiplied by the factor (or the default timeout, if the history
+ * is too small). All timeouts are clamped to a minimum and a maximum. Files that timed out a number of times in a
+ * row are quarantined: they are not executed anymore, until they are removed from the history.
+ * <p>
+ * The history is a human-readable text file with one line per execution (<code>path;ok;milliseconds</code> or
+ * <code>path;timeout;milliseconds</code>). New executions are appended immediately; the file is compacted when it is
+ * loaded. Deleting the file (or {@link #reset()}) resets the history. Thread-safe.
+ *
+ * @author agent
+ */
+class RuntimeHistory {
+
+    private static final Logger LOGGER = Logger.get();
+
+    private static final String HEADER = "# pilztaker runtime history: file;ok|timeout;milliseconds";
+
+    private static final String OK = "ok";
+
+    private static final String TIMEOUT = "timeout";
+
+    /**
+     * The number of successful runtimes that are kept per file.
+     */
+    private static final int MAX_SAMPLES = 5;
+
+    /**
+     * The minimum number of files with a successful runtime, before their percentile is used for unknown files.
+     */
+    private static final int MIN_FILES_FOR_PERCENTILE = 100;
+
+    private File historyFile;
+
+    private long defaultTimeout;
+
+    private long minTimeout;
+
+    private long maxTimeout;
+
+    private int factor;
+
+    private int quarantineThreshold;
+
+    private Map<String, Entry> entries = new LinkedHashMap<>();
+
+    /**
+     * The timeout for files without history. Computed when the history is loaded.
+     */
+    private long unknownFileTimeout;
+
+    private Writer writer;
+
+    /**
+     * The history of a single file.
+     */
+    private static class Entry {
+
+        /**
+         * The recent successful runtimes in milliseconds, oldest first.
+         */
+        private long[] runtimes = new long[0];
+
+        /**
+         * The number of timeouts since the last successful run.
+         */
+        private int timeouts;
+
+        /**
+         * The timeout of the last execution that timed out.
+         */
+        private long lastTimeout;
+
+        /**
+         * Adds a successful runtime.
+         *
+         * @param millis The runtime in milliseconds.
+         */
+        public void addRuntime(long millis) {
+            if (runtimes.length < MAX_SAMPLES) {
+                runtimes = Arrays.copyOf(runtimes, runtimes.length + 1);
+            } else {
+                System.arraycopy(runtimes, 1, runtimes, 0, runtimes.length - 1);
+            }
+            runtimes[runtimes.length - 1] = millis;
+            timeouts = 0;
+        }
+
+        /**
+         * Adds a timeout.
+         *
+         * @param timeout The timeout in milliseconds that was exceeded.
+         */
+        public void addTimeout(long timeout) {
+            timeouts++;
+            lastTimeout = timeout;
+        }
+
+        /**
+         * Returns the slowest recent successful runtime.
+         *
+         * @return The maximum runtime in milliseconds; -1 if there was no successful run.
+         */
+        public long getMaxRuntime() {
+            long result = -1;
+            for (long runtime : runtimes) {
+                result = Math.max(result, runtime);
+            }
+            return result;
+        }
+
+    }
+
+    /**
+     * Loads the history from the given file, and compacts it.
+     *
+     * @param historyFile The file that stores the history. Created if it doesn't exist.
+     * @param defaultTimeout The timeout in milliseconds for files without history, as long as the history is too
+     *      small to derive one.
+     * @param minTimeout The minimum timeout in milliseconds.
+     * @param maxTimeout The maximum timeout in milliseconds.
+     * @param factor The factor that runtimes are multiplied with to get the timeout.
+     * @param quarantineThreshold The number of timeouts in a row, after which a file is quarantined. 0 disables the
+     *      quarantine.
+     *
+     * @throws IOException If reading or writing the history file fails.
+     */
+    public RuntimeHistory(File historyFile, long defaultTimeout, long minTimeout, long maxTimeout, int factor,
+            int quarantineThreshold) throws IOException {
+
+        if (minTimeout <= 0 || maxTimeout < minTimeout || factor <= 0 || quarantineThreshold < 0) {
+            throw new IllegalArgumentException("Invalid timeout settings: min=" + minTimeout + ", max=" + maxTimeout
+                    + ", factor=" + factor + ", quarantine threshold=" + quarantineThreshold);
+        }
+
+        this.historyFile = historyFile;
+        this.defaultTimeout = defaultTimeout;
+        this.minTimeout = minTimeout;
+        this.maxTimeout = maxTimeout;
+        this.factor = factor;
+        this.quarantineThreshold = quarantineThreshold;
+
+        if (historyFile.isFile()) {
+            load();
+        }
+        compact();
+        unknownFileTimeout = computeUnknownFileTimeout();
+    }
+
+    /**
+     * Reads all lines of the history file into {@link #entries}. Invalid lines are skipped.
+     *
+     * @throws IOException If reading the file fails.
+     */
+    private void load() throws IOException {
+        int invalid = 0;
+        for (String line : Files.readAllLines(historyFile.toPath(), StandardCharsets.UTF_8)) {
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            // the path may contain ';', so split at the last two
+            int second = line.lastIndexOf(';');
+            int first = second > 0 ? line.lastIndexOf(';', second - 1) : -1;
+            if (first <= 0) {
+                invalid++;
+                continue;
+            }
+
+            String path = line.substring(0, first);
+            String result = line.substring(first + 1, second);
+            long millis;
+            try {
+                millis = Long.parseLong(line.substring(second + 1));
+            } catch (NumberFormatException e) {
+                invalid++;
+                continue;
+            }
+
+            Entry entry = entries.computeIfAbsent(path, (key) -> new Entry());
+            if (result.equals(OK)) {
+                entry.addRuntime(millis);
+            } else if (result.equals(TIMEOUT)) {
+                entry.addTimeout(millis);
+            } else {
+                invalid++;
+            }
+        }
+
+        if (invalid > 0) {
+            LOGGER.logWarning("Skipped " + invalid + " invalid lines in runtime history " + historyFile);
+        }
+    }
+
+    /**
+     * Rewrites the history file with only the lines that are still relevant, and opens it for appending.
+     *
+     * @throws IOException If writing the file fails.
+     */
+    private void compact() throws IOException {
+        File tmpFile = new File(historyFile.getPath() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(tmpFile.toPath(), StandardCharsets.UTF_8)) {
+            out.write(HEADER);
+            out.write('\n');
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                for (long runtime : entry.getValue().runtimes) {
+                    writeLine(out, entry.getKey(), OK, runtime);
+                }
+                for (int i = 0; i < entry.getValue().timeouts; i++) {
+                    writeLine(out, entry.getKey(), TIMEOUT, entry.getValue().lastTimeout);
+                }
+            }
+        }
+        Files.move(tmpFile.toPath(), historyFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        writer = new BufferedWriter(Files.newBufferedWriter(historyFile.toPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.APPEND));
+    }
+
+    /**
+     * Writes a single line of the history file.
+     *
+     * @param out The writer to write to.
+     * @param path The path of the file.
+     * @param result {@link #OK} or {@link #TIMEOUT}.
+     * @param millis The runtime or timeout in milliseconds.
+     *
+     * @throws IOException If writing fails.
+     */
+    private static void writeLine(Writer out, String path, String result, long millis) throws IOException {
+        out.write(path);
+        out.write(';');
+        out.write(result);
+        out.write(';');
+        out.write(Long.toString(millis));
+        out.write('\n');
+    }
+
+    /**
+     * Computes the timeout for files without history, based on the 99th percentile of the slowest runtimes of all
+     * files in the history.
+     *
+     * @return The timeout in milliseconds.
+     */
+    private long computeUnknownFileTimeout() {
+        List<Long> maxRuntimes = new ArrayList<>(entries.size());
+        for (Entry entry : entries.values()) {
+            long runtime = entry.getMaxRuntime();
+            if (runtime >= 0) {
+                maxRuntimes.add(runtime);
+            }
+        }
+
+        long result;
+        if (maxRuntimes.size() < MIN_FILES_FOR_PERCENTILE) {
+            result = defaultTimeout;
+        } else {
+            maxRuntimes.sort(null);
+            long p99 = maxRuntimes.get((int) Math.ceil(maxRuntimes.size() * 0.99) - 1);
+            result = clamp(p99 * factor);
+        }
+        return result;
+    }
+
+    /**
+     * Clamps the given timeout to the minimum and maximum timeout.
+     *
+     * @param timeout The timeout in milliseconds.
+     * @return The clamped timeout.
+     */
+    private long clamp(long timeout) {
+        return Math.max(minTimeout, Math.min(maxTimeout, timeout));
+    }
+
+    /**
+     * Returns the timeout for the given file.
+     *
+     * @param file The file, relative to the source tree.
+     * @return The timeout in milliseconds.
+     */
+    public synchronized long getTimeout(File file) {
+        Entry entry = entries.get(file.getPath());
+
+        long result;
+        if (entry == null) {
+            result = unknownFileTimeout;
+        } else if (entry.getMaxRuntime() >= 0) {
+            result = clamp(entry.getMaxRuntime() * factor);
+        } else {
+            // only timeouts so far; give it more time, in case it's just large
+            result = clamp(entry.lastTimeout * 2);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the slowest recent successful runtime of the given file.
+     *
+     * @param file The file, relative to the source tree.
+     * @return The runtime in milliseconds; -1 if the file never ran successfully.
+     */
+    public synchronized long getRuntime(File file) {
+        Entry entry = entries.get(file.getPath());
+        return entry != null ? entry.getMaxRuntime() : -1;
+    }
+
+    /**
+     * Checks whether the given file is quarantined, i.e. timed out too often in a row and should not be executed.
+     *
+     * @param file The file, relative to the source tree.
+     * @return Whether the file is quarantined.
+     */
+    public synchronized boolean isQuarantined(File file) {
+        Entry entry = entries.get(file.getPath());
+        return quarantineThreshold > 0 && entry != null && entry.timeouts >= quarantineThreshold;
+    }
+
+    /**
+     * Returns all quarantined files.
+     *
+     * @return The quarantined files, relative to the source tree.
+     */
+    public synchronized List<File> getQuarantinedFiles() {
+        List<File> result = new ArrayList<>();
+        for (String path : entries.keySet()) {
+            if (isQuarantined(new File(path))) {
+                result.add(new File(path));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of files in this history.
+     *
+     * @return The number of files.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Records the result of a pilztaker execution. Failures that are not caused by the timeout are not recorded.
+     *
+     * @param file The file, relative to the source tree.
+     * @param success Whether the execution was successful.
+     * @param millis The time that the execution took, in milliseconds.
+     * @param timeout The timeout that was used for the execution, in milliseconds.
+     */
+    public void record(File file, boolean success, long millis, long timeout) {
+        if (success) {
+            add(file.getPath(), OK, millis);
+        } else if (millis >= timeout) {
+            add(file.getPath(), TIMEOUT, timeout);
+        }
+    }
+
+    /**
+     * Adds an execution to the history and appends it to the history file.
+     *
+     * @param path The path of the file, relative to the source tree.
+     * @param result {@link #OK} or {@link #TIMEOUT}.
+     * @param millis The runtime or timeout in milliseconds.
+     */
+    private synchronized void add(String path, String result, long millis) {
+        Entry entry = entries.computeIfAbsent(path, (key) -> new Entry());
+        if (result.equals(OK)) {
+            entry.addRuntime(millis);
+        } else {
+            entry.addTimeout(millis);
+            if (entry.timeouts == quarantineThreshold) {
+                LOGGER.logWarning(path + " timed out " + entry.timeouts + " times in a row; it is quarantined and "
+                        + "won't be executed anymore until the runtime history " + historyFile + " is reset");
+            }
+        }
+
+        try {
+            writeLine(writer, path, result, millis);
+            // flush each line, since the extraction may be terminated at any time
+            writer.flush();
+        } catch (IOException e) {
+            LOGGER.logException("Can't write runtime history " + historyFile, e);
+        }
+    }
+
+    /**
+     * Discards the whole history, including the stored file.
+     *
+     * @throws IOException If clearing the history file fails.
+     */
+    public synchronized void reset() throws IOException {
+        entries.clear();
+        writer.close();
+        compact();
+        unknownFileTimeout = defaultTimeout;
+    }
+
+    /**
+     * Closes the history file. No more executions can be recorded afterwards.
+     *
+     * @throws IOException If closing the file fails.
+     */
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RuntimeHistory[files=" + entries.size() + ", quarantined=" + getQuarantinedFiles().size()
+                + ", unknownFileTimeout=" + unknownFileTimeout + " ms]";
+    }
+
+}
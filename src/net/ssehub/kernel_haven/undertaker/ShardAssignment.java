@@ -0,0 +1,185 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Splits the source files of an extraction into shards of about the same predicted runtime, e.g. to distribute one
+ * extraction across several machines. The files are assigned in the order of their predicted cost, largest first,
+ * each to the shard with the lowest total so far (longest processing time first).
+ * <p>
+ * The assignment is deterministic: every machine that computes it from the same list of files and the same costs
+ * gets the same shards, independent of the order of the list. Thus, the costs must only depend on the source tree
+ * itself (see {@link #create(File, SourceTreeIndex, int, int)}), not on anything that differs between machines,
+ * like the runtime history. Thread-safe after construction.
+ *
+ * @author agent
+ */
+class ShardAssignment {
+
+    private int shardIndex;
+
+    private int shardCount;
+
+    /**
+     * The files of this shard; relative to the source tree.
+     */
+    private Set<File> files = new HashSet<>();
+
+    /**
+     * The predicted total runtime in milliseconds of each shard.
+     */
+    private long[] loads;
+
+    /**
+     * Assigns the given files to the shards.
+     *
+     * @param allFiles All files of the extraction; relative to the source tree.
+     * @param costs The predicted runtime in milliseconds of each file, in the order of the list.
+     * @param shardIndex The index of the shard that this assignment is for; from 0 to <code>shardCount - 1</code>.
+     * @param shardCount The number of shards. Must be at least 1.
+     */
+    public ShardAssignment(List<File> allFiles, long[] costs, int shardIndex, int shardCount) {
+        this.shardIndex = shardIndex;
+        this.shardCount = shardCount;
+        this.loads = new long[shardCount];
+
+        int[] shards = assign(allFiles, costs, loads);
+        for (int i = 0; i < shards.length; i++) {
+            if (shards[i] == shardIndex) {
+                files.add(allFiles.get(i));
+            }
+        }
+    }
+
+    /**
+     * Assigns the given files to the shards, largest first, each to the shard with the lowest total so far. Files
+     * with equal costs are ordered by their path and equal totals by the shard index, so that the result does not
+     * depend on the order of the list.
+     *
+     * @param files The files to assign; relative to the source tree.
+     * @param costs The predicted runtime in milliseconds of each file, in the order of the list.
+     * @param loads The array to store the predicted total runtime of each shard in; its length is the number of
+     *      shards.
+     * @return The shard of each file, in the order of the list.
+     */
+    static int[] assign(List<File> files, long[] costs, long[] loads) {
+        Integer[] order = new Integer[files.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (i1, i2) -> {
+            int result = Long.compare(costs[i2], costs[i1]);
+            if (result == 0) {
+                result = files.get(i1).getPath().compareTo(files.get(i2).getPath());
+            }
+            return result;
+        });
+
+        // a linear search for the lowest total is fast enough for the few shards
+        int[] result = new int[files.size()];
+        for (int file : order) {
+            int lowest = 0;
+            for (int shard = 1; shard < loads.length; shard++) {
+                if (loads[shard] < loads[lowest]) {
+                    lowest = shard;
+                }
+            }
+            result[file] = lowest;
+            loads[lowest] += costs[file];
+        }
+        return result;
+    }
+
+    /**
+     * Creates the assignment of all files in the given index. The costs are predicted from the size and the number
+     * of <code>#if</code> directives of each file only (see {@link CostEstimator}), so that all machines with the
+     * same source tree get the same assignment.
+     *
+     * @param sourceDir The path to the source tree.
+     * @param index The index of the files to extract.
+     * @param shardIndex The index of the shard that this assignment is for; from 0 to <code>shardCount - 1</code>.
+     * @param shardCount The number of shards. Must be at least 1.
+     * @return The assignment.
+     */
+    public static ShardAssignment create(File sourceDir, SourceTreeIndex index, int shardIndex, int shardCount) {
+        List<File> allFiles = index.getFiles();
+        long[] costs = new CostEstimator(sourceDir, null, index).estimate(allFiles);
+        return new ShardAssignment(allFiles, costs, shardIndex, shardCount);
+    }
+
+    /**
+     * Checks whether the given file belongs to this shard.
+     *
+     * @param file The file to check; relative to the source tree.
+     * @return Whether the file is part of this shard.
+     */
+    public boolean contains(File file) {
+        return files.contains(file);
+    }
+
+    /**
+     * Returns the number of files of this shard.
+     *
+     * @return The number of files.
+     */
+    public int size() {
+        return files.size();
+    }
+
+    /**
+     * Returns the index of this shard.
+     *
+     * @return The shard index; from 0 to <code>getShardCount() - 1</code>.
+     */
+    public int getShardIndex() {
+        return shardIndex;
+    }
+
+    /**
+     * Returns the total number of shards.
+     *
+     * @return The number of shards.
+     */
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * Returns the predicted total runtime of a shard.
+     *
+     * @param shard The index of the shard.
+     * @return The predicted runtime in milliseconds.
+     */
+    public long getLoad(int shard) {
+        return loads[shard];
+    }
+
+    @Override
+    public String toString() {
+        long min = Arrays.stream(loads).min().orElse(0);
+        long max = Arrays.stream(loads).max().orElse(0);
+        return String.format("Shard %d of %d: %d files, predicted runtime %.1f s (all shards: %.1f s to %.1f s)",
+                shardIndex, shardCount, files.size(), loads[shardIndex] / 1000.0, min / 1000.0, max / 1000.0);
+    }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import net.ssehub.kernel_haven.util.FormatException;
+
+/**
+ * Combines the shard files of a sharded extraction (see {@link ShardWriter}) into a single shard file with one index
+ * over all source files. The records are copied without decoding them. The merged file is a shard file of shard 0
+ * of 1, so it is read with a {@link ShardReader} like any other shard file. The source files that failed in any of
+ * the shards are recorded as failed in the merged file, too.
+ * <p>
+ * Can be run from the command line: <code>ShardMerger &lt;output file&gt; &lt;shard file&gt;...</code>
+ *
+ * @author agent
+ */
+public class ShardMerger {
+
+    /**
+     * Don't allow any instances.
+     */
+    private ShardMerger() {
+    }
+
+    /**
+     * Merges the given shard files. All shard files must belong to the same extraction (i.e. have the same shard
+     * count) and each source file must only be contained in one of them. A warning is returned for each missing
+     * shard and for each source file that failed in its shard.
+     *
+     * @param output The merged file to create. Overwritten, if it exists.
+     * @param shards The shard files to merge.
+     * @return Warnings about missing shards and failed source files; empty if all source files of all shards were
+     *      merged.
+     *
+     * @throws IOException If reading or writing a file fails.
+     * @throws FormatException If a shard file is invalid, the shard files belong to different extractions, or a
+     *      source file is contained in several shard files.
+     */
+    public static List<String> merge(File output, List<File> shards) throws IOException, FormatException {
+        List<ShardReader> readers = new ArrayList<>(shards.size());
+        List<String> result = new ArrayList<>();
+        try {
+            BitSet seenShards = new BitSet();
+            for (File shard : shards) {
+                ShardReader reader = new ShardReader(shard);
+                readers.add(reader);
+                if (reader.getShardCount() != readers.get(0).getShardCount()) {
+                    throw new FormatException(shard + " has " + reader.getShardCount() + " shards; "
+                            + shards.get(0) + " has " + readers.get(0).getShardCount());
+                }
+                if (seenShards.get(reader.getShardIndex())) {
+                    throw new FormatException("Shard " + reader.getShardIndex() + " is given twice");
+                }
+                seenShards.set(reader.getShardIndex());
+            }
+            if (!readers.isEmpty()) {
+                for (int i = seenShards.nextClearBit(0); i < readers.get(0).getShardCount();
+                        i = seenShards.nextClearBit(i + 1)) {
+                    result.add("Shard " + i + " of " + readers.get(0).getShardCount() + " is missing");
+                }
+            }
+
+            ShardWriter writer = new ShardWriter(output, 0, 1);
+            boolean complete = false;
+            try {
+                for (ShardReader reader : readers) {
+                    for (File file : reader.getFiles()) {
+                        try {
+                            writer.writeRecord(file.getPath(), reader.readRecord(file));
+                        } catch (IllegalArgumentException e) {
+                            throw new FormatException(file.getPath() + " is contained in several shard files");
+                        }
+                    }
+                    for (File file : reader.getFailedFiles()) {
+                        try {
+                            writer.writeFailure(file.getPath());
+                        } catch (IllegalArgumentException e) {
+                            throw new FormatException(file.getPath() + " is contained in several shard files");
+                        }
+                        result.add("Extraction of " + file.getPath() + " failed in shard " + reader.getShardIndex()
+                                + " of " + reader.getShardCount());
+                    }
+                }
+                complete = true;
+            } finally {
+                // a failed merge must not leave a complete-looking output file
+                if (complete) {
+                    writer.close();
+                } else {
+                    writer.discard();
+                }
+            }
+
+        } finally {
+            for (ShardReader reader : readers) {
+                reader.close();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Merges shard files from the command line.
+     *
+     * @param args The output file, followed by the shard files to merge.
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: ShardMerger <output file> <shard file>...");
+            System.exit(2);
+        }
+
+        List<File> shards = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            shards.add(new File(args[i]));
+        }
+        File output = new File(args[0]);
+
+        try {
+            for (String warning : merge(output, shards)) {
+                System.err.println("Warning: " + warning);
+            }
+            try (ShardReader merged = new ShardReader(output)) {
+                System.out.println("Merged " + shards.size() + " shard files into " + output + " with "
+                        + merged.size() + " source files (" + merged.getFailedFiles().size() + " failed)");
+            }
+        } catch (IOException | FormatException e) {
+            System.err.println("Merging failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+}
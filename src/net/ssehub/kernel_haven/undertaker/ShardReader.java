@@ -0,0 +1,306 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.ssehub.kernel_haven.code_model.CodeBlock;
+import net.ssehub.kernel_haven.code_model.SourceFile;
+import net.ssehub.kernel_haven.util.FormatException;
+import net.ssehub.kernel_haven.util.logic.Formula;
+import net.ssehub.kernel_haven.util.logic.Variable;
+
+/**
+ * Reads a shard file written by a {@link ShardWriter}. Only the header and the index are read when the file is
+ * opened; the record of a source file is read (by seeking to it) when it is requested. Used to access the results of
+ * a sharded extraction after the shards were combined by the {@link ShardMerger}. Thread-safe.
+ *
+ * @author agent
+ */
+public class ShardReader implements Closeable {
+
+    private File file;
+
+    private RandomAccessFile in;
+
+    private int shardIndex;
+
+    private int shardCount;
+
+    /**
+     * The offset and the length of each record, by the path of its source file; sorted by path.
+     */
+    private Map<String, long[]> index = new LinkedHashMap<>();
+
+    /**
+     * The paths of the source files that could not be extracted; sorted by path.
+     */
+    private List<File> failures = new ArrayList<>();
+
+    /**
+     * Opens a shard file and reads its index.
+     *
+     * @param file The shard file to read.
+     *
+     * @throws IOException If reading the file fails.
+     * @throws FormatException If the file is not a complete shard file.
+     */
+    public ShardReader(File file) throws IOException, FormatException {
+        this.file = file;
+        this.in = new RandomAccessFile(file, "r");
+        try {
+            readIndex();
+        } catch (IOException | FormatException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the header, the trailer and the index.
+     *
+     * @throws IOException If reading the file fails.
+     * @throws FormatException If the file is not a complete shard file.
+     */
+    private void readIndex() throws IOException, FormatException {
+        long length = in.length();
+        if (length < ShardWriter.HEADER_SIZE + 8 + ShardWriter.TRAILER_SIZE || in.readInt() != ShardWriter.MAGIC) {
+            throw new FormatException(file + " is not a shard file");
+        }
+        int version = in.readInt();
+        if (version != ShardWriter.VERSION) {
+            throw new FormatException("Unsupported version " + version + " of shard file " + file);
+        }
+        shardIndex = in.readInt();
+        shardCount = in.readInt();
+
+        in.seek(length - ShardWriter.TRAILER_SIZE);
+        long indexOffset = in.readLong();
+        if (in.readInt() != ShardWriter.MAGIC || indexOffset < ShardWriter.HEADER_SIZE
+                || indexOffset > length - ShardWriter.TRAILER_SIZE - 8) {
+            throw new FormatException("Shard file " + file + " is incomplete");
+        }
+
+        in.seek(indexOffset);
+        int numRecords = in.readInt();
+        for (int i = 0; i < numRecords; i++) {
+            String path = in.readUTF();
+            long offset = in.readLong();
+            int recordLength = in.readInt();
+            if (offset < ShardWriter.HEADER_SIZE || recordLength < 0 || offset + recordLength > indexOffset) {
+                throw new FormatException("Invalid index entry for " + path + " in shard file " + file);
+            }
+            index.put(path, new long[] {offset, recordLength});
+        }
+
+        int numFailures = in.readInt();
+        for (int i = 0; i < numFailures; i++) {
+            failures.add(new File(in.readUTF()));
+        }
+        if (in.getFilePointer() != length - ShardWriter.TRAILER_SIZE) {
+            throw new FormatException("Invalid index in shard file " + file);
+        }
+    }
+
+    /**
+     * Returns the index of the shard that this file was written for.
+     *
+     * @return The shard index.
+     */
+    public int getShardIndex() {
+        return shardIndex;
+    }
+
+    /**
+     * Returns the number of shards of the extraction that this file was written for.
+     *
+     * @return The shard count.
+     */
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * Returns the paths of all source files in this shard file.
+     *
+     * @return The paths, relative to the source tree, sorted by path.
+     */
+    public List<File> getFiles() {
+        List<File> result = new ArrayList<>(index.size());
+        for (String path : index.keySet()) {
+            result.add(new File(path));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the paths of the source files of this shard that could not be extracted. They are not contained in
+     * this shard file.
+     *
+     * @return The paths, relative to the source tree, sorted by path.
+     */
+    public List<File> getFailedFiles() {
+        return Collections.unmodifiableList(failures);
+    }
+
+    /**
+     * Checks whether this shard file contains the given source file.
+     *
+     * @param path The path of the source file, relative to the source tree.
+     * @return Whether the source file is contained.
+     */
+    public boolean contains(File path) {
+        return index.containsKey(path.getPath());
+    }
+
+    /**
+     * Returns the number of source files in this shard file.
+     *
+     * @return The number of source files.
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Reads the encoded record of a source file.
+     *
+     * @param path The path of the source file, relative to the source tree.
+     * @return The encoded record; <code>null</code> if the source file is not contained.
+     *
+     * @throws IOException If reading the file fails.
+     */
+    synchronized byte[] readRecord(File path) throws IOException {
+        long[] entry = index.get(path.getPath());
+        byte[] result = null;
+        if (entry != null) {
+            result = new byte[(int) entry[1]];
+            in.seek(entry[0]);
+            in.readFully(result);
+        }
+        return result;
+    }
+
+    /**
+     * Reads a source file.
+     *
+     * @param path The path of the source file, relative to the source tree.
+     * @return The source file; <code>null</code> if it is not contained.
+     *
+     * @throws IOException If reading the file fails.
+     * @throws FormatException If the record of the source file is invalid.
+     */
+    public SourceFile<CodeBlock> read(File path) throws IOException, FormatException {
+        byte[] record = readRecord(path);
+        return record != null ? decode(record, path) : null;
+    }
+
+    /**
+     * Decodes the record of a source file.
+     *
+     * @param record The encoded record.
+     * @param path The expected path of the source file, relative to the source tree.
+     * @return The decoded source file.
+     *
+     * @throws FormatException If the record is invalid.
+     */
+    static SourceFile<CodeBlock> decode(byte[] record, File path) throws FormatException {
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(record));
+        SourceFile<CodeBlock> result;
+        try {
+            String recordPath = data.readUTF();
+            if (!recordPath.equals(path.getPath())) {
+                throw new FormatException("Found record of " + recordPath + "; expected " + path.getPath());
+            }
+            result = new SourceFile<>(path);
+
+            Variable[] variables = new Variable[data.readInt()];
+            for (int i = 0; i < variables.length; i++) {
+                variables[i] = new Variable(data.readUTF());
+            }
+
+            Formula[] formulas = new Formula[data.readInt()];
+            FormulaCodec.Resolver resolver = new FormulaCodec.Resolver() {
+
+                @Override
+                public Formula getFormula(int id) {
+                    return formulas[id];
+                }
+
+                @Override
+                public Variable getVariable(int index) throws FormatException {
+                    if (index < 0 || index >= variables.length) {
+                        throw new FormatException("Invalid variable " + index + " in record of " + path.getPath());
+                    }
+                    return variables[index];
+                }
+
+            };
+            for (int i = 0; i < formulas.length; i++) {
+                formulas[i] = FormulaCodec.decode(i, data.readInt(), data.readInt(), data.readInt(), resolver);
+            }
+
+            CodeBlock[] blocks = new CodeBlock[data.readInt()];
+            for (int i = 0; i < blocks.length; i++) {
+                int lineStart = data.readInt();
+                int lineEnd = data.readInt();
+                int parent = data.readInt();
+                int condition = data.readInt();
+                int pc = data.readInt();
+                if (parent < -1 || parent >= i || condition < -1 || condition >= formulas.length || pc < 0
+                        || pc >= formulas.length) {
+                    throw new FormatException("Invalid block " + i + " in record of " + path.getPath());
+                }
+
+                blocks[i] = new CodeBlock(lineStart, lineEnd, path, condition != -1 ? formulas[condition] : null,
+                        formulas[pc]);
+                if (parent == -1) {
+                    result.addElement(blocks[i]);
+                } else {
+                    blocks[parent].addNestedElement(blocks[i]);
+                }
+            }
+
+        } catch (IOException e) {
+            // the only IOException of a byte array is the end of the array
+            throw new FormatException("Truncated record of " + path.getPath());
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        in.close();
+    }
+
+    @Override
+    public String toString() {
+        return "ShardReader[" + file + ", shard " + shardIndex + " of " + shardCount + ", " + index.size()
+                + " files]";
+    }
+
+}
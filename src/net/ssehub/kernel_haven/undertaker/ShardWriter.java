@@ -0,0 +1,337 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import net.ssehub.kernel_haven.code_model.CodeBlock;
+import net.ssehub.kernel_haven.code_model.SourceFile;
+
+/**
+ * Writes the {@link SourceFile}s of one shard of an extraction to a shard file, which can be read with a
+ * {@link ShardReader} and combined with the files of the other shards by the {@link ShardMerger}. All integers are
+ * signed and big-endian, strings are written like {@link DataOutputStream#writeUTF(String)}. A shard file consists
+ * of:
+ * <ol>
+ *     <li>The header: {@link #MAGIC}, {@link #VERSION}, the shard index and the shard count (4 byte integers each).
+ *         </li>
+ *     <li>One record per source file, in the order in which they were written. A record is self-contained:
+ *         <ul>
+ *             <li>The path of the source file, relative to the source tree.</li>
+ *             <li>The variable table: the number of variables and their names.</li>
+ *             <li>The formula table: the number of formulas, followed by {@link FormulaCodec#ENTRY_INTS} integers
+ *                 per formula, operands before the formulas that use them (see {@link FormulaCodec}).</li>
+ *             <li>The number of blocks and the blocks, in pre-order: the start line, the end line, the index of the
+ *                 parent block (-1 for top-level blocks), the index of the condition in the formula table (-1 for no
+ *                 condition) and the index of the presence condition.</li>
+ *         </ul>
+ *     </li>
+ *     <li>The index, sorted by path: the number of records, and for each record its path, its offset in the file
+ *         (8 byte integer) and its length (4 byte integer).</li>
+ *     <li>The failed source files of the shard (see {@link #fail(File)}), sorted by path: their number and their
+ *         paths.</li>
+ *     <li>The trailer: the offset of the index (8 byte integer) and {@link #MAGIC} again.</li>
+ * </ol>
+ * Thus, a reader finds the index at the end of the file and can seek to the record of any source file. The file is
+ * written with a temporary name and only renamed to its final name by {@link #close()}, so a shard file with the
+ * final name is always complete. Thread-safe.
+ *
+ * @author agent
+ */
+class ShardWriter implements Closeable {
+
+    /**
+     * The magic number at the start and the end of each shard file: <code>KHSH</code> in ASCII.
+     */
+    static final int MAGIC = 0x4B485348;
+
+    static final int VERSION = 3;
+
+    /**
+     * The size of the header at the start of the file.
+     */
+    static final int HEADER_SIZE = 4 * 4;
+
+    /**
+     * The size of the trailer at the end of the file.
+     */
+    static final int TRAILER_SIZE = 8 + 4;
+
+    private File file;
+
+    private File tmpFile;
+
+    private OutputStream out;
+
+    /**
+     * The current position in the file, i.e. the offset of the next record.
+     */
+    private long position;
+
+    /**
+     * The offset and the length of each written record, by the path of its source file.
+     */
+    private Map<String, long[]> index = new TreeMap<>();
+
+    /**
+     * The paths of the source files that could not be extracted.
+     */
+    private Set<String> failures = new TreeSet<>();
+
+    /**
+     * Creates a shard file. It is written with a temporary name until it is closed.
+     *
+     * @param file The shard file to create. Overwritten, if it exists.
+     * @param shardIndex The index of the shard.
+     * @param shardCount The number of shards.
+     *
+     * @throws IOException If creating the file fails.
+     */
+    public ShardWriter(File file, int shardIndex, int shardCount) throws IOException {
+        this.file = file;
+        this.tmpFile = new File(file.getPath() + ".tmp");
+        this.out = new BufferedOutputStream(Files.newOutputStream(tmpFile.toPath()));
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream(HEADER_SIZE);
+        DataOutputStream data = new DataOutputStream(header);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(shardIndex);
+        data.writeInt(shardCount);
+        out.write(header.toByteArray());
+        position = HEADER_SIZE;
+    }
+
+    /**
+     * Writes the record of a source file. The record is encoded on the calling thread; only appending it to the
+     * file is serialized.
+     *
+     * @param sourceFile The source file to write.
+     *
+     * @throws IOException If writing fails, or this writer is already closed.
+     * @throws IllegalArgumentException If a source file with the same path was already written.
+     */
+    public void write(SourceFile<CodeBlock> sourceFile) throws IOException {
+        writeRecord(sourceFile.getPath().getPath(), encode(sourceFile));
+    }
+
+    /**
+     * Records that a source file of this shard could not be extracted, so that the shard file states which files
+     * are missing from it.
+     *
+     * @param path The path of the source file, relative to the source tree.
+     *
+     * @throws IOException If this writer is already closed.
+     * @throws IllegalArgumentException If the source file was already written or recorded as failed.
+     */
+    public void fail(File path) throws IOException {
+        writeFailure(path.getPath());
+    }
+
+    /**
+     * Records the path of a source file that could not be extracted.
+     *
+     * @param path The path of the source file.
+     *
+     * @throws IOException If this writer is already closed.
+     * @throws IllegalArgumentException If the source file was already written or recorded as failed.
+     */
+    synchronized void writeFailure(String path) throws IOException {
+        if (out == null) {
+            throw new IOException("Shard file " + file + " is already closed");
+        }
+        if (index.containsKey(path) || !failures.add(path)) {
+            throw new IllegalArgumentException("Source file " + path + " was already written to " + file);
+        }
+    }
+
+    /**
+     * Appends an already encoded record to the file.
+     *
+     * @param path The path of the source file of the record.
+     * @param record The encoded record.
+     *
+     * @throws IOException If writing fails, or this writer is already closed.
+     * @throws IllegalArgumentException If a source file with the same path was already written.
+     */
+    synchronized void writeRecord(String path, byte[] record) throws IOException {
+        if (out == null) {
+            throw new IOException("Shard file " + file + " is already closed");
+        }
+        if (index.containsKey(path) || failures.contains(path)) {
+            throw new IllegalArgumentException("Source file " + path + " was already written to " + file);
+        }
+        out.write(record);
+        index.put(path, new long[] {position, record.length});
+        position += record.length;
+    }
+
+    /**
+     * Encodes the record of a source file.
+     *
+     * @param sourceFile The source file to encode.
+     * @return The encoded record.
+     */
+    static byte[] encode(SourceFile<CodeBlock> sourceFile) {
+        FormulaCodec formulas = new FormulaCodec();
+        ByteArrayOutputStream blockBytes = new ByteArrayOutputStream();
+        DataOutputStream blockData = new DataOutputStream(blockBytes);
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try {
+            // the blocks in pre-order, with the index of their parent
+            List<CodeBlock> blocks = new ArrayList<>();
+            List<Integer> parents = new ArrayList<>();
+            for (CodeBlock block : sourceFile) {
+                collectBlocks(block, -1, blocks, parents);
+            }
+
+            for (int i = 0; i < blocks.size(); i++) {
+                CodeBlock block = blocks.get(i);
+                int condition = block.getCondition() != null ? formulas.add(block.getCondition()) : -1;
+                int pc = formulas.add(block.getPresenceCondition());
+                blockData.writeInt(block.getLineStart());
+                blockData.writeInt(block.getLineEnd());
+                blockData.writeInt(parents.get(i));
+                blockData.writeInt(condition);
+                blockData.writeInt(pc);
+            }
+
+            DataOutputStream data = new DataOutputStream(result);
+            data.writeUTF(sourceFile.getPath().getPath());
+            data.writeInt(formulas.getVariableNames().size());
+            for (String name : formulas.getVariableNames()) {
+                data.writeUTF(name);
+            }
+            formulas.writeTo(data);
+            data.writeInt(blocks.size());
+            blockBytes.writeTo(data);
+
+        } catch (IOException e) {
+            // can't happen, since we write to a byte array
+            throw new IllegalStateException(e);
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * Adds the given block and all of its nested blocks to the given lists, in pre-order.
+     *
+     * @param block The block to add.
+     * @param parent The index of the parent of the block in the list; -1 for top-level blocks.
+     * @param blocks The list of blocks to add to.
+     * @param parents The list of parent indices to add to.
+     */
+    static void collectBlocks(CodeBlock block, int parent, List<CodeBlock> blocks, List<Integer> parents) {
+        int index = blocks.size();
+        blocks.add(block);
+        parents.add(parent);
+        for (CodeBlock nested : block) {
+            collectBlocks(nested, index, blocks, parents);
+        }
+    }
+
+    /**
+     * Returns the number of source files recorded as failed so far.
+     *
+     * @return The number of failed source files.
+     */
+    public synchronized int getFailureCount() {
+        return failures.size();
+    }
+
+    /**
+     * Returns the number of records written so far.
+     *
+     * @return The number of records.
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Writes the index and the trailer, and renames the file to its final name. Does nothing if this writer is
+     * already closed.
+     *
+     * @throws IOException If writing or renaming fails.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (out == null) {
+            return;
+        }
+
+        try {
+            DataOutputStream data = new DataOutputStream(out);
+            long indexOffset = position;
+            data.writeInt(index.size());
+            for (Map.Entry<String, long[]> entry : index.entrySet()) {
+                data.writeUTF(entry.getKey());
+                data.writeLong(entry.getValue()[0]);
+                data.writeInt((int) entry.getValue()[1]);
+            }
+            data.writeInt(failures.size());
+            for (String path : failures) {
+                data.writeUTF(path);
+            }
+            data.writeLong(indexOffset);
+            data.writeInt(MAGIC);
+            data.flush();
+        } finally {
+            out.close();
+            out = null;
+        }
+
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Closes this writer without completing the file: the temporary file is deleted, so no file with the final name
+     * is created. Does nothing if this writer is already closed.
+     */
+    public synchronized void discard() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // the file is deleted anyway
+            }
+            out = null;
+            tmpFile.delete();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ShardWriter[" + file + "]";
+    }
+
+}
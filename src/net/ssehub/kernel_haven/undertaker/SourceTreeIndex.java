@@ -0,0 +1,203 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * A snapshot of the source files in the source tree, with their size and modification time. Built once by walking
+ * the source tree in parallel (the sub-directories of each given directory are walked concurrently), so that the
+ * files don't need to be checked on the file system again for each execution. Thread-safe after construction.
+ *
+ * @author agent
+ */
+class SourceTreeIndex {
+
+    private File sourceDir;
+
+    /**
+     * The indexed files, by their path relative to the source tree (as returned by {@link File#getPath()}).
+     */
+    private Map<String, Entry> files = new ConcurrentHashMap<>();
+
+    /**
+     * The size and modification time of an indexed file.
+     */
+    private static final class Entry {
+
+        private long size;
+
+        private long lastModified;
+
+        /**
+         * Creates an entry.
+         *
+         * @param size The size of the file in bytes.
+         * @param lastModified The modification time of the file in milliseconds since the epoch.
+         */
+        public Entry(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+    }
+
+    /**
+     * Walks the given files and directories of the source tree and indexes all regular files in them.
+     *
+     * @param sourceDir The path to the source tree.
+     * @param filesToIndex The files or directories to index; relative to the source tree. An empty string indexes
+     *      the whole source tree.
+     * @param fileRegex The regular expression that the relative path of the files must match.
+     */
+    public SourceTreeIndex(File sourceDir, List<String> filesToIndex, Pattern fileRegex) {
+        this.sourceDir = sourceDir;
+        Path root = sourceDir.toPath();
+
+        List<Path> toWalk = new ArrayList<>();
+        for (String relative : filesToIndex) {
+            Path path = root.resolve(relative);
+            if (Files.isDirectory(path)) {
+                // walk the children separately, so that the sub-directories can be walked in parallel
+                try (DirectoryStream<Path> children = Files.newDirectoryStream(path)) {
+                    for (Path child : children) {
+                        toWalk.add(child);
+                    }
+                } catch (IOException e) {
+                    // unreadable directory; nothing to index
+                }
+            } else {
+                toWalk.add(path);
+            }
+        }
+
+        toWalk.parallelStream().forEach((path) -> walk(root, path, fileRegex));
+    }
+
+    /**
+     * Indexes all regular files in the given file or directory.
+     *
+     * @param root The path to the source tree.
+     * @param start The file or directory to walk.
+     * @param fileRegex The regular expression that the relative path of the files must match.
+     */
+    private void walk(Path root, Path start, Pattern fileRegex) {
+        try {
+            Files.walkFileTree(start, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+                    new SimpleFileVisitor<Path>() {
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                        if (attributes.isRegularFile()) {
+                            String relative = root.relativize(file).toString();
+                            if (fileRegex.matcher(relative).matches()) {
+                                files.put(relative, new Entry(attributes.size(),
+                                        attributes.lastModifiedTime().toMillis()));
+                            }
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                        // unreadable files and symbolic link loops are not indexed
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                });
+        } catch (IOException e) {
+            // can't happen, since visitFileFailed() never throws
+        }
+    }
+
+    /**
+     * Checks whether the given file was found in the source tree.
+     *
+     * @param file The file; relative to the source tree.
+     * @return Whether the file is indexed.
+     */
+    public boolean contains(File file) {
+        return files.containsKey(file.getPath());
+    }
+
+    /**
+     * Returns the size of the given file at the time of indexing.
+     *
+     * @param file The file; relative to the source tree.
+     * @return The size in bytes; -1 if the file is not indexed.
+     */
+    public long getSize(File file) {
+        Entry entry = files.get(file.getPath());
+        return entry != null ? entry.size : -1;
+    }
+
+    /**
+     * Returns the modification time of the given file at the time of indexing.
+     *
+     * @param file The file; relative to the source tree.
+     * @return The modification time in milliseconds since the epoch; -1 if the file is not indexed.
+     */
+    public long getLastModified(File file) {
+        Entry entry = files.get(file.getPath());
+        return entry != null ? entry.lastModified : -1;
+    }
+
+    /**
+     * Returns all indexed files, sorted by their path.
+     *
+     * @return The indexed files; relative to the source tree.
+     */
+    public List<File> getFiles() {
+        List<String> paths = new ArrayList<>(files.keySet());
+        paths.sort(null);
+
+        List<File> result = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            result.add(new File(path));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of indexed files.
+     *
+     * @return The number of files.
+     */
+    public int size() {
+        return files.size();
+    }
+
+    @Override
+    public String toString() {
+        return "SourceTreeIndex[" + sourceDir.getPath() + ", " + files.size() + " files]";
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Collects the last bytes written to a stream in a fixed-size ring buffer; older bytes are overwritten. Used for the
+ * standard error of pilztaker, which is only needed for debug logging: a process that writes a lot of errors can't
+ * fill the heap, and the bytes are only decoded when {@link #toString()} is called. The buffer is allocated on the
+ * first write. Thread-safe.
+ *
+ * @author agent
+ */
+class StderrRingBuffer extends OutputStream {
+
+    /**
+     * The default capacity in bytes.
+     */
+    static final int DEFAULT_CAPACITY = 16 * 1024;
+
+    private int capacity;
+
+    private byte[] buffer;
+
+    /**
+     * The total number of bytes written so far. The next byte is written to <code>total % capacity</code>.
+     */
+    private long total;
+
+    /**
+     * Creates a ring buffer with the {@link #DEFAULT_CAPACITY}.
+     */
+    public StderrRingBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a ring buffer.
+     *
+     * @param capacity The number of bytes that are kept.
+     */
+    public StderrRingBuffer(int capacity) {
+        this.capacity = capacity;
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        if (buffer == null) {
+            buffer = new byte[capacity];
+        }
+        buffer[(int) (total % capacity)] = (byte) b;
+        total++;
+    }
+
+    @Override
+    public synchronized void write(byte[] bytes, int offset, int length) {
+        if (buffer == null) {
+            buffer = new byte[capacity];
+        }
+        // only the last bytes of a long write are kept
+        int skip = Math.max(length - capacity, 0);
+        total += skip;
+        int remaining = length - skip;
+        int from = offset + skip;
+        while (remaining > 0) {
+            int position = (int) (total % capacity);
+            int chunk = Math.min(remaining, capacity - position);
+            System.arraycopy(bytes, from, buffer, position, chunk);
+            total += chunk;
+            from += chunk;
+            remaining -= chunk;
+        }
+    }
+
+    /**
+     * Checks whether nothing was written.
+     *
+     * @return Whether the stream is empty.
+     */
+    public synchronized boolean isEmpty() {
+        return total == 0;
+    }
+
+    /**
+     * Returns the number of bytes that were written, including the overwritten ones.
+     *
+     * @return The total number of bytes.
+     */
+    public synchronized long getTotalBytes() {
+        return total;
+    }
+
+    /**
+     * Decodes the kept bytes as UTF-8. If bytes were overwritten, a note with their number is prepended.
+     *
+     * @return The last written bytes as a string.
+     */
+    @Override
+    public synchronized String toString() {
+        String result;
+        if (total <= capacity) {
+            result = total == 0 ? "" : new String(buffer, 0, (int) total, StandardCharsets.UTF_8);
+        } else {
+            int start = (int) (total % capacity);
+            byte[] ordered = new byte[capacity];
+            System.arraycopy(buffer, start, ordered, 0, capacity - start);
+            System.arraycopy(buffer, 0, ordered, capacity - start, start);
+            result = "[" + (total - capacity) + " bytes omitted]\n" + new String(ordered, StandardCharsets.UTF_8);
+        }
+        return result;
+    }
+
+}
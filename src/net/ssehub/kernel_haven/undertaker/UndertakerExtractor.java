@@ -18,6 +18,9 @@ package net.ssehub.kernel_haven.undertaker;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.ssehub.kernel_haven.SetUpException;
 import net.ssehub.kernel_haven.code_model.AbstractCodeModelExtractor;
@@ -25,11 +28,14 @@ import net.ssehub.kernel_haven.code_model.CodeBlock;
 import net.ssehub.kernel_haven.code_model.SourceFile;
 import net.ssehub.kernel_haven.config.Configuration;
 import net.ssehub.kernel_haven.config.DefaultSettings;
+import net.ssehub.kernel_haven.config.EnumSetting;
 import net.ssehub.kernel_haven.config.Setting;
 import net.ssehub.kernel_haven.config.Setting.Type;
+import net.ssehub.kernel_haven.undertaker.CsvToAstConverter.PresenceConditionMode;
 import net.ssehub.kernel_haven.util.CodeExtractorException;
 import net.ssehub.kernel_haven.util.ExtractorException;
 import net.ssehub.kernel_haven.util.FormatException;
+import net.ssehub.kernel_haven.util.Logger;
 import net.ssehub.kernel_haven.util.Util;
 
 /**
@@ -40,11 +46,206 @@ import net.ssehub.kernel_haven.util.Util;
  */
 public class UndertakerExtractor extends AbstractCodeModelExtractor {
 
+    private static final Logger LOGGER = Logger.get();
+    
+    /**
+     * The number of files after which the parsing statistics are logged.
+     */
+    private static final int STATISTICS_INTERVAL = 1000;
+    
+    /**
+     * The number of results per thread that the {@link LargestFirstScheduler} may execute ahead of their request.
+     */
+    private static final int MAX_WAITING_RESULTS_PER_THREAD = 8;
+    
     private static final Setting<Integer> HANG_TIMEOUT
         = new Setting<>("code.extractor.hang_timeout", Type.INTEGER, true, "20000", "Undertaker has a bug where it "
                 + "hangs forever on some few files of the Linux Kernel. This setting defines a timeout in milliseconds "
                 + "until the undertaker executable is forcibly terminated.");
     
+    private static final Setting<Boolean> ADAPTIVE_TIMEOUT
+        = new Setting<>("code.extractor.adaptive_timeout", Type.BOOLEAN, true, "false", "Whether the hang timeout "
+                + "of each file should be derived from its runtimes in previous executions, instead of using "
+                + HANG_TIMEOUT.getKey() + " for all files. The runtimes are stored in runtime_history.csv in the "
+                + "resource directory of this extractor. The timeout of a file is its slowest recent runtime "
+                + "multiplied by code.extractor.adaptive_timeout.factor; files without history get the 99th "
+                + "percentile of all files multiplied by the factor (or " + HANG_TIMEOUT.getKey() + " while the "
+                + "history is small). Files that repeatedly hit their timeout are quarantined and skipped.");
+    
+    private static final Setting<Integer> ADAPTIVE_TIMEOUT_FACTOR
+        = new Setting<>("code.extractor.adaptive_timeout.factor", Type.INTEGER, true, "5", "The factor that the "
+                + "recorded runtimes are multiplied with to get the timeout. Only used if "
+                + ADAPTIVE_TIMEOUT.getKey() + " is true.");
+    
+    private static final Setting<Integer> ADAPTIVE_TIMEOUT_MIN
+        = new Setting<>("code.extractor.adaptive_timeout.min", Type.INTEGER, true, "2000", "The minimum timeout in "
+                + "milliseconds for a single file. Only used if " + ADAPTIVE_TIMEOUT.getKey() + " is true.");
+    
+    private static final Setting<Integer> ADAPTIVE_TIMEOUT_MAX
+        = new Setting<>("code.extractor.adaptive_timeout.max", Type.INTEGER, true, "120000", "The maximum timeout "
+                + "in milliseconds for a single file. Files that hit their timeout get twice that timeout on the "
+                + "next execution, up to this value. Only used if " + ADAPTIVE_TIMEOUT.getKey() + " is true.");
+    
+    private static final Setting<Integer> QUARANTINE_THRESHOLD
+        = new Setting<>("code.extractor.adaptive_timeout.quarantine_threshold", Type.INTEGER, true, "3", "The "
+                + "number of executions in a row that hit the timeout, after which a file is quarantined: it is not "
+                + "executed anymore (and thus missing in the code model) until the runtime history is reset. 0 "
+                + "disables the quarantine. Only used if " + ADAPTIVE_TIMEOUT.getKey() + " is true.");
+    
+    private static final Setting<Boolean> RESET_RUNTIME_HISTORY
+        = new Setting<>("code.extractor.adaptive_timeout.reset_history", Type.BOOLEAN, true, "false", "Whether the "
+                + "runtime history should be discarded before this execution, e.g. after a major change of the "
+                + "source tree. This also releases all quarantined files. Only used if " + ADAPTIVE_TIMEOUT.getKey()
+                + " is true.");
+    
+    private static final Setting<Boolean> LARGEST_FIRST_SCHEDULING
+        = new Setting<>("code.extractor.largest_first_scheduling", Type.BOOLEAN, true, "false", "Whether all "
+                + "source files should be executed up front in the order of their predicted runtime, largest first, "
+                + "on code.extractor.threads threads, so that the few huge files don't form a tail at the end of "
+                + "the extraction. The runtime is predicted from the size and the number of #if directives of each "
+                + "file, and from the runtimes recorded in runtime_history.csv (see " + ADAPTIVE_TIMEOUT.getKey()
+                + "; the runtimes are recorded even if the adaptive timeout is disabled). The expected and actual "
+                + "makespan are logged at the end.");
+    
+    private static final Setting<Boolean> SOURCE_TREE_INDEX
+        = new Setting<>("code.extractor.source_tree_index", Type.BOOLEAN, true, "false", "Whether the source files "
+                + "should be indexed once at the start, by walking the source tree in parallel, instead of checking "
+                + "each file on the file system before it is executed. Saves many file system calls on network file "
+                + "systems. The index is always built if " + LARGEST_FIRST_SCHEDULING.getKey() + " is enabled or "
+                + "code.extractor.batch_size is greater than 1, since these need the list of all files anyway.");
+    
+    private static final Setting<Integer> BATCH_SIZE
+        = new Setting<>("code.extractor.batch_size", Type.INTEGER, true, "1", "The maximum number of source files "
+                + "that a single undertaker process is executed on. Values greater than 1 reduce the overhead of "
+                + "starting a new process for each file. If the execution for a batch fails, each file of that "
+                + "batch is executed again on its own.");
+    
+    private static final Setting<Integer> WORKER_POOL_SIZE
+        = new Setting<>("code.extractor.worker_pool_size", Type.INTEGER, true, "0", "The number of long-running "
+                + "undertaker processes that are started once and then handle all source files. 0 disables the "
+                + "worker pool; then a new process is started for each file (or batch, see "
+                + BATCH_SIZE.getKey() + "). If this is greater than 0, " + BATCH_SIZE.getKey() + " is ignored. "
+                + "code.extractor.threads should be at least this value, so that all workers are busy.");
+    
+    private static final Setting<Integer> SHARD_COUNT
+        = new Setting<>("code.extractor.shard.count", Type.INTEGER, true, "1", "The number of shards that the "
+                + "source files are split into, e.g. to distribute one extraction across several machines. Each "
+                + "machine runs the extraction with the same source tree and settings, except for "
+                + "code.extractor.shard.index, and only executes the files of its shard. The files are assigned to "
+                + "the shards by their predicted runtime (from their size and number of #if directives), so that all "
+                + "shards take about the same time; every machine computes the same assignment. The files of other "
+                + "shards are not extracted: they fail with a message naming their shard, so a shard run only "
+                + "produces its shard file (see code.extractor.shard.output), and the complete code model is the "
+                + "merged shard file. Files of the shard that fail are recorded in the shard file and reported by "
+                + "the merger. 1 disables sharding.");
+    
+    private static final Setting<Integer> SHARD_INDEX
+        = new Setting<>("code.extractor.shard.index", Type.INTEGER, true, "0", "The shard that this extraction "
+                + "executes; from 0 to " + SHARD_COUNT.getKey() + " - 1.");
+    
+    private static final Setting<File> SHARD_OUTPUT
+        = new Setting<>("code.extractor.shard.output", Type.PATH, false, null, "The shard file to write the "
+                + "extracted source files to. Required if " + SHARD_COUNT.getKey() + " is greater than 1; may also be "
+                + "set without sharding, to store the whole code model in one file. The shard files of all shards are "
+                + "combined into one file with an index by path by running net.ssehub.kernel_haven.undertaker."
+                + "ShardMerger <output file> <shard file>...");
+    
+    private static final Setting<File> CODE_MODEL_STORE
+        = new Setting<>("code.extractor.code_model_store", Type.PATH, false, null, "A file to store the extracted "
+                + "code model in. The file is memory-mapped when it is read with net.ssehub.kernel_haven.undertaker."
+                + "CodeModelStore, so that it opens in milliseconds and the blocks of a single source file are only "
+                + "created when they are requested. Can't be larger than 2 GB.");
+    
+    private static final Setting<Boolean> CODE_MODEL_STORE_REUSE
+        = new Setting<>("code.extractor.code_model_store.reuse", Type.BOOLEAN, true, "false", "Whether the source "
+                + "files in an existing " + CODE_MODEL_STORE.getKey() + " are read from it instead of executing "
+                + "undertaker again, if their size and modification time did not change since they were stored. "
+                + "The store is only reused if it was written with the same undertaker binary and the same settings "
+                + "for the conversion (presence condition mode, fuzzy parsing, binary output and compact code "
+                + "model). The store is then replaced with the code model of this extraction.");
+    
+    private static final Setting<Integer> FORMULA_CACHE_SIZE
+        = new Setting<>("code.extractor.formula_cache_size", Type.INTEGER, true, "100000", "The maximum number of "
+                + "parsed conditions that are cached during the extraction. The cache is shared by all files and "
+                + "threads; the least recently used conditions are evicted first. 0 disables the cache.");
+    
+    private static final EnumSetting<PresenceConditionMode> PRESENCE_CONDITION_MODE
+        = new EnumSetting<>("code.extractor.presence_condition_mode", PresenceConditionMode.class, true,
+                PresenceConditionMode.STRUCTURAL, "How the presence conditions of the blocks are created. PARSE "
+                + "parses the presence condition column of the undertaker output, which repeats the conditions of "
+                + "all enclosing blocks. STRUCTURAL only parses the condition of each block and combines it with "
+                + "the presence condition of the enclosing block. CROSS_CHECK does both and logs a warning if they "
+                + "differ.");
+    
+    private static final Setting<Integer> PIPELINE_EXECUTION_THREADS
+        = new Setting<>("code.extractor.pipeline.execution_threads", Type.INTEGER, true, "0", "The number of "
+                + "threads that execute undertaker in the extraction pipeline. The pipeline executes undertaker and "
+                + "converts its output on separate thread pools, connected by a bounded queue. 0 disables the "
+                + "pipeline; then each extractor thread executes undertaker and converts the output itself. "
+                + "code.extractor.threads should be at least this value, so that all execution threads are busy.");
+    
+    private static final Setting<Integer> PIPELINE_CONVERSION_THREADS
+        = new Setting<>("code.extractor.pipeline.conversion_threads", Type.INTEGER, true, "1", "The number of "
+                + "threads that convert the undertaker output in the extraction pipeline. Only used if "
+                + PIPELINE_EXECUTION_THREADS.getKey() + " is greater than 0.");
+    
+    private static final Setting<Integer> PIPELINE_QUEUE_SIZE
+        = new Setting<>("code.extractor.pipeline.queue_size", Type.INTEGER, true, "64", "The maximum number of "
+                + "undertaker outputs that wait for their conversion in the extraction pipeline. If the queue is "
+                + "full, the execution threads wait until a conversion thread is free. Only used if "
+                + PIPELINE_EXECUTION_THREADS.getKey() + " is greater than 0.");
+    
+    private static final Setting<Integer> RESULT_CACHE_SIZE
+        = new Setting<>("code.extractor.result_cache_size", Type.INTEGER, true, "0", "The maximum size in megabytes "
+                + "of the persistent cache for the undertaker output. The cache is stored in the resource directory "
+                + "of this extractor and survives between executions; files that did not change since the last "
+                + "execution are not executed again. The least recently used entries are evicted first; all entries "
+                + "are discarded when the undertaker executable changes. 0 disables the cache.");
+    
+    private static final Setting<File> INCREMENTAL_RESULT_DIR
+        = new Setting<>("code.extractor.incremental.result_dir", Type.PATH, false, null, "A directory where the "
+                + "undertaker output of each file is stored for incremental extractions. If this is set, the results "
+                + "of this extraction are stored there. If additionally "
+                + "code.extractor.incremental.base_revision is set, the stored results of all files that did not "
+                + "change since that revision are reused instead of executing undertaker again. Results of a "
+                + "different undertaker binary are deleted instead of reused.");
+    
+    private static final Setting<String> INCREMENTAL_BASE_REVISION
+        = new Setting<>("code.extractor.incremental.base_revision", Type.STRING, false, null, "The git revision "
+                + "of the source tree that the results in " + INCREMENTAL_RESULT_DIR.getKey() + " belong to. The "
+                + "files that git diff reports as changed between this revision and the current working tree are "
+                + "executed again; the results of all other files are reused. The source tree must be inside a git "
+                + "working tree.");
+    
+    private static final Setting<Boolean> BINARY_OUTPUT
+        = new Setting<>("code.extractor.binary_output", Type.BOOLEAN, true, "false", "Whether undertaker should "
+                + "use its compact binary output format instead of CSV. The binary output contains each condition "
+                + "only once per file and no presence conditions; presence conditions are always built like "
+                + "STRUCTURAL in " + PRESENCE_CONDITION_MODE.getKey() + ". Only used if each file is executed in "
+                + "its own process without pipeline, result cache or incremental extraction, i.e. the output is "
+                + "directly converted.");
+    
+    private static final Setting<Boolean> COMPACT_CODE_MODEL
+        = new Setting<>("code.extractor.compact_code_model", Type.BOOLEAN, true, "false", "Whether the code model "
+                + "should be stored in a memory-lean form: the blocks of each file are stored in arrays, equal "
+                + "conditions are stored only once for the whole extraction, and presence conditions are built "
+                + "when they are accessed (always like STRUCTURAL in " + PRESENCE_CONDITION_MODE.getKey() + "). "
+                + "Saves a lot of memory for large extractions. Not used with " + BINARY_OUTPUT.getKey() + ".");
+    
+    private static final Setting<File> METRICS_REPORT_DIR
+        = new Setting<>("code.extractor.metrics.report_dir", Type.PATH, false, null, "A directory to write a report "
+                + "with metrics about the execution and conversion of each file to: metrics.csv contains the "
+                + "process spawn time, undertaker wall time, output size, CSV lines, blocks, maximum nesting depth, "
+                + "parsed conditions, conversion time and timeouts of each file; metrics.json contains histograms "
+                + "of these values and the overall throughput. The report is written at the end of the extraction "
+                + "and updated with each progress line (see code.extractor.metrics.progress_interval).");
+    
+    private static final Setting<Integer> METRICS_PROGRESS_INTERVAL
+        = new Setting<>("code.extractor.metrics.progress_interval", Type.INTEGER, true, "60", "The interval in "
+                + "seconds between two progress lines, which log the number of finished files and the throughput "
+                + "(files and blocks per second). 0 disables the progress lines; then metrics are only collected if "
+                + METRICS_REPORT_DIR.getKey() + " is set.");
+    
     private File linuxSourceTree;
     
     /**
@@ -54,8 +255,99 @@ public class UndertakerExtractor extends AbstractCodeModelExtractor {
     
     private boolean fuzzyBooleanParsing;
     
+    /**
+     * The cache for parsed conditions of the converter. <code>null</code> if disabled.
+     */
+    private FormulaCache formulaCache;
+    
+    private PresenceConditionMode pcMode;
+    
+    /**
+     * Converts the output of pilztaker. Thread-safe, so it is shared by all threads.
+     */
+    private CsvToAstConverter converter;
+    
+    private AtomicInteger numFiles = new AtomicInteger();
+    
+    /**
+     * The metrics about the execution and conversion of each file. <code>null</code> if disabled.
+     */
+    private ExtractionMetrics metrics;
+    
+    private boolean binaryOutput;
+    
     private UndertakerWrapper wrapper;
     
+    /**
+     * The snapshot of the source files to extract. <code>null</code> if not built.
+     */
+    private SourceTreeIndex sourceTreeIndex;
+    
+    /**
+     * The files of the shard that this extraction executes. <code>null</code> if sharding is disabled.
+     */
+    private ShardAssignment shard;
+    
+    /**
+     * Writes the extracted source files to the shard file. <code>null</code> if disabled.
+     */
+    private ShardWriter shardWriter;
+    
+    /**
+     * Writes the extracted source files to the code model store. <code>null</code> if disabled.
+     */
+    private CodeModelStoreWriter storeWriter;
+    
+    /**
+     * The code model store of a previous extraction, to read unchanged source files from. <code>null</code> if
+     * disabled or no store exists yet.
+     */
+    private CodeModelStore previousStore;
+    
+    /**
+     * The number of files that will still be passed to {@link #runOnFile(File)}. When it reaches 0, the
+     * {@link #shardWriter} and the {@link #storeWriter} are closed.
+     */
+    private AtomicInteger remainingFiles;
+    
+    /**
+     * Whether writing the {@link #storeWriter} failed, so that it is discarded.
+     */
+    private AtomicBoolean storeFailed = new AtomicBoolean();
+    
+    /**
+     * The per-file runtimes, used to choose the timeouts. <code>null</code> if a fixed timeout is used.
+     */
+    private RuntimeHistory runtimeHistory;
+    
+    /**
+     * The long-running pilztaker processes. <code>null</code> if a new process is started for each file or batch.
+     */
+    private PilztakerWorkerPool workerPool;
+    
+    /**
+     * Executes pilztaker: either the {@link #wrapper} itself, a {@link BatchScheduler} or the
+     * {@link #workerPool}; possibly behind the {@link #resultCache} and the {@link #incrementalRunner}, and
+     * a {@link LargestFirstScheduler} on top of all.
+     */
+    private IUndertakerRunner runner;
+    
+    /**
+     * The persistent cache for the pilztaker output. <code>null</code> if disabled.
+     */
+    private ResultCache resultCache;
+    
+    /**
+     * Reuses the results of a previous extraction for unchanged files. <code>null</code> if disabled.
+     */
+    private IncrementalRunner incrementalRunner;
+    
+    /**
+     * Executes pilztaker and converts its output on separate threads. <code>null</code> if each extractor thread
+     * does both itself.
+     */
+    private ExtractionPipeline pipeline;
+    
     @Override
     protected void init(Configuration config) throws SetUpException {
         linuxSourceTree = config.getValue(DefaultSettings.SOURCE_TREE);
@@ -65,6 +357,24 @@ public class UndertakerExtractor extends AbstractCodeModelExtractor {
         
         fuzzyBooleanParsing = config.getValue(DefaultSettings.FUZZY_PARSING);
         
+        config.registerSetting(PRESENCE_CONDITION_MODE);
+        pcMode = config.getValue(PRESENCE_CONDITION_MODE);
+        
+        config.registerSetting(BINARY_OUTPUT);
+        binaryOutput = config.getValue(BINARY_OUTPUT);
+        
+        config.registerSetting(FORMULA_CACHE_SIZE);
+        int formulaCacheSize = config.getValue(FORMULA_CACHE_SIZE);
+        if (formulaCacheSize > 0) {
+            formulaCache = new FormulaCache(formulaCacheSize);
+        }
+        converter = new CsvToAstConverter(fuzzyBooleanParsing, formulaCache, pcMode);
+        
+        config.registerSetting(COMPACT_CODE_MODEL);
+        if (config.getValue(COMPACT_CODE_MODEL)) {
+            converter.setCompactOutput(new FormulaTable());
+        }
+        
         config.registerSetting(HANG_TIMEOUT);
         long timeout = config.getValue(HANG_TIMEOUT);
         
@@ -73,24 +383,472 @@ public class UndertakerExtractor extends AbstractCodeModelExtractor {
         } catch (IOException e) {
             throw new SetUpException(e);
         }
+        
+        config.registerSetting(METRICS_REPORT_DIR);
+        config.registerSetting(METRICS_PROGRESS_INTERVAL);
+        File metricsReportDir = config.getValue(METRICS_REPORT_DIR);
+        int progressInterval = config.getValue(METRICS_PROGRESS_INTERVAL);
+        if (progressInterval < 0) {
+            throw new SetUpException(METRICS_PROGRESS_INTERVAL.getKey() + " must not be negative");
+        }
+        if (metricsReportDir != null || progressInterval > 0) {
+            metrics = new ExtractionMetrics(metricsReportDir, progressInterval);
+            converter.setMetrics(metrics);
+            wrapper.setMetrics(metrics);
+            
+            // there is no notification at the end of the extraction, so write the final report on shutdown
+            ExtractionMetrics finalMetrics = metrics;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                LOGGER.logInfo(finalMetrics.getProgressLine());
+                finalMetrics.writeReportSafely();
+            }, "UndertakerExtractor-metrics"));
+        }
+        
+        config.registerSetting(BATCH_SIZE);
+        config.registerSetting(WORKER_POOL_SIZE);
+        config.registerSetting(LARGEST_FIRST_SCHEDULING);
+        config.registerSetting(SOURCE_TREE_INDEX);
+        config.registerSetting(SHARD_COUNT);
+        config.registerSetting(SHARD_INDEX);
+        config.registerSetting(SHARD_OUTPUT);
+        config.registerSetting(CODE_MODEL_STORE);
+        config.registerSetting(CODE_MODEL_STORE_REUSE);
+        int batchSize = config.getValue(BATCH_SIZE);
+        int workerPoolSize = config.getValue(WORKER_POOL_SIZE);
+        boolean largestFirst = config.getValue(LARGEST_FIRST_SCHEDULING);
+        int shardCount = config.getValue(SHARD_COUNT);
+        int shardIndex = config.getValue(SHARD_INDEX);
+        File shardOutput = config.getValue(SHARD_OUTPUT);
+        File storeFile = config.getValue(CODE_MODEL_STORE);
+        if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount) {
+            throw new SetUpException(SHARD_COUNT.getKey() + " must be greater than 0, and " + SHARD_INDEX.getKey()
+                    + " must be between 0 and " + SHARD_COUNT.getKey() + " - 1");
+        }
+        if (shardCount > 1 && shardOutput == null) {
+            throw new SetUpException(SHARD_OUTPUT.getKey() + " must be set if " + SHARD_COUNT.getKey()
+                    + " is greater than 1");
+        }
+        
+        if (config.getValue(SOURCE_TREE_INDEX) || largestFirst || workerPoolSize <= 0 && batchSize > 1
+                || shardOutput != null || storeFile != null) {
+            long start = System.currentTimeMillis();
+            sourceTreeIndex = new SourceTreeIndex(linuxSourceTree,
+                    config.getValue(DefaultSettings.CODE_EXTRACTOR_FILES),
+                    config.getValue(DefaultSettings.CODE_EXTRACTOR_FILE_REGEX));
+            LOGGER.logInfo("Built " + sourceTreeIndex + " in " + (System.currentTimeMillis() - start) + " ms");
+            wrapper.setSourceTreeIndex(sourceTreeIndex);
+        }
+        
+        String storeConfiguration = null;
+        if (storeFile != null) {
+            try {
+                storeConfiguration = "undertaker=" + ResultCache.hash(wrapper.getPilztakerExe())
+                        + "; pc_mode=" + pcMode + "; fuzzy_parsing=" + fuzzyBooleanParsing
+                        + "; binary_output=" + binaryOutput + "; compact=" + config.getValue(COMPACT_CODE_MODEL);
+            } catch (IOException e) {
+                throw new SetUpException(e);
+            }
+        }
+        initOutput(linuxSourceTree, sourceTreeIndex, shardIndex, shardCount, shardOutput, storeFile,
+                storeConfiguration, config.getValue(CODE_MODEL_STORE_REUSE));
+        if (remainingFiles != null) {
+            // there is no notification at the end of the extraction, so discard incomplete files on shutdown
+            Runtime.getRuntime().addShutdownHook(new Thread(this::shutdownWriters, "UndertakerExtractor-writers"));
+        }
+        
+        config.registerSetting(ADAPTIVE_TIMEOUT);
+        config.registerSetting(ADAPTIVE_TIMEOUT_FACTOR);
+        config.registerSetting(ADAPTIVE_TIMEOUT_MIN);
+        config.registerSetting(ADAPTIVE_TIMEOUT_MAX);
+        config.registerSetting(QUARANTINE_THRESHOLD);
+        config.registerSetting(RESET_RUNTIME_HISTORY);
+        if (config.getValue(ADAPTIVE_TIMEOUT)) {
+            int minTimeout = config.getValue(ADAPTIVE_TIMEOUT_MIN);
+            int maxTimeout = config.getValue(ADAPTIVE_TIMEOUT_MAX);
+            int factor = config.getValue(ADAPTIVE_TIMEOUT_FACTOR);
+            int quarantineThreshold = config.getValue(QUARANTINE_THRESHOLD);
+            if (minTimeout <= 0 || maxTimeout < minTimeout || factor <= 0 || quarantineThreshold < 0) {
+                throw new SetUpException(ADAPTIVE_TIMEOUT_MIN.getKey() + " and " + ADAPTIVE_TIMEOUT_FACTOR.getKey()
+                        + " must be greater than 0, " + ADAPTIVE_TIMEOUT_MAX.getKey() + " must not be less than "
+                        + ADAPTIVE_TIMEOUT_MIN.getKey() + ", and " + QUARANTINE_THRESHOLD.getKey()
+                        + " must not be negative");
+            }
+            
+            try {
+                runtimeHistory = new RuntimeHistory(new File(resourceDir, "runtime_history.csv"), timeout,
+                        minTimeout, maxTimeout, factor, quarantineThreshold);
+                if (config.getValue(RESET_RUNTIME_HISTORY)) {
+                    runtimeHistory.reset();
+                }
+            } catch (IOException e) {
+                throw new SetUpException(e);
+            }
+            
+            LOGGER.logInfo("Using " + runtimeHistory);
+            for (File quarantined : runtimeHistory.getQuarantinedFiles()) {
+                LOGGER.logWarning("Quarantined file, will be skipped: " + quarantined.getPath());
+            }
+            wrapper.setRuntimeHistory(runtimeHistory);
+            
+        } else if (largestFirst) {
+            // only record the runtimes for the cost prediction; the timeout is the same for all files
+            try {
+                runtimeHistory = new RuntimeHistory(new File(resourceDir, "runtime_history.csv"), timeout, timeout,
+                        timeout, 1, 0);
+            } catch (IOException e) {
+                throw new SetUpException(e);
+            }
+            wrapper.setRuntimeHistory(runtimeHistory);
+        }
+        
+        config.registerSetting(RESULT_CACHE_SIZE);
+        long resultCacheSize = config.getValue(RESULT_CACHE_SIZE) * 1024L * 1024L;
+        if (resultCacheSize > 0) {
+            try {
+                resultCache = new ResultCache(wrapper, linuxSourceTree, new File(resourceDir, "result_cache"),
+                        wrapper.getPilztakerExe(), resultCacheSize);
+            } catch (IOException e) {
+                throw new SetUpException(e);
+            }
+        }
+        
+        config.registerSetting(INCREMENTAL_RESULT_DIR);
+        config.registerSetting(INCREMENTAL_BASE_REVISION);
+        File incrementalResultDir = config.getValue(INCREMENTAL_RESULT_DIR);
+        if (incrementalResultDir != null) {
+            try {
+                // the results are the CSV output of pilztaker, so they only depend on the binary
+                incrementalRunner = new IncrementalRunner(wrapper, linuxSourceTree, incrementalResultDir,
+                        config.getValue(INCREMENTAL_BASE_REVISION),
+                        "undertaker=" + ResultCache.hash(wrapper.getPilztakerExe()) + "; output=csv");
+            } catch (IOException e) {
+                throw new SetUpException(e);
+            }
+        }
+        
+        if (workerPoolSize > 0) {
+            try {
+                workerPool = wrapper.createWorkerPool(workerPoolSize);
+            } catch (IOException e) {
+                throw new SetUpException(e);
+            }
+            runner = workerPool;
+            
+            // there is no notification at the end of the extraction, so terminate the workers on shutdown
+            Runtime.getRuntime().addShutdownHook(new Thread(workerPool::close, "UndertakerExtractor-workers"));
+            
+        } else if (batchSize > 1) {
+            runner = new BatchScheduler(wrapper, collectWorkList(), batchSize,
+                    config.getValue(DefaultSettings.CODE_EXTRACTOR_THREADS));
+            
+        } else {
+            runner = wrapper;
+        }
+        
+        if (resultCache != null) {
+            resultCache.setRunner(runner);
+            runner = resultCache;
+        }
+        if (incrementalRunner != null) {
+            incrementalRunner.setRunner(runner);
+            runner = incrementalRunner;
+        }
+        
+        if (largestFirst) {
+            List<File> workList = collectWorkList();
+            CostEstimator estimator = new CostEstimator(linuxSourceTree, runtimeHistory, sourceTreeIndex);
+            long[] costs = estimator.estimate(workList);
+            LOGGER.logInfo("Predicting runtimes with " + estimator);
+            
+            int threads = config.getValue(DefaultSettings.CODE_EXTRACTOR_THREADS);
+            runner = new LargestFirstScheduler(runner, workList, costs, threads,
+                    threads * MAX_WAITING_RESULTS_PER_THREAD);
+        }
+        
+        config.registerSetting(PIPELINE_EXECUTION_THREADS);
+        config.registerSetting(PIPELINE_CONVERSION_THREADS);
+        config.registerSetting(PIPELINE_QUEUE_SIZE);
+        int executionThreads = config.getValue(PIPELINE_EXECUTION_THREADS);
+        
+        if (executionThreads > 0) {
+            int conversionThreads = config.getValue(PIPELINE_CONVERSION_THREADS);
+            int queueSize = config.getValue(PIPELINE_QUEUE_SIZE);
+            if (conversionThreads <= 0 || queueSize <= 0) {
+                throw new SetUpException(PIPELINE_CONVERSION_THREADS.getKey() + " and "
+                        + PIPELINE_QUEUE_SIZE.getKey() + " must be greater than 0");
+            }
+            
+            pipeline = new ExtractionPipeline(runner, converter, executionThreads, conversionThreads, queueSize);
+            
+            // there is no notification at the end of the extraction, so stop the threads on shutdown
+            Runtime.getRuntime().addShutdownHook(new Thread(pipeline::close, "UndertakerExtractor-pipeline"));
+        }
+    }
+    
+    /**
+     * Creates the {@link #shard}, opens the {@link #previousStore} and creates the {@link #shardWriter} and the
+     * {@link #storeWriter}. Called by {@link #init(Configuration)} after the settings are checked; package-private
+     * for the tests.
+     * 
+     * @param sourceTree The source tree.
+     * @param index The index of the source tree; becomes the {@link #sourceTreeIndex}. May only be
+     *      <code>null</code> if neither sharding nor any output file is enabled.
+     * @param shardIndex The shard that this extraction executes.
+     * @param shardCount The number of shards; 1 disables sharding.
+     * @param shardOutput The shard file to write. <code>null</code> if disabled.
+     * @param storeFile The code model store to write. <code>null</code> if disabled.
+     * @param storeConfiguration The pilztaker binary and the conversion settings of this extraction, to write into
+     *      the code model store. An existing store is only reused if it has the same configuration.
+     * @param reuseStore Whether the unchanged source files of an existing code model store should be reused.
+     * 
+     * @throws SetUpException If creating the output files fails.
+     */
+    void initOutput(File sourceTree, SourceTreeIndex index, int shardIndex, int shardCount, File shardOutput,
+            File storeFile, String storeConfiguration, boolean reuseStore) throws SetUpException {
+        
+        sourceTreeIndex = index;
+        if (shardCount > 1) {
+            shard = ShardAssignment.create(sourceTree, sourceTreeIndex, shardIndex, shardCount);
+            LOGGER.logInfo(shard.toString());
+        }
+        if (storeFile != null && reuseStore && storeFile.isFile()) {
+            try {
+                previousStore = new CodeModelStore(storeFile);
+                if (previousStore.getConfiguration().equals(storeConfiguration)) {
+                    LOGGER.logInfo("Reusing unchanged source files of " + previousStore);
+                } else {
+                    LOGGER.logInfo("Not reusing " + previousStore + ", it was written with a different undertaker "
+                            + "binary or different settings: " + previousStore.getConfiguration());
+                    previousStore.close();
+                    previousStore = null;
+                }
+            } catch (IOException | FormatException e) {
+                LOGGER.logException("Could not open previous code model store, executing all files", e);
+            }
+        }
+        if (shardOutput != null || storeFile != null) {
+            try {
+                if (shardOutput != null) {
+                    shardWriter = new ShardWriter(shardOutput, shardIndex, shardCount);
+                }
+                if (storeFile != null) {
+                    storeWriter = new CodeModelStoreWriter(storeFile, storeConfiguration);
+                }
+            } catch (IOException e) {
+                throw new SetUpException(e);
+            }
+            remainingFiles = new AtomicInteger(shard != null ? shard.size() : sourceTreeIndex.size());
+        }
+    }
+    
+    /**
+     * Sets the runner that executes pilztaker and the converter for its output, instead of creating them in
+     * {@link #init(Configuration)}. Package-private for the tests.
+     * 
+     * @param runner The runner.
+     * @param converter The converter.
+     */
+    void setRunner(IUndertakerRunner runner, CsvToAstConverter converter) {
+        this.runner = runner;
+        this.converter = converter;
+    }
+    
+    /**
+     * Collects the files that will be executed during this extraction: all files of the {@link #sourceTreeIndex}
+     * (i.e. all files that will be passed to {@link #runOnFile(File)}), except those that are answered without
+     * executing pilztaker (by the {@link #previousStore}, the {@link #incrementalRunner} or the
+     * {@link #resultCache}), that are quarantined or that belong to another {@link #shard}.
+     * 
+     * @return The list of files to execute; relative to the source tree.
+     */
+    private List<File> collectWorkList() {
+        List<File> workList = sourceTreeIndex.getFiles();
+        if (shard != null) {
+            workList.removeIf((file) -> !shard.contains(file));
+        }
+        if (previousStore != null) {
+            workList.removeIf(this::isStored);
+        }
+        if (incrementalRunner != null) {
+            workList.removeIf(incrementalRunner::canReuse);
+        }
+        if (resultCache != null) {
+            workList.removeIf(resultCache::isCached);
+        }
+        if (runtimeHistory != null) {
+            workList.removeIf(runtimeHistory::isQuarantined);
+        }
+        return workList;
+    }
+
+    /**
+     * Checks whether the given file is contained in the {@link #previousStore} and did not change since.
+     * 
+     * @param file The file; relative to the source tree.
+     * @return Whether the file can be read from the previous store.
+     */
+    private boolean isStored(File file) {
+        return previousStore != null && previousStore.isCurrent(file, sourceTreeIndex.getSize(file),
+                sourceTreeIndex.getLastModified(file));
+    }
+
+    /**
+     * Writes an extracted source file to the {@link #storeWriter}. The store is only used to reuse source files in
+     * later extractions, so a failure to write it does not fail the extraction: the first error is logged, the store
+     * is discarded, and later source files are not written anymore.
+     * 
+     * @param target The source file; relative to the source tree.
+     * @param result The extracted source file.
+     */
+    private void writeToStore(File target, SourceFile<CodeBlock> result) {
+        if (!storeFailed.get()) {
+            try {
+                storeWriter.write(result, sourceTreeIndex.getSize(target), sourceTreeIndex.getLastModified(target));
+            } catch (IOException e) {
+                if (storeFailed.compareAndSet(false, true)) {
+                    LOGGER.logException("Could not write code model store, discarding it", e);
+                    storeWriter.discard();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Records a source file of this shard that could not be extracted in the shard file, so that it is reported when
+     * the shards are merged.
+     *
+     * @param target The source file that could not be extracted.
+     */
+    private void recordFailure(File target) {
+        try {
+            shardWriter.fail(target);
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.logException("Could not record failure of " + target.getPath() + " in shard file", e);
+        }
+    }
+
+    /**
+     * Called on shutdown: completes the shard file and the code model store if all files were extracted. Otherwise
+     * the extraction was interrupted (e.g. by a crash or Ctrl-C), and both are discarded, so that no incomplete file
+     * looks complete. The {@link #previousStore} is closed in both cases. Package-private for the tests.
+     */
+    void shutdownWriters() {
+        int remaining = remainingFiles.get();
+        if (remaining > 0) {
+            LOGGER.logWarning("Extraction did not finish, " + remaining + " files are missing; discarding the "
+                    + "incomplete shard file and code model store");
+            if (shardWriter != null) {
+                shardWriter.discard();
+            }
+            if (storeWriter != null) {
+                storeWriter.discard();
+            }
+            closePreviousStore();
+        } else {
+            closeWriters();
+        }
+    }
+
+    /**
+     * Completes the shard file and the code model store, if they are written and not completed yet, and closes the
+     * {@link #previousStore}, since all files were extracted.
+     */
+    private void closeWriters() {
+        if (shardWriter != null) {
+            try {
+                shardWriter.close();
+            } catch (IOException e) {
+                LOGGER.logException("Could not complete shard file", e);
+            }
+        }
+        if (storeWriter != null) {
+            try {
+                storeWriter.close();
+            } catch (IOException e) {
+                LOGGER.logException("Could not complete code model store", e);
+            }
+        }
+        closePreviousStore();
+    }
+
+    /**
+     * Closes the {@link #previousStore}, if it was opened.
+     */
+    private void closePreviousStore() {
+        if (previousStore != null) {
+            try {
+                previousStore.close();
+            } catch (IOException e) {
+                LOGGER.logException("Could not close previous code model store", e);
+            }
+            previousStore = null;
+        }
     }
 
     @Override
     protected SourceFile<CodeBlock> runOnFile(File target) throws ExtractorException {
+        if (shard != null && !shard.contains(target)) {
+            // extracted by another shard; not counted in the metrics or in the remaining files
+            throw new CodeExtractorException(target, "Not part of shard " + shard.getShardIndex() + " of "
+                    + shard.getShardCount() + "; extracted by another shard");
+        }
+        
+        boolean success = false;
         try {
+            SourceFile<CodeBlock> result;
             
-            String csv = wrapper.runOnFile(target);
-    
-            if (csv == null) {
+            if (isStored(target)) {
+                result = previousStore.read(target);
+                
+            } else if (pipeline != null) {
+                result = pipeline.runOnFile(target);
+                
+            } else if (runner != wrapper) {
+                String csv = runner.runOnFile(target);
+                result = csv != null ? converter.convert(target, csv) : null;
+                
+            } else if (binaryOutput) {
+                result = wrapper.runOnFile(target, new BinaryToAstConverter(converter));
+                
+            } else {
+                // stream the output of the process directly into the converter
+                result = wrapper.runOnFile(target, converter);
+            }
+            
+            if (result == null) {
                 throw new CodeExtractorException(target, "Undertaker execution not successful");
             }
-            CsvToAstConverter converter = new CsvToAstConverter(fuzzyBooleanParsing);
-            SourceFile<CodeBlock> result = converter.convert(target, csv);
-    
+            
+            if (shardWriter != null) {
+                shardWriter.write(result);
+            }
+            if (storeWriter != null) {
+                writeToStore(target, result);
+            }
+            
+            if (numFiles.incrementAndGet() % STATISTICS_INTERVAL == 0) {
+                LOGGER.logInfo("Condition parsing: " + converter.getParsingStatistics()
+                        + (formulaCache != null ? "; " + formulaCache : "")
+                        + (pcMode != PresenceConditionMode.STRUCTURAL
+                                ? "; shared formulas: " + converter.getSharedFormulaCount() : ""));
+            }
+            
+            success = true;
             return result;
             
         } catch (IOException | FormatException e) {
             throw new CodeExtractorException(target, e);
+            
+        } finally {
+            if (metrics != null) {
+                metrics.fileFinished(success);
+            }
+            if (!success && shardWriter != null) {
+                recordFailure(target);
+            }
+            if (remainingFiles != null && remainingFiles.decrementAndGet() == 0) {
+                closeWriters();
+            }
         }
     }
 
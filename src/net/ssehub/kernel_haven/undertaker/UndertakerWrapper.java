@@ -16,11 +16,30 @@
  */
 package net.ssehub.kernel_haven.undertaker;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.ProcessBuilder.Redirect;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import net.ssehub.kernel_haven.code_model.CodeBlock;
+import net.ssehub.kernel_haven.code_model.SourceFile;
+import net.ssehub.kernel_haven.undertaker.CsvToAstConverter.TopLevelBlockConsumer;
+import net.ssehub.kernel_haven.util.FormatException;
 import net.ssehub.kernel_haven.util.Logger;
+import net.ssehub.kernel_haven.util.Logger.Level;
 import net.ssehub.kernel_haven.util.Util;
 
 /**
@@ -30,16 +49,54 @@ import net.ssehub.kernel_haven.util.Util;
  * @author Adam
  * @author Johannes
  */
-public class UndertakerWrapper {
+public class UndertakerWrapper implements IUndertakerRunner {
 
     private static final Logger LOGGER = Logger.get();
     
+    /**
+     * Kills pilztaker processes that exceed the timeout. Shared by all wrappers.
+     */
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(
+        (runnable) -> {
+            Thread thread = new Thread(runnable, "Undertaker-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+    
+    /**
+     * The file to redirect the standard error of single-file processes to, if it is not logged.
+     */
+    private static final File NULL_FILE = new File("/dev/null");
+    
     private long timeout;
     
+    /**
+     * Chooses the timeout per file and quarantines files that hang. <code>null</code> if {@link #timeout} is used for
+     * all files.
+     */
+    private RuntimeHistory history;
+    
+    /**
+     * The metrics to record each execution in. <code>null</code> if no metrics are recorded.
+     */
+    private ExtractionMetrics metrics;
+    
     private File sourceDir;
     
+    /**
+     * The files of the source tree, to check the files against instead of the file system. <code>null</code> if the
+     * file system is checked for each file.
+     */
+    private SourceTreeIndex index;
+    
     private File pilztakerExe;
     
+    /**
+     * The start of the command line for each execution: the absolute path to the executable and to the source tree.
+     * Computed once, since each of them is a lookup on the file system.
+     */
+    private String[] commandTemplate;
+    
     /**
      * Creates a new wrapper.
      * 
@@ -60,6 +117,115 @@ public class UndertakerWrapper {
                     pilztakerExe);
             pilztakerExe.setExecutable(true);
         }
+        
+        commandTemplate = new String[] {pilztakerExe.getAbsolutePath(), sourceDir.getAbsolutePath() + "/"};
+    }
+
+    /**
+     * Sets the runtime history that chooses the timeout of each file and quarantines files that hang. Must be
+     * called before this wrapper is used.
+     * 
+     * @param history The runtime history. <code>null</code> to use the timeout given in the constructor for all
+     *      files.
+     */
+    void setRuntimeHistory(RuntimeHistory history) {
+        this.history = history;
+    }
+    
+    /**
+     * Sets the metrics to record each execution of a single file in. Must be called before this wrapper is used.
+     * 
+     * @param metrics The metrics. <code>null</code> to not record any metrics.
+     */
+    void setMetrics(ExtractionMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    /**
+     * Sets the index of the source tree to check the files against, instead of checking the file system for each
+     * file. Must be called before this wrapper is used.
+     * 
+     * @param index The index of the source tree. <code>null</code> to check the file system for each file.
+     */
+    void setSourceTreeIndex(SourceTreeIndex index) {
+        this.index = index;
+    }
+    
+    /**
+     * Checks whether the given file exists in the source tree. Files that are not in the {@link #index} are checked
+     * on the file system, since they may have been created after the index was built.
+     * 
+     * @param file The file in the source tree; relative to the source tree.
+     * @return Whether the file is a regular file in the source tree.
+     */
+    private boolean exists(File file) {
+        return index != null && index.contains(file) || new File(sourceDir, file.getPath()).isFile();
+    }
+    
+    /**
+     * Creates the command line to execute pilztaker on the given files.
+     * 
+     * @param binary Whether to use the binary output of pilztaker.
+     * @param numFiles The number of files that will be added to the command.
+     * @return The command line, without the files; modifiable.
+     */
+    private List<String> createCommand(boolean binary, int numFiles) {
+        List<String> result = new ArrayList<>(numFiles + 3);
+        result.add(commandTemplate[0]);
+        if (binary) {
+            result.add("--binary");
+        }
+        result.add(commandTemplate[1]);
+        return result;
+    }
+    
+    /**
+     * Checks whether the given file is quarantined by the runtime history, and logs a warning if it is.
+     * 
+     * @param file The file in the source tree; relative to the source tree.
+     * @return Whether the file should not be executed.
+     */
+    private boolean isQuarantined(File file) {
+        boolean result = history != null && history.isQuarantined(file);
+        if (result) {
+            LOGGER.logWarning("Skipping quarantined file " + file.getPath());
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the timeout for the given file.
+     * 
+     * @param file The file in the source tree; relative to the source tree.
+     * @return The timeout in milliseconds.
+     */
+    private long getTimeout(File file) {
+        return history != null ? history.getTimeout(file) : timeout;
+    }
+    
+    /**
+     * Records the result of an execution in the runtime history, if there is one.
+     * 
+     * @param file The file in the source tree; relative to the source tree.
+     * @param success Whether the execution was successful.
+     * @param start The start time of the execution, as returned by {@link System#currentTimeMillis()}.
+     * @param fileTimeout The timeout that was used for the execution.
+     */
+    private void record(File file, boolean success, long start, long fileTimeout) {
+        if (history != null) {
+            history.record(file, success, System.currentTimeMillis() - start, fileTimeout);
+        }
+    }
+
+    /**
+     * Logs the standard error of a pilztaker process. The output is only decoded if debug messages are logged.
+     * 
+     * @param stderr The collected standard error.
+     */
+    private static void logStderr(StderrRingBuffer stderr) {
+        if (!stderr.isEmpty() && LOGGER.getLevel().shouldLog(Level.DEBUG)) {
+            LOGGER.logDebug(("Undertaker stderr:\n" + stderr).split("\n"));
+        }
     }
 
     /**
@@ -71,34 +237,493 @@ public class UndertakerWrapper {
      * 
      * @throws IOException If executing undertaker throws an IOException.
      */
+    @Override
     public String runOnFile(File file) throws IOException {
+        try {
+            return runStreaming(file, false, (stdout) -> {
+                ByteArrayOutputStream result = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = stdout.read(buffer)) != -1) {
+                    result.write(buffer, 0, read);
+                }
+                return result.toString();
+            });
+        } catch (FormatException e) {
+            // can't happen, since the output is not converted
+            throw new IOException(e);
+        }
+    }
+    
+    /**
+     * Converts the output of a pilztaker process while the process is still running.
+     * 
+     * @param <T> The type of the conversion result.
+     */
+    private interface StreamConverter<T> {
+        
+        /**
+         * Converts the output of pilztaker.
+         * 
+         * @param stdout The standard output of the pilztaker process.
+         * @return The result of the conversion. Must not be <code>null</code>.
+         * 
+         * @throws IOException If reading the output fails.
+         * @throws FormatException If the output has an invalid format.
+         */
+        public T convert(InputStream stdout) throws IOException, FormatException;
+        
+    }
+    
+    /**
+     * Runs the wrapper on a single file and directly converts the output. The output of the process is passed to
+     * the converter while the process is still running, so the complete CSV is never held in memory.
+     * 
+     * @param file The file in the source tree to run on; relative to the source tree given
+     *      in the constructor. Must not be <code>null</code>.
+     * @param converter The converter to convert the output with.
+     * @return The resulting {@link SourceFile}. <code>null</code> if not successful.
+     * 
+     * @throws IOException If executing undertaker throws an IOException.
+     * @throws FormatException If the output of undertaker has an invalid format.
+     */
+    public SourceFile<CodeBlock> runOnFile(File file, CsvToAstConverter converter)
+            throws IOException, FormatException {
+        
+        return runStreaming(file, false, (stdout) -> converter.convert(file, stdout));
+    }
+    
+    /**
+     * Runs the wrapper on a single file with binary output (<code>pilztaker --binary</code>) and directly converts
+     * the output. The pilztaker executable must support the binary output.
+     * 
+     * @param file The file in the source tree to run on; relative to the source tree given
+     *      in the constructor. Must not be <code>null</code>.
+     * @param converter The converter to convert the binary output with.
+     * @return The resulting {@link SourceFile}. <code>null</code> if not successful.
+     * 
+     * @throws IOException If executing undertaker throws an IOException.
+     * @throws FormatException If the output of undertaker has an invalid format.
+     */
+    public SourceFile<CodeBlock> runOnFile(File file, BinaryToAstConverter converter)
+            throws IOException, FormatException {
+        
+        return runStreaming(file, true, (stdout) -> converter.convert(file, stdout));
+    }
+    
+    /**
+     * Runs the wrapper on a single file and passes each top-level block to the given consumer as soon as it is
+     * converted, while the process is still running. See
+     * {@link CsvToAstConverter#convert(File, InputStream, TopLevelBlockConsumer)}.
+     * <p>
+     * The consumer may already have received some blocks when the process turns out to be unsuccessful (e.g. it is
+     * killed because of the timeout); the caller should discard them if <code>false</code> is returned.
+     * 
+     * @param file The file in the source tree to run on; relative to the source tree given
+     *      in the constructor. Must not be <code>null</code>.
+     * @param converter The converter to convert the output with.
+     * @param consumer The consumer to pass the top-level blocks to.
+     * @return Whether the execution was successful.
+     * 
+     * @throws IOException If executing undertaker throws an IOException.
+     * @throws FormatException If the output of undertaker has an invalid format.
+     */
+    public boolean runOnFile(File file, CsvToAstConverter converter, TopLevelBlockConsumer consumer)
+            throws IOException, FormatException {
+        
+        return runStreaming(file, false, (stdout) -> converter.convert(file, stdout, consumer)) != null;
+    }
+    
+    /**
+     * Runs pilztaker on a single file and passes its output to the given converter while the process is running.
+     * <p>
+     * The standard error is only needed for the debug log. If debug messages are not logged, it is redirected to
+     * <code>/dev/null</code>, so that each running process only needs the calling thread (which converts its output)
+     * and the JVM's process reaper thread; otherwise, another thread reads it. The timeout is enforced by the shared
+     * {@link #WATCHDOG}, not by a thread per process.
+     * 
+     * @param file The file in the source tree to run on; relative to the source tree given
+     *      in the constructor. Must not be <code>null</code>.
+     * @param binary Whether to use the binary output of pilztaker.
+     * @param converter The converter to convert the output with.
+     * @param <T> The type of the conversion result.
+     * @return The result of the converter. <code>null</code> if not successful.
+     * 
+     * @throws IOException If executing undertaker throws an IOException.
+     * @throws FormatException If the output of undertaker has an invalid format.
+     */
+    private <T> T runStreaming(File file, boolean binary, StreamConverter<T> converter)
+            throws IOException, FormatException {
         LOGGER.logDebug("runUndertaker() called");
         
-        boolean success = false;
-        String stdout = null;
+        if (!exists(file) || isQuarantined(file)) {
+            return null;
+        }
         
-        if (new File(sourceDir, file.getPath()).isFile()) {
-            ProcessBuilder processBuilder = new ProcessBuilder(
-                    pilztakerExe.getAbsolutePath(),
-                    sourceDir.getAbsolutePath() + "/",
-                    file.getPath());
+        List<String> command = createCommand(binary, 1);
+        command.add(file.getPath());
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        boolean debug = LOGGER.getLevel().shouldLog(Level.DEBUG);
+        if (!debug) {
+            processBuilder.redirectError(Redirect.to(NULL_FILE));
+        }
+        
+        long fileTimeout = getTimeout(file);
+        long start = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        Process process = processBuilder.start();
+        long spawnTime = System.nanoTime() - startNanos;
+        
+        StderrRingBuffer stderrStream = new StderrRingBuffer();
+        Thread stderrReader = null;
+        if (debug) {
+            stderrReader = new Thread(() -> {
+                byte[] buffer = new byte[512];
+                try (InputStream stderr = process.getErrorStream()) {
+                    int read;
+                    while ((read = stderr.read(buffer)) != -1) {
+                        stderrStream.write(buffer, 0, read);
+                    }
+                } catch (IOException e) {
+                    // process terminated; nothing to do
+                }
+            }, "Undertaker-stderr");
+            stderrReader.start();
+        }
+        
+        AtomicBoolean killed = new AtomicBoolean();
+        ScheduledFuture<?> killer = WATCHDOG.schedule(() -> {
+            killed.set(true);
+            process.destroyForcibly();
+        }, fileTimeout, TimeUnit.MILLISECONDS);
+        
+        long[] stdoutBytes = new long[1];
+        T result;
+        int exitCode;
+        try (InputStream stdout = new FilterInputStream(process.getInputStream()) {
             
-            ByteArrayOutputStream stdoutStream = new ByteArrayOutputStream();
-            ByteArrayOutputStream stderrStream = new ByteArrayOutputStream();
+            @Override
+            public int read() throws IOException {
+                int read = super.read();
+                if (read != -1) {
+                    stdoutBytes[0]++;
+                }
+                return read;
+            }
             
-            success = Util.executeProcess(processBuilder, "Undertaker", stdoutStream, stderrStream, timeout);
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int read = super.read(buffer, offset, length);
+                if (read > 0) {
+                    stdoutBytes[0] += read;
+                }
+                return read;
+            }
             
-            stdout = stdoutStream.toString();
+        }) {
+            result = converter.convert(stdout);
+            exitCode = process.waitFor();
+            if (stderrReader != null) {
+                stderrReader.join();
+            }
+            
+        } catch (InterruptedException e) {
+            throw new IOException(e);
             
-            String stderr = stderrStream.toString();
-            if (stderr != null && !stderr.equals("")) {
-                LOGGER.logDebug(("Undertaker stderr:\n" + stderr).split("\n"));
+        } catch (IOException | FormatException e) {
+            // if the process was killed, the output may be truncated anywhere
+            if (!killed.get()) {
+                throw e;
             }
+            result = null;
+            exitCode = -1;
             
+        } finally {
+            killer.cancel(false);
+            process.destroyForcibly();
         }
         
+        logStderr(stderrStream);
+        
+        record(file, !killed.get() && exitCode == 0, start, fileTimeout);
+        if (metrics != null) {
+            metrics.recordExecution(file, spawnTime, System.nanoTime() - startNanos, stdoutBytes[0], killed.get());
+        }
+        
+        if (killed.get()) {
+            LOGGER.logWarning("Undertaker did not finish " + file.getPath() + " within " + fileTimeout + " ms");
+            result = null;
+        } else if (exitCode != 0) {
+            LOGGER.logWarning("Undertaker exited with " + exitCode + " on " + file.getPath());
+            result = null;
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Kills a batch process if it does not progress to the next file within the timeout of the file that it is
+     * currently parsing. The progress is taken from the <code>Parsing &lt;file&gt;...</code> lines that pilztaker
+     * writes to its standard error before each file; the filename column of the standard output can't be used for
+     * this, since the standard output is buffered and files without blocks have no output at all.
+     */
+    private final class BatchProgress implements Runnable {
+        
+        private Process process;
+        
+        private File current;
+        
+        private long currentTimeout;
+        
+        private long deadline;
+        
+        private boolean finished;
+        
+        private boolean killed;
+        
+        /**
+         * Starts watching a batch process.
+         * 
+         * @param process The batch process.
+         * @param first The first file of the batch.
+         */
+        public BatchProgress(Process process, File first) {
+            this.process = process;
+            startFile(first);
+            WATCHDOG.schedule(this, currentTimeout, TimeUnit.MILLISECONDS);
+        }
+        
+        /**
+         * Records that the process started parsing the next file. Its timeout starts now.
+         * 
+         * @param file The file that the process started parsing.
+         */
+        public synchronized void startFile(File file) {
+            current = file;
+            currentTimeout = getTimeout(file);
+            deadline = System.currentTimeMillis() + currentTimeout;
+        }
+        
+        /**
+         * Reads the standard error of the process until it is closed, and records the progress of the process.
+         * 
+         * @param stderr The standard error of the process.
+         * @param collected Collects the standard error for logging.
+         */
+        public void readStderr(InputStream stderr, StderrRingBuffer collected) {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(stderr))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("Parsing ") && line.endsWith("...")) {
+                        startFile(new File(line.substring("Parsing ".length(), line.length() - "...".length())));
+                    }
+                    byte[] bytes = (line + "\n").getBytes();
+                    collected.write(bytes, 0, bytes.length);
+                }
+            } catch (IOException e) {
+                // process terminated; nothing to do
+            }
+        }
+        
+        /**
+         * Stops watching the process.
+         */
+        public synchronized void finish() {
+            finished = true;
+        }
+        
+        /**
+         * Checks whether the process was killed because it did not progress.
+         * 
+         * @return Whether the process was killed.
+         */
+        public synchronized boolean isKilled() {
+            return killed;
+        }
+        
+        /**
+         * Returns the file that the process parsed last; i.e. the file that it hung on, if it was killed.
+         * 
+         * @return The current file.
+         */
+        public synchronized File getCurrent() {
+            return current;
+        }
+        
+        /**
+         * Returns the timeout of the {@link #getCurrent() current file}.
+         * 
+         * @return The timeout in milliseconds.
+         */
+        public synchronized long getCurrentTimeout() {
+            return currentTimeout;
+        }
+        
+        /**
+         * Kills the process if it did not progress since the last check, or checks again at the new deadline.
+         */
+        @Override
+        public synchronized void run() {
+            if (!finished) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining > 0) {
+                    WATCHDOG.schedule(this, remaining, TimeUnit.MILLISECONDS);
+                } else {
+                    killed = true;
+                    process.destroyForcibly();
+                }
+            }
+        }
         
-        return success ? stdout : null;
+    }
+    
+    /**
+     * Runs the wrapper on several files with a single pilztaker process. The combined output is split back into
+     * the CSV of the single files, based on the filename column.
+     * <p>
+     * The timeout is applied per file: the process is killed if it does not progress to the next file within the
+     * timeout of the file that it is currently parsing. Quarantined files are not executed (and not contained in
+     * the result). The runtimes of successful batches are not recorded in the runtime history, since they can't be
+     * attributed to single files; only the file that a batch hung on is recorded as a timeout.
+     * 
+     * @param files The files in the source tree to run on; relative to the source tree given in the constructor.
+     *      Must not be <code>null</code>.
+     * @return A map containing the resulting CSV for each of the given files. Files that do not exist are not
+     *      contained in the map. <code>null</code> if the pilztaker execution was not successful.
+     * 
+     * @throws IOException If executing undertaker throws an IOException.
+     */
+    public Map<File, String> runOnFiles(List<File> files) throws IOException {
+        return runOnFiles(files, null);
+    }
+    
+    /**
+     * Runs the wrapper on several files with a single pilztaker process. See {@link #runOnFiles(List)}.
+     * 
+     * @param files The files in the source tree to run on; relative to the source tree given in the constructor.
+     *      Must not be <code>null</code>.
+     * @param hanging Receives the file that pilztaker hung on, if the process was killed because of the timeout.
+     *      May be <code>null</code>.
+     * @return A map containing the resulting CSV for each of the given files. Files that do not exist are not
+     *      contained in the map. <code>null</code> if the pilztaker execution was not successful.
+     * 
+     * @throws IOException If executing undertaker throws an IOException.
+     */
+    public Map<File, String> runOnFiles(List<File> files, List<File> hanging) throws IOException {
+        LOGGER.logDebug("runUndertaker() called for " + files.size() + " files");
+        
+        Map<File, StringBuilder> csvs = new HashMap<>();
+        
+        List<String> command = createCommand(false, files.size());
+        File first = null;
+        for (File file : files) {
+            if (exists(file) && !isQuarantined(file)) {
+                command.add(file.getPath());
+                csvs.put(file, new StringBuilder());
+                if (first == null) {
+                    first = file;
+                }
+            }
+        }
+        
+        Map<File, String> result = new HashMap<>();
+        if (csvs.isEmpty()) {
+            return result;
+        }
+        
+        Process process = new ProcessBuilder(command).start();
+        BatchProgress progress = new BatchProgress(process, first);
+        
+        StderrRingBuffer stderrStream = new StderrRingBuffer();
+        Thread stderrReader = new Thread(() -> progress.readStderr(process.getErrorStream(), stderrStream),
+                "Undertaker-stderr");
+        stderrReader.start();
+        
+        ByteArrayOutputStream stdoutStream = new ByteArrayOutputStream();
+        int exitCode;
+        try (InputStream stdout = process.getInputStream()) {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = stdout.read(buffer)) != -1) {
+                stdoutStream.write(buffer, 0, read);
+            }
+            exitCode = process.waitFor();
+            if (stderrReader != null) {
+                stderrReader.join();
+            }
+            
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+            
+        } finally {
+            progress.finish();
+            process.destroyForcibly();
+        }
+        logStderr(stderrStream);
+        
+        if (progress.isKilled()) {
+            File hung = progress.getCurrent();
+            long hungTimeout = progress.getCurrentTimeout();
+            LOGGER.logWarning("Undertaker did not finish " + hung.getPath() + " within " + hungTimeout
+                    + " ms in batch of " + csvs.size() + " files");
+            if (history != null) {
+                history.record(hung, false, hungTimeout, hungTimeout);
+            }
+            if (hanging != null) {
+                hanging.add(hung);
+            }
+            return null;
+        }
+        if (exitCode != 0) {
+            return null;
+        }
+        
+        for (String line : stdoutStream.toString().split("\n")) {
+            int index = line.indexOf(';');
+            if (index == -1) {
+                continue;
+            }
+            
+            File file = new File(line.substring(0, index));
+            StringBuilder csv = csvs.get(file);
+            if (csv == null) {
+                csv = new StringBuilder();
+                csvs.put(file, csv);
+            }
+            csv.append(line).append('\n');
+        }
+        
+        for (Map.Entry<File, StringBuilder> entry : csvs.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().toString());
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Returns the pilztaker executable that this wrapper runs.
+     * 
+     * @return The pilztaker executable.
+     */
+    File getPilztakerExe() {
+        return pilztakerExe;
+    }
+    
+    /**
+     * Creates a pool of long-running pilztaker processes for the source tree (and its index), timeout (or runtime
+     * history) and metrics of this wrapper.
+     * 
+     * @param size The number of pilztaker processes to start.
+     * @return The started pool.
+     * 
+     * @throws IOException If starting the processes fails.
+     */
+    PilztakerWorkerPool createWorkerPool(int size) throws IOException {
+        PilztakerWorkerPool result = new PilztakerWorkerPool(pilztakerExe, sourceDir, timeout, history, size,
+                WATCHDOG);
+        result.setMetrics(metrics);
+        result.setSourceTreeIndex(index);
+        return result;
     }
 
 }
@@ -27,6 +27,27 @@ import org.junit.runners.Suite.SuiteClasses;
 @SuiteClasses({
     UndertakerWrapperTest.class,
     CsvToAstConverterTest.class,
+    BinaryToAstConverterTest.class,
+    CsvRecordTokenizerTest.class,
+    FormulaCacheTest.class,
+    ResultCacheTest.class,
+    IncrementalRunnerTest.class,
+    FuzzyNormalizerTest.class,
+    CompactSourceFileTest.class,
+    FormulaInternerTest.class,
+    RuntimeHistoryTest.class,
+    CostEstimatorTest.class,
+    LargestFirstSchedulerTest.class,
+    ExtractionMetricsTest.class,
+    SourceTreeIndexTest.class,
+    StderrRingBufferTest.class,
+    ShardAssignmentTest.class,
+    ShardWriterTest.class,
+    FormulaCodecTest.class,
+    CodeModelStoreTest.class,
+    BatchSchedulerTest.class,
+    PilztakerWorkerTest.class,
+    ExtractionPipelineTest.class,
     })
 public class AllTests {
     // runs tests defined in SuiteClasses
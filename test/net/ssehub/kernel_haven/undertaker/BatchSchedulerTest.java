@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import net.ssehub.kernel_haven.test_utils.RunOnlyOnLinux;
+import net.ssehub.kernel_haven.util.Util;
+
+/**
+ * Tests the {@link BatchScheduler} and the execution of batches and single files by the {@link UndertakerWrapper}
+ * with a fake pilztaker script.
+ *
+ * @author agent
+ */
+@RunWith(value = RunOnlyOnLinux.class)
+public class BatchSchedulerTest {
+
+    /**
+     * A fake pilztaker: logs its arguments, reports its progress like pilztaker, hangs on files named
+     * <code>hang*.c</code>, writes more than a pipe buffer to stderr for files named <code>noisy*.c</code> and fails
+     * for batches that contain <code>bad.c</code>.
+     */
+    private static final String FAKE_PILZTAKER = "#!/bin/sh\n"
+            + "echo \"$@\" >> \"$0.log\"\n"
+            + "base=\"$1\"\n"
+            + "shift\n"
+            + "if [ $# -gt 1 ]; then case \" $* \" in *\" bad.c \"*) exit 1;; esac; fi\n"
+            + "for f in \"$@\"; do\n"
+            + "    echo \"Parsing $f...\" >&2\n"
+            + "    case \"$f\" in hang*) exec sleep 30;; noisy*) head -c 200000 /dev/zero >&2;; esac\n"
+            + "    echo \"$f;1;if;0;1;CONFIG_A;CONFIG_A\"\n"
+            + "done\n";
+
+    private static final long TIMEOUT = 1000;
+
+    private File dir;
+
+    private File sourceDir;
+
+    private UndertakerWrapper wrapper;
+
+    /**
+     * Creates the fake pilztaker and a source tree.
+     *
+     * @throws IOException unwanted.
+     */
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("batch_scheduler_test").toFile();
+        File exe = new File(dir, "undertaker");
+        Files.write(exe.toPath(), FAKE_PILZTAKER.getBytes(StandardCharsets.UTF_8));
+        exe.setExecutable(true);
+
+        sourceDir = new File(dir, "source");
+        sourceDir.mkdir();
+        for (String name : Arrays.asList("a.c", "b.c", "c.c", "bad.c", "hang.c", "noisy.c")) {
+            Files.write(new File(sourceDir, name).toPath(), new byte[0]);
+        }
+
+        wrapper = new UndertakerWrapper(dir, sourceDir, TIMEOUT);
+    }
+
+    /**
+     * Deletes the temporary directory.
+     *
+     * @throws IOException unwanted.
+     */
+    @After
+    public void tearDown() throws IOException {
+        Util.deleteFolder(dir);
+    }
+
+    /**
+     * Returns the command lines that the fake pilztaker was called with.
+     *
+     * @return The files of each call, separated by spaces.
+     *
+     * @throws IOException unwanted.
+     */
+    private List<String> getCalls() throws IOException {
+        File log = new File(dir, "undertaker.log");
+        List<String> result = log.isFile() ? Files.readAllLines(log.toPath()) : Collections.emptyList();
+        for (int i = 0; i < result.size(); i++) {
+            // remove the base path
+            result.set(i, result.get(i).substring(result.get(i).indexOf(' ') + 1));
+        }
+        return result;
+    }
+
+    /**
+     * Tests that all files of a batch are executed by a single process.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testBatch() throws IOException {
+        BatchScheduler scheduler = new BatchScheduler(wrapper, Arrays.asList(new File("a.c"), new File("b.c"),
+                new File("c.c")), 3, 1);
+
+        assertThat(scheduler.runOnFile(new File("a.c")), is("a.c;1;if;0;1;CONFIG_A;CONFIG_A\n"));
+        assertThat(scheduler.runOnFile(new File("c.c")), is("c.c;1;if;0;1;CONFIG_A;CONFIG_A\n"));
+        assertThat(scheduler.runOnFile(new File("b.c")), is("b.c;1;if;0;1;CONFIG_A;CONFIG_A\n"));
+        assertThat(getCalls(), is(Arrays.asList("a.c b.c c.c")));
+    }
+
+    /**
+     * Tests that each file of a failed batch is executed again on its own.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testRetryFailedBatch() throws IOException {
+        BatchScheduler scheduler = new BatchScheduler(wrapper, Arrays.asList(new File("a.c"), new File("bad.c"),
+                new File("b.c")), 3, 1);
+
+        assertThat(scheduler.runOnFile(new File("a.c")), is("a.c;1;if;0;1;CONFIG_A;CONFIG_A\n"));
+        assertThat(scheduler.runOnFile(new File("bad.c")), is("bad.c;1;if;0;1;CONFIG_A;CONFIG_A\n"));
+        assertThat(scheduler.runOnFile(new File("b.c")), is("b.c;1;if;0;1;CONFIG_A;CONFIG_A\n"));
+        assertThat(getCalls(), is(Arrays.asList("a.c bad.c b.c", "a.c", "bad.c", "b.c")));
+    }
+
+    /**
+     * Tests that a batch that hangs on a file is killed after the timeout of that file (not the sum of the
+     * timeouts of the whole batch), and that only the other files are retried.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test(timeout = 20000)
+    public void testHangingFile() throws IOException {
+        BatchScheduler scheduler = new BatchScheduler(wrapper, Arrays.asList(new File("a.c"), new File("hang.c"),
+                new File("b.c"), new File("c.c")), 4, 1);
+
+        long start = System.currentTimeMillis();
+        assertThat(scheduler.runOnFile(new File("a.c")), is("a.c;1;if;0;1;CONFIG_A;CONFIG_A\n"));
+        long duration = System.currentTimeMillis() - start;
+        assertThat(duration >= TIMEOUT && duration < 2 * TIMEOUT, is(true));
+
+        assertThat(scheduler.runOnFile(new File("hang.c")), nullValue());
+        assertThat(scheduler.runOnFile(new File("b.c")), is("b.c;1;if;0;1;CONFIG_A;CONFIG_A\n"));
+        assertThat(scheduler.runOnFile(new File("c.c")), is("c.c;1;if;0;1;CONFIG_A;CONFIG_A\n"));
+        assertThat(getCalls(), is(Arrays.asList("a.c hang.c b.c c.c", "a.c", "b.c", "c.c")));
+    }
+
+    /**
+     * Tests that a single file is executed without a thread that reads the standard error, since debug messages are
+     * not logged, and that a hanging single file is killed by the watchdog after the timeout.
+     *
+     * @throws Exception unwanted.
+     */
+    @Test(timeout = 20000)
+    public void testSingleFileWithoutStderrReader() throws Exception {
+        assertThat(wrapper.runOnFile(new File("noisy.c")), is("noisy.c;1;if;0;1;CONFIG_A;CONFIG_A\n"));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            long start = System.currentTimeMillis();
+            Future<String> hanging = executor.submit(() -> wrapper.runOnFile(new File("hang.c")));
+            Thread.sleep(TIMEOUT / 2);
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                assertThat(thread.getName(), not("Undertaker-stderr"));
+            }
+
+            assertThat(hanging.get(), nullValue());
+            long duration = System.currentTimeMillis() - start;
+            assertThat(duration >= TIMEOUT && duration < 2 * TIMEOUT, is(true));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
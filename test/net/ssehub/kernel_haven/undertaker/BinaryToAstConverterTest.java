@@ -0,0 +1,270 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.code_model.CodeBlock;
+import net.ssehub.kernel_haven.code_model.SourceFile;
+import net.ssehub.kernel_haven.undertaker.CsvToAstConverter.PresenceConditionMode;
+import net.ssehub.kernel_haven.util.FormatException;
+
+/**
+ * Tests the {@link BinaryToAstConverter}. The binary input is created from CSV, in the same way as pilztaker does.
+ *
+ * @author agent
+ */
+public class BinaryToAstConverterTest {
+
+    private static final String CSV = "test.c;2;4;if;0;2;CONFIG_A;CONFIG_A\n"
+            + "test.c;6;8;if;0;6;(CONFIG_B) || !(CONFIG_C);(CONFIG_B) || !(CONFIG_C)\n"
+            + "test.c;8;18;else;0;6;!((CONFIG_B) || !(CONFIG_C));!((CONFIG_B) || !(CONFIG_C))\n"
+            + "test.c;10;12;if;1;10;CONFIG_A;(CONFIG_A) && (!((CONFIG_B) || !(CONFIG_C)))\n"
+            + "test.c;11;11;if;2;11;CONFIG_D;(CONFIG_D) && ((CONFIG_A) && (!((CONFIG_B) || !(CONFIG_C))))\n"
+            + "test.c;12;14;elseif;1;10;!(CONFIG_A) && (CONFIG_B);"
+                    + "(!(CONFIG_A) && (CONFIG_B)) && (!((CONFIG_B) || !(CONFIG_C)))\n"
+            + "test.c;14;16;else;1;10;!(CONFIG_A) && (!(CONFIG_B));"
+                    + "(!(CONFIG_A) && (!(CONFIG_B))) && (!((CONFIG_B) || !(CONFIG_C)))\n"
+            + "test.c;20;22;if;0;20;CONFIG_A;CONFIG_A\n";
+
+    /**
+     * Tests whether the binary output results in the same AST as the CSV output.
+     *
+     * @throws IOException unwanted.
+     * @throws FormatException unwanted.
+     */
+    @Test
+    public void testEqualsCsv() throws IOException, FormatException {
+        byte[] binary = csvToBinary(CSV);
+
+        SourceFile<CodeBlock> expected = new CsvToAstConverter(false, null, PresenceConditionMode.STRUCTURAL)
+                .convert(new File("test.c"), CSV);
+        SourceFile<CodeBlock> actual = new BinaryToAstConverter(new CsvToAstConverter(false))
+                .convert(new File("test.c"), new ByteArrayInputStream(binary));
+
+        assertThat(actual.getTopElementCount(), is(expected.getTopElementCount()));
+        for (int i = 0; i < expected.getTopElementCount(); i++) {
+            assertBlockEquals(actual.getElement(i), expected.getElement(i));
+        }
+
+        // no presence conditions and each condition is only sent once
+        assertTrue(binary.length < CSV.length());
+    }
+
+    /**
+     * Tests whether records with unknown tags are skipped.
+     *
+     * @throws IOException unwanted.
+     * @throws FormatException unwanted.
+     */
+    @Test
+    public void testUnknownRecordSkipped() throws IOException, FormatException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeRecord(out, BinaryToAstConverter.RECORD_FILE_START, "test.c".getBytes(StandardCharsets.UTF_8));
+        writeRecord(out, 42, new byte[] {1, 2, 3});
+        writeRecord(out, BinaryToAstConverter.RECORD_STRING, "CONFIG_A".getBytes(StandardCharsets.UTF_8));
+        writeRecord(out, BinaryToAstConverter.RECORD_BLOCK, block(1, 3, BinaryToAstConverter.KIND_IF, -1, 1, 0));
+        writeRecord(out, BinaryToAstConverter.RECORD_FILE_END, new byte[0]);
+
+        SourceFile<CodeBlock> result = new BinaryToAstConverter(new CsvToAstConverter(false))
+                .convert(new File("test.c"), new ByteArrayInputStream(bytes.toByteArray()));
+
+        assertThat(result.getTopElementCount(), is(1));
+        assertThat(result.getElement(0).getLineEnd(), is(3));
+    }
+
+    /**
+     * Tests whether truncated output is detected.
+     *
+     * @throws IOException unwanted.
+     * @throws FormatException wanted.
+     */
+    @Test(expected = FormatException.class)
+    public void testTruncated() throws IOException, FormatException {
+        byte[] binary = csvToBinary(CSV);
+        new BinaryToAstConverter(new CsvToAstConverter(false))
+                .convert(new File("test.c"), new ByteArrayInputStream(Arrays.copyOf(binary, binary.length - 10)));
+    }
+
+    /**
+     * Tests whether an invalid parent index is detected.
+     *
+     * @throws IOException unwanted.
+     * @throws FormatException wanted.
+     */
+    @Test(expected = FormatException.class)
+    public void testInvalidParent() throws IOException, FormatException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeRecord(out, BinaryToAstConverter.RECORD_FILE_START, "test.c".getBytes(StandardCharsets.UTF_8));
+        writeRecord(out, BinaryToAstConverter.RECORD_BLOCK, block(1, 3, BinaryToAstConverter.KIND_IF, 0, 1, -1));
+        writeRecord(out, BinaryToAstConverter.RECORD_FILE_END, new byte[0]);
+
+        new BinaryToAstConverter(new CsvToAstConverter(false))
+                .convert(new File("test.c"), new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    /**
+     * Tests whether output for a different file is detected.
+     *
+     * @throws IOException unwanted.
+     * @throws FormatException wanted.
+     */
+    @Test(expected = FormatException.class)
+    public void testWrongFile() throws IOException, FormatException {
+        new BinaryToAstConverter(new CsvToAstConverter(false))
+                .convert(new File("other.c"), new ByteArrayInputStream(csvToBinary(CSV)));
+    }
+
+    /**
+     * Asserts that the two blocks and their nested blocks are equal.
+     *
+     * @param actual The actual block.
+     * @param expected The expected block.
+     */
+    private static void assertBlockEquals(CodeBlock actual, CodeBlock expected) {
+        assertThat(actual.getLineStart(), is(expected.getLineStart()));
+        assertThat(actual.getLineEnd(), is(expected.getLineEnd()));
+        assertThat(actual.getCondition(), is(expected.getCondition()));
+        assertThat(actual.getPresenceCondition(), is(expected.getPresenceCondition()));
+        assertThat(actual.getNestedElementCount(), is(expected.getNestedElementCount()));
+        for (int i = 0; i < expected.getNestedElementCount(); i++) {
+            assertBlockEquals(actual.getNestedElement(i), expected.getNestedElement(i));
+        }
+    }
+
+    /**
+     * Converts pilztaker CSV output into the binary output of pilztaker.
+     *
+     * @param csv The CSV of a single file.
+     * @return The binary output.
+     *
+     * @throws IOException unwanted.
+     */
+    private static byte[] csvToBinary(String csv) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        String[] lines = csv.split("\n");
+        writeRecord(out, BinaryToAstConverter.RECORD_FILE_START,
+                lines[0].split(";")[0].getBytes(StandardCharsets.UTF_8));
+
+        Map<String, Integer> strings = new HashMap<>();
+        List<Integer> parents = new ArrayList<>();
+        int numBlocks = 0;
+        for (String line : lines) {
+            String[] parts = line.split(";");
+            int depth = Integer.parseInt(parts[4]);
+
+            int condition = -1;
+            if (!parts[6].isEmpty()) {
+                Integer index = strings.get(parts[6]);
+                if (index == null) {
+                    index = strings.size();
+                    strings.put(parts[6], index);
+                    writeRecord(out, BinaryToAstConverter.RECORD_STRING, parts[6].getBytes(StandardCharsets.UTF_8));
+                }
+                condition = index;
+            }
+
+            // parents.get(d) is the index of the last block with nesting depth d
+            while (parents.size() > depth) {
+                parents.remove(parents.size() - 1);
+            }
+            int parent = depth > 0 ? parents.get(depth - 1) : -1;
+
+            int kind;
+            switch (parts[3]) {
+            case "elseif":
+                kind = BinaryToAstConverter.KIND_ELSEIF;
+                break;
+            case "else":
+                kind = BinaryToAstConverter.KIND_ELSE;
+                break;
+            default:
+                kind = BinaryToAstConverter.KIND_IF;
+                break;
+            }
+
+            writeRecord(out, BinaryToAstConverter.RECORD_BLOCK, block(Integer.parseInt(parts[1]),
+                    Integer.parseInt(parts[2]), kind, parent, Integer.parseInt(parts[5]), condition));
+            parents.add(numBlocks++);
+        }
+
+        writeRecord(out, BinaryToAstConverter.RECORD_FILE_END, new byte[0]);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Creates the payload of a block record.
+     *
+     * @param lineStart The start line.
+     * @param lineEnd The end line.
+     * @param kind The kind of the block.
+     * @param parent The index of the parent block.
+     * @param ifStart The line of the corresponding if.
+     * @param condition The index of the condition in the string table.
+     * @return The payload.
+     *
+     * @throws IOException unwanted.
+     */
+    private static byte[] block(int lineStart, int lineEnd, int kind, int parent, int ifStart, int condition)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(lineStart);
+        out.writeInt(lineEnd);
+        out.writeByte(kind);
+        out.writeInt(parent);
+        out.writeInt(ifStart);
+        out.writeInt(condition);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes a record.
+     *
+     * @param out The stream to write to.
+     * @param tag The tag of the record.
+     * @param payload The payload of the record.
+     *
+     * @throws IOException unwanted.
+     */
+    private static void writeRecord(DataOutputStream out, int tag, byte[] payload) throws IOException {
+        out.writeByte(tag);
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import static net.ssehub.kernel_haven.undertaker.FormulaCodecTest.assertNestedFile;
+import static net.ssehub.kernel_haven.undertaker.FormulaCodecTest.createFile;
+import static net.ssehub.kernel_haven.undertaker.FormulaCodecTest.createNestedFile;
+import static net.ssehub.kernel_haven.util.logic.FormulaBuilder.and;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.SetUpException;
+import net.ssehub.kernel_haven.code_model.CodeBlock;
+import net.ssehub.kernel_haven.code_model.SourceFile;
+import net.ssehub.kernel_haven.util.FormatException;
+import net.ssehub.kernel_haven.util.logic.Variable;
+
+/**
+ * Tests the {@link CodeModelStoreWriter} and the {@link CodeModelStore}.
+ *
+ * @author agent
+ */
+public class CodeModelStoreTest {
+
+    private File dir;
+
+    /**
+     * Creates a temporary directory for the stores.
+     *
+     * @throws IOException unwanted.
+     */
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("code_model_store_test").toFile();
+    }
+
+    /**
+     * Deletes the temporary directory.
+     */
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    /**
+     * Recursively deletes the given file or directory.
+     *
+     * @param file The file to delete.
+     */
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Tests whether source files are found by a binary search in the path index, and whether a source file is only
+     * materialized from the mapped file when it is read: a corrupt formula that only another source file uses does
+     * not prevent opening the store or reading the other source files.
+     *
+     * @throws IOException unwanted.
+     * @throws FormatException unwanted.
+     */
+    @Test
+    public void testLazyMaterialization() throws IOException, FormatException {
+        File path = new File("dir/test.c");
+        File storeFile = new File(dir, "store");
+        try (CodeModelStoreWriter writer = new CodeModelStoreWriter(storeFile)) {
+            writer.write(createFile("other.c", "CONFIG_O"), -1, -1);
+            writer.write(createNestedFile(path), 100, 1000);
+            writer.write(new SourceFile<>(new File("empty.c")), 0, 0);
+            writer.write(createFile("last.c", "CONFIG_L"), -1, -1);
+            assertThat(writer.size(), is(4));
+        }
+
+        // the formula written last is only used by last.c
+        try (RandomAccessFile file = new RandomAccessFile(storeFile, "rw")) {
+            file.seek(file.length() - CodeModelStoreWriter.TRAILER_SIZE + 4);
+            int formulaTable = file.readInt();
+            file.seek(formulaTable);
+            int numFormulas = file.readInt();
+            file.seek(formulaTable + 4 + (numFormulas - 1) * FormulaCodec.ENTRY_INTS * 4);
+            file.writeInt(99);
+        }
+
+        try (CodeModelStore store = new CodeModelStore(storeFile)) {
+            assertThat(store.size(), is(4));
+            assertThat(store.getFiles(), is(Arrays.asList(path, new File("empty.c"), new File("last.c"),
+                    new File("other.c"))));
+            assertThat(store.contains(new File("other.c")), is(true));
+            assertThat(store.contains(new File("missing.c")), is(false));
+            assertThat(store.read(new File("missing.c")), nullValue());
+            assertThat(store.read(new File("empty.c")).getTopElementCount(), is(0));
+            assertNestedFile(store.read(path), path);
+            assertThat(store.read(new File("other.c")).getElement(0).getCondition(),
+                    is(and("CONFIG_O", "CONFIG_X")));
+
+            try {
+                store.read(new File("last.c"));
+                fail("expected FormatException");
+            } catch (FormatException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Tests whether equal formulas are stored once and are the same instances in all source files read from the
+     * store.
+     *
+     * @throws IOException unwanted.
+     * @throws FormatException unwanted.
+     */
+    @Test
+    public void testSharedFormulas() throws IOException, FormatException {
+        File storeFile = new File(dir, "store");
+        try (CodeModelStoreWriter writer = new CodeModelStoreWriter(storeFile)) {
+            writer.write(createFile("a.c", "CONFIG_A"), -1, -1);
+            writer.write(createFile("b.c", "CONFIG_A"), -1, -1);
+        }
+
+        try (CodeModelStore store = new CodeModelStore(storeFile)) {
+            CodeBlock blockA = store.read(new File("a.c")).getElement(0);
+            CodeBlock blockB = store.read(new File("b.c")).getElement(0);
+            assertThat(blockA.getCondition(), sameInstance(blockA.getPresenceCondition()));
+            assertThat(blockB.getCondition(), sameInstance(blockA.getCondition()));
+            assertThat(store.read(new File("a.c")).getElement(0).getCondition(),
+                    sameInstance(blockA.getCondition()));
+        }
+    }
+
+    /**
+     * Tests whether a stored source file is only up to date if its size and modification time did not change.
+     *
+     * @throws IOException unwanted.
+     * @throws FormatException unwanted.
+     */
+    @Test
+    public void testIsCurrent() throws IOException, FormatException {
+        File storeFile = new File(dir, "store");
+        try (CodeModelStoreWriter writer = new CodeModelStoreWriter(storeFile)) {
+            writer.write(createFile("a.c", "CONFIG_A"), 100, 1000);
+            writer.write(createFile("unknown.c", "CONFIG_U"), -1, -1);
+        }
+
+        try (CodeModelStore store = new CodeModelStore(storeFile)) {
+            assertThat(store.isCurrent(new File("a.c"), 100, 1000), is(true));
+            assertThat(store.isCurrent(new File("a.c"), 101, 1000), is(false));
+            assertThat(store.isCurrent(new File("a.c"), 100, 1001), is(false));
+            assertThat(store.isCurrent(new File("unknown.c"), -1, -1), is(false));
+            assertThat(store.isCurrent(new File("missing.c"), 100, 1000), is(false));
+        }
+    }
+
+    /**
+     * Tests whether an incomplete store is rejected, and that the final file does not exist before closing.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testIncomplete() throws IOException {
+        File storeFile = new File(dir, "store");
+        CodeModelStoreWriter writer = new CodeModelStoreWriter(storeFile);
+        writer.write(createFile("a.c", "CONFIG_A"), -1, -1);
+        assertThat(storeFile.exists(), is(false));
+        writer.close();
+
+        // cut off the trailer
+        try (RandomAccessFile file = new RandomAccessFile(storeFile, "rw")) {
+            file.setLength(file.length() - 1);
+        }
+        try {
+            new CodeModelStore(storeFile).close();
+            fail("expected FormatException");
+        } catch (FormatException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Tests whether the configuration is read back from the header.
+     *
+     * @throws IOException unwanted.
+     * @throws FormatException unwanted.
+     */
+    @Test
+    public void testConfiguration() throws IOException, FormatException {
+        File storeFile = new File(dir, "store");
+        try (CodeModelStoreWriter writer = new CodeModelStoreWriter(storeFile, "undertaker=1234; pc_mode=PARSE")) {
+            writer.write(createFile("a.c", "CONFIG_A"), -1, -1);
+        }
+        try (CodeModelStore store = new CodeModelStore(storeFile)) {
+            assertThat(store.getConfiguration(), is("undertaker=1234; pc_mode=PARSE"));
+            assertThat(store.read(new File("a.c")).getElement(0).getCondition(), is(and("CONFIG_A", "CONFIG_X")));
+        }
+
+        new CodeModelStoreWriter(storeFile).close();
+        try (CodeModelStore store = new CodeModelStore(storeFile)) {
+            assertThat(store.getConfiguration(), is(""));
+            assertThat(store.size(), is(0));
+        }
+    }
+
+    /**
+     * Creates an extractor that writes the given store for a source tree with the files <code>a.c</code> and
+     * <code>b.c</code>. Instead of executing pilztaker, each file gets a single block, and the executed files are
+     * added to the given list.
+     *
+     * @param storeFile The code model store to write.
+     * @param configuration The configuration of the extraction.
+     * @param reuse Whether the unchanged source files of an existing store should be reused.
+     * @param executed The list to add the executed files to.
+     * @return The extractor.
+     *
+     * @throws IOException unwanted.
+     * @throws SetUpException unwanted.
+     */
+    private UndertakerExtractor createExtractor(File storeFile, String configuration, boolean reuse,
+            List<File> executed) throws IOException, SetUpException {
+
+        File sourceDir = new File(dir, "source");
+        if (sourceDir.mkdir()) {
+            Files.write(new File(sourceDir, "a.c").toPath(), "#ifdef A\n#endif\n".getBytes(StandardCharsets.UTF_8));
+            Files.write(new File(sourceDir, "b.c").toPath(), "#ifdef B\n#endif\n".getBytes(StandardCharsets.UTF_8));
+        }
+        UndertakerExtractor extractor = new UndertakerExtractor();
+        extractor.initOutput(sourceDir, new SourceTreeIndex(sourceDir, Arrays.asList(""), Pattern.compile(".*\\.c")),
+                0, 1, null, storeFile, configuration, reuse);
+        extractor.setRunner((file) -> {
+            executed.add(file);
+            return file.getPath() + ";1;2;if;0;1;CONFIG_A;CONFIG_A\n";
+        }, new CsvToAstConverter(false));
+        return extractor;
+    }
+
+    /**
+     * Tests whether the extractor only reuses a store that was written with the same configuration.
+     *
+     * @throws Exception unwanted.
+     */
+    @Test
+    public void testReuseOnlyWithSameConfiguration() throws Exception {
+        File storeFile = new File(dir, "store");
+        List<File> executed = new ArrayList<>();
+        List<File> files = Arrays.asList(new File("a.c"), new File("b.c"));
+
+        UndertakerExtractor first = createExtractor(storeFile, "config A", true, executed);
+        for (File file : files) {
+            first.runOnFile(file);
+        }
+        assertThat(executed.size(), is(2));
+
+        UndertakerExtractor same = createExtractor(storeFile, "config A", true, executed);
+        for (File file : files) {
+            assertThat(same.runOnFile(file).getElement(0).getCondition(), is(new Variable("CONFIG_A")));
+        }
+        assertThat(executed.size(), is(2));
+
+        UndertakerExtractor different = createExtractor(storeFile, "config B", true, executed);
+        for (File file : files) {
+            different.runOnFile(file);
+        }
+        assertThat(executed.size(), is(4));
+        try (CodeModelStore store = new CodeModelStore(storeFile)) {
+            assertThat(store.getConfiguration(), is("config B"));
+        }
+    }
+
+    /**
+     * Tests whether a store that can't be written anymore does not fail the extraction, and is not completed.
+     *
+     * @throws Exception unwanted.
+     */
+    @Test
+    public void testWriteErrorDoesNotFailExtraction() throws Exception {
+        File storeFile = new File(dir, "store");
+        UndertakerExtractor extractor = createExtractor(storeFile, "", false, new ArrayList<>());
+        extractor.runOnFile(new File("a.c"));
+
+        // discards the store writer, so that writing fails
+        extractor.shutdownWriters();
+
+        SourceFile<CodeBlock> result = extractor.runOnFile(new File("b.c"));
+        assertThat(result.getTopElementCount(), is(1));
+        assertThat(storeFile.exists(), is(false));
+        assertThat(new File(dir, "store.tmp").exists(), is(false));
+    }
+
+}
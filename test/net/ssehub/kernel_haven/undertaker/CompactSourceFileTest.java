@@ -0,0 +1,193 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.util.Iterator;
+
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.code_model.CodeBlock;
+import net.ssehub.kernel_haven.code_model.SourceFile;
+import net.ssehub.kernel_haven.undertaker.CsvToAstConverter.PresenceConditionMode;
+import net.ssehub.kernel_haven.util.FormatException;
+import net.ssehub.kernel_haven.util.logic.Variable;
+
+/**
+ * Tests the {@link CompactSourceFile} created by the {@link CsvToAstConverter}.
+ *
+ * @author agent
+ */
+public class CompactSourceFileTest {
+
+    private static final String CSV = "test.c;2;4;if;0;2;CONFIG_A;CONFIG_A\n"
+            + "test.c;6;8;if;0;6;(CONFIG_B) || !(CONFIG_C);(CONFIG_B) || !(CONFIG_C)\n"
+            + "test.c;8;18;else;0;6;!((CONFIG_B) || !(CONFIG_C));!((CONFIG_B) || !(CONFIG_C))\n"
+            + "test.c;10;12;if;1;10;CONFIG_A;(CONFIG_A) && (!((CONFIG_B) || !(CONFIG_C)))\n"
+            + "test.c;11;11;if;2;11;CONFIG_D;(CONFIG_D) && ((CONFIG_A) && (!((CONFIG_B) || !(CONFIG_C))))\n"
+            + "test.c;12;14;elseif;1;10;!(CONFIG_A) && (CONFIG_B);"
+                    + "(!(CONFIG_A) && (CONFIG_B)) && (!((CONFIG_B) || !(CONFIG_C)))\n"
+            + "test.c;14;16;else;1;10;!(CONFIG_A) && (!(CONFIG_B));"
+                    + "(!(CONFIG_A) && (!(CONFIG_B))) && (!((CONFIG_B) || !(CONFIG_C)))\n"
+            + "test.c;20;22;ifndef;0;20;CONFIG_A;CONFIG_A\n";
+
+    /**
+     * Tests whether the compact file presents the same blocks as a normal file.
+     *
+     * @throws FormatException unwanted.
+     */
+    @Test
+    public void testSameAsNormal() throws FormatException {
+        SourceFile<CodeBlock> expected = new CsvToAstConverter(false, null, PresenceConditionMode.STRUCTURAL)
+                .convert(new File("test.c"), CSV);
+        SourceFile<CodeBlock> actual = createConverter(new FormulaTable()).convert(new File("test.c"), CSV);
+
+        assertThat(actual, instanceOf(CompactSourceFile.class));
+        assertThat(actual.getPath(), is(new File("test.c")));
+        assertThat(actual.getTopElementCount(), is(expected.getTopElementCount()));
+        Iterator<CodeBlock> it = actual.iterator();
+        for (int i = 0; i < expected.getTopElementCount(); i++) {
+            assertBlockEquals(actual.getElement(i), expected.getElement(i));
+            assertBlockEquals(it.next(), expected.getElement(i));
+        }
+        assertThat(it.hasNext(), is(false));
+    }
+
+    /**
+     * Tests the array based accessors of the compact file.
+     *
+     * @throws FormatException unwanted.
+     */
+    @Test
+    public void testArrayAccess() throws FormatException {
+        CompactSourceFile file = (CompactSourceFile) createConverter(new FormulaTable())
+                .convert(new File("test.c"), CSV);
+
+        assertThat(file.getBlockCount(), is(8));
+        assertThat(file.getKind(2), is(BinaryToAstConverter.KIND_ELSE));
+        assertThat(file.getKind(5), is(BinaryToAstConverter.KIND_ELSEIF));
+        assertThat(file.getKind(7), is(BinaryToAstConverter.KIND_IFNDEF));
+        assertThat(file.getParent(4), is(3));
+        assertThat(file.getParent(6), is(2));
+        assertThat(file.getChildCount(-1), is(4));
+        assertThat(file.getChildCount(2), is(3));
+        assertThat(file.getChild(2, 2), is(6));
+        assertThat(file.getLineStart(4), is(11));
+        assertThat(file.getLineEnd(4), is(11));
+    }
+
+    /**
+     * Tests whether equal conditions are stored only once across files.
+     *
+     * @throws FormatException unwanted.
+     */
+    @Test
+    public void testConditionsShared() throws FormatException {
+        FormulaTable table = new FormulaTable();
+        CsvToAstConverter converter = createConverter(table);
+        CompactSourceFile first = (CompactSourceFile) converter.convert(new File("a.c"),
+                "a.c;1;5;if;0;1;CONFIG_A;CONFIG_A\na.c;2;3;if;1;2;CONFIG_B;CONFIG_B && CONFIG_A\n");
+        CompactSourceFile second = (CompactSourceFile) converter.convert(new File("b.c"),
+                "b.c;1;2;if;0;1;CONFIG_B;CONFIG_B\nb.c;4;5;else;0;1;;unused\n");
+
+        assertThat(table.size(), is(2));
+        assertThat(second.getCondition(0), sameInstance(first.getCondition(1)));
+        assertThat(second.getCondition(1), nullValue());
+        assertThat(second.getPresenceCondition(1), is(second.getElement(1).getPresenceCondition()));
+        assertThat(first.getElement(0).getNestedElement(0).getCondition(), is(new Variable("CONFIG_B")));
+    }
+
+    /**
+     * Tests whether views of different blocks are not equal, and views of the same block are equal to each other and
+     * to a normal block with the same values.
+     *
+     * @throws FormatException unwanted.
+     */
+    @Test
+    public void testEquals() throws FormatException {
+        SourceFile<CodeBlock> expected = new CsvToAstConverter(false, null, PresenceConditionMode.STRUCTURAL)
+                .convert(new File("test.c"), CSV);
+        CompactSourceFile file = (CompactSourceFile) createConverter(new FormulaTable())
+                .convert(new File("test.c"), CSV);
+
+        assertThat(file.getElement(0).equals(file.getElement(3)), is(false));
+        assertThat(file.getElement(1).equals(file.getElement(2)), is(false));
+        assertThat(file.getElement(2).getNestedElement(0).equals(file.getElement(2).getNestedElement(1)), is(false));
+
+        // same values, but only the first block has a nested block
+        CompactSourceFile withChild = (CompactSourceFile) createConverter(new FormulaTable()).convert(new File("a.c"),
+                "a.c;1;5;if;0;1;CONFIG_A;CONFIG_A\na.c;2;3;if;1;2;CONFIG_B;CONFIG_B && CONFIG_A\n");
+        CompactSourceFile withoutChild = (CompactSourceFile) createConverter(new FormulaTable())
+                .convert(new File("a.c"), "a.c;1;5;if;0;1;CONFIG_A;CONFIG_A\n");
+        assertThat(withChild.getElement(0).equals(withoutChild.getElement(0)), is(false));
+        assertThat(withoutChild.getElement(0).equals(withChild.getElement(0)), is(false));
+
+        assertThat(file.getElement(2).equals(file.getElement(2)), is(true));
+        assertThat(file.getElement(2).hashCode(), is(file.getElement(2).hashCode()));
+        assertThat(file.getElement(2).equals(expected.getElement(2)), is(true));
+        assertThat(file.getElement(2).getPresenceCondition(), is(expected.getElement(2).getPresenceCondition()));
+    }
+
+    /**
+     * Tests whether the views can't be modified.
+     *
+     * @throws FormatException unwanted.
+     */
+    @Test(expected = UnsupportedOperationException.class)
+    public void testReadOnly() throws FormatException {
+        SourceFile<CodeBlock> file = createConverter(new FormulaTable()).convert(new File("test.c"), CSV);
+        file.getElement(0).addNestedElement(file.getElement(1));
+    }
+
+    /**
+     * Creates a converter for compact output.
+     *
+     * @param table The formula table to use.
+     * @return The converter.
+     */
+    private static CsvToAstConverter createConverter(FormulaTable table) {
+        // PARSE is ignored for compact output; the presence condition column is not parsed
+        CsvToAstConverter converter = new CsvToAstConverter(false, null, PresenceConditionMode.PARSE);
+        converter.setCompactOutput(table);
+        return converter;
+    }
+
+    /**
+     * Asserts that the two blocks and their nested blocks are equal.
+     *
+     * @param actual The actual block.
+     * @param expected The expected block.
+     */
+    private static void assertBlockEquals(CodeBlock actual, CodeBlock expected) {
+        assertThat(actual.getLineStart(), is(expected.getLineStart()));
+        assertThat(actual.getLineEnd(), is(expected.getLineEnd()));
+        assertThat(actual.getSourceFile(), is(expected.getSourceFile()));
+        assertThat(actual.getCondition(), is(expected.getCondition()));
+        assertThat(actual.getPresenceCondition(), is(expected.getPresenceCondition()));
+        assertThat(actual.getNestedElementCount(), is(expected.getNestedElementCount()));
+        for (int i = 0; i < expected.getNestedElementCount(); i++) {
+            assertBlockEquals(actual.getNestedElement(i), expected.getNestedElement(i));
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link CostEstimator}.
+ *
+ * @author agent
+ */
+public class CostEstimatorTest {
+
+    private File tmpDir;
+
+    /**
+     * Creates a temporary source tree.
+     *
+     * @throws IOException unwanted.
+     */
+    @Before
+    public void setUp() throws IOException {
+        tmpDir = Files.createTempDirectory("cost_estimator_test").toFile();
+    }
+
+    /**
+     * Deletes the temporary source tree.
+     */
+    @After
+    public void tearDown() {
+        File[] children = tmpDir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                child.delete();
+            }
+        }
+        tmpDir.delete();
+    }
+
+    /**
+     * Tests counting the conditional directives.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testCountDirectives() throws IOException {
+        File file = new File(tmpDir, "test.c");
+        Files.write(file.toPath(), ("#ifdef A\n"
+                + "  # if B\n"
+                + "int x; # if not a directive\n"
+                + "#elif C\n"
+                + "#else\n"
+                + "#include <x.h>\n"
+                + "\t#ifndef D\n"
+                + "#endif\n"
+                + "#endif\n"
+                + "#if").getBytes(StandardCharsets.UTF_8));
+
+        assertThat(CostEstimator.countConditionalDirectives(file), is(5));
+        assertThat(CostEstimator.countConditionalDirectives(new File(tmpDir, "missing.c")), is(0));
+    }
+
+    /**
+     * Tests whether recorded runtimes are used, and the model is fitted to them.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testFitToHistory() throws IOException {
+        RuntimeHistory history = new RuntimeHistory(new File(tmpDir, "history.csv"), 1000, 1000, 1000, 1, 0);
+        List<File> files = new ArrayList<>();
+        for (int i = 1; i <= 30; i++) {
+            File file = new File("f" + i + ".c");
+            StringBuilder content = new StringBuilder();
+            for (int j = 0; j < i; j++) {
+                content.append("#if A\n#endif\n");
+            }
+            // make the size independent of the number of directives
+            for (int j = 0; j < (i * 37) % 11 * 100; j++) {
+                content.append("/* padding */\n");
+            }
+            Files.write(new File(tmpDir, file.getPath()).toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+            // exactly 100 ms per directive
+            history.record(file, true, i * 100, 1000);
+            files.add(file);
+        }
+        Files.write(new File(tmpDir, "new.c").toPath(), "#if A\n#elif B\n#endif\n".getBytes(StandardCharsets.UTF_8));
+        files.add(new File("new.c"));
+
+        long[] costs = new CostEstimator(tmpDir, history).estimate(files);
+        history.close();
+
+        assertThat(costs[4], is(500L));
+        assertThat(costs[30], is(200L));
+        assertThat(Arrays.stream(costs).sum(), is(46500L + 200L));
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link CsvRecordTokenizer} and the {@link LineBuffer}.
+ *
+ * @author agent
+ */
+public class CsvRecordTokenizerTest {
+
+    /**
+     * Tests whether a valid line is correctly split into its columns.
+     */
+    @Test
+    public void testValidLine() {
+        CsvRecordTokenizer record = new CsvRecordTokenizer();
+        assertThat(record.tokenize("test.c;2;14;elseif;1;10;;(A) && (B)"), is(true));
+
+        assertThat(record.columnEquals(CsvRecordTokenizer.FILENAME, "test.c"), is(true));
+        assertThat(record.columnEquals(CsvRecordTokenizer.FILENAME, "test.h"), is(false));
+        assertThat(record.getInt(CsvRecordTokenizer.LINE_START), is(2));
+        assertThat(record.getInt(CsvRecordTokenizer.LINE_END), is(14));
+        assertThat(record.columnEquals(CsvRecordTokenizer.TYPE, "elseif"), is(true));
+        assertThat(record.columnEquals(CsvRecordTokenizer.TYPE, "else"), is(false));
+        assertThat(record.getInt(CsvRecordTokenizer.NESTING_DEPTH), is(1));
+        assertThat(record.getInt(CsvRecordTokenizer.CORRESPONDING_IF), is(10));
+        assertThat(record.isEmpty(CsvRecordTokenizer.CONDITION), is(true));
+        assertThat(record.getString(CsvRecordTokenizer.PRESENCE_CONDITION), is("(A) && (B)"));
+    }
+
+    /**
+     * Tests whether the number of columns is checked with the same rules as {@link String#split(String)}.
+     */
+    @Test
+    public void testColumnCount() {
+        String[] lines = {
+            "a;1;2;if;0;1;A;A",
+            "a;1;2;if;0;1;A;A;",
+            "a;1;2;if;0;1;A;A;;;",
+            "a;1;2;if;0;1;A",
+            "a;1;2;if;0;1;A;",
+            "a;1;2;if;0;1;;",
+            "a;1;2;if;0;1;A;A;B",
+            "a;1;2;if;0;1;A;A;B;",
+            ";;;;;;;A",
+            "no delimiter",
+        };
+
+        CsvRecordTokenizer record = new CsvRecordTokenizer();
+        for (String line : lines) {
+            assertThat(line, record.tokenize(line), is(line.split(";").length == CsvRecordTokenizer.NUM_COLUMNS));
+        }
+    }
+
+    /**
+     * Tests whether integers are parsed with the same rules as {@link Integer#parseInt(String)}.
+     */
+    @Test
+    public void testIntegers() {
+        String[] values = {"0", "42", "-7", "+7", "2147483647", "-2147483648", "2147483648", "-2147483649", "",
+            "-", "1a", " 1", "99999999999"};
+
+        CsvRecordTokenizer record = new CsvRecordTokenizer();
+        for (String value : values) {
+            assertThat(record.tokenize("a;" + value + ";2;if;0;1;A;A"), is(true));
+
+            String expected;
+            try {
+                expected = String.valueOf(Integer.parseInt(value));
+            } catch (NumberFormatException e) {
+                expected = "invalid";
+            }
+
+            String actual;
+            try {
+                actual = String.valueOf(record.getInt(CsvRecordTokenizer.LINE_START));
+            } catch (NumberFormatException e) {
+                actual = "invalid";
+            }
+
+            assertThat(value, actual, is(expected));
+        }
+    }
+
+    /**
+     * Tests whether the {@link LineBuffer} correctly splits lines, including lines that are longer than its
+     * initial buffer and windows line endings.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testLineBuffer() throws IOException {
+        StringBuilder longLine = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            longLine.append("AB");
+        }
+
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            input.append("line ").append(i).append('\n');
+            input.append(longLine).append("\r\n");
+            input.append('\n');
+        }
+        input.append("last");
+
+        LineBuffer lines = new LineBuffer(new StringReader(input.toString()));
+        for (int i = 0; i < 10; i++) {
+            assertThat(lines.nextLine(), is(true));
+            assertThat(lines.toString(), is("line " + i));
+            assertThat(lines.nextLine(), is(true));
+            assertThat(lines.toString(), is(longLine.toString()));
+            assertThat(lines.subSequence(2, 5), is("ABA"));
+            assertThat(lines.nextLine(), is(true));
+            assertThat(lines.isBlank(), is(true));
+        }
+        assertThat(lines.nextLine(), is(true));
+        assertThat(lines.toString(), is("last"));
+        assertThat(lines.nextLine(), is(false));
+    }
+
+}
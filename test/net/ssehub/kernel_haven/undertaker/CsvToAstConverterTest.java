@@ -19,17 +19,32 @@ package net.ssehub.kernel_haven.undertaker;
 import static net.ssehub.kernel_haven.util.logic.FormulaBuilder.and;
 import static net.ssehub.kernel_haven.util.logic.FormulaBuilder.not;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Test;
 
 import net.ssehub.kernel_haven.code_model.CodeBlock;
 import net.ssehub.kernel_haven.code_model.SourceFile;
+import net.ssehub.kernel_haven.undertaker.CsvToAstConverter.PresenceConditionMode;
 import net.ssehub.kernel_haven.util.FormatException;
+import net.ssehub.kernel_haven.util.logic.Conjunction;
 import net.ssehub.kernel_haven.util.logic.Formula;
+import net.ssehub.kernel_haven.util.logic.Negation;
 import net.ssehub.kernel_haven.util.logic.Variable;
 
 /**
@@ -314,4 +329,322 @@ public class CsvToAstConverterTest {
         assertThat(it.hasNext(), is(false));
     }
     
+    /**
+     * Tests whether conditions with comparisons are directly parsed fuzzy, and the parsing routes are counted.
+     * 
+     * @throws FormatException unwanted.
+     */
+    @Test
+    public void testFuzzyParsingRoutes() throws FormatException {
+        String csv = "test.c;1;10;if;0;1;CONFIG_A;A\n"
+                + "test.c;2;3;if;1;2;NR_CPUS > 1;A\n"
+                + "test.c;4;5;if;1;4;(VAR) != 2 && CONFIG_B;A\n";
+        
+        ParsingStatistics statistics = new ParsingStatistics();
+        CsvToAstConverter converter = new CsvToAstConverter(true, null, PresenceConditionMode.STRUCTURAL,
+                statistics);
+        SourceFile<CodeBlock> result = converter.convert(new File("test.c"), csv);
+        
+        CodeBlock top = result.getElement(0);
+        assertThat(top.getNestedElement(0).getCondition(), is(new Variable("NR_CPUS_gt_1")));
+        assertThat(top.getNestedElement(1).getCondition(), is(and("VAR_ne_2", "CONFIG_B")));
+        
+        assertThat(converter.getParsingStatistics(), sameInstance(statistics));
+        assertThat(statistics.getStrict(), is(1L));
+        assertThat(statistics.getFuzzy(), is(2L));
+        assertThat(statistics.getFuzzyAfterStrict(), is(0L));
+        assertThat(statistics.getFailed(), is(0L));
+    }
+    
+    /**
+     * Tests whether a condition with a comparison, that can't be parsed fuzzy either, is reported as an error.
+     */
+    @Test
+    public void testFuzzyParsingComparisonInvalid() {
+        String csv = "test.c;1;2;if;0;1;A >= 1 ||;A";
+        
+        CsvToAstConverter converter = new CsvToAstConverter(true, null, PresenceConditionMode.STRUCTURAL);
+        try {
+            converter.convert(new File("test.c"), csv);
+            fail("Expected FormatException");
+        } catch (FormatException e) {
+            // expected
+        }
+        assertThat(converter.getParsingStatistics().getFailed(), is(1L));
+    }
+    
+    /**
+     * Tests whether equal variables are represented by the same instance across converted files.
+     * 
+     * @throws FormatException unwanted.
+     */
+    @Test
+    public void testVariablesShared() throws FormatException {
+        CsvToAstConverter converter = new CsvToAstConverter(true, null, PresenceConditionMode.STRUCTURAL);
+        SourceFile<CodeBlock> first = converter.convert(new File("a.c"), "a.c;1;2;if;0;1;CONFIG_A && B > 1;A");
+        SourceFile<CodeBlock> second = converter.convert(new File("b.c"), "b.c;1;2;if;0;1;!CONFIG_A;A");
+        
+        Conjunction firstCondition = (Conjunction) first.getElement(0).getCondition();
+        Negation secondCondition = (Negation) second.getElement(0).getCondition();
+        assertThat(firstCondition.getLeft(), is(new Variable("CONFIG_A")));
+        assertThat(secondCondition.getFormula(), sameInstance(firstCondition.getLeft()));
+    }
+    
+    /**
+     * Tests whether equal sub-formulas of conditions and presence conditions are shared inside a file and across
+     * files.
+     * 
+     * @throws FormatException unwanted.
+     */
+    @Test
+    public void testFormulasShared() throws FormatException {
+        CsvToAstConverter converter = new CsvToAstConverter(false, null, PresenceConditionMode.PARSE);
+        SourceFile<CodeBlock> first = converter.convert(new File("a.c"), "a.c;1;5;if;0;1;A || B;A || B\n"
+                + "a.c;2;3;if;1;2;C;(C) && (A || B)\n");
+        SourceFile<CodeBlock> second = converter.convert(new File("b.c"), "b.c;1;2;if;0;1;!(A || B);!(A || B)\n");
+        
+        CodeBlock parent = first.getElement(0);
+        Conjunction nestedPc = (Conjunction) parent.getNestedElement(0).getPresenceCondition();
+        assertThat(nestedPc.getRight(), sameInstance(parent.getCondition()));
+        assertThat(nestedPc.getLeft(), sameInstance(parent.getNestedElement(0).getCondition()));
+        assertThat(((Negation) second.getElement(0).getCondition()).getFormula(), sameInstance(parent.getCondition()));
+        assertThat(second.getElement(0).getPresenceCondition(), sameInstance(second.getElement(0).getCondition()));
+        
+        // structural presence conditions are shared with equal parsed ones
+        CsvToAstConverter crossCheck = new CsvToAstConverter(false, null, PresenceConditionMode.CROSS_CHECK);
+        SourceFile<CodeBlock> third = crossCheck.convert(new File("c.c"), "c.c;1;5;if;0;1;A;A\n"
+                + "c.c;2;3;if;1;2;C;(C) && (A)\n"
+                + "c.c;7;9;if;0;7;A;A\n"
+                + "c.c;8;8;if;1;8;C;(C) && (A)\n");
+        assertThat(third.getElement(1).getNestedElement(0).getPresenceCondition(),
+                sameInstance(third.getElement(0).getNestedElement(0).getPresenceCondition()));
+    }
+    
+    /**
+     * Tests whether structural presence conditions are not interned, since they already share the presence
+     * condition of their parent.
+     * 
+     * @throws FormatException unwanted.
+     */
+    @Test
+    public void testStructuralNotInterned() throws FormatException {
+        CsvToAstConverter converter = new CsvToAstConverter(false, null, PresenceConditionMode.STRUCTURAL);
+        SourceFile<CodeBlock> file = converter.convert(new File("c.c"), "c.c;1;5;if;0;1;A;A\n"
+                + "c.c;2;3;if;1;2;C;unused\n");
+        
+        CodeBlock parent = file.getElement(0);
+        Conjunction nestedPc = (Conjunction) parent.getNestedElement(0).getPresenceCondition();
+        assertThat(nestedPc.getRight(), sameInstance(parent.getPresenceCondition()));
+        assertThat(converter.getSharedFormulaCount(), is(-1));
+    }
+    
+    /**
+     * Tests whether a single converter can be used by several threads at once.
+     * 
+     * @throws Exception unwanted.
+     */
+    @Test
+    public void testConcurrentConversion() throws Exception {
+        StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            csv.append("test.c;").append(i + 1).append(';').append(i + 1).append(";if;0;").append(i + 1)
+                    .append(";(CONFIG_").append(i % 7).append(") && !(VAR_").append(i).append(" >= ").append(i % 3)
+                    .append(");A\n");
+        }
+        CsvToAstConverter converter = new CsvToAstConverter(true, null, PresenceConditionMode.STRUCTURAL);
+        SourceFile<CodeBlock> expected = new CsvToAstConverter(true, null, PresenceConditionMode.STRUCTURAL)
+                .convert(new File("test.c"), csv.toString());
+        
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<SourceFile<CodeBlock>>> results = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                results.add(executor.submit(() -> converter.convert(new File("test.c"), csv.toString())));
+            }
+            for (Future<SourceFile<CodeBlock>> result : results) {
+                SourceFile<CodeBlock> actual = result.get();
+                assertThat(actual.getTopElementCount(), is(expected.getTopElementCount()));
+                for (int i = 0; i < expected.getTopElementCount(); i++) {
+                    assertThat(actual.getElement(i).getCondition(), is(expected.getElement(i).getCondition()));
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        
+        assertThat(converter.getParsingStatistics().getFuzzy(), is(64L * 100));
+    }
+    
+    /**
+     * Tests whether the presence conditions are correctly built from the conditions, without parsing the presence
+     * condition column.
+     * 
+     * @throws FormatException unwanted.
+     */
+    @Test
+    public void testStructuralPresenceConditions() throws FormatException {
+        // the presence condition column is not parseable, to ensure that it is not used
+        String csv = "test.c;1;100;if;0;1;CONFIG_A;NOT_PARSEABLE ||\n"
+                + "test.c;4;50;if;1;4;CONFIG_C;NOT_PARSEABLE ||\n"
+                + "test.c;5;6;if;2;5;CONFIG_D;NOT_PARSEABLE ||\n"
+                + "test.c;6;7;else;2;5;!(CONFIG_D);NOT_PARSEABLE ||\n"
+                + "test.c;51;52;if;1;51;CONFIG_E;NOT_PARSEABLE ||\n";
+        
+        CsvToAstConverter converter = new CsvToAstConverter(false, null, PresenceConditionMode.STRUCTURAL);
+        SourceFile<CodeBlock> result = converter.convert(new File("test.c"), csv);
+        
+        assertThat(result.getTopElementCount(), is(1));
+        CodeBlock top = result.getElement(0);
+        assertThat(top.getPresenceCondition(), is(new Variable("CONFIG_A")));
+        assertThat(top.getNestedElementCount(), is(2));
+        
+        CodeBlock nested = top.getNestedElement(0);
+        assertThat(nested.getPresenceCondition(), is(and("CONFIG_C", "CONFIG_A")));
+        assertThat(nested.getNestedElementCount(), is(2));
+        assertThat(nested.getNestedElement(0).getPresenceCondition(),
+                is(and("CONFIG_D", and("CONFIG_C", "CONFIG_A"))));
+        assertThat(nested.getNestedElement(1).getCondition(), is(not("CONFIG_D")));
+        assertThat(nested.getNestedElement(1).getPresenceCondition(),
+                is(and(not("CONFIG_D"), and("CONFIG_C", "CONFIG_A"))));
+        
+        assertThat(top.getNestedElement(1).getPresenceCondition(), is(and("CONFIG_E", "CONFIG_A")));
+    }
+    
+    /**
+     * Tests whether the structural presence conditions are the same as the parsed ones for real pilztaker output.
+     * 
+     * @throws FormatException unwanted.
+     */
+    @Test
+    public void testStructuralEqualsParsed() throws FormatException {
+        String csv = "test.c;2;4;if;0;2;CONFIG_A;CONFIG_A\n"
+                + "test.c;6;8;if;0;6;(CONFIG_B) || !(CONFIG_C);(CONFIG_B) || !(CONFIG_C)\n"
+                + "test.c;8;18;else;0;6;!((CONFIG_B) || !(CONFIG_C));!((CONFIG_B) || !(CONFIG_C))\n"
+                + "test.c;10;12;if;1;10;CONFIG_A;(CONFIG_A) && (!((CONFIG_B) || !(CONFIG_C)))\n"
+                + "test.c;12;14;elseif;1;10;!(CONFIG_A) && (CONFIG_B);"
+                        + "(!(CONFIG_A) && (CONFIG_B)) && (!((CONFIG_B) || !(CONFIG_C)))\n"
+                + "test.c;14;16;else;1;10;!(CONFIG_A) && (!(CONFIG_B));"
+                        + "(!(CONFIG_A) && (!(CONFIG_B))) && (!((CONFIG_B) || !(CONFIG_C)))\n";
+        
+        SourceFile<CodeBlock> parsed = new CsvToAstConverter(false, null, PresenceConditionMode.PARSE)
+                .convert(new File("test.c"), csv);
+        SourceFile<CodeBlock> structural = new CsvToAstConverter(false, null, PresenceConditionMode.STRUCTURAL)
+                .convert(new File("test.c"), csv);
+        
+        assertThat(structural.getTopElementCount(), is(3));
+        for (int i = 0; i < 3; i++) {
+            assertThat(structural.getElement(i).getPresenceCondition(),
+                    is(parsed.getElement(i).getPresenceCondition()));
+        }
+        CodeBlock elseBlock = structural.getElement(2);
+        CodeBlock parsedElseBlock = parsed.getElement(2);
+        assertThat(elseBlock.getNestedElementCount(), is(3));
+        for (int i = 0; i < 3; i++) {
+            assertThat(elseBlock.getNestedElement(i).getPresenceCondition(),
+                    is(parsedElseBlock.getNestedElement(i).getPresenceCondition()));
+        }
+    }
+    
+    /**
+     * Tests whether converting the bytes of the CSV directly gives the same result as converting the string, for
+     * Windows line endings, blank lines, a missing last line terminator, lines longer than the pooled buffer and a
+     * non-ASCII filename.
+     * 
+     * @throws FormatException unwanted.
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testConvertBytes() throws FormatException, IOException {
+        StringBuilder longCondition = new StringBuilder("CONFIG_0");
+        for (int i = 1; longCondition.length() <= ByteLineBuffer.BUFFER_SIZE; i++) {
+            longCondition.append(" || CONFIG_").append(i);
+        }
+        String csv = "dir/\u00e4.c;1;9;if;0;1;CONFIG_A;CONFIG_A\r\n"
+                + "\r\n"
+                + "dir/\u00e4.c;2;3;if;1;2;" + longCondition + ";unused\n"
+                + "dir/\u00e4.c;11;12;if;0;11;!CONFIG_A;!CONFIG_A";
+        File file = new File("dir/\u00e4.c");
+        
+        CsvToAstConverter converter = new CsvToAstConverter(false, null, PresenceConditionMode.STRUCTURAL);
+        SourceFile<CodeBlock> expected = converter.convert(file, csv);
+        SourceFile<CodeBlock> actual = converter.convert(file,
+                new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)));
+        
+        assertThat(actual.getTopElementCount(), is(2));
+        for (int i = 0; i < 2; i++) {
+            CodeBlock expectedBlock = expected.getElement(i);
+            CodeBlock actualBlock = actual.getElement(i);
+            assertThat(actualBlock.getLineStart(), is(expectedBlock.getLineStart()));
+            assertThat(actualBlock.getLineEnd(), is(expectedBlock.getLineEnd()));
+            assertThat(actualBlock.getPresenceCondition(), is(expectedBlock.getPresenceCondition()));
+            assertThat(actualBlock.getNestedElementCount(), is(expectedBlock.getNestedElementCount()));
+        }
+        assertThat(actual.getElement(0).getNestedElement(0).getCondition(),
+                is(expected.getElement(0).getNestedElement(0).getCondition()));
+    }
+    
+    /**
+     * Tests whether each top-level block is passed to the consumer as soon as the next top-level line is read,
+     * before the rest of the input.
+     * 
+     * @throws FormatException unwanted.
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testConvertTopLevelBlocks() throws FormatException, IOException {
+        String[] lines = {
+            "test.c;1;9;if;0;1;CONFIG_A;CONFIG_A\n",
+            "test.c;2;5;if;1;2;CONFIG_B;(CONFIG_B) && (CONFIG_A)\n",
+            "test.c;3;4;if;2;3;CONFIG_C;(CONFIG_C) && ((CONFIG_B) && (CONFIG_A))\n",
+            "test.c;6;8;if;1;6;CONFIG_D;(CONFIG_D) && (CONFIG_A)\n",
+            "test.c;11;12;if;0;11;CONFIG_E;CONFIG_E\n",
+            "test.c;14;16;if;0;14;CONFIG_F;CONFIG_F\n",
+        };
+        
+        // returns one line per read, so the number of lines read so far is known
+        int[] linesRead = {0};
+        InputStream in = new InputStream() {
+            
+            @Override
+            public int read() {
+                throw new UnsupportedOperationException();
+            }
+            
+            @Override
+            public int read(byte[] buffer, int offset, int length) {
+                int result = -1;
+                if (linesRead[0] < lines.length) {
+                    byte[] line = lines[linesRead[0]++].getBytes(StandardCharsets.UTF_8);
+                    System.arraycopy(line, 0, buffer, offset, line.length);
+                    result = line.length;
+                }
+                return result;
+            }
+            
+        };
+        
+        List<CodeBlock> blocks = new ArrayList<>();
+        List<Integer> linesReadWhenFinished = new ArrayList<>();
+        CsvToAstConverter converter = new CsvToAstConverter(false, null, PresenceConditionMode.STRUCTURAL);
+        int numBlocks = converter.convert(new File("test.c"), in, (block) -> {
+            blocks.add(block);
+            linesReadWhenFinished.add(linesRead[0]);
+        });
+        
+        assertThat(numBlocks, is(3));
+        assertThat(blocks.size(), is(3));
+        assertThat(linesReadWhenFinished, is(Arrays.asList(5, 6, 6)));
+        
+        CodeBlock first = blocks.get(0);
+        assertThat(first.getLineStart(), is(1));
+        assertThat(first.getNestedElementCount(), is(2));
+        assertThat(first.getNestedElement(0).getNestedElementCount(), is(1));
+        assertThat(first.getNestedElement(0).getNestedElement(0).getPresenceCondition(),
+                is(and("CONFIG_C", and("CONFIG_B", "CONFIG_A"))));
+        assertThat(first.getNestedElement(1).getLineStart(), is(6));
+        assertThat(blocks.get(1).getLineStart(), is(11));
+        assertThat(blocks.get(1).getNestedElementCount(), is(0));
+        assertThat(blocks.get(2).getLineStart(), is(14));
+    }
+    
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.undertaker.CsvToAstConverter.PresenceConditionMode;
+import net.ssehub.kernel_haven.undertaker.ExtractionMetrics.FileMetrics;
+import net.ssehub.kernel_haven.undertaker.ExtractionMetrics.Histogram;
+import net.ssehub.kernel_haven.util.FormatException;
+
+/**
+ * Tests the {@link ExtractionMetrics}.
+ *
+ * @author agent
+ */
+public class ExtractionMetricsTest {
+
+    /**
+     * Tests the counts, bounds and percentiles of a histogram.
+     */
+    @Test
+    public void testHistogram() {
+        Histogram histogram = new Histogram("ms");
+        for (int i = 1; i <= 100; i++) {
+            histogram.add(i);
+        }
+        histogram.add(ExtractionMetrics.UNKNOWN);
+
+        assertThat(histogram.getCount(), is(100L));
+        assertThat(histogram.getSum(), is(5050L));
+        assertThat(histogram.getMax(), is(100L));
+        // 50 is in the bucket 32..63, 90 and 99 in the bucket 64..127
+        assertThat(histogram.getPercentile(0.5), is(63L));
+        assertThat(histogram.getPercentile(0.9), is(100L));
+        assertThat(histogram.getPercentile(0.01), is(1L));
+    }
+
+    /**
+     * Tests whether the converter records the lines, blocks, nesting depth and parsed conditions of each file.
+     *
+     * @throws FormatException unwanted.
+     */
+    @Test
+    public void testConversionMetrics() throws FormatException {
+        ExtractionMetrics metrics = new ExtractionMetrics(new File("unused"), 0);
+        CsvToAstConverter converter = new CsvToAstConverter(false, new FormulaCache(100),
+                PresenceConditionMode.STRUCTURAL);
+        converter.setMetrics(metrics);
+
+        converter.convert(new File("a.c"), "a.c;1;9;if;0;1;A;A\n"
+                + "\n"
+                + "a.c;2;8;if;1;2;B;unused\n"
+                + "a.c;3;4;if;2;3;A;unused\n");
+        converter.convert(new File("b.c"), "");
+
+        FileMetrics a = metrics.getFileMetrics(new File("a.c"));
+        assertThat(a.getBlocks(), is(3L));
+        assertThat(a.getNestingDepth(), is(3L));
+        assertThat(a.getStrict(), is(2));
+        assertThat(a.getWallTime(), is(ExtractionMetrics.UNKNOWN));
+
+        FileMetrics b = metrics.getFileMetrics(new File("b.c"));
+        assertThat(b.getBlocks(), is(0L));
+        assertThat(b.getNestingDepth(), is(0L));
+    }
+
+    /**
+     * Tests whether the report contains the aggregated metrics and a line for each file.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testReport() throws IOException {
+        File reportDir = Files.createTempDirectory("metrics_test").toFile();
+        ExtractionMetrics metrics = new ExtractionMetrics(reportDir, 0);
+
+        metrics.recordExecution(new File("a.c"), 2000000, 150000000, 4096, false);
+        metrics.recordConversion(new File("a.c"), 3000000, 40, 40, 2, 30, 5, 5);
+        metrics.fileFinished(true);
+        metrics.recordExecution(new File("dir/b;c.c"), 1000000, 20000000000L, 0, true);
+        metrics.fileFinished(false);
+        assertThat(metrics.getFileMetrics(new File("dir/b;c.c")).isTimedOut(), is(true));
+        assertThat(metrics.getProgressLine(), containsString("2 files (1 failed, 1 timeouts), 40 blocks"));
+
+        metrics.writeReport();
+
+        String json = new String(Files.readAllBytes(new File(reportDir, "metrics.json").toPath()),
+                StandardCharsets.UTF_8);
+        assertThat(json, containsString("\"files\": 2,"));
+        assertThat(json, containsString("\"timeouts\": 1,"));
+        assertThat(json, containsString("\"conditions\": {\"strict\": 30, \"fuzzy\": 5, \"cached\": 5}"));
+
+        List<String> csv = Files.readAllLines(new File(reportDir, "metrics.csv").toPath(), StandardCharsets.UTF_8);
+        assertThat(csv.size(), is(3));
+        assertThat(csv.get(1), is("a.c;2.000;150.000;4096;40;40;2;30;5;5;3.000;false"));
+        assertThat(csv.get(2), is("\"dir/b;c.c\";1.000;20000.000;0;;;;0;0;0;;true"));
+
+        new File(reportDir, "metrics.json").delete();
+        new File(reportDir, "metrics.csv").delete();
+        reportDir.delete();
+    }
+
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.code_model.CodeBlock;
+import net.ssehub.kernel_haven.code_model.SourceFile;
+import net.ssehub.kernel_haven.util.FormatException;
+import net.ssehub.kernel_haven.util.logic.Variable;
+
+/**
+ * Tests the {@link ExtractionPipeline} with fake {@link IUndertakerRunner}s.
+ *
+ * @author agent
+ */
+public class ExtractionPipelineTest {
+
+    /**
+     * Creates the CSV output of pilztaker for a file with a single block.
+     *
+     * @param file The file.
+     * @return The CSV.
+     */
+    private static String csv(File file) {
+        return file.getPath() + ";1;2;if;0;1;CONFIG_A;CONFIG_A\n";
+    }
+
+    /**
+     * Returns the number of live threads of all pipelines.
+     *
+     * @return The number of pipeline threads.
+     */
+    private static int countPipelineThreads() {
+        int result = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("UndertakerPipeline-") && thread.isAlive()) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Tests whether files are executed and converted, and whether the statistics count both stages.
+     *
+     * @throws IOException unwanted.
+     * @throws FormatException unwanted.
+     */
+    @Test(timeout = 20000)
+    public void testRunOnFile() throws IOException, FormatException {
+        ExtractionPipeline pipeline = new ExtractionPipeline(
+            (file) -> file.getName().equals("missing.c") ? null : csv(file),
+            new CsvToAstConverter(false), 2, 2, 4);
+        try {
+            SourceFile<CodeBlock> result = pipeline.runOnFile(new File("dir/a.c"));
+            assertThat(result.getPath(), is(new File("dir/a.c")));
+            assertThat(result.getTopElementCount(), is(1));
+            assertThat(result.getElement(0).getCondition(), is(new Variable("CONFIG_A")));
+
+            assertThat(pipeline.runOnFile(new File("missing.c")), nullValue());
+
+            assertThat(pipeline.getStatistics().getExecutions(), is(2L));
+            assertThat(pipeline.getStatistics().getConversions(), is(1L));
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    /**
+     * Tests whether exceptions of both stages are thrown to the caller.
+     *
+     * @throws FormatException unwanted.
+     */
+    @Test(timeout = 20000)
+    public void testErrorPropagation() throws FormatException {
+        IOException executionError = new IOException("execution failed");
+        ExtractionPipeline pipeline = new ExtractionPipeline((file) -> {
+            if (file.getName().equals("error.c")) {
+                throw executionError;
+            }
+            return "invalid csv\n";
+        }, new CsvToAstConverter(false), 1, 1, 1);
+        try {
+            try {
+                pipeline.runOnFile(new File("error.c"));
+                fail("expected IOException");
+            } catch (IOException e) {
+                assertThat(e, sameInstance(executionError));
+            }
+
+            try {
+                pipeline.runOnFile(new File("a.c"));
+                fail("expected FormatException");
+            } catch (FormatException | IOException e) {
+                assertThat(e, instanceOf(FormatException.class));
+            }
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    /**
+     * Tests whether files wait for a free execution thread, and outputs wait in the bounded queue for a free
+     * conversion thread, while the other stage continues.
+     *
+     * @throws Exception unwanted.
+     */
+    @Test(timeout = 20000)
+    public void testQueueing() throws Exception {
+        CountDownLatch conversionStarted = new CountDownLatch(1);
+        CountDownLatch releaseConversion = new CountDownLatch(1);
+        CsvToAstConverter slowConverter = new CsvToAstConverter(false) {
+
+            @Override
+            public SourceFile<CodeBlock> convert(File filePath, String csv) throws FormatException {
+                conversionStarted.countDown();
+                try {
+                    releaseConversion.await();
+                } catch (InterruptedException e) {
+                    throw new FormatException(e.toString());
+                }
+                return super.convert(filePath, csv);
+            }
+
+        };
+
+        ExtractionPipeline pipeline = new ExtractionPipeline(ExtractionPipelineTest::csv, slowConverter, 1, 1, 2);
+        ExecutorService callers = Executors.newFixedThreadPool(6);
+        try {
+            List<Future<SourceFile<CodeBlock>>> results = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                File file = new File("file" + i + ".c");
+                results.add(callers.submit(() -> pipeline.runOnFile(file)));
+            }
+
+            // one output is converted, two wait in the queue, one waits for the queue in the execution thread,
+            // and two wait for the execution thread
+            conversionStarted.await();
+            long deadline = System.currentTimeMillis() + 10000;
+            while ((pipeline.getConversionQueueDepth() < 2 || pipeline.getExecutionQueueDepth() < 2)
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertThat(pipeline.getConversionQueueDepth(), is(2));
+            assertThat(pipeline.getExecutionQueueDepth(), is(2));
+
+            releaseConversion.countDown();
+            for (int i = 0; i < 6; i++) {
+                assertThat(results.get(i).get().getPath(), is(new File("file" + i + ".c")));
+            }
+            assertThat(pipeline.getStatistics().getConversions(), is(6L));
+            assertThat(pipeline.getStatistics().getMaxConversionQueueDepth(), is(2));
+            assertThat(pipeline.getStatistics().getMaxExecutionQueueDepth() >= 2, is(true));
+
+        } finally {
+            releaseConversion.countDown();
+            callers.shutdown();
+            pipeline.close();
+        }
+    }
+
+    /**
+     * Tests whether closing the pipeline stops its threads and fails the files that are still waiting.
+     *
+     * @throws Exception unwanted.
+     */
+    @Test(timeout = 20000)
+    public void testClose() throws Exception {
+        CountDownLatch executionStarted = new CountDownLatch(1);
+        ExtractionPipeline pipeline = new ExtractionPipeline((file) -> {
+            executionStarted.countDown();
+            try {
+                Thread.sleep(60000);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return csv(file);
+        }, new CsvToAstConverter(false), 1, 2, 1);
+        assertThat(countPipelineThreads() >= 2, is(true));
+
+        ExecutorService callers = Executors.newFixedThreadPool(2);
+        try {
+            Future<SourceFile<CodeBlock>> running = callers.submit(() -> pipeline.runOnFile(new File("a.c")));
+            executionStarted.await();
+            Future<SourceFile<CodeBlock>> waiting = callers.submit(() -> pipeline.runOnFile(new File("b.c")));
+            long deadline = System.currentTimeMillis() + 10000;
+            while (pipeline.getExecutionQueueDepth() < 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            pipeline.close();
+
+            for (Future<SourceFile<CodeBlock>> result : Arrays.asList(running, waiting)) {
+                try {
+                    result.get(10, TimeUnit.SECONDS);
+                    fail("expected IOException");
+                } catch (ExecutionException e) {
+                    assertThat(e.getCause(), instanceOf(IOException.class));
+                }
+            }
+            try {
+                pipeline.runOnFile(new File("c.c"));
+                fail("expected IOException");
+            } catch (IOException e) {
+                // expected
+            }
+            assertThat(countPipelineThreads(), is(0));
+
+        } finally {
+            callers.shutdown();
+            pipeline.close();
+        }
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.code_model.CodeBlock;
+import net.ssehub.kernel_haven.code_model.SourceFile;
+import net.ssehub.kernel_haven.util.FormatException;
+import net.ssehub.kernel_haven.util.logic.Variable;
+
+/**
+ * Tests the {@link FormulaCache}.
+ *
+ * @author agent
+ */
+public class FormulaCacheTest {
+
+    /**
+     * Tests whether the hit and miss counters are correct.
+     */
+    @Test
+    public void testHitsAndMisses() {
+        FormulaCache cache = new FormulaCache(100);
+        Variable a = new Variable("A");
+
+        assertThat(cache.get("A"), nullValue());
+        cache.put("A", a);
+        assertThat(cache.get("A"), sameInstance(a));
+        assertThat(cache.get("A"), sameInstance(a));
+
+        assertThat(cache.getHits(), is(2L));
+        assertThat(cache.getMisses(), is(1L));
+        assertThat(cache.size(), is(1));
+    }
+
+    /**
+     * Tests whether the cache does not grow above its maximum size and keeps recently used entries.
+     */
+    @Test
+    public void testEviction() {
+        FormulaCache cache = new FormulaCache(160);
+        cache.put("KEEP", new Variable("KEEP"));
+
+        for (int i = 0; i < 10000; i++) {
+            cache.put("VAR_" + i, new Variable("VAR_" + i));
+            cache.get("KEEP");
+        }
+
+        assertThat(cache.size() <= 160, is(true));
+        assertThat(cache.get("KEEP"), is(new Variable("KEEP")));
+        assertThat(cache.get("VAR_0"), nullValue());
+    }
+
+    /**
+     * Tests whether converters that share a cache share the parsed formulas.
+     *
+     * @throws FormatException unwanted.
+     */
+    @Test
+    public void testSharedBetweenConverters() throws FormatException {
+        FormulaCache cache = new FormulaCache(100);
+        String csv = "test.c;1;2;if;0;1;CONFIG_A && CONFIG_B;CONFIG_A && CONFIG_B\n";
+
+        SourceFile<CodeBlock> first = new CsvToAstConverter(false, cache).convert(new File("test.c"), csv);
+        SourceFile<CodeBlock> second = new CsvToAstConverter(false, cache).convert(new File("test.c"), csv);
+
+        assertThat(second.getElement(0).getCondition(), sameInstance(first.getElement(0).getCondition()));
+        assertThat(cache.getMisses(), is(1L));
+        assertThat(cache.getHits(), is(3L));
+    }
+
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import static net.ssehub.kernel_haven.util.logic.FormulaBuilder.and;
+import static net.ssehub.kernel_haven.util.logic.FormulaBuilder.not;
+import static net.ssehub.kernel_haven.util.logic.FormulaBuilder.or;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.code_model.CodeBlock;
+import net.ssehub.kernel_haven.code_model.SourceFile;
+import net.ssehub.kernel_haven.util.FormatException;
+import net.ssehub.kernel_haven.util.logic.False;
+import net.ssehub.kernel_haven.util.logic.Formula;
+import net.ssehub.kernel_haven.util.logic.True;
+import net.ssehub.kernel_haven.util.logic.Variable;
+
+/**
+ * Tests the {@link FormulaCodec}. Also provides the source files that the tests of the {@link ShardWriter} and the
+ * {@link CodeModelStoreWriter}, which both use it, write.
+ *
+ * @author agent
+ */
+public class FormulaCodecTest {
+
+    private static final Formula A = and("CONFIG_A", not("CONFIG_B"));
+
+    private static final Formula B = or("CONFIG_C", "CONFIG_D");
+
+    /**
+     * Creates a source file with a single top-level block.
+     *
+     * @param path The path of the source file.
+     * @param variable The variable of the condition of the block.
+     * @return The source file.
+     */
+    static SourceFile<CodeBlock> createFile(String path, String variable) {
+        File file = new File(path);
+        SourceFile<CodeBlock> result = new SourceFile<>(file);
+        result.addElement(new CodeBlock(1, 2, file, and(variable, "CONFIG_X"), and(variable, "CONFIG_X")));
+        return result;
+    }
+
+    /**
+     * Creates a source file with nested blocks, shared formulas, a block without condition and all formula types.
+     * Check a read copy with {@link #assertNestedFile(SourceFile, File)}.
+     *
+     * @param path The path of the source file.
+     * @return The source file.
+     */
+    static SourceFile<CodeBlock> createNestedFile(File path) {
+        SourceFile<CodeBlock> result = new SourceFile<>(path);
+        CodeBlock top = new CodeBlock(1, 10, path, A, A);
+        top.addNestedElement(new CodeBlock(2, 5, path, B, and(B, A)));
+        top.addNestedElement(new CodeBlock(6, 9, path, null, A));
+        result.addElement(top);
+        result.addElement(new CodeBlock(12, 14, path, True.INSTANCE, True.INSTANCE));
+        result.addElement(new CodeBlock(15, 16, path, False.INSTANCE, False.INSTANCE));
+        return result;
+    }
+
+    /**
+     * Checks that the given source file is a copy of the file created by {@link #createNestedFile(File)}.
+     *
+     * @param read The source file to check.
+     * @param path The path that the source file was created with.
+     */
+    static void assertNestedFile(SourceFile<CodeBlock> read, File path) {
+        assertThat(read.getPath(), is(path));
+        assertThat(read.getTopElementCount(), is(3));
+        CodeBlock top = read.getElement(0);
+        assertThat(top.getLineStart(), is(1));
+        assertThat(top.getLineEnd(), is(10));
+        assertThat(top.getCondition(), is(A));
+        assertThat(top.getNestedElementCount(), is(2));
+        assertThat(top.getNestedElement(0).getCondition(), is(B));
+        assertThat(top.getNestedElement(0).getPresenceCondition(), is(and(B, A)));
+        assertThat(top.getNestedElement(1).getCondition(), nullValue());
+        assertThat(top.getNestedElement(1).getLineStart(), is(6));
+        assertThat(read.getElement(1).getPresenceCondition(), is(True.INSTANCE));
+        assertThat(read.getElement(2).getCondition(), is(False.INSTANCE));
+    }
+
+    /**
+     * Decodes all formulas written by the given codec.
+     *
+     * @param codec The codec to decode the formula table of.
+     * @return The formulas by their id.
+     *
+     * @throws IOException unwanted.
+     * @throws FormatException If the formula table is invalid.
+     */
+    private static Formula[] decodeAll(FormulaCodec codec) throws IOException, FormatException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        codec.writeTo(new DataOutputStream(bytes));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+
+        Formula[] result = new Formula[in.readInt()];
+        FormulaCodec.Resolver resolver = new FormulaCodec.Resolver() {
+
+            @Override
+            public Formula getFormula(int id) {
+                return result[id];
+            }
+
+            @Override
+            public Variable getVariable(int index) {
+                return new Variable(codec.getVariableNames().get(index));
+            }
+
+        };
+        for (int i = 0; i < result.length; i++) {
+            result[i] = FormulaCodec.decode(i, in.readInt(), in.readInt(), in.readInt(), resolver);
+        }
+        return result;
+    }
+
+    /**
+     * Tests whether all formula types are decoded to equal formulas.
+     *
+     * @throws Exception unwanted.
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        FormulaCodec codec = new FormulaCodec();
+        Formula nested = or(and(A, B), not(B));
+        int a = codec.add(A);
+        int b = codec.add(B);
+        int n = codec.add(nested);
+        int t = codec.add(True.INSTANCE);
+        int f = codec.add(False.INSTANCE);
+
+        Formula[] decoded = decodeAll(codec);
+        assertThat(decoded.length, is(codec.size()));
+        assertThat(decoded[a], is(A));
+        assertThat(decoded[b], is(B));
+        assertThat(decoded[n], is(nested));
+        assertThat(decoded[t], is(True.INSTANCE));
+        assertThat(decoded[f], is(False.INSTANCE));
+        assertThat(codec.getVariableNames(), is(Arrays.asList("CONFIG_A", "CONFIG_B", "CONFIG_C", "CONFIG_D")));
+    }
+
+    /**
+     * Tests whether equal formulas get the same id, also if they are different instances, and different formulas
+     * with the same operands get different ids.
+     */
+    @Test
+    public void testEqualFormulas() {
+        FormulaCodec codec = new FormulaCodec();
+        int id = codec.add(and("CONFIG_A", "CONFIG_B"));
+        int size = codec.size();
+
+        assertThat(codec.add(and("CONFIG_A", "CONFIG_B")), is(id));
+        codec.clearInstances();
+        assertThat(codec.add(and("CONFIG_A", "CONFIG_B")), is(id));
+        assertThat(codec.size(), is(size));
+
+        assertThat(codec.add(or("CONFIG_A", "CONFIG_B")) == id, is(false));
+        assertThat(codec.add(and("CONFIG_B", "CONFIG_A")) == id, is(false));
+        assertThat(codec.size(), is(size + 2));
+        assertThat(codec.getVariableNames().size(), is(2));
+    }
+
+    /**
+     * Tests whether the ids stay distinct and stable when the hash table grows.
+     *
+     * @throws Exception unwanted.
+     */
+    @Test
+    public void testManyFormulas() throws Exception {
+        FormulaCodec codec = new FormulaCodec();
+        int[] ids = new int[1000];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = codec.add(and("CONFIG_" + i, not("CONFIG_" + (i + 1))));
+        }
+        codec.clearInstances();
+        for (int i = 0; i < ids.length; i++) {
+            assertThat(codec.add(and("CONFIG_" + i, not("CONFIG_" + (i + 1)))), is(ids[i]));
+        }
+
+        Formula[] decoded = decodeAll(codec);
+        for (int i = 0; i < ids.length; i++) {
+            assertThat(decoded[ids[i]], is(and("CONFIG_" + i, not("CONFIG_" + (i + 1)))));
+        }
+    }
+
+    /**
+     * Tests that unknown tags and operands that are not before the formula are rejected.
+     */
+    @Test
+    public void testInvalidEntries() {
+        FormulaCodec.Resolver resolver = new FormulaCodec.Resolver() {
+
+            @Override
+            public Formula getFormula(int id) {
+                return True.INSTANCE;
+            }
+
+            @Override
+            public Variable getVariable(int index) {
+                return new Variable("CONFIG_A");
+            }
+
+        };
+        int[][] entries = {
+            {99, 0, 0},
+            {FormulaCodec.FORMULA_NEGATION, 1, 0},
+            {FormulaCodec.FORMULA_CONJUNCTION, 0, 1},
+            {FormulaCodec.FORMULA_DISJUNCTION, -1, 0},
+        };
+        for (int[] entry : entries) {
+            try {
+                FormulaCodec.decode(1, entry[0], entry[1], entry[2], resolver);
+                fail("expected FormatException for " + Arrays.toString(entry));
+            } catch (FormatException e) {
+                // expected
+            }
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import static net.ssehub.kernel_haven.util.logic.FormulaBuilder.and;
+import static net.ssehub.kernel_haven.util.logic.FormulaBuilder.not;
+import static net.ssehub.kernel_haven.util.logic.FormulaBuilder.or;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.util.logic.Conjunction;
+import net.ssehub.kernel_haven.util.logic.Disjunction;
+import net.ssehub.kernel_haven.util.logic.Formula;
+
+/**
+ * Tests the {@link FormulaInterner}.
+ *
+ * @author agent
+ */
+public class FormulaInternerTest {
+
+    /**
+     * Tests whether separately created equal formulas are interned to the same instance.
+     */
+    @Test
+    public void testEqualFormulasShared() {
+        FormulaInterner interner = new FormulaInterner(new InterningVariableCache());
+
+        Formula first = interner.intern(and(or("A", "B"), not("C")));
+        Formula second = interner.intern(and(or("A", "B"), not("C")));
+        Formula third = interner.intern(or(not("C"), or("A", "B")));
+
+        assertThat(second, sameInstance(first));
+        // A || B, !C, the conjunction and the disjunction
+        assertThat(interner.size(), is(4));
+        assertThat(((Disjunction) third).getLeft(), sameInstance(((Conjunction) first).getRight()));
+        assertThat(((Disjunction) third).getRight(), sameInstance(((Conjunction) first).getLeft()));
+    }
+
+    /**
+     * Tests whether already interned formulas are kept, and conjunctions of interned formulas are shared.
+     */
+    @Test
+    public void testConjunction() {
+        FormulaInterner interner = new FormulaInterner(new InterningVariableCache());
+        Formula interned = interner.intern(not("A"));
+        assertThat(interner.intern(interned), sameInstance(interned));
+
+        Formula conjunction = interner.conjunction(interned, interner.intern(not("A")));
+        assertThat(conjunction, is(and(not("A"), not("A"))));
+        assertThat(interner.intern(and(not("A"), not("A"))), sameInstance(conjunction));
+        assertThat(interner.conjunction(interned, interned), sameInstance(conjunction));
+    }
+
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link FuzzyNormalizer}. The results are compared to the previous implementation, which removed the
+ * brackets with a regular expression and then replaced the operators one after another.
+ *
+ * @author agent
+ */
+public class FuzzyNormalizerTest {
+
+    private static final Pattern UNECESSARY_BRACKET_PATTERN = Pattern.compile("\\(([ \\w]+)\\)");
+
+    /**
+     * Characters for random conditions; contains everything that the normalizer handles specially.
+     */
+    private static final char[] ALPHABET = {'A', 'b', '_', '1', ' ', ' ', '\t', '(', '(', ')', ')', '=', '=', '!',
+        '<', '>', '&', '|'};
+
+    /**
+     * Tests some typical conditions.
+     */
+    @Test
+    public void testExamples() {
+        assertThat(FuzzyNormalizer.normalize("(CONFIG_A) && !((CONFIG_B))"), is("CONFIG_A && !CONFIG_B"));
+        assertThat(FuzzyNormalizer.normalize("((A) B) || C"), is("A B || C"));
+        assertThat(FuzzyNormalizer.normalize("(A >= 3) && B < 4"), is("(A_ge_3) && B_lt_4"));
+        assertThat(FuzzyNormalizer.normalize("A  ==\t(B)"), is("A_eq_B"));
+        assertThat(FuzzyNormalizer.normalize("A != B || A > B || A <= B"), is("A_ne_B || A_gt_B || A_le_B"));
+        assertThat(FuzzyNormalizer.normalize("()"), is("()"));
+    }
+
+    /**
+     * Tests cases, where the order of the replacements matters.
+     */
+    @Test
+    public void testOverlappingOperators() {
+        assertThat(FuzzyNormalizer.normalize("A !== B"), is("A !_eq_B"));
+        assertThat(FuzzyNormalizer.normalize("A === B"), is("A_eq_= B"));
+        assertThat(FuzzyNormalizer.normalize("A <== B"), is("A_le_= B"));
+        assertThat(FuzzyNormalizer.normalize("A <> B"), is("A_lt__gt_B"));
+        assertThat(FuzzyNormalizer.normalize("A >= ( ) B"), is("A_ge_B"));
+    }
+
+    /**
+     * Tests whether random conditions are normalized in the same way as by the previous implementation.
+     */
+    @Test
+    public void testSameAsSequentialReplacement() {
+        Random random = new Random(42);
+        for (int i = 0; i < 50000; i++) {
+            char[] condition = new char[random.nextInt(24)];
+            for (int j = 0; j < condition.length; j++) {
+                condition[j] = ALPHABET[random.nextInt(ALPHABET.length)];
+            }
+            String str = new String(condition);
+            assertThat(str, FuzzyNormalizer.normalize(str), is(sequentialNormalize(str)));
+        }
+    }
+
+    /**
+     * Tests whether a long generated condition is normalized in the same way as by the previous implementation.
+     */
+    @Test
+    public void testLongCondition() {
+        Random random = new Random(42);
+        StringBuilder condition = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            if (i > 0) {
+                condition.append(random.nextBoolean() ? " && " : " || ");
+            }
+            String variable = "CONFIG_" + random.nextInt(1000);
+            switch (random.nextInt(4)) {
+            case 0:
+                condition.append("(").append(variable).append(" >= ").append(random.nextInt(10)).append(")");
+                break;
+            case 1:
+                condition.append("!((").append(variable).append("))");
+                break;
+            case 2:
+                condition.append("(").append(variable).append(" != ").append(variable).append(")");
+                break;
+            default:
+                condition.append(variable);
+                break;
+            }
+        }
+        String str = condition.toString();
+        assertThat(FuzzyNormalizer.normalize(str), is(sequentialNormalize(str)));
+    }
+
+    /**
+     * The previous implementation of the normalization.
+     *
+     * @param condition The condition to normalize.
+     * @return The normalized condition.
+     */
+    private static String sequentialNormalize(String condition) {
+        Matcher matcher = UNECESSARY_BRACKET_PATTERN.matcher(condition);
+        while (matcher.find()) {
+            condition = condition.replace(matcher.group(), matcher.group(1));
+            matcher = UNECESSARY_BRACKET_PATTERN.matcher(condition);
+        }
+        condition = replace(condition, ">=", "_ge_");
+        condition = replace(condition, "<=", "_le_");
+        condition = replace(condition, "==", "_eq_");
+        condition = replace(condition, "!=", "_ne_");
+        condition = replace(condition, ">", "_gt_");
+        condition = replace(condition, "<", "_lt_");
+        return condition;
+    }
+
+    /**
+     * Replaces each occurrence of <code>from</code> in <code>str</code> with <code>to</code>, removing the whitespace
+     * around it. Part of the previous implementation.
+     *
+     * @param str The string to replace in.
+     * @param from The substring to replace.
+     * @param to The replacement.
+     * @return The string with the occurrences replaced.
+     */
+    private static String replace(String str, String from, String to) {
+        StringBuilder buffer = new StringBuilder(str);
+        int index;
+        while ((index = buffer.indexOf(from)) != -1) {
+            int length = from.length();
+            while (index > 0 && Character.isWhitespace(buffer.charAt(index - 1))) {
+                index--;
+                length++;
+            }
+            while (index + length < buffer.length() && Character.isWhitespace(buffer.charAt(index + length))) {
+                length++;
+            }
+            buffer.replace(index, index + length, to);
+        }
+        return buffer.toString();
+    }
+
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.util.Util;
+
+/**
+ * Tests the {@link IncrementalRunner} on a small git repository created from the test data.
+ *
+ * @author agent
+ */
+public class IncrementalRunnerTest {
+
+    private static final File TESTDATA = new File("testdata");
+
+    private static final String CONFIGURATION = "undertaker=1234";
+
+    private File repo;
+
+    private File sourceDir;
+
+    private File resultDir;
+
+    private Set<File> executed;
+
+    /**
+     * Creates a git repository, with the test data committed in a sub-directory.
+     *
+     * @throws IOException unwanted.
+     */
+    @Before
+    public void setUp() throws IOException {
+        repo = Files.createTempDirectory("incremental_test").toFile();
+        sourceDir = new File(repo, "tree");
+        resultDir = new File(repo.getParentFile(), repo.getName() + "_results");
+        executed = new HashSet<>();
+
+        sourceDir.mkdir();
+        for (String name : new String[] {"test.c", "test_newline.c"}) {
+            Files.copy(new File(TESTDATA, name).toPath(), new File(sourceDir, name).toPath());
+        }
+
+        git("init", "-q");
+        commitAll();
+    }
+
+    /**
+     * Deletes the git repository and the result directory.
+     *
+     * @throws IOException unwanted.
+     */
+    @After
+    public void tearDown() throws IOException {
+        Util.deleteFolder(repo);
+        Util.deleteFolder(resultDir);
+    }
+
+    /**
+     * Tests whether only the files that changed since the base revision are executed again.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testOnlyChangedFilesExecuted() throws IOException {
+        String firstRevision = git("rev-parse", "HEAD").trim();
+        runAll(new IncrementalRunner(this::run, sourceDir, resultDir, null, CONFIGURATION));
+        assertThat(executed.size(), is(2));
+
+        Files.write(new File(sourceDir, "test.c").toPath(), "#ifdef CHANGED\n#endif\n".getBytes());
+        commitAll();
+        executed.clear();
+
+        IncrementalRunner runner = new IncrementalRunner(this::run, sourceDir, resultDir, firstRevision,
+                CONFIGURATION);
+        assertThat(runner.canReuse(new File("test.c")), is(false));
+        assertThat(runner.canReuse(new File("test_newline.c")), is(true));
+
+        assertThat(runner.runOnFile(new File("test_newline.c")), is("csv of test_newline.c"));
+        assertThat(runner.runOnFile(new File("test.c")), is("csv of test.c"));
+        assertThat(executed, is(setOf(new File("test.c"))));
+        assertThat(runner.getReused(), is(1L));
+    }
+
+    /**
+     * Tests whether uncommitted changes and untracked files are executed again.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testWorkingTreeChangesExecuted() throws IOException {
+        String revision = git("rev-parse", "HEAD").trim();
+        Files.write(new File(sourceDir, "new.c").toPath(), "#ifdef A\n#endif\n".getBytes());
+        runAll(new IncrementalRunner(this::run, sourceDir, resultDir, null, CONFIGURATION));
+
+        Files.write(new File(sourceDir, "test.c").toPath(), "#ifdef CHANGED\n#endif\n".getBytes());
+        executed.clear();
+
+        runAll(new IncrementalRunner(this::run, sourceDir, resultDir, revision, CONFIGURATION));
+        assertThat(executed, is(setOf(new File("test.c"), new File("new.c"))));
+    }
+
+    /**
+     * Tests whether changed files with names that git quotes by default (quotes, backslashes, non-ASCII characters)
+     * are executed again.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testSpecialCharactersInPaths() throws IOException {
+        List<String> names = new ArrayList<>(Arrays.asList("with \"quotes\".c", "back\\slash.c", "tab\there.c"));
+        if (Charset.defaultCharset().equals(StandardCharsets.UTF_8)) {
+            // file names are encoded with the default charset
+            names.add("\u00e4\u00f6\u00fc.c");
+        }
+        for (String name : names) {
+            Files.write(new File(sourceDir, name).toPath(), "#ifdef A\n#endif\n".getBytes());
+        }
+        commitAll();
+        String revision = git("rev-parse", "HEAD").trim();
+        runAll(new IncrementalRunner(this::run, sourceDir, resultDir, null, CONFIGURATION));
+
+        Set<File> expected = new HashSet<>();
+        for (String name : names) {
+            Files.write(new File(sourceDir, name).toPath(), "#ifdef CHANGED\n#endif\n".getBytes());
+            expected.add(new File(name));
+        }
+        // renamed in the working tree: the new path is untracked
+        Files.move(new File(sourceDir, "test.c").toPath(), new File(sourceDir, "renamed \"test\".c").toPath());
+        expected.add(new File("renamed \"test\".c"));
+        executed.clear();
+
+        IncrementalRunner runner = new IncrementalRunner(this::run, sourceDir, resultDir, revision, CONFIGURATION);
+        for (File file : expected) {
+            assertThat(file.getPath(), runner.canReuse(file), is(false));
+        }
+        assertThat(runner.canReuse(new File("test_newline.c")), is(true));
+        runAll(runner);
+        assertThat(executed, is(expected));
+    }
+
+    /**
+     * Tests whether the stored results are not reused if they were created with a different configuration, e.g.
+     * another pilztaker binary.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testChangedConfigurationExecutesAll() throws IOException {
+        String revision = git("rev-parse", "HEAD").trim();
+        runAll(new IncrementalRunner(this::run, sourceDir, resultDir, null, CONFIGURATION));
+        executed.clear();
+
+        IncrementalRunner runner = new IncrementalRunner(this::run, sourceDir, resultDir, revision,
+                "undertaker=5678");
+        assertThat(runner.canReuse(new File("test.c")), is(false));
+        runAll(runner);
+        assertThat(executed, is(setOf(new File("test.c"), new File("test_newline.c"))));
+
+        // the results of the new configuration are reused again
+        executed.clear();
+        runAll(new IncrementalRunner(this::run, sourceDir, resultDir, revision, "undertaker=5678"));
+        assertThat(executed.isEmpty(), is(true));
+    }
+
+    /**
+     * Tests whether an unknown base revision is reported.
+     *
+     * @throws IOException wanted.
+     */
+    @Test(expected = IOException.class)
+    public void testUnknownRevision() throws IOException {
+        new IncrementalRunner(this::run, sourceDir, resultDir, null, CONFIGURATION);
+        new IncrementalRunner(this::run, sourceDir, resultDir, "doesnotexist", CONFIGURATION);
+    }
+
+    /**
+     * A fake pilztaker execution, that records the executed files.
+     *
+     * @param file The file to run on.
+     * @return A fake CSV.
+     */
+    private synchronized String run(File file) {
+        executed.add(file);
+        return "csv of " + file.getPath();
+    }
+
+    /**
+     * Runs the given runner on all files of the source tree.
+     *
+     * @param runner The runner to run.
+     *
+     * @throws IOException unwanted.
+     */
+    private void runAll(IncrementalRunner runner) throws IOException {
+        for (String name : sourceDir.list()) {
+            runner.runOnFile(new File(name));
+        }
+    }
+
+    /**
+     * Commits all files of the repository.
+     *
+     * @throws IOException If git fails.
+     */
+    private void commitAll() throws IOException {
+        git("add", "-A");
+        git("-c", "user.name=test", "-c", "user.email=test@example.com", "commit", "-q", "-m", "commit");
+    }
+
+    /**
+     * Runs git in the repository.
+     *
+     * @param arguments The arguments for git.
+     * @return The output of git.
+     *
+     * @throws IOException If git fails.
+     */
+    private String git(String... arguments) throws IOException {
+        String[] command = new String[arguments.length + 1];
+        command[0] = "git";
+        System.arraycopy(arguments, 0, command, 1, arguments.length);
+
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.directory(repo);
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        if (!Util.executeProcess(processBuilder, "git", stdout, stderr, 0)) {
+            throw new IOException("git failed: " + stderr);
+        }
+        return new String(stdout.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Creates a set of the given files.
+     *
+     * @param files The files.
+     * @return A set containing the files.
+     */
+    private static Set<File> setOf(File... files) {
+        Set<File> result = new HashSet<>();
+        for (File file : files) {
+            result.add(file);
+        }
+        return result;
+    }
+
+}
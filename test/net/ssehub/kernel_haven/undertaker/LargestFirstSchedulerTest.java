@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link LargestFirstScheduler}.
+ *
+ * @author agent
+ */
+public class LargestFirstSchedulerTest {
+
+    /**
+     * A runner that records the order of its executions.
+     */
+    private static class RecordingRunner implements IUndertakerRunner {
+
+        private List<String> executions = Collections.synchronizedList(new ArrayList<>());
+
+        /**
+         * Released after each execution.
+         */
+        private Semaphore finished = new Semaphore(0);
+
+        @Override
+        public String runOnFile(File file) {
+            executions.add(file.getPath());
+            finished.release();
+            return file.getPath() + ";csv";
+        }
+
+    }
+
+    /**
+     * Creates the work list for the given files.
+     *
+     * @param paths The paths of the files.
+     * @return The work list.
+     */
+    private static List<File> files(String... paths) {
+        List<File> result = new ArrayList<>();
+        for (String path : paths) {
+            result.add(new File(path));
+        }
+        return result;
+    }
+
+    /**
+     * Tests whether the files are executed largest first, independent of the order of the requests.
+     *
+     * @throws Exception unwanted.
+     */
+    @Test
+    public void testLargestFirst() throws Exception {
+        RecordingRunner runner = new RecordingRunner();
+        LargestFirstScheduler scheduler = new LargestFirstScheduler(runner, files("a.c", "b.c", "c.c", "d.c"),
+                new long[] {10, 50, 30, 20}, 1, 10);
+
+        runner.finished.acquire(4);
+        assertThat(runner.executions, is(Arrays.asList("b.c", "c.c", "d.c", "a.c")));
+
+        assertThat(scheduler.runOnFile(new File("a.c")), is("a.c;csv"));
+        assertThat(scheduler.runOnFile(new File("d.c")), is("d.c;csv"));
+        assertThat(scheduler.runOnFile(new File("b.c")), is("b.c;csv"));
+        assertThat(scheduler.runOnFile(new File("c.c")), is("c.c;csv"));
+
+        // not part of the work list, or requested again: executed directly
+        assertThat(scheduler.runOnFile(new File("x.c")), is("x.c;csv"));
+        assertThat(scheduler.runOnFile(new File("a.c")), is("a.c;csv"));
+        assertThat(runner.executions.size(), is(6));
+    }
+
+    /**
+     * Tests whether a requested file is executed before the larger files, if too many results are waiting.
+     *
+     * @throws Exception unwanted.
+     */
+    @Test
+    public void testRequestedFileFirst() throws Exception {
+        RecordingRunner runner = new RecordingRunner();
+        LargestFirstScheduler scheduler = new LargestFirstScheduler(runner, files("a.c", "b.c", "c.c"),
+                new long[] {10, 50, 30}, 1, 1);
+
+        // b.c is executed ahead of its request; then the result limit is reached
+        runner.finished.acquire(1);
+        Thread.sleep(50);
+        assertThat(runner.executions, is(Arrays.asList("b.c")));
+
+        assertThat(scheduler.runOnFile(new File("a.c")), is("a.c;csv"));
+        assertThat(runner.executions.subList(0, 2), is(Arrays.asList("b.c", "a.c")));
+
+        assertThat(scheduler.runOnFile(new File("b.c")), is("b.c;csv"));
+        assertThat(scheduler.runOnFile(new File("c.c")), is("c.c;csv"));
+        assertThat(runner.executions, is(Arrays.asList("b.c", "a.c", "c.c")));
+    }
+
+    /**
+     * Tests the expected makespan of the greedy schedule.
+     */
+    @Test
+    public void testExpectedMakespan() {
+        LargestFirstScheduler scheduler = new LargestFirstScheduler(new RecordingRunner(),
+                files("a.c", "b.c", "c.c", "d.c", "e.c", "f.c"), new long[] {2, 3, 5, 2, 3, 2}, 2, 10);
+
+        // thread 1: 5, 2, 2; thread 2: 3, 3, 2
+        assertThat(scheduler.getExpectedMakespan(), is(9L));
+
+        // lower bound: the largest file
+        scheduler = new LargestFirstScheduler(new RecordingRunner(), files("a.c", "b.c", "c.c"),
+                new long[] {100, 1, 1}, 4, 10);
+        assertTrue(scheduler.getExpectedMakespan() == 100);
+    }
+
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import net.ssehub.kernel_haven.test_utils.RunOnlyOnLinux;
+import net.ssehub.kernel_haven.util.Util;
+
+/**
+ * Tests the {@link PilztakerWorker} and the {@link PilztakerWorkerPool} with a fake pilztaker server script.
+ *
+ * @author agent
+ */
+@RunWith(value = RunOnlyOnLinux.class)
+public class PilztakerWorkerTest {
+
+    /**
+     * A fake pilztaker in server mode: logs each started process, and answers each path read from stdin with one
+     * record per character of the file name before the dot, followed by the end-of-file marker. Hangs on files
+     * named <code>hang*.c</code> and exits on files named <code>crash*.c</code>.
+     */
+    private static final String FAKE_PILZTAKER = "#!/bin/sh\n"
+            + "echo \"$@\" >> \"$0.log\"\n"
+            + "while read f; do\n"
+            + "    case \"$f\" in hang*) exec sleep 30;; crash*) exit 1;; esac\n"
+            + "    name=\"${f%.c}\"\n"
+            + "    i=1\n"
+            + "    while [ $i -le ${#name} ]; do\n"
+            + "        echo \"$f;$i;if;0;$i;CONFIG_A;CONFIG_A\"\n"
+            + "        i=$((i + 1))\n"
+            + "    done\n"
+            + "    echo \"" + PilztakerWorker.END_OF_FILE_MARKER + "\"\n"
+            + "done\n";
+
+    private static final long TIMEOUT = 1000;
+
+    private File dir;
+
+    private File exe;
+
+    private File sourceDir;
+
+    private ScheduledExecutorService watchdog;
+
+    /**
+     * Creates the fake pilztaker and a source tree.
+     *
+     * @throws IOException unwanted.
+     */
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("pilztaker_worker_test").toFile();
+        exe = new File(dir, "undertaker");
+        Files.write(exe.toPath(), FAKE_PILZTAKER.getBytes(StandardCharsets.UTF_8));
+        exe.setExecutable(true);
+
+        sourceDir = new File(dir, "source");
+        sourceDir.mkdir();
+        for (String name : Arrays.asList("a.c", "bc.c", "def.c", "hang.c", "crash.c")) {
+            Files.write(new File(sourceDir, name).toPath(), new byte[0]);
+        }
+
+        watchdog = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    /**
+     * Deletes the temporary directory.
+     *
+     * @throws IOException unwanted.
+     */
+    @After
+    public void tearDown() throws IOException {
+        watchdog.shutdownNow();
+        Util.deleteFolder(dir);
+    }
+
+    /**
+     * Returns the expected output of the fake pilztaker for the given file.
+     *
+     * @param path The path of the file.
+     * @return The expected CSV.
+     */
+    private static String expectedCsv(String path) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 1; i <= path.indexOf('.'); i++) {
+            result.append(path).append(';').append(i).append(";if;0;").append(i).append(";CONFIG_A;CONFIG_A\n");
+        }
+        return result.toString();
+    }
+
+    /**
+     * Returns the number of processes that the fake pilztaker was started as.
+     *
+     * @return The number of started processes.
+     *
+     * @throws IOException unwanted.
+     */
+    private int getNumStarts() throws IOException {
+        File log = new File(dir, "undertaker.log");
+        return log.isFile() ? Files.readAllLines(log.toPath()).size() : 0;
+    }
+
+    /**
+     * Tests that several files are handled by the same process in server mode, and that the output of each file
+     * ends at the end-of-file marker.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test(timeout = 20000)
+    public void testServerProtocol() throws IOException {
+        PilztakerWorker worker = new PilztakerWorker(exe, sourceDir, watchdog);
+        try {
+            assertThat(worker.runOnFile(new File("def.c"), TIMEOUT), is(expectedCsv("def.c")));
+            assertThat(worker.runOnFile(new File("a.c"), TIMEOUT), is(expectedCsv("a.c")));
+            assertThat(worker.runOnFile(new File("bc.c"), TIMEOUT), is(expectedCsv("bc.c")));
+        } finally {
+            worker.stop();
+        }
+
+        assertThat(getNumStarts(), is(1));
+        assertThat(Files.readAllLines(new File(dir, "undertaker.log").toPath()).get(0),
+                is("--server " + sourceDir.getAbsolutePath() + "/"));
+    }
+
+    /**
+     * Tests that a worker that hangs on a file is killed after the timeout and restarted for the next file.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test(timeout = 20000)
+    public void testRestartHangingWorker() throws IOException {
+        PilztakerWorker worker = new PilztakerWorker(exe, sourceDir, watchdog);
+        try {
+            long start = System.currentTimeMillis();
+            assertThat(worker.runOnFile(new File("hang.c"), TIMEOUT), nullValue());
+            assertThat(System.currentTimeMillis() - start < 10 * TIMEOUT, is(true));
+
+            assertThat(worker.runOnFile(new File("bc.c"), TIMEOUT), is(expectedCsv("bc.c")));
+        } finally {
+            worker.stop();
+        }
+
+        assertThat(getNumStarts(), is(2));
+    }
+
+    /**
+     * Tests that a worker that terminates unexpectedly is restarted for the next file.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test(timeout = 20000)
+    public void testRestartCrashedWorker() throws IOException {
+        PilztakerWorker worker = new PilztakerWorker(exe, sourceDir, watchdog);
+        try {
+            assertThat(worker.runOnFile(new File("a.c"), TIMEOUT), is(expectedCsv("a.c")));
+            assertThat(worker.runOnFile(new File("crash.c"), TIMEOUT), nullValue());
+            assertThat(worker.runOnFile(new File("def.c"), TIMEOUT), is(expectedCsv("def.c")));
+        } finally {
+            worker.stop();
+        }
+
+        assertThat(getNumStarts(), is(2));
+    }
+
+    /**
+     * Tests that the pool hands the files of several threads to its workers, and skips files that don't exist.
+     *
+     * @throws Exception unwanted.
+     */
+    @Test(timeout = 20000)
+    public void testPool() throws Exception {
+        PilztakerWorkerPool pool = new PilztakerWorkerPool(exe, sourceDir, TIMEOUT, null, 2, watchdog);
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        try {
+            List<String> paths = Arrays.asList("a.c", "bc.c", "def.c", "a.c", "bc.c", "def.c", "a.c", "bc.c");
+            List<Future<String>> results = new ArrayList<>();
+            for (String path : paths) {
+                results.add(threads.submit(() -> pool.runOnFile(new File(path))));
+            }
+            for (int i = 0; i < paths.size(); i++) {
+                assertThat(results.get(i).get(), is(expectedCsv(paths.get(i))));
+            }
+            assertThat(pool.runOnFile(new File("missing.c")), nullValue());
+
+        } finally {
+            threads.shutdown();
+            pool.close();
+        }
+
+        assertThat(getNumStarts(), is(2));
+    }
+
+}
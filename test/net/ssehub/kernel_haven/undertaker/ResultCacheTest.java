@@ -0,0 +1,271 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link ResultCache}.
+ *
+ * @author agent
+ */
+public class ResultCacheTest {
+
+    private File tmpDir;
+
+    private File sourceDir;
+
+    private File cacheDir;
+
+    private File exe;
+
+    /**
+     * A runner that returns a fixed CSV and counts its executions.
+     */
+    private static class CountingRunner implements IUndertakerRunner {
+
+        private int executions;
+
+        private String csv;
+
+        /**
+         * Creates a runner.
+         *
+         * @param csv The CSV to return for each file.
+         */
+        public CountingRunner(String csv) {
+            this.csv = csv;
+        }
+
+        @Override
+        public String runOnFile(File file) {
+            executions++;
+            return file.getPath() + ";" + csv;
+        }
+
+    }
+
+    /**
+     * Creates a temporary source tree, cache directory and executable.
+     *
+     * @throws IOException unwanted.
+     */
+    @Before
+    public void setUp() throws IOException {
+        tmpDir = Files.createTempDirectory("result_cache_test").toFile();
+        sourceDir = new File(tmpDir, "source");
+        cacheDir = new File(tmpDir, "cache");
+        exe = new File(tmpDir, "undertaker");
+
+        sourceDir.mkdir();
+        write(new File(sourceDir, "a.c"), "#ifdef A\n#endif\n");
+        write(new File(sourceDir, "b.c"), "#ifdef B\n#endif\n");
+        write(exe, "version 1");
+    }
+
+    /**
+     * Deletes the temporary directory.
+     */
+    @After
+    public void tearDown() {
+        delete(tmpDir);
+    }
+
+    /**
+     * Tests whether the second execution on an unchanged file is answered from the cache, also after re-opening
+     * the cache.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testUnchangedFileIsCached() throws IOException {
+        CountingRunner runner = new CountingRunner("csv");
+        ResultCache cache = new ResultCache(runner, sourceDir, cacheDir, exe, 1024 * 1024);
+
+        assertThat(cache.isCached(new File("a.c")), is(false));
+        assertThat(cache.runOnFile(new File("a.c")), is("a.c;csv"));
+        assertThat(cache.runOnFile(new File("a.c")), is("a.c;csv"));
+        assertThat(runner.executions, is(1));
+        assertThat(cache.isCached(new File("a.c")), is(true));
+        assertThat(cache.isCached(new File("b.c")), is(false));
+
+        ResultCache reopened = new ResultCache(runner, sourceDir, cacheDir, exe, 1024 * 1024);
+        assertThat(reopened.getSize(), is(cache.getSize()));
+        assertThat(reopened.runOnFile(new File("a.c")), is("a.c;csv"));
+        assertThat(runner.executions, is(1));
+        assertThat(reopened.getHits(), is(1L));
+    }
+
+    /**
+     * Tests whether a changed file is executed again.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testChangedFileIsExecuted() throws IOException {
+        CountingRunner runner = new CountingRunner("csv");
+        ResultCache cache = new ResultCache(runner, sourceDir, cacheDir, exe, 1024 * 1024);
+
+        cache.runOnFile(new File("a.c"));
+        write(new File(sourceDir, "a.c"), "#ifdef C\n#endif\n");
+        runner.csv = "changed";
+
+        assertThat(cache.runOnFile(new File("a.c")), is("a.c;changed"));
+        assertThat(runner.executions, is(2));
+    }
+
+    /**
+     * Tests whether a changed executable clears the cache.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testChangedExecutableClearsCache() throws IOException {
+        CountingRunner runner = new CountingRunner("csv");
+        ResultCache cache = new ResultCache(runner, sourceDir, cacheDir, exe, 1024 * 1024);
+        cache.runOnFile(new File("a.c"));
+
+        write(exe, "version 2");
+        cache = new ResultCache(runner, sourceDir, cacheDir, exe, 1024 * 1024);
+
+        assertThat(cache.getSize(), is(0L));
+        assertThat(cache.isCached(new File("a.c")), is(false));
+        cache.runOnFile(new File("a.c"));
+        assertThat(runner.executions, is(2));
+    }
+
+    /**
+     * Tests whether the least recently used entries are evicted if the maximum size is exceeded.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testEviction() throws IOException {
+        StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            csv.append('x');
+        }
+        CountingRunner runner = new CountingRunner(csv.toString());
+        // each entry has 104 bytes, so only two entries fit
+        ResultCache cache = new ResultCache(runner, sourceDir, cacheDir, exe, 300);
+        write(new File(sourceDir, "c.c"), "#ifdef C\n#endif\n");
+
+        cache.runOnFile(new File("a.c"));
+        cache.runOnFile(new File("b.c"));
+        // make a.c the least recently used entry
+        long now = System.currentTimeMillis();
+        for (File dir : cacheDir.listFiles(File::isDirectory)) {
+            for (File entry : dir.listFiles()) {
+                String content = new String(Files.readAllBytes(entry.toPath()), StandardCharsets.UTF_8);
+                entry.setLastModified(content.startsWith("a.c") ? now - 60000 : now - 30000);
+            }
+        }
+        cache.runOnFile(new File("c.c"));
+
+        assertTrue(cache.getSize() <= 300);
+        assertThat(cache.isCached(new File("a.c")), is(false));
+        assertThat(cache.isCached(new File("b.c")), is(true));
+        assertThat(cache.isCached(new File("c.c")), is(true));
+    }
+
+    /**
+     * Tests whether replacing an existing entry (e.g. when two threads miss the same file) does not count its size
+     * twice.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testReplacedEntryIsCountedOnce() throws IOException {
+        ResultCache[] cache = new ResultCache[1];
+        boolean[] nested = new boolean[1];
+        cache[0] = new ResultCache((file) -> {
+            if (!nested[0]) {
+                // another "thread" misses the same file and writes its entry first
+                nested[0] = true;
+                cache[0].runOnFile(file);
+            }
+            return file.getPath() + ";csv";
+        }, sourceDir, cacheDir, exe, 1024 * 1024);
+
+        assertThat(cache[0].runOnFile(new File("a.c")), is("a.c;csv"));
+        assertThat(cache[0].getSize(), is((long) "a.c;csv".length()));
+        assertThat(new ResultCache(null, sourceDir, cacheDir, exe, 1024 * 1024).getSize(),
+                is(cache[0].getSize()));
+    }
+
+    /**
+     * Tests whether a file that changed between {@link ResultCache#isCached(File)} and
+     * {@link ResultCache#runOnFile(File)} is not answered with the entry computed for its old content.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testFileChangedAfterIsCached() throws IOException {
+        CountingRunner runner = new CountingRunner("csv");
+        ResultCache cache = new ResultCache(runner, sourceDir, cacheDir, exe, 1024 * 1024);
+        cache.runOnFile(new File("a.c"));
+
+        assertThat(cache.isCached(new File("a.c")), is(true));
+        write(new File(sourceDir, "a.c"), "#ifdef CHANGED\n#endif\n");
+        runner.csv = "changed";
+
+        assertThat(cache.runOnFile(new File("a.c")), is("a.c;changed"));
+        assertThat(runner.executions, is(2));
+        assertThat(cache.isCached(new File("a.c")), is(true));
+        assertThat(cache.runOnFile(new File("a.c")), is("a.c;changed"));
+        assertThat(runner.executions, is(2));
+    }
+
+    /**
+     * Writes the given content to the given file.
+     *
+     * @param file The file to write.
+     * @param content The content to write.
+     *
+     * @throws IOException If writing fails.
+     */
+    private static void write(File file, String content) throws IOException {
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Recursively deletes the given file or directory.
+     *
+     * @param file The file to delete.
+     */
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
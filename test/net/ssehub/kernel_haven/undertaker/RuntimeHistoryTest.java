@@ -0,0 +1,199 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link RuntimeHistory}.
+ *
+ * @author agent
+ */
+public class RuntimeHistoryTest {
+
+    private File tmpDir;
+
+    private File historyFile;
+
+    /**
+     * Creates a temporary directory for the history file.
+     *
+     * @throws IOException unwanted.
+     */
+    @Before
+    public void setUp() throws IOException {
+        tmpDir = Files.createTempDirectory("runtime_history_test").toFile();
+        historyFile = new File(tmpDir, "runtime_history.csv");
+    }
+
+    /**
+     * Deletes the temporary directory.
+     */
+    @After
+    public void tearDown() {
+        File[] children = tmpDir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                child.delete();
+            }
+        }
+        tmpDir.delete();
+    }
+
+    /**
+     * Creates a history with a default timeout of 20 s, clamped between 1 s and 60 s, a factor of 5 and a
+     * quarantine after 3 timeouts.
+     *
+     * @return The history.
+     *
+     * @throws IOException unwanted.
+     */
+    private RuntimeHistory createHistory() throws IOException {
+        return new RuntimeHistory(historyFile, 20000, 1000, 60000, 5, 3);
+    }
+
+    /**
+     * Tests the timeouts of files with and without successful runs.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testTimeouts() throws IOException {
+        RuntimeHistory history = createHistory();
+
+        assertThat(history.getTimeout(new File("a.c")), is(20000L));
+
+        history.record(new File("a.c"), true, 300, 20000);
+        history.record(new File("a.c"), true, 500, 20000);
+        assertThat(history.getTimeout(new File("a.c")), is(2500L));
+
+        // clamped to the minimum and maximum
+        history.record(new File("b.c"), true, 10, 20000);
+        assertThat(history.getTimeout(new File("b.c")), is(1000L));
+        history.record(new File("c.c"), true, 19000, 20000);
+        assertThat(history.getTimeout(new File("c.c")), is(60000L));
+
+        // failures that are not caused by the timeout are not recorded
+        history.record(new File("d.c"), false, 100, 20000);
+        assertThat(history.size(), is(3));
+
+        // files that only timed out get twice their last timeout
+        history.record(new File("e.c"), false, 20003, 20000);
+        assertThat(history.getTimeout(new File("e.c")), is(40000L));
+        history.record(new File("e.c"), false, 40001, 40000);
+        assertThat(history.getTimeout(new File("e.c")), is(60000L));
+        history.close();
+    }
+
+    /**
+     * Tests whether files are quarantined after 3 timeouts in a row, and released by a successful run or a reset.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testQuarantine() throws IOException {
+        RuntimeHistory history = createHistory();
+
+        for (int i = 0; i < 2; i++) {
+            history.record(new File("a.c"), false, 20000, 20000);
+            history.record(new File("b.c"), false, 20000, 20000);
+        }
+        history.record(new File("b.c"), true, 50000, 60000);
+        assertThat(history.isQuarantined(new File("a.c")), is(false));
+
+        history.record(new File("a.c"), false, 20000, 20000);
+        history.record(new File("b.c"), false, 20000, 20000);
+        assertThat(history.isQuarantined(new File("a.c")), is(true));
+        assertThat(history.isQuarantined(new File("b.c")), is(false));
+        assertThat(history.getQuarantinedFiles(), is(Arrays.asList(new File("a.c"))));
+
+        history.reset();
+        assertThat(history.isQuarantined(new File("a.c")), is(false));
+        assertThat(history.size(), is(0));
+        history.close();
+
+        history = createHistory();
+        assertThat(history.size(), is(0));
+        history.close();
+    }
+
+    /**
+     * Tests whether the history is stored in a readable file, and loaded (and compacted) again.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testPersistence() throws IOException {
+        RuntimeHistory history = createHistory();
+        for (int i = 1; i <= 8; i++) {
+            history.record(new File("dir/a;b.c"), true, i * 100, 20000);
+        }
+        for (int i = 0; i < 3; i++) {
+            history.record(new File("hangs.c"), false, 20000, 20000);
+        }
+        history.close();
+
+        List<String> lines = Files.readAllLines(historyFile.toPath(), StandardCharsets.UTF_8);
+        assertThat(lines.get(lines.size() - 1), is("hangs.c;timeout;20000"));
+        Files.write(historyFile.toPath(), "invalid line\n".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+
+        history = createHistory();
+        assertThat(history.getTimeout(new File("dir/a;b.c")), is(4000L));
+        assertThat(history.isQuarantined(new File("hangs.c")), is(true));
+        history.close();
+
+        // only the last 5 runtimes are kept
+        lines = Files.readAllLines(historyFile.toPath(), StandardCharsets.UTF_8);
+        assertThat(lines.size(), is(1 + 5 + 3));
+        assertThat(lines.get(1), is("dir/a;b.c;ok;400"));
+    }
+
+    /**
+     * Tests whether files without history get the 99th percentile of the other files, once the history is large
+     * enough.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testPercentile() throws IOException {
+        RuntimeHistory history = createHistory();
+        for (int i = 1; i <= 200; i++) {
+            history.record(new File(i + ".c"), true, i * 10, 20000);
+        }
+        history.close();
+
+        history = createHistory();
+        // the 198th of 200 runtimes is 1980 ms
+        assertThat(history.getTimeout(new File("new.c")), is(9900L));
+        history.close();
+    }
+
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import static net.ssehub.kernel_haven.util.logic.FormulaBuilder.and;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.SetUpException;
+import net.ssehub.kernel_haven.code_model.CodeBlock;
+import net.ssehub.kernel_haven.code_model.SourceFile;
+import net.ssehub.kernel_haven.util.CodeExtractorException;
+import net.ssehub.kernel_haven.util.ExtractorException;
+
+/**
+ * Tests the {@link ShardAssignment}, also for shards that are extracted by separate {@link UndertakerExtractor}s.
+ *
+ * @author agent
+ */
+public class ShardAssignmentTest {
+
+    private static final Pattern C_FILES = Pattern.compile(".*\\.c");
+
+    /**
+     * Creates a list of files.
+     *
+     * @param paths The paths of the files.
+     * @return The list of files.
+     */
+    private static List<File> files(String... paths) {
+        List<File> result = new ArrayList<>();
+        for (String path : paths) {
+            result.add(new File(path));
+        }
+        return result;
+    }
+
+    /**
+     * Tests whether the files are assigned largest first to the shard with the lowest total.
+     */
+    @Test
+    public void testAssignment() {
+        List<File> files = files("a.c", "b.c", "c.c", "d.c", "e.c");
+        long[] costs = {10, 70, 30, 40, 50};
+        long[] loads = new long[2];
+
+        // b (70) -> 0; e (50) -> 1; d (40) -> 1 (50 < 70); c (30) -> 0 (70 < 90); a (10) -> 1 (90 < 100)
+        assertThat(ShardAssignment.assign(files, costs, loads), is(new int[] {1, 0, 0, 1, 1}));
+        assertThat(loads, is(new long[] {100, 100}));
+
+        ShardAssignment shard = new ShardAssignment(files, costs, 1, 2);
+        assertThat(shard.size(), is(3));
+        assertThat(shard.contains(new File("d.c")), is(true));
+        assertThat(shard.contains(new File("b.c")), is(false));
+        assertThat(shard.getLoad(0), is(100L));
+    }
+
+    /**
+     * Tests whether the assignment does not depend on the order of the files, even with equal costs.
+     */
+    @Test
+    public void testDeterministic() {
+        List<File> files = new ArrayList<>();
+        long[] costs = new long[100];
+        for (int i = 0; i < 100; i++) {
+            files.add(new File("file" + i + ".c"));
+            costs[i] = i % 7;
+        }
+        List<File> reversed = new ArrayList<>(files);
+        Collections.reverse(reversed);
+        long[] reversedCosts = new long[100];
+        for (int i = 0; i < 100; i++) {
+            reversedCosts[i] = costs[99 - i];
+        }
+
+        for (int shardIndex = 0; shardIndex < 3; shardIndex++) {
+            ShardAssignment shard = new ShardAssignment(files, costs, shardIndex, 3);
+            ShardAssignment reversedShard = new ShardAssignment(reversed, reversedCosts, shardIndex, 3);
+            for (File file : files) {
+                assertThat(reversedShard.contains(file), is(shard.contains(file)));
+            }
+        }
+    }
+
+    /**
+     * Creates a source tree with 30 files in 4 directories, with 1 to 9 lines each.
+     *
+     * @param sourceDir The directory to create the source tree in.
+     * @return The files of the source tree; relative to the source tree.
+     *
+     * @throws IOException If writing the files fails.
+     */
+    private static List<File> createSourceTree(File sourceDir) throws IOException {
+        List<File> result = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            File file = new File("dir" + i % 4 + "/file" + i + ".c");
+            File absolute = new File(sourceDir, file.getPath());
+            absolute.getParentFile().mkdirs();
+            StringBuilder content = new StringBuilder();
+            for (int line = 0; line <= i % 9; line++) {
+                content.append("#if CONFIG_").append(line).append('\n');
+            }
+            Files.write(absolute.toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+            result.add(file);
+        }
+        return result;
+    }
+
+    /**
+     * Creates an extractor for one shard of the given source tree. Instead of executing pilztaker, each source file
+     * gets one block per line, and the executed files are added to the given list.
+     *
+     * @param sourceDir The source tree.
+     * @param shardIndex The shard that the extractor executes.
+     * @param shardCount The number of shards.
+     * @param shardFile The shard file to write.
+     * @param executed The list to add the executed files to.
+     * @return The extractor.
+     *
+     * @throws SetUpException unwanted.
+     */
+    private static UndertakerExtractor createExtractor(File sourceDir, int shardIndex, int shardCount,
+            File shardFile, List<File> executed) throws SetUpException {
+        return createExtractor(sourceDir, shardIndex, shardCount, shardFile, executed, null);
+    }
+
+    /**
+     * Creates an extractor for one shard of the given source tree, like
+     * {@link #createExtractor(File, int, int, File, List)}, where the execution of one file fails.
+     *
+     * @param sourceDir The source tree.
+     * @param shardIndex The shard that the extractor executes.
+     * @param shardCount The number of shards.
+     * @param shardFile The shard file to write.
+     * @param executed The list to add the executed files to.
+     * @param failing The file whose execution fails; <code>null</code> if all files succeed.
+     * @return The extractor.
+     *
+     * @throws SetUpException unwanted.
+     */
+    private static UndertakerExtractor createExtractor(File sourceDir, int shardIndex, int shardCount,
+            File shardFile, List<File> executed, File failing) throws SetUpException {
+
+        UndertakerExtractor extractor = new UndertakerExtractor();
+        extractor.initOutput(sourceDir, new SourceTreeIndex(sourceDir, Arrays.asList(""), C_FILES), shardIndex,
+                shardCount, shardFile, null, null, false);
+        extractor.setRunner((file) -> {
+            executed.add(file);
+            if (file.equals(failing)) {
+                return null;
+            }
+            StringBuilder csv = new StringBuilder();
+            int numLines = Files.readAllLines(new File(sourceDir, file.getPath()).toPath()).size();
+            for (int line = 1; line <= numLines; line++) {
+                csv.append(file.getPath()).append(';').append(line).append(';').append(line)
+                        .append(";if;0;").append(line).append(";CONFIG_").append(line).append(" && CONFIG_X")
+                        .append(";CONFIG_").append(line).append(" && CONFIG_X\n");
+            }
+            return csv.toString();
+        }, new CsvToAstConverter(false));
+        return extractor;
+    }
+
+    /**
+     * Runs the shards of an extraction with separate extractors, each on all files of the source tree in a different
+     * order. Tests whether each file is executed by exactly one of them, the files of other shards fail without being
+     * executed, each shard file is completed when its last file is extracted, and the merged shard files contain all
+     * files.
+     *
+     * @throws Exception unwanted.
+     */
+    @Test
+    public void testExtractShards() throws Exception {
+        File dir = Files.createTempDirectory("shard_assignment_test").toFile();
+        try {
+            File sourceDir = new File(dir, "source");
+            List<File> allFiles = createSourceTree(sourceDir);
+
+            int shardCount = 3;
+            List<File> shardFiles = new ArrayList<>();
+            Set<File> executed = new HashSet<>();
+            for (int shardIndex = 0; shardIndex < shardCount; shardIndex++) {
+                File shardFile = new File(dir, "shard" + shardIndex);
+                shardFiles.add(shardFile);
+                List<File> shardExecuted = new ArrayList<>();
+                UndertakerExtractor extractor = createExtractor(sourceDir, shardIndex, shardCount, shardFile,
+                        shardExecuted);
+
+                int shardSize = ShardAssignment.create(sourceDir,
+                        new SourceTreeIndex(sourceDir, Arrays.asList(""), C_FILES), shardIndex, shardCount).size();
+                List<File> order = new ArrayList<>(allFiles);
+                Collections.rotate(order, shardIndex * 7);
+                for (File file : order) {
+                    try {
+                        SourceFile<CodeBlock> result = extractor.runOnFile(file);
+                        assertThat(result.getPath(), is(file));
+                        assertThat(shardExecuted.contains(file), is(true));
+                    } catch (CodeExtractorException e) {
+                        // files of other shards count as not extracted
+                        assertThat(shardExecuted.contains(file), is(false));
+                        assertThat(e.getMessage(), containsString("Not part of shard " + shardIndex + " of 3"));
+                    }
+                    // completed when the last file of the shard is extracted, not at the end of all files
+                    assertThat(shardFile.exists(), is(shardExecuted.size() == shardSize));
+                }
+                assertThat(shardExecuted.size(), is(shardSize));
+                assertThat(shardExecuted.isEmpty(), is(false));
+                for (File file : shardExecuted) {
+                    assertThat(executed.add(file), is(true));
+                }
+            }
+            assertThat(executed, is(new HashSet<>(allFiles)));
+
+            File merged = new File(dir, "merged");
+            assertThat(ShardMerger.merge(merged, shardFiles), is(Collections.emptyList()));
+            try (ShardReader reader = new ShardReader(merged)) {
+                assertThat(reader.size(), is(allFiles.size()));
+                SourceFile<CodeBlock> file = reader.read(new File("dir3/file7.c"));
+                assertThat(file.getTopElementCount(), is(8));
+                assertThat(file.getElement(7).getCondition(), is(and("CONFIG_8", "CONFIG_X")));
+            }
+
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * Tests whether a file of a shard whose execution fails is recorded in the shard file, the shard file is still
+     * completed, and the merger reports the failed file.
+     *
+     * @throws Exception unwanted.
+     */
+    @Test
+    public void testFailedFiles() throws Exception {
+        File dir = Files.createTempDirectory("shard_assignment_test").toFile();
+        try {
+            File sourceDir = new File(dir, "source");
+            List<File> allFiles = createSourceTree(sourceDir);
+            ShardAssignment shard = ShardAssignment.create(sourceDir,
+                    new SourceTreeIndex(sourceDir, Arrays.asList(""), C_FILES), 1, 2);
+            File failing = null;
+            for (int i = 0; failing == null; i++) {
+                if (shard.contains(allFiles.get(i))) {
+                    failing = allFiles.get(i);
+                }
+            }
+
+            File shardFile = new File(dir, "shard1");
+            UndertakerExtractor extractor = createExtractor(sourceDir, 1, 2, shardFile, new ArrayList<>(), failing);
+            int numFailed = 0;
+            for (File file : allFiles) {
+                try {
+                    extractor.runOnFile(file);
+                } catch (CodeExtractorException e) {
+                    numFailed++;
+                }
+            }
+            assertThat(numFailed, is(allFiles.size() - shard.size() + 1));
+            assertThat(shardFile.exists(), is(true));
+
+            try (ShardReader reader = new ShardReader(shardFile)) {
+                assertThat(reader.size(), is(shard.size() - 1));
+                assertThat(reader.contains(failing), is(false));
+                assertThat(reader.getFailedFiles(), is(Arrays.asList(failing)));
+            }
+
+            File merged = new File(dir, "merged");
+            assertThat(ShardMerger.merge(merged, Arrays.asList(shardFile)), is(Arrays.asList(
+                    "Shard 0 of 2 is missing", "Extraction of " + failing.getPath() + " failed in shard 1 of 2")));
+            try (ShardReader reader = new ShardReader(merged)) {
+                assertThat(reader.getFailedFiles(), is(Arrays.asList(failing)));
+            }
+
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * Tests whether the shard file of an extraction that is shut down before all files of its shard are extracted is
+     * discarded, and the shard file of a finished extraction is kept.
+     *
+     * @throws Exception unwanted.
+     */
+    @Test
+    public void testShutdown() throws Exception {
+        File dir = Files.createTempDirectory("shard_assignment_test").toFile();
+        try {
+            File sourceDir = new File(dir, "source");
+            List<File> allFiles = createSourceTree(sourceDir);
+
+            File interruptedFile = new File(dir, "interrupted");
+            List<File> executed = new ArrayList<>();
+            UndertakerExtractor interrupted = createExtractor(sourceDir, 0, 2, interruptedFile, executed);
+            for (int i = 0; executed.isEmpty(); i++) {
+                runIfInShard(interrupted, allFiles.get(i));
+            }
+            interrupted.shutdownWriters();
+            assertThat(interruptedFile.exists(), is(false));
+            assertThat(new File(dir, "interrupted.tmp").exists(), is(false));
+
+            File finishedFile = new File(dir, "finished");
+            UndertakerExtractor finished = createExtractor(sourceDir, 0, 2, finishedFile, new ArrayList<>());
+            for (File file : allFiles) {
+                runIfInShard(finished, file);
+            }
+            finished.shutdownWriters();
+            try (ShardReader reader = new ShardReader(finishedFile)) {
+                assertThat(reader.size() > 0, is(true));
+            }
+
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * Runs the given extractor on the given file, ignoring the failure for files of other shards.
+     *
+     * @param extractor The extractor to run.
+     * @param file The file to extract.
+     *
+     * @throws ExtractorException If the file is part of the shard of the extractor and fails.
+     */
+    private static void runIfInShard(UndertakerExtractor extractor, File file) throws ExtractorException {
+        try {
+            extractor.runOnFile(file);
+        } catch (CodeExtractorException e) {
+            if (!e.getMessage().contains("Not part of shard")) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Recursively deletes the given directory.
+     *
+     * @param dir The directory to delete.
+     *
+     * @throws IOException If walking the directory fails.
+     */
+    private static void delete(File dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).forEach((path) -> path.toFile().delete());
+        }
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import static net.ssehub.kernel_haven.undertaker.FormulaCodecTest.assertNestedFile;
+import static net.ssehub.kernel_haven.undertaker.FormulaCodecTest.createFile;
+import static net.ssehub.kernel_haven.undertaker.FormulaCodecTest.createNestedFile;
+import static net.ssehub.kernel_haven.util.logic.FormulaBuilder.and;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.util.FormatException;
+
+/**
+ * Tests the {@link ShardWriter}, the {@link ShardReader} and the {@link ShardMerger}.
+ *
+ * @author agent
+ */
+public class ShardWriterTest {
+
+    private File dir;
+
+    /**
+     * Creates a temporary directory for the shard files.
+     *
+     * @throws IOException unwanted.
+     */
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("shard_writer_test").toFile();
+    }
+
+    /**
+     * Deletes the temporary directory.
+     */
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * Tests the header and the index of a shard file: the shard is read back, the files are listed sorted by path,
+     * and each record is found by seeking to it, in any order.
+     *
+     * @throws IOException unwanted.
+     * @throws FormatException unwanted.
+     */
+    @Test
+    public void testHeaderAndIndex() throws IOException, FormatException {
+        File path = new File("dir/test.c");
+        File shardFile = new File(dir, "shard");
+        try (ShardWriter writer = new ShardWriter(shardFile, 1, 3)) {
+            writer.write(createFile("other.c", "CONFIG_O"));
+            writer.write(createNestedFile(path));
+            writer.fail(new File("failed.c"));
+            assertThat(writer.size(), is(2));
+            assertThat(writer.getFailureCount(), is(1));
+        }
+
+        try (ShardReader reader = new ShardReader(shardFile)) {
+            assertThat(reader.getShardIndex(), is(1));
+            assertThat(reader.getShardCount(), is(3));
+            assertThat(reader.getFiles(), is(Arrays.asList(path, new File("other.c"))));
+            assertThat(reader.getFailedFiles(), is(Arrays.asList(new File("failed.c"))));
+            assertThat(reader.contains(new File("failed.c")), is(false));
+            assertThat(reader.read(new File("missing.c")), nullValue());
+
+            assertNestedFile(reader.read(path), path);
+            // the record written first is still found after seeking past it
+            assertThat(reader.read(new File("other.c")).getElement(0).getCondition(),
+                    is(and("CONFIG_O", "CONFIG_X")));
+        }
+    }
+
+    /**
+     * Tests whether an incomplete shard file is rejected, and that the final file does not exist before closing.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testIncomplete() throws IOException {
+        File shardFile = new File(dir, "shard");
+        ShardWriter writer = new ShardWriter(shardFile, 0, 2);
+        writer.write(createFile("a.c", "CONFIG_A"));
+        assertThat(shardFile.exists(), is(false));
+        writer.close();
+
+        // cut off the trailer
+        try (RandomAccessFile file = new RandomAccessFile(shardFile, "rw")) {
+            file.setLength(file.length() - 1);
+        }
+        try {
+            new ShardReader(shardFile).close();
+            fail("expected FormatException");
+        } catch (FormatException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Tests merging shard files, including a warning for a missing shard.
+     *
+     * @throws IOException unwanted.
+     * @throws FormatException unwanted.
+     */
+    @Test
+    public void testMerge() throws IOException, FormatException {
+        File shard0 = new File(dir, "shard0");
+        File shard2 = new File(dir, "shard2");
+        try (ShardWriter writer = new ShardWriter(shard0, 0, 3)) {
+            writer.write(createFile("b.c", "CONFIG_B"));
+            writer.write(createFile("d.c", "CONFIG_D"));
+        }
+        try (ShardWriter writer = new ShardWriter(shard2, 2, 3)) {
+            writer.write(createFile("a.c", "CONFIG_A"));
+            writer.write(createFile("c.c", "CONFIG_C"));
+        }
+
+        File merged = new File(dir, "merged");
+        List<String> warnings = ShardMerger.merge(merged, Arrays.asList(shard0, shard2));
+        assertThat(warnings, is(Collections.singletonList("Shard 1 of 3 is missing")));
+
+        try (ShardReader reader = new ShardReader(merged)) {
+            assertThat(reader.getShardCount(), is(1));
+            assertThat(reader.getFiles(), is(Arrays.asList(new File("a.c"), new File("b.c"), new File("c.c"),
+                    new File("d.c"))));
+            assertThat(reader.read(new File("c.c")).getElement(0).getCondition(),
+                    is(and("CONFIG_C", "CONFIG_X")));
+        }
+    }
+
+    /**
+     * Tests that merging shard files that contain the same source file fails without creating the output file.
+     *
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testMergeDuplicate() throws IOException {
+        File shard0 = new File(dir, "shard0");
+        File shard1 = new File(dir, "shard1");
+        try (ShardWriter writer = new ShardWriter(shard0, 0, 2)) {
+            writer.write(createFile("a.c", "CONFIG_A"));
+        }
+        try (ShardWriter writer = new ShardWriter(shard1, 1, 2)) {
+            writer.write(createFile("a.c", "CONFIG_A"));
+        }
+
+        File merged = new File(dir, "merged");
+        try {
+            ShardMerger.merge(merged, Arrays.asList(shard0, shard1));
+            fail("expected FormatException");
+        } catch (FormatException e) {
+            // expected
+        }
+        assertThat(merged.exists(), is(false));
+        assertThat(new File(dir, "merged.tmp").exists(), is(false));
+    }
+
+}
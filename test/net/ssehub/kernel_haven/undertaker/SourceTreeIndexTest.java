@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link SourceTreeIndex}.
+ *
+ * @author agent
+ */
+public class SourceTreeIndexTest {
+
+    private static final Pattern C_FILES = Pattern.compile(".*\\.c");
+
+    private File sourceDir;
+
+    /**
+     * Creates a small source tree in a temporary directory.
+     *
+     * @throws IOException unwanted.
+     */
+    @Before
+    public void setUp() throws IOException {
+        sourceDir = Files.createTempDirectory("source_tree_index_test").toFile();
+        create("main.c", "int main() {}\n");
+        create("README", "not a source file\n");
+        create("kernel/fork.c", "#ifdef A\n#endif\n");
+        create("kernel/sched/core.c", "");
+        create("kernel/sched/core.h", "");
+        create("drivers/net/eth.c", "x");
+    }
+
+    /**
+     * Creates a file in the source tree.
+     *
+     * @param path The path of the file; relative to the source tree.
+     * @param content The content of the file.
+     *
+     * @throws IOException unwanted.
+     */
+    private void create(String path, String content) throws IOException {
+        File file = new File(sourceDir, path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Deletes the source tree.
+     *
+     * @throws IOException unwanted.
+     */
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(sourceDir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).forEach((path) -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * Tests indexing the whole source tree.
+     */
+    @Test
+    public void testWholeTree() {
+        SourceTreeIndex index = new SourceTreeIndex(sourceDir, Arrays.asList(""), C_FILES);
+
+        assertThat(index.getFiles(), is(Arrays.asList(new File("drivers/net/eth.c"), new File("kernel/fork.c"),
+                new File("kernel/sched/core.c"), new File("main.c"))));
+        assertThat(index.contains(new File("kernel/fork.c")), is(true));
+        assertThat(index.contains(new File("kernel/sched/core.h")), is(false));
+        assertThat(index.contains(new File("missing.c")), is(false));
+        assertThat(index.getSize(new File("kernel/fork.c")), is(16L));
+        assertThat(index.getSize(new File("missing.c")), is(-1L));
+        assertThat(index.getLastModified(new File("main.c")), is(new File(sourceDir, "main.c").lastModified()));
+    }
+
+    /**
+     * Tests indexing only some files and directories of the source tree.
+     */
+    @Test
+    public void testSelectedFiles() {
+        SourceTreeIndex index = new SourceTreeIndex(sourceDir, Arrays.asList("kernel/sched", "main.c", "missing"),
+                Pattern.compile(".*"));
+
+        assertThat(index.getFiles(), is(Arrays.asList(new File("kernel/sched/core.c"),
+                new File("kernel/sched/core.h"), new File("main.c"))));
+        assertThat(index.size(), is(3));
+    }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.ssehub.kernel_haven.undertaker;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link StderrRingBuffer}.
+ *
+ * @author agent
+ */
+public class StderrRingBufferTest {
+
+    /**
+     * Tests whether only the last bytes are kept, for single bytes, short and long writes.
+     */
+    @Test
+    public void testRing() {
+        StderrRingBuffer buffer = new StderrRingBuffer(8);
+        assertThat(buffer.isEmpty(), is(true));
+        assertThat(buffer.toString(), is(""));
+
+        buffer.write(bytes("abc"), 0, 3);
+        buffer.write('d');
+        assertThat(buffer.toString(), is("abcd"));
+
+        buffer.write(bytes("efghij"), 0, 6);
+        assertThat(buffer.toString(), is("[2 bytes omitted]\ncdefghij"));
+
+        buffer.write(bytes("0123456789xyz"), 1, 11);
+        assertThat(buffer.toString(), is("[13 bytes omitted]\n456789xy"));
+        assertThat(buffer.getTotalBytes(), is(21L));
+    }
+
+    /**
+     * Converts a string to its bytes.
+     *
+     * @param string The string.
+     * @return The UTF-8 bytes.
+     */
+    private static byte[] bytes(String string) {
+        return string.getBytes(StandardCharsets.UTF_8);
+    }
+
+}
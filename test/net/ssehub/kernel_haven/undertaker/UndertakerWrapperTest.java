@@ -22,13 +22,18 @@ import static org.junit.Assert.assertThat;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
 
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import net.ssehub.kernel_haven.code_model.CodeBlock;
+import net.ssehub.kernel_haven.code_model.SourceFile;
 import net.ssehub.kernel_haven.test_utils.RunOnlyOnLinux;
+import net.ssehub.kernel_haven.util.FormatException;
 
 /**
  * Tests the undertaker wrapper.
@@ -126,4 +131,51 @@ public class UndertakerWrapperTest {
         assertThat(csv, nullValue());
     }
     
+    /**
+     * Tests whether running undertaker on multiple files at once correctly splits the result per file.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testUndertakerBatchRun() throws IOException {
+        Map<File, String> result = wrapper.runOnFiles(Arrays.asList(
+                new File("test.c"), new File("non_existing.c"), new File("test_newline.c")));
+        
+        assertThat(result.size(), is(2));
+        assertThat(result.get(new File("non_existing.c")), nullValue());
+        assertThat(result.get(new File("test.c")), is(wrapper.runOnFile(new File("test.c"))));
+        assertThat(result.get(new File("test_newline.c")), is(wrapper.runOnFile(new File("test_newline.c"))));
+        
+        String[] lines = result.get(new File("test.c")).split("\n");
+        assertThat(lines.length, is(6));
+        assertThat(lines[0], is("test.c;2;4;if;0;2;CONFIG_A;CONFIG_A"));
+    }
+    
+    /**
+     * Tests whether directly streaming the output of undertaker into the converter creates the same result as
+     * converting the complete CSV.
+     * 
+     * @throws IOException unwanted.
+     * @throws FormatException unwanted.
+     */
+    @Test
+    public void testUndertakerStreamingRun() throws IOException, FormatException {
+        CsvToAstConverter converter = new CsvToAstConverter(false);
+        
+        SourceFile<CodeBlock> streamed = wrapper.runOnFile(new File("test.c"), converter);
+        SourceFile<CodeBlock> converted = converter.convert(new File("test.c"),
+                wrapper.runOnFile(new File("test.c")));
+        
+        assertThat(streamed.getTopElementCount(), is(3));
+        for (int i = 0; i < converted.getTopElementCount(); i++) {
+            assertThat(streamed.getElement(i).getLineStart(), is(converted.getElement(i).getLineStart()));
+            assertThat(streamed.getElement(i).getPresenceCondition(),
+                    is(converted.getElement(i).getPresenceCondition()));
+            assertThat(streamed.getElement(i).getNestedElementCount(),
+                    is(converted.getElement(i).getNestedElementCount()));
+        }
+        
+        assertThat(wrapper.runOnFile(new File("non_existing.c"), converter), nullValue());
+    }
+    
 }